@@ -0,0 +1,243 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2008 Riad Djemili and contributors
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.core;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.swing.Timer;
+
+import jmemorize.core.learn.LearnSession;
+import jmemorize.core.learn.LearnSessionObserver;
+import jmemorize.core.learn.LearnSessionProvider;
+
+/**
+ * Saves modified lessons automatically in the background. A lesson is saved
+ * when it hasn't been modified for a while and no learn session is running,
+ * so that bursts of modifications result in a single save and learning isn't
+ * slowed down by saving. Two automatic saves are always at least some
+ * interval apart.
+ *
+ * Only lessons that already have a file are saved automatically. All methods
+ * are expected to be called on the event dispatch thread.
+ *
+ * @author djemili
+ */
+public class AutoSaver implements LessonObserver, LearnSessionObserver
+{
+    private LessonProvider       m_lessonProvider;
+    private LearnSessionProvider m_sessionProvider;
+    
+    private int                  m_delay;
+    private int                  m_interval;
+    private Timer                m_timer;
+    
+    private Future<?>            m_save;
+    private long                 m_lastSaveTime;
+    
+    // metrics of automatic saves
+    private int                  m_saveCount;
+    private long                 m_lastSaveDuration;
+    private long                 m_lastSaveSize;
+    
+    /**
+     * Creates a new auto saver and registers it at the given providers.
+     *
+     * @param delay the number of milliseconds without modifications after
+     * which the lesson is saved.
+     * @param interval the minimum number of milliseconds between two
+     * automatic saves.
+     */
+    public AutoSaver(LessonProvider lessonProvider,
+        LearnSessionProvider sessionProvider, int delay, int interval)
+    {
+        m_lessonProvider = lessonProvider;
+        m_sessionProvider = sessionProvider;
+        m_delay = delay;
+        m_interval = interval;
+        
+        m_timer = new Timer(delay, new ActionListener() {
+            public void actionPerformed(ActionEvent e)
+            {
+                save();
+            }
+        });
+        m_timer.setRepeats(false);
+        
+        lessonProvider.addLessonObserver(this);
+        sessionProvider.addLearnSessionObserver(this);
+    }
+    
+    /**
+     * Stops saving lessons automatically.
+     */
+    public void stop()
+    {
+        m_timer.stop();
+        
+        m_lessonProvider.removeLessonObserver(this);
+        m_sessionProvider.removeLearnSessionObserver(this);
+    }
+    
+    /**
+     * @return the number of lessons that were saved automatically.
+     */
+    public int getSaveCount()
+    {
+        return m_saveCount;
+    }
+    
+    /**
+     * @return the time in milliseconds that it took to write the lesson the
+     * last time that it was saved automatically.
+     */
+    public long getLastSaveDuration()
+    {
+        return m_lastSaveDuration;
+    }
+    
+    /**
+     * @return the number of bytes that were written the last time that the
+     * lesson was saved automatically.
+     */
+    public long getLastSaveSize()
+    {
+        return m_lastSaveSize;
+    }
+    
+    /* (non-Javadoc)
+     * @see jmemorize.core.LessonObserver
+     */
+    public void lessonLoaded(Lesson lesson)
+    {
+    }
+    
+    /* (non-Javadoc)
+     * @see jmemorize.core.LessonObserver
+     */
+    public void lessonModified(Lesson lesson)
+    {
+        // every modification postpones the save
+        schedule(m_delay);
+    }
+    
+    /* (non-Javadoc)
+     * @see jmemorize.core.LessonObserver
+     */
+    public void lessonSaved(Lesson lesson)
+    {
+        // only count automatic saves
+        if (m_save == null)
+            return;
+        
+        m_save = null;
+        m_saveCount++;
+        m_lastSaveDuration = m_lessonProvider.getLastSaveDuration();
+        m_lastSaveSize = m_lessonProvider.getLastSaveSize();
+        
+        Main.getLogger().fine("Lesson saved automatically in " +
+            m_lastSaveDuration + " ms, " + m_lastSaveSize + " bytes written"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        
+        // the lesson might have been modified while it was saved
+        if (lesson.canSave())
+            schedule(m_delay);
+    }
+    
+    /* (non-Javadoc)
+     * @see jmemorize.core.LessonObserver
+     */
+    public void lessonClosed(Lesson lesson)
+    {
+        m_timer.stop();
+    }
+    
+    /* (non-Javadoc)
+     * @see jmemorize.core.learn.LearnSessionObserver
+     */
+    public void sessionStarted(LearnSession session)
+    {
+        m_timer.stop();
+    }
+    
+    /* (non-Javadoc)
+     * @see jmemorize.core.learn.LearnSessionObserver
+     */
+    public void sessionEnded(LearnSession session)
+    {
+        schedule(m_delay);
+    }
+    
+    private void schedule(int delay)
+    {
+        m_timer.setInitialDelay(delay);
+        m_timer.restart();
+    }
+    
+    private void save()
+    {
+        Lesson lesson = m_lessonProvider.getLesson();
+        if (lesson == null || !lesson.canSave() || lesson.getFile() == null)
+            return;
+        
+        // sessionEnded schedules the save again
+        if (m_sessionProvider.isSessionRunning())
+            return;
+        
+        // lessonSaved is fired after the save has completed
+        if (m_save != null && (!m_save.isDone() || !hasFailed(m_save)))
+        {
+            schedule(m_delay);
+            return;
+        }
+        
+        long wait = m_lastSaveTime + m_interval - System.currentTimeMillis();
+        if (wait > 0)
+        {
+            schedule((int)wait);
+            return;
+        }
+        
+        m_lastSaveTime = System.currentTimeMillis();
+        m_save = m_lessonProvider.saveLessonInBackground(lesson, lesson.getFile());
+    }
+    
+    /**
+     * @return <code>true</code> if the given completed save has failed.
+     */
+    private boolean hasFailed(Future<?> save)
+    {
+        try
+        {
+            save.get();
+            return false;
+        }
+        catch (ExecutionException e)
+        {
+            Main.logThrowable("Could not save lesson automatically", e.getCause()); //$NON-NLS-1$
+        }
+        catch (InterruptedException e)
+        {
+            Main.logThrowable("Could not save lesson automatically", e); //$NON-NLS-1$
+        }
+        
+        return true;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2006 Riad Djemili
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Describes the card and category events of a batch of changes. The event is
+ * collected while the batch is running and delivered to all
+ * {@link BatchObserver}s that would have been notified of any of its events
+ * when the batch ends.
+ * 
+ * @see Category#beginBatch()
+ * @author djemili
+ */
+public class BatchEvent implements Events
+{
+    private static final int     EVENT_TYPES = EXPIRED_EVENT + 1;
+    
+    private List<List<Card>>     m_cards             = new ArrayList<List<Card>>(EVENT_TYPES);
+    private List<List<Category>> m_categories        = new ArrayList<List<Category>>(EVENT_TYPES);
+    private Set<Category>        m_changedCategories = new LinkedHashSet<Category>();
+    
+    private Set<BatchObserver>   m_observers         = new LinkedHashSet<BatchObserver>();
+    
+    BatchEvent()
+    {
+        for (int i = 0; i < EVENT_TYPES; i++)
+        {
+            m_cards.add(new ArrayList<Card>());
+            m_categories.add(new ArrayList<Category>());
+        }
+    }
+    
+    /**
+     * @param type Either EDITED_EVENT, ADDED_EVENT, REMOVED_EVENT,
+     * MOVED_EVENT, EXPIRED_EVENT or DECK_EVENT.
+     * @return the cards of all card events of given type in the order in which
+     * they happened. A card is held once for every event.
+     */
+    public List<Card> getCards(int type)
+    {
+        return Collections.unmodifiableList(m_cards.get(type));
+    }
+    
+    /**
+     * @param type Either EDITED_EVENT, ADDED_EVENT or REMOVED_EVENT.
+     * @return the categories of all category events of given type in the order
+     * in which they happened.
+     */
+    public List<Category> getCategories(int type)
+    {
+        return Collections.unmodifiableList(m_categories.get(type));
+    }
+    
+    /**
+     * @return the categories in which any card or category event happened.
+     */
+    public Set<Category> getChangedCategories()
+    {
+        return Collections.unmodifiableSet(m_changedCategories);
+    }
+    
+    /**
+     * @return <code>true</code> if categories have been added, removed or
+     * edited in the batch.
+     */
+    public boolean hasCategoryEvents()
+    {
+        for (List<Category> categories : m_categories)
+        {
+            if (!categories.isEmpty())
+                return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * @return the number of card events of the batch.
+     */
+    public int getCardEventCount()
+    {
+        int count = 0;
+        for (List<Card> cards : m_cards)
+            count += cards.size();
+        
+        return count;
+    }
+    
+    void addCardEvent(int type, Card card, Category category)
+    {
+        m_cards.get(type).add(card);
+        m_changedCategories.add(category);
+    }
+    
+    void addCategoryEvent(int type, Category category)
+    {
+        m_categories.get(type).add(category);
+        m_changedCategories.add(category);
+    }
+    
+    /**
+     * Adds an observer that has skipped an event of the batch.
+     */
+    void addObserver(BatchObserver observer)
+    {
+        m_observers.add(observer);
+    }
+    
+    /**
+     * Notifies every observer that has skipped any events of the batch once.
+     */
+    void fire()
+    {
+        for (BatchObserver observer : m_observers)
+        {
+            observer.onBatchEvent(this);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2006 Riad Djemili
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.core;
+
+/**
+ * Interface for category observers that want to react once to a batch of
+ * changes instead of to every single change. While a batch is running, these
+ * observers don't get any card or category events. They get a single batch
+ * event when the batch has ended instead.
+ * 
+ * @see Category#beginBatch()
+ * @author djemili
+ */
+public interface BatchObserver extends CategoryObserver
+{
+    /**
+     * Gets notified when a batch has ended that changed the observed category
+     * or one of its child categories.
+     * 
+     * @param event describes all card and category events of the batch.
+     */
+    void onBatchEvent(BatchEvent event);
+}
@@ -36,6 +36,12 @@ public class Card implements Events, Cloneable
 
     private Category m_category;
     private int      m_level;
+    private int      m_id;          //used to identify the card in journals
+    
+    // links of the deck that holds this card, see Deck
+    Deck             m_deck;
+    Card             m_previousInDeck;
+    Card             m_nextInDeck;
 
     // content
     private CardSide m_frontSide = new CardSide();
@@ -235,7 +241,12 @@ public class Card implements Events, Cloneable
      */
     public void setDateExpired(Date date) // CHECK should this throw a event?
     {
+        Date oldDate = m_dateExpired;
         m_dateExpired = cloneDate(date);
+        
+        // the category counts the expired cards of its decks
+        if (m_category != null)
+            m_category.expirationChanged(this, oldDate);
     }
 
     /**
@@ -347,9 +358,16 @@ public class Card implements Events, Cloneable
      */
     public boolean isExpired()
     {
-        Date now = Main.getNow();
-        return m_dateExpired != null && 
-            (m_dateExpired.before(now) || m_dateExpired.equals(now));
+        return isExpired(Main.getNow().getTime());
+    }
+    
+    /**
+     * @return <code>true</code> if the card has expired at given time. Unlike
+     * {@link #getDateExpired()} this doesn't copy the expiration date.
+     */
+    boolean isExpired(long time)
+    {
+        return m_dateExpired != null && m_dateExpired.getTime() <= time;
     }
 
     /**
@@ -360,7 +378,15 @@ public class Card implements Events, Cloneable
      */
     public boolean isLearned()
     {
-        return m_dateExpired != null && m_dateExpired.after(Main.getNow());
+        return isLearned(Main.getNow().getTime());
+    }
+    
+    /**
+     * @return <code>true</code> if the card is learned at given time.
+     */
+    boolean isLearned(long time)
+    {
+        return m_dateExpired != null && m_dateExpired.getTime() > time;
     }
 
     /**
@@ -374,6 +400,20 @@ public class Card implements Events, Cloneable
         return m_dateExpired == null;
     }
 
+    /**
+     * @return the id that identifies this card in the lesson journal or 0 if
+     * no id has been assigned yet.
+     */
+    public int getId()
+    {
+        return m_id;
+    }
+    
+    public void setId(int id)
+    {
+        m_id = id;
+    }
+    
     /**
      * @return Returns the level.
      */
@@ -409,6 +449,9 @@ public class Card implements Events, Cloneable
             card.m_dateTouched = cloneDate(m_dateTouched);
             
             card.m_category = null; // don't clone category
+            card.m_deck = null;
+            card.m_previousInDeck = null;
+            card.m_nextInDeck = null;
         }
         catch (CloneNotSupportedException e) 
         {
@@ -0,0 +1,157 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2008 Riad Djemili and contributors
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.core;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Loads the cards of a category on demand. Until the cards are loaded, the
+ * loader knows the number of cards and their expiration dates for every deck
+ * of the category, so that the category can be displayed and counted without
+ * its cards.
+ *
+ * Loading is thread-safe. Cards can be prefetched in a background thread, so
+ * that loading them later on the event dispatch thread doesn't block.
+ *
+ * @see Category#setCardLoader(CardLoader)
+ * @author djemili
+ */
+public abstract class CardLoader
+{
+    private int[]            m_deckSizes;
+    private long[][]         m_expirations;     // sorted, per deck
+    
+    private List<List<Card>> m_prefetchedDecks;
+    
+    /**
+     * @param deckSizes the number of cards of every deck.
+     * @param expirations the sorted expiration times of the cards of every
+     * deck. Empty for deck 0, because unlearned cards don't expire.
+     */
+    public CardLoader(int[] deckSizes, long[][] expirations)
+    {
+        assert deckSizes.length == expirations.length;
+        
+        m_deckSizes = deckSizes;
+        m_expirations = expirations;
+    }
+    
+    /**
+     * @return the number of decks of the category, including empty decks.
+     */
+    public int getNumberOfDecks()
+    {
+        return m_deckSizes.length;
+    }
+    
+    /**
+     * @return the number of cards in the deck with given level.
+     */
+    public int getDeckSize(int level)
+    {
+        return level < m_deckSizes.length ? m_deckSizes[level] : 0;
+    }
+    
+    /**
+     * @return the number of cards in the deck with given level that have
+     * expired at the given time.
+     */
+    public int getExpiredCount(int level, long now)
+    {
+        if (level >= m_expirations.length)
+            return 0;
+        
+        long[] expirations = m_expirations[level];
+        int index = Arrays.binarySearch(expirations, now);
+        if (index < 0)
+            return -index - 1;
+        
+        // cards that expire exactly now have expired, too
+        while (index < expirations.length && expirations[index] == now)
+            index++;
+        
+        return index;
+    }
+    
+    /**
+     * @return the time at which the next card of the deck with given level
+     * expires after the given time or {@link Long#MAX_VALUE} if no card
+     * expires after it.
+     */
+    public long getNextExpiration(int level, long now)
+    {
+        int expired = getExpiredCount(level, now);
+        long[] expirations = getExpirations(level);
+        
+        return expired < expirations.length ? expirations[expired] : Long.MAX_VALUE;
+    }
+    
+    /**
+     * @return the sorted expiration times of the cards in the deck with given
+     * level. The returned array must not be modified.
+     */
+    public long[] getExpirations(int level)
+    {
+        return level < m_expirations.length ? m_expirations[level] : new long[0];
+    }
+    
+    /**
+     * Loads the cards, so that a following call of {@link #load(Category)}
+     * returns immediately. Can be called from any thread.
+     */
+    public synchronized void prefetch() throws IOException
+    {
+        if (m_prefetchedDecks == null)
+            m_prefetchedDecks = loadDecks();
+    }
+    
+    /**
+     * @return newly created cards for every deck of the given category. The
+     * cards haven't been added to the category yet.
+     */
+    public synchronized List<List<Card>> load(Category category)
+        throws IOException
+    {
+        List<List<Card>> decks = m_prefetchedDecks;
+        m_prefetchedDecks = null;
+        
+        if (decks == null)
+            decks = loadDecks();
+        
+        cardsLoaded(category, decks);
+        return decks;
+    }
+    
+    /**
+     * @return newly created cards for every deck. Every call has to return
+     * new card objects, because categories that were copied share their
+     * loader.
+     */
+    protected abstract List<List<Card>> loadDecks() throws IOException;
+    
+    /**
+     * Called after the cards of given category have been loaded and before
+     * they are added to it. Does nothing by default.
+     */
+    protected void cardsLoaded(Category category, List<List<Card>> decks)
+    {
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2008 Riad Djemili and contributors
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.core;
+
+import java.util.AbstractCollection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A read-only view of the cards of a category and its child categories. The
+ * cards are visited in the decks of the categories themselves, so that no
+ * card lists are copied. The view always reflects the current cards of the
+ * category, but the category must not be changed while iterating.
+ *
+ * The cards are visited in the same order as they are returned by
+ * {@link Category#getCards(int)}.
+ *
+ * @see Category#getCardView(int, CardView.Filter)
+ * @author djemili
+ */
+public class CardView extends AbstractCollection<Card>
+{
+    public enum Filter {ALL, EXPIRED, LEARNED}
+    
+    private Category m_category;
+    private int      m_level;
+    private Filter   m_filter;
+    
+    /**
+     * @param level the level of the deck or -1 for the cards of all decks.
+     */
+    CardView(Category category, int level, Filter filter)
+    {
+        m_category = category;
+        m_level = level;
+        m_filter = filter;
+    }
+    
+    /**
+     * Iterates the cards that pass the filter at the time at which the
+     * iterator has been created. Cards that haven't been loaded yet are
+     * loaded when their category is reached.
+     */
+    public Iterator<Card> iterator()
+    {
+        return new CardIterator(Main.getNow().getTime());
+    }
+    
+    /**
+     * @return the number of cards of this view. The number is taken from the
+     * card counts of the category, so that no cards are visited or loaded.
+     */
+    public int size()
+    {
+        switch (m_filter)
+        {
+        case EXPIRED:
+            return m_level == -1 ? m_category.getExpiredCardCount() :
+                m_category.getExpiredCardCount(m_level);
+        
+        case LEARNED:
+            return m_level == -1 ? m_category.getLearnedCardCount() :
+                m_category.getLearnedCardCount(m_level);
+        
+        default:
+            return m_category.getCardCount(m_level);
+        }
+    }
+    
+    /*
+     * Is only overridden to avoid visiting all cards.
+     */
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+    
+    private class CardIterator implements Iterator<Card>
+    {
+        private long           m_time;
+        
+        private List<Category> m_categories;
+        private int            m_categoryIndex = -1;
+        private int            m_deck;
+        private int            m_lastDeck;
+        
+        private Iterator<Card> m_cards = Collections.<Card>emptyList().iterator();
+        private Card           m_next;
+        
+        public CardIterator(long time)
+        {
+            m_time = time;
+            m_categories = m_category.getSubtreeList();
+            
+            m_deck = m_level == -1 ? 0 : m_level;
+            m_lastDeck = m_level == -1 ? m_category.getNumberOfDecks() - 1 : m_level;
+            
+            m_next = findNext();
+        }
+        
+        public boolean hasNext()
+        {
+            return m_next != null;
+        }
+        
+        public Card next()
+        {
+            if (m_next == null)
+                throw new NoSuchElementException();
+            
+            Card card = m_next;
+            m_next = findNext();
+            
+            return card;
+        }
+        
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+        
+        private Card findNext()
+        {
+            while (true)
+            {
+                while (m_cards.hasNext())
+                {
+                    Card card = m_cards.next();
+                    if (accept(card))
+                        return card;
+                }
+                
+                if (!nextDeck())
+                    return null;
+            }
+        }
+        
+        /**
+         * Moves on to the deck of the next category that has the current
+         * level or to the first category of the next level.
+         *
+         * @return <code>false</code> if all decks have been visited.
+         */
+        private boolean nextDeck()
+        {
+            while (m_deck <= m_lastDeck)
+            {
+                m_categoryIndex++;
+                if (m_categoryIndex == m_categories.size())
+                {
+                    m_categoryIndex = -1;
+                    m_deck++;
+                    continue;
+                }
+                
+                // child categories can have fewer decks than their parents
+                Category category = m_categories.get(m_categoryIndex);
+                if (category.getNumberOfDecks() > m_deck)
+                {
+                    m_cards = category.getLocalCards(m_deck).iterator();
+                    return true;
+                }
+            }
+            
+            return false;
+        }
+        
+        private boolean accept(Card card)
+        {
+            switch (m_filter)
+            {
+            case EXPIRED:
+                return card.isExpired(m_time);
+            
+            case LEARNED:
+                return card.isLearned(m_time);
+            
+            default:
+                return true;
+            }
+        }
+    }
+}
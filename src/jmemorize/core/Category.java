@@ -18,14 +18,19 @@
  */
 package jmemorize.core;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
+import jmemorize.core.CardView.Filter;
 import jmemorize.util.NaturalOrderComparator;
 
 /**
@@ -44,21 +49,48 @@ import jmemorize.util.NaturalOrderComparator;
  * Observers can be hooked to categories and will be notified when a card or
  * category event in this category or one of its child categories happens.
  * 
+ * The cards of a category can be loaded on demand by a {@link CardLoader}.
+ * They are loaded the first time that they are accessed. The card counts of
+ * a category are available without loading its cards.
+ * 
+ * Every category keeps the card counts of its subtree per deck. They are
+ * updated whenever a card or category is added or removed, so they can be
+ * read without visiting any cards. The expired counts change over time, so
+ * they are only valid until the next card of the subtree expires and are
+ * recounted after that.
+ * 
  * @author djemili
  */
 public class Category implements Events
 {
-    // TODO use CopyOnWriteArrayList in Java1.5
-    private List<CategoryObserver> m_observers       = new ArrayList<CategoryObserver>();
+    // versions start at a random number, so that they are unique across
+    // program runs and can be stored in lesson files
+    private static final AtomicLong VERSIONS = new AtomicLong(new Random().nextLong());
+    
+    // observers can be added and removed while events are fired
+    private List<CategoryObserver> m_observers       = new CopyOnWriteArrayList<CategoryObserver>();
 
     private String                 m_name;
+    private int                    m_id;                                      // is 0 if not journaled
     private int                    m_depth           = 0;                     // is 0 for root category
+    private long                   m_version         = VERSIONS.incrementAndGet();
 
-    private List<List<Card>>       m_decks           = new ArrayList<List<Card>>(); // list of card lists
+    private List<Deck>             m_decks           = new ArrayList<Deck>(); // list of card lists
+    private CardLoader             m_cardLoader;                              // is null if cards are loaded
 
     private Category               m_parent;
     private List<Category>         m_childCategories = new LinkedList<Category>();
     
+    // card counts of this category and its child categories per deck level.
+    // The expired counts are valid until the next expiration.
+    private int[]                  m_cardCounts      = new int[0];
+    private int[]                  m_expiredCounts   = new int[0];
+    private long                   m_nextExpiration  = Long.MAX_VALUE;
+    
+    private ExpirationIndex        m_expirationIndex;                         // only set for root categories
+    private BatchEvent             m_batch;                                   // only set for root categories
+    private int                    m_batchDepth;
+    
     /**
      * Creates a new Category.
      * 
@@ -182,15 +214,7 @@ public class Category implements Events
      */
     public List<Card> getCards()
     {
-        List<Card> cardList = new ArrayList<Card>();
-        
-        //get cards from all decks
-        for (int i=0; i < m_decks.size(); i++)
-        {
-            cardList.addAll(getCards(i));
-        }
-        
-        return cardList;
+        return new ArrayList<Card>(getCardView(-1, Filter.ALL));
     }
     
     /**
@@ -201,29 +225,21 @@ public class Category implements Events
      */
     public List<Card> getCards(int level)
     {
-        if (level >= getNumberOfDecks())
-        {
-            return new ArrayList<Card>(); //HACK
-        }
-        
-        if (level == -1)
-        {
-            return getCards();
-        }
-        
-        //get cards in this category
-        List<Card> cardList = new ArrayList<Card>(m_decks.get(level));
-        
-        //get cards in child categories
-        for (Category child : getChildCategories())
-        {
-            if (child.getNumberOfDecks() > level)
-            {
-                cardList.addAll(child.getCards(level));
-            }
-        }
-        
-        return cardList;
+        return new ArrayList<Card>(getCardView(level, Filter.ALL));
+    }
+    
+    /**
+     * Returns a read-only view of the cards of given deck of this category
+     * and its child categories. Unlike the card getters, the view doesn't
+     * copy any cards, so it should be preferred by callers that only iterate
+     * the cards once.
+     * 
+     * @param level the deck level or -1 for the cards of all decks.
+     * @param filter the cards that are visited by the view.
+     */
+    public CardView getCardView(int level, Filter filter)
+    {
+        return new CardView(this, level, filter);
     }
     
     /**
@@ -232,18 +248,7 @@ public class Category implements Events
      */
     public List<Card> getExpiredCards()
     {
-        List<Card> expiredCards = getCards();
-        
-        for (Iterator<Card> it = expiredCards.iterator(); it.hasNext();)
-        {
-            Card card = it.next();
-            if (!card.isExpired())
-            {
-                it.remove();
-            }
-        }
-        
-        return expiredCards;
+        return getExpiredCardsOfDeck(-1);
     }
     
     /**
@@ -252,18 +257,10 @@ public class Category implements Events
      */
     public List<Card> getExpiredCards(int level)
     {
-        List<Card> expiredCards = getCards(level);
-        
-        for (Iterator<Card> it = expiredCards.iterator(); it.hasNext();)
-        {
-            Card card = (Card)it.next();
-            if (!card.isExpired())
-            {
-                it.remove();
-            }
-        }
+        if (level >= getNumberOfDecks())
+            return new ArrayList<Card>();
         
-        return expiredCards;
+        return getExpiredCardsOfDeck(level);
     }
     
     /**
@@ -272,18 +269,7 @@ public class Category implements Events
      */
     public List<Card> getLearnedCards()
     {
-        List<Card> learnedCards = getCards();
-        
-        for (Iterator<Card> it = learnedCards.iterator(); it.hasNext();)
-        {
-            Card card = (Card)it.next();
-            if (!card.isLearned())
-            {
-                it.remove();
-            }
-        }
-        
-        return learnedCards;
+        return new ArrayList<Card>(getCardView(-1, Filter.LEARNED));
     }
     
     /**
@@ -294,23 +280,7 @@ public class Category implements Events
      */
     public List<Card> getLearnedCards(int level)
     {
-        // level 0 decks have no learned cards
-        if (level == 0)
-        {
-            return new ArrayList<Card>();
-        }
-        
-        List<Card> learnedCards = getCards(level);        
-        for (Iterator<Card> it = learnedCards.iterator(); it.hasNext();)
-        {
-            Card card = (Card)it.next();
-            if (!card.isLearned())
-            {
-                it.remove();
-            }
-        }
-        
-        return learnedCards;        
+        return new ArrayList<Card>(getCardView(level, Filter.LEARNED));
     }
     
     /**
@@ -332,11 +302,9 @@ public class Category implements Events
      */
     public List<Card> getLearnableCards()
     {
-        List<Card> learnableCards = new LinkedList<Card>();
-        for (int i = 0; i < getNumberOfDecks(); i++)
-        {
-            learnableCards.addAll(getLearnableCards(i));
-        }
+        List<Card> learnableCards = new ArrayList<Card>(getLearnableCardCount());
+        learnableCards.addAll(getCardView(0, Filter.ALL));
+        learnableCards.addAll(getCardView(-1, Filter.EXPIRED));
         
         return learnableCards;
     }
@@ -346,7 +314,7 @@ public class Category implements Events
      */
     public List<Card> getUnlearnedCards()
     {
-        return m_decks.size() > 0 ? getCards(0) : new ArrayList<Card>();
+        return getCards(0);
     }
     
     /**
@@ -372,6 +340,7 @@ public class Category implements Events
      */
     public List<Card> getLocalCards(int level)
     {
+        loadLocalCards();
         return m_decks.get(level);
     }
     
@@ -385,6 +354,187 @@ public class Category implements Events
         return m_decks.size();
     }    
     
+    /*
+     * Card count methods. These don't load any cards.
+     */
+    
+    /**
+     * @return the number of cards in the given deck level in this category and
+     * its child categories. Returns the number of all cards if -1 is given as
+     * level.
+     * 
+     * @see #getCards(int)
+     */
+    public int getCardCount(int level)
+    {
+        if (level == -1)
+        {
+            int count = 0;
+            for (int i = 0; i < m_cardCounts.length; i++)
+                count += m_cardCounts[i];
+            
+            return count;
+        }
+        
+        return level < m_cardCounts.length ? m_cardCounts[level] : 0;
+    }
+    
+    /**
+     * @return the number of expired cards of given deck in this category and
+     * its child categories.
+     * 
+     * @see #getExpiredCards(int)
+     */
+    public int getExpiredCardCount(int level)
+    {
+        updateExpiredCounts(Main.getNow().getTime());
+        
+        return level < m_expiredCounts.length ? m_expiredCounts[level] : 0;
+    }
+    
+    /**
+     * @return the number of expired cards of all decks in this category and
+     * its child categories.
+     * 
+     * @see #getExpiredCards()
+     */
+    public int getExpiredCardCount()
+    {
+        updateExpiredCounts(Main.getNow().getTime());
+        
+        int count = 0;
+        for (int i = 0; i < m_expiredCounts.length; i++)
+            count += m_expiredCounts[i];
+        
+        return count;
+    }
+    
+    /**
+     * @return the number of learned cards in deck with given level.
+     * 
+     * @see #getLearnedCards(int)
+     */
+    public int getLearnedCardCount(int level)
+    {
+        // level 0 decks have no learned cards
+        if (level == 0)
+            return 0;
+        
+        return getCardCount(level) - getExpiredCardCount(level);
+    }
+    
+    /**
+     * @return the number of learned cards of all decks in this category and
+     * its child categories.
+     * 
+     * @see #getLearnedCards()
+     */
+    public int getLearnedCardCount()
+    {
+        return getCardCount(-1) - getUnlearnedCardCount() - getExpiredCardCount();
+    }
+    
+    /**
+     * @return the number of unlearned cards of this category and its child
+     * categories.
+     * 
+     * @see #getUnlearnedCards()
+     */
+    public int getUnlearnedCardCount()
+    {
+        return getCardCount(0);
+    }
+    
+    /**
+     * @return the number of learnable cards in this category.
+     * 
+     * @see #getLearnableCards()
+     */
+    public int getLearnableCardCount()
+    {
+        return getUnlearnedCardCount() + getExpiredCardCount();
+    }
+    
+    /**
+     * @return the time at which the next card of this category or of one of
+     * its child categories expires or {@link Long#MAX_VALUE} if no card will
+     * expire. Cards that have expired already are ignored.
+     */
+    public long getNextExpiration()
+    {
+        updateExpiredCounts(Main.getNow().getTime());
+        
+        return m_nextExpiration;
+    }
+    
+    /*
+     * Card loading methods.
+     */
+    
+    /**
+     * Sets the loader that loads the cards of this category when they are
+     * accessed for the first time. The category gets as many empty decks as
+     * the loader knows of. Must only be called for categories without cards,
+     * before they are observed.
+     */
+    public void setCardLoader(CardLoader loader)
+    {
+        assert getLocalCards().isEmpty();
+        
+        m_cardLoader = loader;
+        while (m_decks.size() < loader.getNumberOfDecks())
+        {
+            m_decks.add(new Deck());
+        }
+        
+        long now = Main.getNow().getTime();
+        for (int level = 0; level < loader.getNumberOfDecks(); level++)
+        {
+            updateCounts(level, loader.getDeckSize(level), 
+                loader.getExpiredCount(level, now), 
+                loader.getNextExpiration(level, now), Long.MAX_VALUE);
+        }
+    }
+    
+    /**
+     * @return the loader of the cards of this category or <code>null</code>
+     * if its cards have been loaded already.
+     */
+    public CardLoader getCardLoader()
+    {
+        return m_cardLoader;
+    }
+    
+    /**
+     * Loads the cards of this category and of all its child categories that
+     * haven't been loaded yet. No events are fired.
+     */
+    public void loadCards()
+    {
+        loadLocalCards();
+        
+        for (Category child : m_childCategories)
+            child.loadCards();
+    }
+    
+    /**
+     * @return <code>true</code> if the cards of this category or of one of
+     * its child categories haven't been loaded yet.
+     */
+    public boolean hasUnloadedCards()
+    {
+        if (m_cardLoader != null)
+            return true;
+        
+        for (Category child : m_childCategories)
+        {
+            if (child.hasUnloadedCards())
+                return true;
+        }
+        
+        return false;
+    }    
+    
     /*
      * Category related methods.
      */
@@ -419,7 +569,7 @@ public class Category implements Events
     public Category addCategoryChild(Category category)
     {
         category.m_parent = this;
-        category.m_depth  = m_depth + 1;
+        category.setDepth(m_depth + 1);
         
         Comparator comp = new NaturalOrderComparator();
         
@@ -433,7 +583,13 @@ public class Category implements Events
         }
 
         m_childCategories.add(position, category);
+        addCounts(category, 1);
+        growDecks(category.getNumberOfDecks());
 
+        ExpirationIndex index = getExpirationIndex();
+        if (index != null)
+            category.updateExpirationIndex(index, true);
+        
         fireCategoryEvent(ADDED_EVENT, category);
         
         return category;
@@ -449,6 +605,11 @@ public class Category implements Events
         assert m_parent != null : "Root category can't be deleted"; //$NON-NLS-1$
 
         m_parent.m_childCategories.remove(this);
+        m_parent.addCounts(this, -1);
+        
+        ExpirationIndex index = m_parent.getExpirationIndex();
+        if (index != null)
+            updateExpirationIndex(index, false);
         
         fireCategoryEvent(REMOVED_EVENT, this);
         m_parent = null; // have to release parent AFTER firing event
@@ -519,6 +680,40 @@ public class Category implements Events
         return m_parent != null ? m_parent.getPath() +  "/" + getName() : getName(); //$NON-NLS-1$
     }
     
+    /**
+     * @return the id that identifies this category in the lesson journal or 0
+     * if no id has been assigned yet.
+     */
+    public int getId()
+    {
+        return m_id;
+    }
+    
+    public void setId(int id)
+    {
+        m_id = id;
+    }
+    
+    /**
+     * @return a number that changes whenever this category or one of its
+     * cards or child categories is modified. Copies have the same version as
+     * the original category until one of them is modified. Versions of other
+     * categories are always different.
+     */
+    public long getVersion()
+    {
+        return m_version;
+    }
+    
+    /**
+     * Sets the version of a category that was loaded exactly like it was
+     * saved with the given version. Don't use this method for anything else.
+     */
+    public void setVersion(long version)
+    {
+        m_version = version;
+    }
+    
     /**
      * @return Number of hops from this node to root.
      */
@@ -574,6 +769,7 @@ public class Category implements Events
     {
         Category clonedCategory = new Category(m_name);
         
+        loadLocalCards();
         for (List<Card> cards : m_decks)
         {
             for (Card card : cards)
@@ -590,64 +786,190 @@ public class Category implements Events
         return clonedCategory;
     }
     
+    /**
+     * @return a deep copy of this category. The copy contains copies of all
+     * child categories and cards, including their learn progress. No events
+     * are fired while copying.
+     */
+    public Category copy()
+    {
+        Category copy = new Category(m_name);
+        copy.m_depth = m_depth;
+        copy.m_id = m_id;
+        copy.m_version = m_version;
+        copy.m_cardLoader = m_cardLoader;
+        copy.m_cardCounts = m_cardCounts.clone();
+        copy.m_expiredCounts = m_expiredCounts.clone();
+        copy.m_nextExpiration = m_nextExpiration;
+        
+        for (Deck cards : m_decks)
+        {
+            Deck copiedCards = new Deck();
+            for (Card card : cards)
+            {
+                Card copiedCard = (Card)card.clone();
+                copiedCard.setCategory(copy);
+                copiedCards.add(copiedCard);
+            }
+            
+            copy.m_decks.add(copiedCards);
+        }
+        
+        for (Category childCategory : m_childCategories)
+        {
+            Category copiedChild = childCategory.copy();
+            copiedChild.m_parent = copy;
+            copy.m_childCategories.add(copiedChild);
+        }
+        
+        return copy;
+    }
+    
+    /**
+     * Starts a batch of changes to the categories and cards of the category
+     * tree of this category, e.g. an import. Until the batch ends, observers
+     * that are {@link BatchObserver}s don't get any card or category events
+     * of the tree. They get a single {@link BatchEvent} when the batch ends
+     * instead. Other observers still get every event. Empty decks that are
+     * left over by the changes are only removed when the batch ends.
+     * 
+     * Batches can be nested, the batch event is delivered when the outermost
+     * batch ends. Every call must be matched by a call of {@link #endBatch()},
+     * which is best done in a finally block.
+     */
+    public void beginBatch()
+    {
+        Category root = getRoot();
+        if (root.m_batchDepth++ == 0)
+            root.m_batch = new BatchEvent();
+    }
+    
+    /**
+     * Ends a batch that has been started by {@link #beginBatch()} and notifies
+     * the batch observers if it was the outermost batch.
+     */
+    public void endBatch()
+    {
+        Category root = getRoot();
+        if (root.m_batchDepth == 0)
+            throw new IllegalStateException("No batch has been started"); //$NON-NLS-1$
+        
+        if (--root.m_batchDepth > 0)
+            return;
+        
+        BatchEvent batch = root.m_batch;
+        root.m_batch = null;
+        
+        // empty decks are only trimmed when the batch ends
+        root.adjustNumberOfDecksOfTree();
+        batch.fire();
+    }
+    
     void fireCardEvent(int type, Card card, Category category, int deck)
     {
-        if (type != EDITED_EVENT)
+        BatchEvent batch = getRoot().m_batch;
+        if (batch != null)
+            batch.addCardEvent(type, card, category);
+        
+        fireCardEvent(type, card, category, deck, batch);
+    }
+    
+    void fireCategoryEvent(int type, Category category)
+    {
+        BatchEvent batch = getRoot().m_batch;
+        if (batch != null)
+            batch.addCategoryEvent(type, category);
+        
+        fireCategoryEvent(type, category, batch);
+    }
+    
+    private void fireCardEvent(int type, Card card, Category category, int deck, 
+        BatchEvent batch)
+    {
+        // cards expire without being modified
+        if (type != EXPIRED_EVENT)
+            m_version = VERSIONS.incrementAndGet();
+        
+        if (type != EDITED_EVENT && batch == null)
         {
             adjustNumberOfDecks();
         }
         
         if (m_parent != null)
         {
-            m_parent.fireCardEvent(type, card, category, deck);
+            m_parent.fireCardEvent(type, card, category, deck, batch);
         }
         
-        List<CategoryObserver> observersCopy = new ArrayList<CategoryObserver>(m_observers);
-        for (CategoryObserver observer : observersCopy)
+        for (CategoryObserver observer : m_observers)
         {
-            observer.onCardEvent(type, card, category, deck);
+            if (batch != null && observer instanceof BatchObserver)
+                batch.addObserver((BatchObserver)observer);
+            else
+                observer.onCardEvent(type, card, category, deck);
         }
     }
     
-    void fireCategoryEvent(int type, Category category)
+    private void fireCategoryEvent(int type, Category category, BatchEvent batch)
     {
-        adjustNumberOfDecks();
+        m_version = VERSIONS.incrementAndGet();
+        
+        if (batch == null)
+            adjustNumberOfDecks();
         
         if (m_parent != null)
         {
-            m_parent.fireCategoryEvent(type, category);
+            m_parent.fireCategoryEvent(type, category, batch);
         }
         
-        List<CategoryObserver> observersCopy = new ArrayList<CategoryObserver>(m_observers);
-        for (CategoryObserver observer : observersCopy)
+        for (CategoryObserver observer : m_observers)
         {
-            observer.onCategoryEvent(type, category);
+            if (batch != null && observer instanceof BatchObserver)
+                batch.addObserver((BatchObserver)observer);
+            else
+                observer.onCategoryEvent(type, category);
         }
     }
     
+    /**
+     * Sets the depth of this category and of all its child categories, which
+     * might have been added before this category was added to its parent.
+     */
+    private void setDepth(int depth)
+    {
+        m_depth = depth;
+        
+        for (Category child : m_childCategories)
+            child.setDepth(depth + 1);
+    }
+    
     /**
      * Adds a card to this category without emitting a ADDED_EVENT. 
      */
     private void addCardInternal(Card card, int level)
     {
-        // check boundary
-        while (m_decks.size() <= level)
-        {
-            m_decks.add(new ArrayList<Card>());
-        }
+        loadLocalCards();
+        growDecks(level + 1);
         
         List<Card> cards = m_decks.get(level);
         cards.add(card);
         
-        card.setCategory(this);
-        card.setLevel(level);
-        
         // sanity checks
         if (level > 0 && card.getDateExpired() == null)
             card.setDateExpired(new Date());
         
         if (level == 0)
             card.setDateExpired(null);
+        
+        card.setCategory(this);
+        card.setLevel(level);
+        
+        long now = Main.getNow().getTime();
+        updateCounts(level, 1, isExpired(card, now) ? 1 : 0, 
+            getExpiration(card, now), Long.MAX_VALUE);
+        
+        ExpirationIndex index = getExpirationIndex();
+        if (index != null)
+            index.update(card);
     }
     
     /**
@@ -659,10 +981,17 @@ public class Category implements Events
         if (cat == this)
         {
             int level = card.getLevel();
-            List<Card> cards = m_decks.get(level);
-            cards.remove(card);
+            m_decks.get(level).remove(card);
             
             card.setCategory(null);
+            
+            long now = Main.getNow().getTime();
+            updateCounts(level, -1, isExpired(card, now) ? -1 : 0, 
+                Long.MAX_VALUE, getExpiration(card, now));
+            
+            ExpirationIndex index = getExpirationIndex();
+            if (index != null)
+                index.remove(card);
         }
         else
         {
@@ -692,6 +1021,325 @@ public class Category implements Events
         category.fireCardEvent(DECK_EVENT, card, category, level);
     }
     
+    /**
+     * Loads the cards of this category if they haven't been loaded yet. The
+     * loaded cards are added without firing any events, because the category
+     * has had them from the viewpoint of its observers all the time.
+     */
+    private void loadLocalCards()
+    {
+        if (m_cardLoader == null)
+            return;
+        
+        List<List<Card>> decks;
+        try
+        {
+            decks = m_cardLoader.load(this);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(
+                "Could not load cards of category " + getPath(), e); //$NON-NLS-1$
+        }
+        
+        m_cardLoader = null;
+        ExpirationIndex index = getExpirationIndex();
+        
+        for (int level = 0; level < decks.size(); level++)
+        {
+            List<Card> cards = decks.get(level);
+            for (Card card : cards)
+            {
+                card.setCategory(this);
+                card.setLevel(level);
+                
+                if (index != null)
+                    index.update(card);
+            }
+            
+            while (m_decks.size() <= level)
+            {
+                m_decks.add(new Deck());
+            }
+            m_decks.set(level, new Deck(cards));
+        }
+    }
+    
+    private int getLocalCardCount(int level)
+    {
+        return m_cardLoader != null ? 
+            m_cardLoader.getDeckSize(level) : m_decks.get(level).size();
+    }
+    
+    /**
+     * Sets the index that holds the cards of this root category and all its
+     * child categories by their expiration dates. The index is kept up to date
+     * from then on.
+     */
+    void setExpirationIndex(ExpirationIndex index)
+    {
+        assert m_parent == null;
+        
+        m_expirationIndex = index;
+        updateExpirationIndex(index, true);
+    }
+    
+    /**
+     * @return the expiration index of the root category of this category or
+     * <code>null</code> if it has none.
+     */
+    private ExpirationIndex getExpirationIndex()
+    {
+        return getRoot().m_expirationIndex;
+    }
+    
+    private Category getRoot()
+    {
+        Category root = this;
+        while (root.m_parent != null)
+            root = root.m_parent;
+        
+        return root;
+    }
+    
+    /**
+     * Adds the loaded cards of this category and its child categories to the
+     * given index or removes them from it.
+     */
+    private void updateExpirationIndex(ExpirationIndex index, boolean add)
+    {
+        for (Category category : getSubtreeList())
+        {
+            if (category.m_cardLoader != null)
+                continue;
+            
+            for (List<Card> cards : category.m_decks)
+            {
+                for (Card card : cards)
+                {
+                    if (add)
+                        index.update(card);
+                    else
+                        index.remove(card);
+                }
+            }
+        }
+    }
+    
+    /**
+     * @param level the level of the deck or -1 for all decks.
+     * @return the expired cards of given deck of this category and its child
+     * categories. The cards are taken from the expiration index if there is
+     * one, so that only expired cards are visited.
+     */
+    private List<Card> getExpiredCardsOfDeck(int level)
+    {
+        List<Card> expiredCards = new ArrayList<Card>();
+        long now = Main.getNow().getTime();
+        
+        ExpirationIndex index = getExpirationIndex();
+        if (index == null)
+        {
+            expiredCards.addAll(getCardView(level, Filter.EXPIRED));
+            return expiredCards;
+        }
+        
+        if (getExpiredCardCount() == 0)
+            return expiredCards;
+        
+        // the cards of unloaded categories aren't indexed yet
+        loadCards();
+        
+        for (Card card : index.getExpiredCards(now))
+        {
+            if ((level == -1 || card.getLevel() == level) && 
+                isAncestorOf(card.getCategory()))
+            {
+                expiredCards.add(card);
+            }
+        }
+        
+        return expiredCards;
+    }
+    
+    /**
+     * @return <code>true</code> if this category is given category or one of
+     * its parent categories.
+     */
+    private boolean isAncestorOf(Category category)
+    {
+        for (Category parent = category; parent != null; parent = parent.m_parent)
+        {
+            if (parent == this)
+                return true;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Is called by cards of this category when their expiration date has
+     * changed.
+     */
+    void expirationChanged(Card card, Date oldExpiration)
+    {
+        long now = Main.getNow().getTime();
+        boolean wasExpired = oldExpiration != null && oldExpiration.getTime() <= now;
+        boolean isExpired = isExpired(card, now);
+        
+        updateCounts(card.getLevel(), 0, 
+            (isExpired ? 1 : 0) - (wasExpired ? 1 : 0), getExpiration(card, now), 
+            oldExpiration != null && !wasExpired ? oldExpiration.getTime() : Long.MAX_VALUE);
+        
+        ExpirationIndex index = getExpirationIndex();
+        if (index != null)
+            index.update(card);
+    }
+    
+    /**
+     * Adds given counts to the counts of this category and of all its parent
+     * categories.
+     * 
+     * @param addedExpiration the time at which the added cards expire next or
+     * {@link Long#MAX_VALUE} if they don't expire.
+     * @param removedExpiration the time at which the removed cards would have
+     * expired next or {@link Long#MAX_VALUE} if they wouldn't have expired.
+     */
+    private void updateCounts(int level, int cards, int expired, 
+        long addedExpiration, long removedExpiration)
+    {
+        for (Category category = this; category != null; category = category.m_parent)
+        {
+            if (category.m_cardCounts.length <= level)
+            {
+                category.m_cardCounts = Arrays.copyOf(category.m_cardCounts, level + 1);
+                category.m_expiredCounts = Arrays.copyOf(category.m_expiredCounts, level + 1);
+            }
+            
+            category.m_cardCounts[level] += cards;
+            category.m_expiredCounts[level] += expired;
+            
+            // the next expiration has to be looked up again if its card is gone
+            if (removedExpiration != Long.MAX_VALUE && 
+                removedExpiration == category.m_nextExpiration)
+            {
+                category.m_nextExpiration = Long.MIN_VALUE;
+            }
+            
+            category.m_nextExpiration = Math.min(category.m_nextExpiration, 
+                addedExpiration);
+        }
+    }
+    
+    /**
+     * Adds the counts of given child category to the counts of this category
+     * and all its parent categories. Use -1 as factor to remove them.
+     */
+    private void addCounts(Category child, int factor)
+    {
+        for (int level = 0; level < child.m_cardCounts.length; level++)
+        {
+            updateCounts(level, factor * child.m_cardCounts[level], 
+                factor * child.m_expiredCounts[level], 
+                factor > 0 ? child.m_nextExpiration : Long.MAX_VALUE, 
+                factor > 0 ? Long.MAX_VALUE : child.m_nextExpiration);
+        }
+    }
+    
+    /**
+     * Recounts the expired cards of this category if a card of its subtree
+     * has expired since they were counted. Child categories are only
+     * recounted if they are out of date, too.
+     */
+    private void updateExpiredCounts(long now)
+    {
+        if (now < m_nextExpiration)
+            return;
+        
+        int[] expiredCounts = new int[m_cardCounts.length];
+        long nextExpiration = Long.MAX_VALUE;
+        
+        if (m_cardLoader != null)
+        {
+            for (int level = 0; level < m_cardLoader.getNumberOfDecks(); level++)
+            {
+                expiredCounts[level] = m_cardLoader.getExpiredCount(level, now);
+                nextExpiration = Math.min(nextExpiration, 
+                    m_cardLoader.getNextExpiration(level, now));
+            }
+        }
+        else
+        {
+            for (int level = 0; level < m_decks.size(); level++)
+            {
+                for (Card card : m_decks.get(level))
+                {
+                    if (isExpired(card, now))
+                        expiredCounts[level]++;
+                    
+                    nextExpiration = Math.min(nextExpiration, getExpiration(card, now));
+                }
+            }
+        }
+        
+        for (Category child : m_childCategories)
+        {
+            child.updateExpiredCounts(now);
+            
+            for (int level = 0; level < child.m_expiredCounts.length; level++)
+                expiredCounts[level] += child.m_expiredCounts[level];
+            
+            nextExpiration = Math.min(nextExpiration, child.m_nextExpiration);
+        }
+        
+        m_expiredCounts = expiredCounts;
+        m_nextExpiration = nextExpiration;
+    }
+    
+    private static boolean isExpired(Card card, long now)
+    {
+        return card.isExpired(now);
+    }
+    
+    /**
+     * @return the expiration time of given card or {@link Long#MAX_VALUE} if
+     * it has expired already or doesn't expire at all.
+     */
+    private static long getExpiration(Card card, long now)
+    {
+        Date expiration = card.getDateExpired();
+        return expiration != null && expiration.getTime() > now ? 
+            expiration.getTime() : Long.MAX_VALUE;
+    }
+    
+    /**
+     * Grows the decks of this category and of its parent categories, so that
+     * they have at least given number of decks.
+     */
+    private void growDecks(int decks)
+    {
+        for (Category category = this; category != null && 
+            category.getNumberOfDecks() < decks; category = category.m_parent)
+        {
+            while (category.getNumberOfDecks() < decks)
+            {
+                category.m_decks.add(new Deck());
+            }
+        }
+    }
+    
+    /**
+     * Adjusts the number of decks of this category and of all its child
+     * categories, starting with the deepest ones.
+     */
+    private void adjustNumberOfDecksOfTree()
+    {
+        for (Category child : m_childCategories)
+            child.adjustNumberOfDecksOfTree();
+        
+        adjustNumberOfDecks();
+    }
+    
     private void adjustNumberOfDecks()
     {
         // find child category with most decks
@@ -705,14 +1353,11 @@ public class Category implements Events
         }
         
         //grow decks
-        while (maxChildDecks > getNumberOfDecks())
-        {
-            m_decks.add(new ArrayList<Card>());
-        }
+        growDecks(maxChildDecks);
         
         //trim decks
         while (maxChildDecks < getNumberOfDecks() 
-            && (m_decks.get(getNumberOfDecks()-1)).isEmpty() )
+            && getLocalCardCount(getNumberOfDecks()-1) == 0 )
         {
             m_decks.remove(getNumberOfDecks()-1);
         }
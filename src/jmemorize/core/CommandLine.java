@@ -0,0 +1,502 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2008 Riad Djemili and contributors
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jmemorize.core.io.BinaryBuilder;
+import jmemorize.core.io.CsvBuilder;
+import jmemorize.core.io.LessonJournal;
+import jmemorize.core.io.LessonSummary;
+import jmemorize.core.io.PdfRtfBuilder;
+import jmemorize.core.io.XmlBuilder;
+
+/**
+ * Processes lesson files from the command line without a user interface, e.g.
+ * for nightly jobs on machines without a display. All files are processed in
+ * parallel and the time taken for every file is reported.
+ *
+ * No AWT or Swing classes are loaded, except for the few AWT classes that the
+ * PDF/RTF library needs. Startup is fastest with a client compiler and class
+ * data sharing, e.g. <code>java -XX:TieredStopAtLevel=1 -Xshare:auto</code>.
+ *
+ * @author djemili
+ */
+public class CommandLine
+{
+    private static final String USAGE =
+        "usage: java jmemorize.core.CommandLine <command> [options] <files>\n" +
+        "\n" +
+        "commands:\n" +
+        "  convert     saves lessons in the format given by -to\n" +
+        "  import-csv  creates lessons from CSV files\n" +
+        "  export-csv  exports lessons to CSV files\n" +
+        "  export-pdf  exports lessons to PDF files\n" +
+        "  export-rtf  exports lessons to RTF files\n" +
+        "  stats       reports the due cards of lessons\n" +
+        "\n" +
+        "options:\n" +
+        "  -out <dir>       folder for created files (default: next to each file)\n" +
+        "  -to <jml|jmb>    format of created lessons (default: jml)\n" +
+        "  -threads <n>     files processed in parallel (default: number of cores)\n" +
+        "  -delimiter <c>   CSV delimiter or 'tab' (default: ,)\n" +
+        "  -charset <name>  CSV character set (default: UTF-8)\n" +
+        "  -font <family>   font of PDF/RTF exports (default: Helvetica)\n"; //$NON-NLS-1$
+    
+    private static final String BINARY_EXTENSION = ".jmb"; //$NON-NLS-1$
+    private static final String XML_EXTENSION    = ".jml"; //$NON-NLS-1$
+    
+    /**
+     * A command that is run once for every given file.
+     */
+    private abstract class Command
+    {
+        /**
+         * @return a short description of the result, e.g. the created file.
+         */
+        public abstract String process(File file) throws Exception;
+    }
+    
+    private class ConvertCommand extends Command
+    {
+        public String process(File file) throws Exception
+        {
+            Lesson lesson = loadLesson(file);
+            try
+            {
+                File target = getTarget(file, m_lessonExtension);
+                saveLesson(lesson, target);
+                
+                return target.getPath();
+            }
+            finally
+            {
+                lesson.getImageRepository().clear();
+            }
+        }
+    }
+    
+    private class ImportCsvCommand extends Command
+    {
+        public String process(File file) throws Exception
+        {
+            Lesson lesson = new Lesson(false);
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            try
+            {
+                CsvBuilder.importLesson(in, m_delimiter, m_charset, lesson);
+            }
+            finally
+            {
+                in.close();
+            }
+            
+            File target = getTarget(file, m_lessonExtension);
+            saveLesson(lesson, target);
+            
+            return target.getPath();
+        }
+    }
+    
+    private class ExportCsvCommand extends Command
+    {
+        public String process(File file) throws Exception
+        {
+            Lesson lesson = loadLesson(file);
+            try
+            {
+                File target = getTarget(file, ".csv"); //$NON-NLS-1$
+                OutputStream out = new BufferedOutputStream(new FileOutputStream(target));
+                try
+                {
+                    CsvBuilder.exportLesson(out, lesson, m_delimiter, m_charset);
+                }
+                finally
+                {
+                    out.close();
+                }
+                
+                return target.getPath();
+            }
+            finally
+            {
+                lesson.getImageRepository().clear();
+            }
+        }
+    }
+    
+    private class ExportPdfRtfCommand extends Command
+    {
+        private boolean m_pdf;
+        
+        public ExportPdfRtfCommand(boolean pdf)
+        {
+            m_pdf = pdf;
+        }
+        
+        public String process(File file) throws Exception
+        {
+            Lesson lesson = loadLesson(file);
+            try
+            {
+                File target;
+                if (m_pdf)
+                {
+                    target = getTarget(file, ".pdf"); //$NON-NLS-1$
+                    PdfRtfBuilder.exportLessonToPDF(lesson, target, m_font, m_font);
+                }
+                else
+                {
+                    target = getTarget(file, ".rtf"); //$NON-NLS-1$
+                    PdfRtfBuilder.exportLessonToRTF(lesson, target, m_font, m_font);
+                }
+                
+                return target.getPath();
+            }
+            finally
+            {
+                lesson.getImageRepository().clear();
+            }
+        }
+    }
+    
+    private class StatsCommand extends Command
+    {
+        public String process(File file) throws Exception
+        {
+            // summaries are only loaded from the lesson if they are stale
+            LessonSummary summary = LessonSummary.read(file);
+            if (summary == null)
+            {
+                summary = LessonSummary.load(file);
+                summary.write(file);
+            }
+            
+            Date now = Main.getNow();
+            Date next = summary.getNextExpiration();
+            DateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm"); //$NON-NLS-1$
+            
+            return file.getPath() +
+                " cards=" + summary.getCardCount() +
+                " unlearned=" + summary.getUnlearnedCardCount() +
+                " expired=" + summary.getExpiredCardCount(now) +
+                " due-today=" + summary.getDueCardCount(now) +
+                " next-due=" + (next != null ? format.format(next) : "-");
+        }
+    }
+    
+    /**
+     * The outcome of processing a single file.
+     */
+    private static class Result
+    {
+        private String    m_description;
+        private Throwable m_error;
+        private long      m_duration;
+    }
+    
+    private Command      m_command;
+    private List<File>   m_files           = new ArrayList<File>();
+    
+    private File         m_outDir;
+    private String       m_lessonExtension = XML_EXTENSION;
+    private int          m_threads         = Runtime.getRuntime().availableProcessors();
+    private char         m_delimiter       = ',';
+    private Charset      m_charset         = Charset.forName("UTF-8"); //$NON-NLS-1$
+    private String       m_font            = "Helvetica"; //$NON-NLS-1$
+    
+    /**
+     * @param args the command, its options and the files to process.
+     * @throws IllegalArgumentException if the arguments are invalid.
+     */
+    public CommandLine(String[] args)
+    {
+        if (args.length == 0)
+            throw new IllegalArgumentException("Missing command.");
+        
+        m_command = createCommand(args[0]);
+        
+        for (int i = 1; i < args.length; i++)
+        {
+            String arg = args[i];
+            if (!arg.startsWith("-")) //$NON-NLS-1$
+            {
+                m_files.add(new File(arg));
+                continue;
+            }
+            
+            if (i + 1 == args.length)
+                throw new IllegalArgumentException("Missing value of " + arg + ".");
+            
+            parseOption(arg, args[++i]);
+        }
+        
+        if (m_files.isEmpty())
+            throw new IllegalArgumentException("No files given.");
+    }
+    
+    /**
+     * Processes all files and prints a line with the time taken for every
+     * file, followed by the total time.
+     *
+     * @return the number of files that couldn't be processed.
+     */
+    public int run(PrintStream out) throws InterruptedException
+    {
+        long start = System.currentTimeMillis();
+        
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(1, Math.min(m_threads, m_files.size())));
+        
+        List<Future<Result>> results = new ArrayList<Future<Result>>();
+        for (final File file : m_files)
+        {
+            results.add(executor.submit(new Callable<Result>() {
+                public Result call()
+                {
+                    return process(file);
+                }
+            }));
+        }
+        
+        int failures = 0;
+        long totalDuration = 0;
+        try
+        {
+            for (int i = 0; i < m_files.size(); i++)
+            {
+                Result result = results.get(i).get();
+                totalDuration += result.m_duration;
+                
+                if (result.m_error == null)
+                {
+                    out.println(formatDuration(result.m_duration) + "  ok      " +
+                        result.m_description);
+                }
+                else
+                {
+                    failures++;
+                    out.println(formatDuration(result.m_duration) + "  FAILED  " +
+                        m_files.get(i) + ": " + result.m_error);
+                }
+            }
+        }
+        catch (ExecutionException e)
+        {
+            // process() catches all exceptions
+            throw new IllegalStateException(e.getCause());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        
+        out.println(m_files.size() + " files, " + failures + " failed, " +
+            (System.currentTimeMillis() - start) + " ms total, " +
+            totalDuration + " ms summed over files");
+        
+        return failures;
+    }
+    
+    public static void main(String[] args) throws Exception
+    {
+        // some classes of the PDF/RTF library use AWT
+        System.setProperty("java.awt.headless", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+        
+        CommandLine commandLine;
+        try
+        {
+            commandLine = new CommandLine(args);
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.err.println(e.getMessage());
+            System.err.println();
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+        
+        int failures = commandLine.run(System.out);
+        System.exit(failures > 0 ? 1 : 0);
+    }
+    
+    private Result process(File file)
+    {
+        Result result = new Result();
+        long start = System.currentTimeMillis();
+        
+        try
+        {
+            result.m_description = m_command.process(file);
+        }
+        catch (Throwable t)
+        {
+            result.m_error = t;
+        }
+        
+        result.m_duration = System.currentTimeMillis() - start;
+        return result;
+    }
+    
+    private Command createCommand(String name)
+    {
+        if (name.equals("convert")) //$NON-NLS-1$
+            return new ConvertCommand();
+        else if (name.equals("import-csv")) //$NON-NLS-1$
+            return new ImportCsvCommand();
+        else if (name.equals("export-csv")) //$NON-NLS-1$
+            return new ExportCsvCommand();
+        else if (name.equals("export-pdf")) //$NON-NLS-1$
+            return new ExportPdfRtfCommand(true);
+        else if (name.equals("export-rtf")) //$NON-NLS-1$
+            return new ExportPdfRtfCommand(false);
+        else if (name.equals("stats")) //$NON-NLS-1$
+            return new StatsCommand();
+        
+        throw new IllegalArgumentException("Unknown command " + name + ".");
+    }
+    
+    private void parseOption(String option, String value)
+    {
+        try
+        {
+            if (option.equals("-out")) //$NON-NLS-1$
+            {
+                m_outDir = new File(value);
+            }
+            else if (option.equals("-to")) //$NON-NLS-1$
+            {
+                if (!value.equals("jml") && !value.equals("jmb")) //$NON-NLS-1$ //$NON-NLS-2$
+                    throw new IllegalArgumentException("Unknown format " + value + ".");
+                
+                m_lessonExtension = "." + value; //$NON-NLS-1$
+            }
+            else if (option.equals("-threads")) //$NON-NLS-1$
+            {
+                m_threads = Integer.parseInt(value);
+            }
+            else if (option.equals("-delimiter")) //$NON-NLS-1$
+            {
+                m_delimiter = value.equals("tab") ? '\t' : value.charAt(0); //$NON-NLS-1$
+            }
+            else if (option.equals("-charset")) //$NON-NLS-1$
+            {
+                m_charset = Charset.forName(value);
+            }
+            else if (option.equals("-font")) //$NON-NLS-1$
+            {
+                m_font = value;
+            }
+            else
+            {
+                throw new IllegalArgumentException("Unknown option " + option + ".");
+            }
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            throw new IllegalArgumentException("Invalid value of " + option + ".", e);
+        }
+    }
+    
+    /**
+     * Loads a lesson like {@link Main#loadLesson(File)}, including changes
+     * that are still in its journal.
+     */
+    private static Lesson loadLesson(File file) throws Exception
+    {
+        Lesson lesson = new Lesson(false);
+        
+        if (BinaryBuilder.isBinaryFile(file))
+            BinaryBuilder.loadFromBinaryFile(file, lesson);
+        else
+            XmlBuilder.loadFromXMLFile(file, lesson);
+        
+        LessonJournal.replay(lesson, file);
+        lesson.setFile(file);
+        
+        return lesson;
+    }
+    
+    /**
+     * Saves given lesson completely, so that it doesn't need a journal
+     * anymore, and writes its summary.
+     */
+    private static void saveLesson(Lesson lesson, File file) throws Exception
+    {
+        lesson.setJournalId(0);
+        
+        if (BinaryBuilder.isBinaryFile(file))
+            BinaryBuilder.saveAsBinaryFile(file, lesson);
+        else
+            XmlBuilder.saveAsXMLFile(file, lesson);
+        
+        LessonJournal.delete(file);
+        
+        lesson.setFile(file);
+        LessonSummary.create(lesson).write(file);
+    }
+    
+    /**
+     * @return the file that is created from given file, i.e. the file with
+     * the given extension in the output folder.
+     */
+    private File getTarget(File file, String extension)
+    {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0)
+            name = name.substring(0, dot);
+        
+        File dir = m_outDir != null ? m_outDir : file.getAbsoluteFile().getParentFile();
+        return new File(dir, name + extension);
+    }
+    
+    private static String formatDuration(long duration)
+    {
+        String millis = Long.toString(duration);
+        StringBuffer buffer = new StringBuffer();
+        for (int i = millis.length(); i < 8; i++)
+            buffer.append(' ');
+        
+        return buffer.append(millis).append(" ms").toString(); //$NON-NLS-1$
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2008 Riad Djemili and contributors
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.core;
+
+import java.util.AbstractSequentialList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.ListIterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The cards of one deck of a category in the order in which they have been
+ * added. The cards themselves link to their neighbours in the deck, so that a
+ * card can be found and removed in constant time, without searching the deck
+ * or shifting the cards behind it. Therefore a card can only be held by one
+ * deck at a time.
+ *
+ * Accessing cards by index walks the deck from its nearer end, which makes
+ * the first and the last card cheap to get.
+ *
+ * @author djemili
+ */
+class Deck extends AbstractSequentialList<Card>
+{
+    private Card m_first;
+    private Card m_last;
+    private int  m_size;
+    
+    public Deck()
+    {
+    }
+    
+    public Deck(Collection<Card> cards)
+    {
+        addAll(cards);
+    }
+    
+    public int size()
+    {
+        return m_size;
+    }
+    
+    /**
+     * Appends given card to the end of this deck.
+     *
+     * @throws IllegalArgumentException if the card is held by a deck already.
+     */
+    public boolean add(Card card)
+    {
+        if (card.m_deck != null)
+            throw new IllegalArgumentException("Card is held by a deck already"); //$NON-NLS-1$
+        
+        card.m_deck = this;
+        card.m_previousInDeck = m_last;
+        card.m_nextInDeck = null;
+        
+        if (m_last == null)
+            m_first = card;
+        else
+            m_last.m_nextInDeck = card;
+        
+        m_last = card;
+        m_size++;
+        modCount++;
+        
+        return true;
+    }
+    
+    public boolean contains(Object obj)
+    {
+        return obj instanceof Card && ((Card)obj).m_deck == this;
+    }
+    
+    public boolean remove(Object obj)
+    {
+        if (!contains(obj))
+            return false;
+        
+        unlink((Card)obj);
+        return true;
+    }
+    
+    public void clear()
+    {
+        Card card = m_first;
+        while (card != null)
+        {
+            Card next = card.m_nextInDeck;
+            
+            card.m_deck = null;
+            card.m_previousInDeck = null;
+            card.m_nextInDeck = null;
+            
+            card = next;
+        }
+        
+        m_first = null;
+        m_last = null;
+        m_size = 0;
+        modCount++;
+    }
+    
+    public ListIterator<Card> listIterator(int index)
+    {
+        if (index < 0 || index > m_size)
+            throw new IndexOutOfBoundsException("Index: " + index); //$NON-NLS-1$
+        
+        return new CardIterator(index);
+    }
+    
+    private void unlink(Card card)
+    {
+        Card previous = card.m_previousInDeck;
+        Card next = card.m_nextInDeck;
+        
+        if (previous == null)
+            m_first = next;
+        else
+            previous.m_nextInDeck = next;
+        
+        if (next == null)
+            m_last = previous;
+        else
+            next.m_previousInDeck = previous;
+        
+        card.m_deck = null;
+        card.m_previousInDeck = null;
+        card.m_nextInDeck = null;
+        
+        m_size--;
+        modCount++;
+    }
+    
+    private class CardIterator implements ListIterator<Card>
+    {
+        private Card m_next;                // null at the end of the deck
+        private int  m_nextIndex;
+        private Card m_lastReturned;
+        private int  m_expectedModCount = modCount;
+        
+        public CardIterator(int index)
+        {
+            if (index < m_size / 2)
+            {
+                m_next = m_first;
+                for (int i = 0; i < index; i++)
+                    m_next = m_next.m_nextInDeck;
+            }
+            else
+            {
+                for (int i = m_size; i > index; i--)
+                    m_next = m_next == null ? m_last : m_next.m_previousInDeck;
+            }
+            
+            m_nextIndex = index;
+        }
+        
+        public boolean hasNext()
+        {
+            return m_nextIndex < m_size;
+        }
+        
+        public Card next()
+        {
+            checkForModification();
+            if (!hasNext())
+                throw new NoSuchElementException();
+            
+            m_lastReturned = m_next;
+            m_next = m_next.m_nextInDeck;
+            m_nextIndex++;
+            
+            return m_lastReturned;
+        }
+        
+        public boolean hasPrevious()
+        {
+            return m_nextIndex > 0;
+        }
+        
+        public Card previous()
+        {
+            checkForModification();
+            if (!hasPrevious())
+                throw new NoSuchElementException();
+            
+            m_next = m_next == null ? m_last : m_next.m_previousInDeck;
+            m_lastReturned = m_next;
+            m_nextIndex--;
+            
+            return m_lastReturned;
+        }
+        
+        public int nextIndex()
+        {
+            return m_nextIndex;
+        }
+        
+        public int previousIndex()
+        {
+            return m_nextIndex - 1;
+        }
+        
+        public void remove()
+        {
+            checkForModification();
+            if (m_lastReturned == null)
+                throw new IllegalStateException();
+            
+            if (m_lastReturned == m_next)
+                m_next = m_next.m_nextInDeck;
+            else
+                m_nextIndex--;
+            
+            unlink(m_lastReturned);
+            m_lastReturned = null;
+            m_expectedModCount = modCount;
+        }
+        
+        /**
+         * Cards are only added by the category, at the end of the deck.
+         */
+        public void add(Card card)
+        {
+            throw new UnsupportedOperationException();
+        }
+        
+        public void set(Card card)
+        {
+            throw new UnsupportedOperationException();
+        }
+        
+        private void checkForModification()
+        {
+            if (modCount != m_expectedModCount)
+                throw new ConcurrentModificationException();
+        }
+    }
+}
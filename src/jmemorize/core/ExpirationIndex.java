@@ -0,0 +1,136 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2008 Riad Djemili and contributors
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.core;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Holds the cards of a lesson sorted by their expiration dates, so that the
+ * cards that expire until a given time and the next expiration can be found
+ * without visiting all cards. Unlearned cards and cards of categories whose
+ * cards haven't been loaded yet aren't held.
+ *
+ * The index is kept up to date by the categories of the lesson.
+ *
+ * @author djemili
+ */
+public class ExpirationIndex
+{
+    private TreeMap<Long, List<Card>> m_cardsByExpiration = new TreeMap<Long, List<Card>>();
+    private Map<Card, Long>           m_expirations       = new IdentityHashMap<Card, Long>();
+    
+    /**
+     * Adds given card or updates its position if it has been added already.
+     * Cards without expiration date are removed.
+     */
+    public void update(Card card)
+    {
+        remove(card);
+        
+        Date expiration = card.getDateExpired();
+        if (expiration == null)
+            return;
+        
+        Long time = Long.valueOf(expiration.getTime());
+        List<Card> cards = m_cardsByExpiration.get(time);
+        if (cards == null)
+        {
+            // most cards have an expiration of their own
+            cards = new ArrayList<Card>(1);
+            m_cardsByExpiration.put(time, cards);
+        }
+        
+        cards.add(card);
+        m_expirations.put(card, time);
+    }
+    
+    /**
+     * Removes given card. Does nothing if the card isn't held.
+     */
+    public void remove(Card card)
+    {
+        Long time = m_expirations.remove(card);
+        if (time == null)
+            return;
+        
+        List<Card> cards = m_cardsByExpiration.get(time);
+        for (int i = 0; i < cards.size(); i++)
+        {
+            if (cards.get(i) == card)
+            {
+                cards.remove(i);
+                break;
+            }
+        }
+        
+        if (cards.isEmpty())
+            m_cardsByExpiration.remove(time);
+    }
+    
+    /**
+     * @return the cards that have expired at given time, i.e. all cards
+     * that are due then, sorted by their expiration dates.
+     */
+    public List<Card> getExpiredCards(long time)
+    {
+        return getCards(Long.MIN_VALUE, time);
+    }
+    
+    /**
+     * @return the cards that expire after the time <code>from</code> and at
+     * or before the time <code>to</code>, sorted by their expiration dates.
+     */
+    public List<Card> getCards(long from, long to)
+    {
+        List<Card> cards = new ArrayList<Card>();
+        if (from >= to)
+            return cards;
+        
+        for (List<Card> expiringCards :
+            m_cardsByExpiration.subMap(from, false, to, true).values())
+        {
+            cards.addAll(expiringCards);
+        }
+        
+        return cards;
+    }
+    
+    /**
+     * @return the time at which the next card expires after given time or
+     * {@link Long#MAX_VALUE} if no card expires after it.
+     */
+    public long getNextExpiration(long time)
+    {
+        Long next = m_cardsByExpiration.higherKey(time);
+        return next != null ? next.longValue() : Long.MAX_VALUE;
+    }
+    
+    /**
+     * @return the number of cards held by this index.
+     */
+    public int size()
+    {
+        return m_expirations.size();
+    }
+}
@@ -70,6 +70,8 @@ public class FormattedText implements Cloneable
     public static final FormattedText EMPTY = FormattedText.unformatted("");
     
     private static final String  TAGS = "<(/?(b|i|u|sub|sup)?)>";
+    private static final Pattern MARKUP_PATTERN = Pattern.compile(
+        TAGS + "|<img .*?/>");
     private static final Pattern TEXT_PATTERN = Pattern.compile(
         "(.*?)<(/?(b|i|u|sub|sup)?)>", Pattern.DOTALL);
     
@@ -79,40 +81,245 @@ public class FormattedText implements Cloneable
     private static final String CONTENT_ELEMENT_NAME = "content";
     
     private String                     m_formattedText;
+    
+    // computed on demand, because loading a lesson creates lots of texts
+    // which are never shown unformatted
     private String                     m_unformattedText;
 
-    private static Map<String, Object> stylesMap = new HashMap<String, Object>();
-    
-    static
+    /**
+     * The conversion between formatted texts and styled documents. It is kept
+     * apart and only loaded on first use, so that texts can be loaded and
+     * saved without loading any swing classes.
+     */
+    private static class StyledDocuments
     {
-        setupStylesMap();
+        private static Map<String, Object> stylesMap = new HashMap<String, Object>();
+        
+        static
+        {
+            stylesMap.put("b", StyleConstants.Bold);
+            stylesMap.put("i", StyleConstants.Italic);
+            stylesMap.put("u", StyleConstants.Underline);
+            stylesMap.put("sub", StyleConstants.Subscript);
+            stylesMap.put("sup", StyleConstants.Superscript);
+        }
+        
+        public static void insertImage(Document doc, ImageIcon icon, int offset) 
+            throws BadLocationException
+        {
+            int iconWidth = icon.getIconWidth();
+            int iconHeight = icon.getIconHeight();
+            Dimension dim = new Dimension(iconWidth, iconHeight);
+            
+            SimpleAttributeSet sa = new SimpleAttributeSet();
+            
+            JLabel label = new JLabel(icon);
+            label.setMinimumSize(dim);
+            label.setPreferredSize(dim);
+            label.setMaximumSize(dim);
+            label.setSize(dim);
+            
+            StyleConstants.setComponent(sa, label);
+            doc.insertString(offset, " ", sa);
+        }
+        
+        public static StyledDocument createDocument()
+        {
+            DefaultStyledDocument doc = new DefaultStyledDocument();
+            doc.setCharacterAttributes(0, doc.getLength() + 1, // HACK 
+                SimpleAttributeSet.EMPTY, true);
+            
+            return doc;
+        }
+        
+        public static String getFormattedText(StyledDocument document, 
+            int start, int end)
+        {
+            Element root = document.getDefaultRootElement();
+            return removeRedundantTags(getFormattedText(root, start, end));
+        }
+        
+        public static void decode(StyledDocument doc, String text, int offset) 
+            throws BadLocationException
+        {
+            StringBuffer sb = new StringBuffer(text);
+
+//            Map<Integer, ImageIcon> images = decodeImages(doc, sb);
+
+            /*
+             * problem we need to decode the images first and remove the strings
+             * from the overall string, because pattern searching takes too long.
+             * this is problematic though, because decodeImages expects to be called
+             * afterwards.
+             */
+            
+            Matcher m = TEXT_PATTERN.matcher(sb);
+            int end = 0;
+            
+            SimpleAttributeSet attr = new SimpleAttributeSet();
+            while (m.find())
+            {
+                String pretext = m.group(1);
+                String tag = m.group(2);
+                
+                String unescapedPretext = unescape(pretext);
+                doc.insertString(offset, unescapedPretext, attr);
+                offset += unescapedPretext.length();
+                
+                boolean style = true;
+                if (tag.startsWith("/"))
+                {
+                    tag = tag.substring(1);
+                    style = false;
+                }
+                
+                Object styleId = stylesMap.get(tag); 
+                attr.addAttribute(styleId, Boolean.valueOf(style));
+                
+                end = m.end();
+            }
+            
+            String restText = unescape(sb.substring(end));
+            doc.insertString(offset, restText, new SimpleAttributeSet());
+
+//            for (Entry<Integer, ImageIcon> entry : images.entrySet())
+//            {            
+//                ImageIcon icon = entry.getValue();
+//                Integer iconOffset = entry.getKey();
+//                insertImage(doc, icon, iconOffset);
+//            }
+        }
+        
+        private static String removeRedundantTags(String formattedText)
+        {
+            /*
+             * StyledDocument merges styles in certain situations. To avoid that
+             * this results in getting a different encoding after decoding to a
+             * StyledDocument and back to an encoding again, we remove redundant
+             * tags by ourself.
+             */
+            for (String key : stylesMap.keySet())
+            {
+                StringBuffer sb = new StringBuffer();
+                sb.append("</").append(key).append("><").append(key).append(">");
+                
+                formattedText = formattedText.replaceAll(sb.toString(), "");
+            }
+            
+            return formattedText;
+        }
+        
+        private static String getFormattedText(Element e, int startSelection, 
+            int endSelection)
+        {
+            StringBuffer sb = new StringBuffer();
+            if (e.getName().equals(CONTENT_ELEMENT_NAME))
+            {
+                Document doc = e.getDocument();
+                
+                int start = e.getStartOffset();
+                int end = Math.min(e.getEndOffset(), doc.getLength());
+                
+                if (start > endSelection || end < startSelection)
+                    return sb.toString();
+                
+                try
+                {
+                    start = Math.max(start, startSelection);
+                    end = Math.min(end, endSelection);
+                    
+                    String text = doc.getText(start, end - start);
+                    sb.append(escape(text));
+                } 
+                catch (BadLocationException e1)
+                {
+                    e1.printStackTrace();
+                    Main.logThrowable("Error formatting text", e1);
+                }
+            } 
+//            else if (e.getName().equals(StyleConstants.ParagraphConstants.ComponentElementName))
+//            {
+//                AttributeSet attr = e.getAttributes();
+//                JLabel label = (JLabel)attr.getAttribute(
+//                    StyleConstants.ParagraphConstants.ComponentAttribute);
+//                
+//                ImageIcon icon = (ImageIcon)label.getIcon();
+//                String description = icon.getDescription();
+//                
+//                try
+//                {
+//                    String id = "";
+//                    if (description.startsWith(ImageRepository.IMG_ID_PREFIX))
+//                    {
+//                        id = description.substring(2);
+//                    }
+//                    else
+//                    {
+//                        File file = new File(description);
+//                        FileInputStream in = new FileInputStream(file);
+//                        id = ImageRepository.getInstance().addImage(in, file.getName());
+//                    }
+//                    
+//                    sb.insert(0, "<img id=\""+ id +"\"/>");
+//                }
+//                catch (IOException e1)
+//                {
+//                    e1.printStackTrace();
+//                    Main.logThrowable("Error formatting image", e1);
+//                }
+//            }
+            else
+            {
+                for (int i = 0; i < e.getElementCount(); i++)
+                {
+                    sb.append(getFormattedText(e.getElement(i), 
+                        startSelection, endSelection));
+                }
+            }
+            
+            for (String name : stylesMap.keySet())
+            {
+                Object styleId = stylesMap.get(name);
+                
+                if (hasStyle(e.getAttributes(), styleId))
+                {
+                    sb.insert(0, "<"+name+">");
+                    sb.append("</"+name+">");
+                }
+            }
+            
+            return sb.toString();
+        }
+        
+        private static boolean hasStyle(AttributeSet attr, Object styleId)
+        {
+            Boolean style = (Boolean)attr.getAttribute(styleId);
+            return style != null && style.booleanValue();
+        }
     }
     
     public static FormattedText formatted(String formatted)
     {
         FormattedText text = new FormattedText();
         text.m_formattedText = formatted;
-        text.m_unformattedText = unescape(formatted.replaceAll(TAGS, "").replaceAll("<img .*?/>", ""));
         
         return text;
     }
     
     public static FormattedText formatted(StyledDocument document)
     {
-        Element root = document.getDefaultRootElement();
-        String fText = removeRedundantTags(getFormattedText(
-            root, 0, document.getLength()));
-
+        String fText = StyledDocuments.getFormattedText(
+            document, 0, document.getLength());
+        
         return FormattedText.formatted(fText);
     }
     
     public static FormattedText formatted(StyledDocument document, 
         int start, int end)
     {
-        Element root = document.getDefaultRootElement();
-        String fText = removeRedundantTags(getFormattedText(
-            root, start, end));
-
+        String fText = StyledDocuments.getFormattedText(
+            document, start, end);
+        
         return FormattedText.formatted(fText);
     }    
     
@@ -128,20 +335,7 @@ public class FormattedText implements Cloneable
     public static void insertImage(Document doc, ImageIcon icon, int offset) 
         throws BadLocationException
     {
-        int iconWidth = icon.getIconWidth();
-        int iconHeight = icon.getIconHeight();
-        Dimension dim = new Dimension(iconWidth, iconHeight);
-        
-        SimpleAttributeSet sa = new SimpleAttributeSet();
-        
-        JLabel label = new JLabel(icon);
-        label.setMinimumSize(dim);
-        label.setPreferredSize(dim);
-        label.setMaximumSize(dim);
-        label.setSize(dim);
-        
-        StyleConstants.setComponent(sa, label);
-        doc.insertString(offset, " ", sa);
+        StyledDocuments.insertImage(doc, icon, offset);
     }
     
     public String getFormatted()
@@ -151,19 +345,25 @@ public class FormattedText implements Cloneable
 
     public String getUnformatted()
     {
+        if (m_unformattedText == null)
+        {
+            m_unformattedText = m_formattedText.indexOf('<') >= 0 || 
+                m_formattedText.indexOf('&') >= 0 ? 
+                unescape(MARKUP_PATTERN.matcher(m_formattedText).replaceAll("")) :
+                m_formattedText;
+        }
+        
         return m_unformattedText;
     }
     
     // TODO rename to toStyledDocument
     public StyledDocument getDocument()
     {
-        DefaultStyledDocument doc = new DefaultStyledDocument();
-        doc.setCharacterAttributes(0, doc.getLength() + 1, // HACK 
-            SimpleAttributeSet.EMPTY, true);
+        StyledDocument doc = StyledDocuments.createDocument();
         
         try
         {
-            decode(doc, m_formattedText, 0);
+            StyledDocuments.decode(doc, m_formattedText, 0);
         } 
         catch (Exception e)
         {
@@ -177,7 +377,7 @@ public class FormattedText implements Cloneable
     {
         try
         {
-            decode(doc, m_formattedText, offset);
+            StyledDocuments.decode(doc, m_formattedText, offset);
         } 
         catch (Exception e)
         {
@@ -190,7 +390,7 @@ public class FormattedText implements Cloneable
      */
     public String toString()
     {
-        return m_unformattedText;
+        return getUnformatted();
     }
     
     /* (non-Javadoc)
@@ -232,107 +432,6 @@ public class FormattedText implements Cloneable
         return m_formattedText.hashCode();
     }
     
-    private static String removeRedundantTags(String formattedText)
-    {
-        /*
-         * StyledDocument merges styles in certain situations. To avoid that
-         * this results in getting a different encoding after decoding to a
-         * StyledDocument and back to an encoding again, we remove redundant
-         * tags by ourself.
-         */
-        for (String key : stylesMap.keySet())
-        {
-            StringBuffer sb = new StringBuffer();
-            sb.append("</").append(key).append("><").append(key).append(">");
-            
-            formattedText = formattedText.replaceAll(sb.toString(), "");
-        }
-        
-        return formattedText;
-    }
-
-    private static String getFormattedText(Element e, int startSelection, 
-        int endSelection)
-    {
-        StringBuffer sb = new StringBuffer();
-        if (e.getName().equals(CONTENT_ELEMENT_NAME))
-        {
-            Document doc = e.getDocument();
-            
-            int start = e.getStartOffset();
-            int end = Math.min(e.getEndOffset(), doc.getLength());
-            
-            if (start > endSelection || end < startSelection)
-                return sb.toString();
-            
-            try
-            {
-                start = Math.max(start, startSelection);
-                end = Math.min(end, endSelection);
-                
-                String text = doc.getText(start, end - start);
-                sb.append(escape(text));
-            } 
-            catch (BadLocationException e1)
-            {
-                e1.printStackTrace();
-                Main.logThrowable("Error formatting text", e1);
-            }
-        } 
-//        else if (e.getName().equals(StyleConstants.ParagraphConstants.ComponentElementName))
-//        {
-//            AttributeSet attr = e.getAttributes();
-//            JLabel label = (JLabel)attr.getAttribute(
-//                StyleConstants.ParagraphConstants.ComponentAttribute);
-//            
-//            ImageIcon icon = (ImageIcon)label.getIcon();
-//            String description = icon.getDescription();
-//            
-//            try
-//            {
-//                String id = "";
-//                if (description.startsWith(ImageRepository.IMG_ID_PREFIX))
-//                {
-//                    id = description.substring(2);
-//                }
-//                else
-//                {
-//                    File file = new File(description);
-//                    FileInputStream in = new FileInputStream(file);
-//                    id = ImageRepository.getInstance().addImage(in, file.getName());
-//                }
-//                
-//                sb.insert(0, "<img id=\""+ id +"\"/>");
-//            }
-//            catch (IOException e1)
-//            {
-//                e1.printStackTrace();
-//                Main.logThrowable("Error formatting image", e1);
-//            }
-//        }
-        else
-        {
-            for (int i = 0; i < e.getElementCount(); i++)
-            {
-                sb.append(getFormattedText(e.getElement(i), 
-                    startSelection, endSelection));
-            }
-        }
-        
-        for (String name : stylesMap.keySet())
-        {
-            Object styleId = stylesMap.get(name);
-            
-            if (hasStyle(e.getAttributes(), styleId))
-            {
-                sb.insert(0, "<"+name+">");
-                sb.append("</"+name+">");
-            }
-        }
-        
-        return sb.toString();
-    }
-    
     private static String escape(String text)
     {
         return text.replaceAll("<", "&lt;").replaceAll(">", "&gt;");
@@ -343,66 +442,6 @@ public class FormattedText implements Cloneable
         return text.replaceAll("&lt;", "<").replaceAll("&gt;", ">");
     }
 
-    private static void setupStylesMap()
-    {
-        stylesMap.put("b", StyleConstants.Bold);
-        stylesMap.put("i", StyleConstants.Italic);
-        stylesMap.put("u", StyleConstants.Underline);
-        stylesMap.put("sub", StyleConstants.Subscript);
-        stylesMap.put("sup", StyleConstants.Superscript);
-    }
-    
-    private void decode(StyledDocument doc, String text, int offset) 
-        throws BadLocationException, ParseException
-    {
-        StringBuffer sb = new StringBuffer(text);
-        
-//        Map<Integer, ImageIcon> images = decodeImages(doc, sb);
-        
-        /*
-         * problem we need to decode the images first and remove the strings
-         * from the overall string, because pattern searching takes too long.
-         * this is problematic though, because decodeImages expects to be called
-         * afterwards.
-         */
-        
-        Matcher m = TEXT_PATTERN.matcher(sb);
-        int end = 0;
-        
-        SimpleAttributeSet attr = new SimpleAttributeSet();
-        while (m.find())
-        {
-            String pretext = m.group(1);
-            String tag = m.group(2);
-            
-            String unescapedPretext = unescape(pretext);
-            doc.insertString(offset, unescapedPretext, attr);
-            offset += unescapedPretext.length();
-            
-            boolean style = true;
-            if (tag.startsWith("/"))
-            {
-                tag = tag.substring(1);
-                style = false;
-            }
-            
-            Object styleId = stylesMap.get(tag); 
-            attr.addAttribute(styleId, Boolean.valueOf(style));
-            
-            end = m.end();
-        }
-        
-        String restText = unescape(sb.substring(end));
-        doc.insertString(offset, restText, new SimpleAttributeSet());
-        
-//        for (Entry<Integer, ImageIcon> entry : images.entrySet())
-//        {            
-//            ImageIcon icon = entry.getValue();
-//            Integer iconOffset = entry.getKey();
-//            insertImage(doc, icon, iconOffset);
-//        }
-    }
-
     // TODO move this back into decode
 //    private Map<Integer, ImageIcon> decodeImages(StyledDocument doc, StringBuffer text) 
 //        throws BadLocationException, ParseException
@@ -429,9 +468,4 @@ public class FormattedText implements Cloneable
 //        return images;
 //    }
     
-    private static boolean hasStyle(AttributeSet attr, Object styleId)
-    {
-        Boolean style = (Boolean)attr.getAttribute(styleId);
-        return style != null && style.booleanValue();
-    }
 }
@@ -18,13 +18,26 @@
  */
 package jmemorize.core;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -32,8 +45,13 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import javax.swing.ImageIcon;
 
@@ -42,31 +60,351 @@ public class ImageRepository
     private static final int MAX_CACHED_IMAGES = 10;
 
     public static final String IMG_ID_PREFIX = "::";    
-    
-    private static ImageRepository m_instance;
 
     private Map<String, ImageItem> m_imageMap    = new HashMap<String, ImageItem>();
     private LinkedList<ImageIcon>  m_imageCache  = new LinkedList<ImageIcon>();
+    
+    // content hash -> image. images that are read on demand are only hashed
+    // when an image with the same length is added
+    private Map<String, ImageItem>       m_hashIndex     = new HashMap<String, ImageItem>();
+    private Map<Long, List<ImageItem>>   m_unhashedItems = new HashMap<Long, List<ImageItem>>();
+    private Map<String, Integer>         m_idCounters    = new HashMap<String, Integer>();
+    
+    // image id -> number of card sides that show the image. only card sides
+    // of lessons are counted, see Lesson
+    private Map<String, Integer>         m_references    = new HashMap<String, Integer>();
+    private Map<CardSide, List<String>>  m_countedSides  = new WeakHashMap<CardSide, List<String>>();
+    
+    // ids of images that might not be referenced anymore
+    private Set<String>            m_unreferencedIds = new HashSet<String>();
+    
+    // ids of images that were added or removed since the images were last
+    // written to the folder below
+    private Set<String>            m_unwrittenIds    = new HashSet<String>();
+    private Set<String>            m_removedIds      = new HashSet<String>();
+    private File                   m_writtenFolder;
+    
+    private AtomicInteger          m_writeCount      = new AtomicInteger();
+    private int                    m_addCount;
+    
+    private SpillFile              m_spillFile;
+    private boolean                m_spillFileFailed;
 
     private static final Pattern   FILE_PATTERN = Pattern.compile("(.*)_(\\d+)");
     
+    /**
+     * Provides the bytes of an image that are stored outside of the
+     * repository, e.g. inside of a lesson file.
+     */
+    private abstract static class ImageSource
+    {
+        public abstract InputStream open() throws IOException;
+        
+        /**
+         * @return the file that directly contains the image bytes or
+         * <code>null</code> if there is no such file.
+         */
+        public abstract File getFile();
+        
+        public void writeTo(OutputStream out) throws IOException
+        {
+            InputStream in = open();
+            try
+            {
+                byte[] buffer = new byte[8192];
+                int numRead;
+                
+                while ((numRead = in.read(buffer)) >= 0)
+                {
+                    out.write(buffer, 0, numRead);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+    }
+    
+    private static class FileSource extends ImageSource
+    {
+        private File m_file;
+        
+        public FileSource(File file)
+        {
+            m_file = toCanonicalFile(file);
+        }
+        
+        public InputStream open() throws IOException
+        {
+            return new FileInputStream(m_file);
+        }
+        
+        public File getFile()
+        {
+            return m_file;
+        }
+    }
+    
+    private static class ZipEntrySource extends ImageSource
+    {
+        private File   m_zipFile;
+        private String m_entryName;
+        
+        public ZipEntrySource(File zipFile, String entryName)
+        {
+            m_zipFile = toCanonicalFile(zipFile);
+            m_entryName = entryName;
+        }
+        
+        public InputStream open() throws IOException
+        {
+            final ZipFile zipFile = new ZipFile(m_zipFile);
+            
+            ZipEntry entry = zipFile.getEntry(m_entryName);
+            
+            // the lesson might have been saved again on a system with another
+            // path separator in the meantime
+            if (entry == null)
+                entry = zipFile.getEntry(m_entryName.replace('\\', '/'));
+            
+            if (entry == null)
+                entry = zipFile.getEntry(m_entryName.replace('/', '\\'));
+            
+            if (entry == null)
+            {
+                zipFile.close();
+                throw new FileNotFoundException(m_entryName + " in " + m_zipFile);
+            }
+            
+            return new FilterInputStream(zipFile.getInputStream(entry)) {
+                public void close() throws IOException
+                {
+                    zipFile.close();
+                }
+            };
+        }
+        
+        public File getFile()
+        {
+            return null;
+        }
+        
+        public boolean isInZip(File zipFile)
+        {
+            return m_zipFile.equals(toCanonicalFile(zipFile));
+        }
+    }
+    
+    /**
+     * A region of the spill file that holds the bytes of one image.
+     */
+    private static class SpillSource extends ImageSource
+    {
+        private final ByteBuffer m_buffer;
+        
+        public SpillSource(ByteBuffer buffer)
+        {
+            m_buffer = buffer;
+        }
+        
+        public InputStream open()
+        {
+            final ByteBuffer buffer = m_buffer.duplicate();
+            
+            return new InputStream() {
+                public int read()
+                {
+                    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+                }
+                
+                public int read(byte[] bytes, int offset, int length)
+                {
+                    if (!buffer.hasRemaining())
+                        return -1;
+                    
+                    length = Math.min(length, buffer.remaining());
+                    buffer.get(bytes, offset, length);
+                    
+                    return length;
+                }
+            };
+        }
+        
+        public File getFile()
+        {
+            return null;
+        }
+        
+        public void writeTo(OutputStream out) throws IOException
+        {
+            if (!(out instanceof FileOutputStream))
+            {
+                super.writeTo(out);
+                return;
+            }
+            
+            // write directly from the mapped region
+            ByteBuffer buffer = m_buffer.duplicate();
+            FileChannel channel = ((FileOutputStream)out).getChannel();
+            
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+        }
+    }
+    
+    /**
+     * A temporary file that holds the raw bytes of all images that were added
+     * to the repository from streams. The images are memory mapped, so that
+     * their bytes are kept outside of the java heap.
+     */
+    private static class SpillFile
+    {
+        private File        m_file;
+        private FileChannel m_channel;
+        
+        public SpillFile() throws IOException
+        {
+            m_file = File.createTempFile("jmemorize-images", ".tmp"); //$NON-NLS-1$ //$NON-NLS-2$
+            m_file.deleteOnExit();
+            
+            m_channel = new RandomAccessFile(m_file, "rw").getChannel(); //$NON-NLS-1$
+        }
+        
+        /**
+         * Appends all bytes of the given stream to the end of the spill file.
+         * 
+         * @return the offset at which the bytes were written. 
+         */
+        public long append(InputStream in) throws IOException
+        {
+            long offset = m_channel.size();
+            long position = offset;
+            
+            byte[] bytes = new byte[8192];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            int numRead;
+            
+            while ((numRead = in.read(bytes)) >= 0)
+            {
+                buffer.clear();
+                buffer.limit(numRead);
+                
+                while (buffer.hasRemaining())
+                {
+                    position += m_channel.write(buffer, position);
+                }
+            }
+            
+            return offset;
+        }
+        
+        /**
+         * @return the number of bytes that were appended at given offset. 
+         */
+        public long getLength(long offset) throws IOException
+        {
+            return m_channel.size() - offset;
+        }
+        
+        /**
+         * Maps the bytes that were appended last at given offset.
+         * 
+         * @return the source for the mapped region that holds the bytes.
+         */
+        public SpillSource map(long offset) throws IOException
+        {
+            long length = getLength(offset);
+            if (length > Integer.MAX_VALUE)
+                throw new IOException("Image too large.");
+            
+            return new SpillSource(m_channel.map(MapMode.READ_ONLY, offset, length));
+        }
+        
+        /**
+         * Discards the bytes that were appended last at given offset. They
+         * must not have been mapped.
+         */
+        public void truncate(long offset) throws IOException
+        {
+            m_channel.truncate(offset);
+        }
+        
+        /**
+         * Closes and deletes the spill file. Regions that are still mapped stay
+         * valid until they are garbage collected.
+         */
+        public void close()
+        {
+            try
+            {
+                m_channel.close();
+            }
+            catch (IOException e)
+            {
+                Main.logThrowable("could not close image spill file", e);
+            }
+            
+            m_file.delete();
+        }
+    }
+    
     public class ImageItem
     {
-        private String    m_sourceFile;
-        private byte[]    m_bytes;
-        private String    m_id;  
- 
-        public ImageItem(InputStream in, String filename) 
-            throws IOException
+        private String      m_sourceFile;
+        private byte[]      m_bytes;
+        private ImageSource m_source;
+        private String      m_id;
+        
+        private long        m_length;
+        private String      m_hash;    // null if not computed yet
+        
+        private long        m_checksum = -1;    // -1 if not computed yet
+        private boolean     m_compressedFormat;
+        
+        /**
+         * Creates a image item whose bytes are only read from the given source
+         * when they are actually needed.
+         */
+        private ImageItem(String filename, ImageSource source, long length)
+        {
+            m_sourceFile = filename;
+            m_id = createId(filename);
+            m_source = source;
+            m_length = length;
+        }
+        
+        /**
+         * Creates a image item that holds its bytes in memory.
+         */
+        private ImageItem(String filename, byte[] bytes)
         {
             m_sourceFile = filename;
             m_id = createId(filename);
-            m_bytes = readFile(in);
+            m_bytes = bytes;
+            m_length = bytes.length;
         }
         
+        /**
+         * @return the image or <code>null</code> if the image couldn't be
+         * read from its source.
+         */
         public ImageIcon getImage()
         {
-            ImageIcon image = new ImageIcon(m_bytes);
+            byte[] bytes;
+            try
+            {
+                bytes = getBytes();
+            }
+            catch (IOException e)
+            {
+                Main.logThrowable("could not read image "+m_id, e);
+                return null;
+            }
+            
+            ImageIcon image = new ImageIcon(bytes);
             image.setDescription(IMG_ID_PREFIX + m_id);
             
             return image;
@@ -82,9 +420,86 @@ public class ImageRepository
             return m_sourceFile;
         }
         
-        public byte[] getBytes()
+        /**
+         * @return the image bytes. If the image is not held in memory, the
+         * bytes are read from its source without being kept.
+         */
+        public synchronized byte[] getBytes() throws IOException
+        {
+            if (m_bytes != null)
+                return m_bytes;
+            
+            InputStream in = m_source.open();
+            try
+            {
+                return readFile(in);
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        
+        /**
+         * Writes the image bytes to given stream. Images that are not held in
+         * memory are directly copied from their source.
+         */
+        public synchronized void writeTo(OutputStream out) throws IOException
+        {
+            m_writeCount.incrementAndGet();
+            
+            if (m_bytes != null)
+                out.write(m_bytes);
+            else
+                m_source.writeTo(out);
+        }
+        
+        /**
+         * @return the CRC-32 checksum of the image bytes.
+         */
+        public long getChecksum() throws IOException
+        {
+            inspect();
+            return m_checksum;
+        }
+        
+        /**
+         * @return the number of image bytes.
+         */
+        public long getLength() throws IOException
+        {
+            inspect();
+            return m_length;
+        }
+        
+        /**
+         * @return <code>true</code> if the image is stored in a format that
+         * is already compressed (JPEG, PNG or GIF), so that compressing it
+         * again would hardly save any space.
+         */
+        public boolean isCompressedFormat() throws IOException
+        {
+            inspect();
+            return m_compressedFormat;
+        }
+        
+        /**
+         * @return <code>true</code> if the image bytes are held in memory.
+         * <code>false</code> if they are read on demand.
+         */
+        public synchronized boolean isLoaded()
+        {
+            return m_bytes != null;
+        }
+        
+        /**
+         * @return <code>true</code> if the image bytes are read on demand
+         * from given file.
+         */
+        public synchronized boolean isStoredIn(File file)
         {
-            return m_bytes;
+            return m_bytes == null && m_source.getFile() != null && 
+                m_source.getFile().equals(toCanonicalFile(file));
         }
         
         @Override
@@ -92,69 +507,117 @@ public class ImageRepository
         {
             return m_id;
         }
-
-        private String createId(String filename)
+        
+        /**
+         * @return the hash of the image content. It is computed on first
+         * call for images that are read on demand.
+         */
+        private synchronized String getHash() throws IOException
         {
-            int dotPos = filename.lastIndexOf(".");
-            String extension = filename.substring(dotPos);
-            String purename = filename.substring(0, dotPos);
+            if (m_hash == null)
+            {
+                InputStream in = open();
+                try
+                {
+                    m_hash = computeHash(in);
+                }
+                finally
+                {
+                    in.close();
+                }
+            }
             
-            while (getKeys().contains(purename + extension))
+            return m_hash;
+        }
+        
+        /**
+         * @return <code>true</code> if the image bytes are read on demand
+         * from an entry of given zip file.
+         */
+        private synchronized boolean isInZip(File zipFile)
+        {
+            return m_source instanceof ZipEntrySource && 
+                ((ZipEntrySource)m_source).isInZip(zipFile);
+        }
+        
+        /**
+         * Computes the checksum and detects the format of the image by
+         * reading all bytes once.
+         */
+        private synchronized void inspect() throws IOException
+        {
+            if (m_checksum >= 0)
+                return;
+            
+            CRC32 crc = new CRC32();
+            byte[] header = new byte[4];
+            long length = 0;
+            
+            InputStream in = open();
+            try
             {
-                int num = 0;
+                byte[] bytes = new byte[8192];
+                int numRead;
                 
-                Matcher m = FILE_PATTERN.matcher(purename);
-                if (m.matches() && m.groupCount() == 2)
+                while ((numRead = in.read(bytes)) >= 0)
                 {
-                    num = Integer.valueOf(m.group(2));
-                    num++;
+                    int headerBytes = (int)Math.min(header.length - length, numRead);
+                    if (headerBytes > 0)
+                        System.arraycopy(bytes, 0, header, (int)length, headerBytes);
                     
-                    purename = m.group(1);
+                    crc.update(bytes, 0, numRead);
+                    length += numRead;
                 }
-
-                purename = purename + "_" + num;
+            }
+            finally
+            {
+                in.close();
             }
             
-            return purename + extension;
+            m_length = length;
+            m_compressedFormat = isCompressedImage(header);
+            m_checksum = crc.getValue();
         }
         
-        private byte[] readFile(InputStream in) throws IOException
+        private InputStream open() throws IOException
         {
-            ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-            
-            byte[] bytes = new byte[1024];
-            int numRead = 0;
-            
-            while ((numRead = in.read(bytes, 0, bytes.length)) >= 0)                
+            return m_bytes != null ? 
+                new ByteArrayInputStream(m_bytes) : m_source.open();
+        }
+        
+        /**
+         * Reads the image bytes into memory, so that the image is independent
+         * of its source.
+         */
+        private synchronized void load() throws IOException
+        {
+            if (m_bytes == null)
             {
-                bytesOut.write(bytes, 0, numRead);
+                m_bytes = getBytes();
+                m_source = null;
             }
-
-            return bytesOut.toByteArray();
         }
     }
     
- // TODO remove singleton pattern and make this referenced from lesson
-  
-    public static ImageRepository getInstance() 
+    /**
+     * Creates an empty repository. Every lesson has its own repository, see
+     * {@link Lesson#getImageRepository()}.
+     */
+    public ImageRepository()
     {
-        if (m_instance == null)
-            m_instance = new ImageRepository();
-
-        return m_instance;
     }
     
-    public Set<String> getKeys()
+    public synchronized Set<String> getKeys()
     {
-        return m_imageMap.keySet();
+        return new HashSet<String>(m_imageMap.keySet());
     }
     
-    public Collection<ImageItem> getImageItems() // TODO dont give imageItem to outside
+    public synchronized Collection<ImageItem> getImageItems() // TODO dont give imageItem to outside
     {
-        return m_imageMap.values();
+        return new ArrayList<ImageItem>(m_imageMap.values());
     }
     
-    public ImageIcon getImage(String imageId)
+    public synchronized ImageIcon getImage(String imageId)
     {
         for (ImageIcon icon : m_imageCache)
         {
@@ -173,6 +636,9 @@ public class ImageRepository
             return null;
         
         ImageIcon icon = imageItem.getImage();
+        if (icon == null)
+            return null;
+        
         m_imageCache.addFirst(icon);
         
         if (m_imageCache.size() > MAX_CACHED_IMAGES) // HACK check for memory usage instead
@@ -181,20 +647,119 @@ public class ImageRepository
         return icon;
     }
     
-    public String addImage(InputStream in, String filename) throws IOException
+    /**
+     * Adds the image that is read from given stream. If the repository
+     * already holds an image with the same content, no new image is added and
+     * the id of the existing image is returned instead.
+     */
+    public synchronized String addImage(InputStream in, String filename) throws IOException
     {
-        // TOOD check if image already in our map
-//        for (ImageItem item : m_imageMap.values())
-//        {
-//            if (item.getFile().equals(filename))
-//                return item.getId();
-//        }
+        MessageDigest digest = createDigest();
+        DigestInputStream digestIn = new DigestInputStream(in, digest);
         
-        ImageItem item = new ImageItem(in, filename);
-        String id = item.getId();
-        m_imageMap.put(id, item);
+        SpillFile spillFile = getSpillFile();
+        if (spillFile == null)
+        {
+            byte[] bytes = readFile(digestIn);
+            String hash = toHex(digest.digest());
+            
+            ImageItem existing = findItem(hash, bytes.length);
+            if (existing != null)
+                return existing.getId();
+            
+            ImageItem item = new ImageItem(filename, bytes);
+            item.m_hash = hash;
+            
+            return addItem(item);
+        }
         
-        return id;
+        long offset = spillFile.append(digestIn);
+        long length = spillFile.getLength(offset);
+        String hash = toHex(digest.digest());
+        
+        ImageItem existing = findItem(hash, length);
+        if (existing != null)
+        {
+            spillFile.truncate(offset);
+            return existing.getId();
+        }
+        
+        ImageItem item = new ImageItem(filename, spillFile.map(offset), length);
+        item.m_hash = hash;
+        
+        return addItem(item);
+    }
+    
+    /**
+     * Adds a image that is stored in given file. The file is only read when
+     * the image is needed, so it must not be removed while this image is part
+     * of the repository.
+     */
+    public synchronized String addImage(File file)
+    {
+        return addItem(new ImageItem(file.getName(), new FileSource(file), 
+            file.length()));
+    }
+    
+    /**
+     * Adds a image that is stored as entry of given zip file. The entry is
+     * only read when the image is needed, so the zip file must not be removed
+     * while this image is part of the repository.
+     * 
+     * @param size the uncompressed size of the entry.
+     */
+    public synchronized String addImage(File zipFile, String entryName, String filename, 
+        long size)
+    {
+        return addItem(new ImageItem(filename, 
+            new ZipEntrySource(zipFile, entryName), size));
+    }
+    
+    /**
+     * Adds all images of given repository that aren't held by this repository
+     * yet. The images keep their ids. Their bytes aren't copied, but read
+     * from the same memory or source as in the other repository.
+     */
+    public void addImages(ImageRepository repository)
+    {
+        // both repositories are never locked at the same time
+        Collection<ImageItem> items = repository.getImageItems();
+        
+        synchronized (this)
+        {
+            for (ImageItem item : items)
+            {
+                if (m_imageMap.containsKey(item.getId()))
+                    continue;
+                
+                ImageItem copy;
+                synchronized (item)
+                {
+                    copy = item.m_bytes != null ? 
+                        new ImageItem(item.getId(), item.m_bytes) : 
+                        new ImageItem(item.getId(), item.m_source, item.m_length);
+                    
+                    copy.m_sourceFile = item.m_sourceFile;
+                    copy.m_hash = item.m_hash;
+                }
+                
+                addItem(copy);
+            }
+        }
+    }
+    
+    /**
+     * Reads all images that are still backed by the given file or by entries
+     * of it into memory. This needs to be called before the file is
+     * overwritten.
+     */
+    public synchronized void detach(File file) throws IOException
+    {
+        for (ImageItem item : m_imageMap.values())
+        {
+            if (item.isStoredIn(file) || item.isInZip(file))
+                item.load();
+        }
     }
     
     public String addImage(ImageIcon icon) throws IOException
@@ -225,7 +790,15 @@ public class ImageRepository
                 // fallthrough expected
             }
             
-            id = addImage(in, name);
+            try
+            {
+                id = addImage(in, name);
+            }
+            finally
+            {
+                in.close();
+            }
+            
             icon.setDescription(IMG_ID_PREFIX + id);
         }
         
@@ -257,10 +830,139 @@ public class ImageRepository
         return imageIDs;
     }
     
+    /**
+     * Counts the images of given card as being referenced. If the card was
+     * already counted before, only the difference to its former images is
+     * counted. This needs to be called whenever a card is added to a lesson
+     * or its images change.
+     */
+    public synchronized void updateReferences(Card card)
+    {
+        updateReferences(card.getFrontSide());
+        updateReferences(card.getBackSide());
+    }
+    
+    /**
+     * Releases all references that were counted for given card. This needs to
+     * be called when a card is removed from a lesson.
+     */
+    public synchronized void removeReferences(Card card)
+    {
+        removeReferences(card.getFrontSide());
+        removeReferences(card.getBackSide());
+    }
+    
+    /**
+     * @return the number of counted card sides that show the image with given
+     * id.
+     */
+    public synchronized int getReferenceCount(String id)
+    {
+        Integer count = m_references.get(id);
+        return count != null ? count.intValue() : 0;
+    }
+    
+    /**
+     * Removes all images that are not referenced by any counted card side.
+     * Only images that were added or have lost references since the last call
+     * are checked.
+     */
+    public synchronized void removeUnreferencedImages()
+    {
+        for (String id : m_unreferencedIds)
+        {
+            ImageItem item = m_imageMap.get(id);
+            if (item != null && !m_references.containsKey(id))
+                removeItem(item);
+        }
+        
+        m_unreferencedIds.clear();
+    }
+    
+    /**
+     * @return <code>true</code> if the image files in given folder were
+     * written or read by this repository and only the images in
+     * {@link #getRemovedIds()} have been removed since then.
+     */
+    public synchronized boolean isWrittenTo(File folder)
+    {
+        return m_writtenFolder != null && 
+            m_writtenFolder.equals(toCanonicalFile(folder));
+    }
+    
+    /**
+     * Marks given folder as holding the files of all images of this
+     * repository.
+     */
+    public void setWrittenTo(File folder)
+    {
+        setWrittenTo(folder, getImageItems());
+    }
+    
+    /**
+     * Marks given folder as holding the files of the given images. Images that
+     * were added in the meantime still need to be written. 
+     */
+    public synchronized void setWrittenTo(File folder, 
+        Collection<ImageItem> writtenItems)
+    {
+        m_writtenFolder = toCanonicalFile(folder);
+        m_removedIds.clear();
+        
+        for (ImageItem item : writtenItems)
+        {
+            if (m_imageMap.get(item.getId()) == item)
+                m_unwrittenIds.remove(item.getId());
+        }
+    }
+    
+    /**
+     * @return all images that were added since the images were last written
+     * with {@link #setWrittenTo(File)}.
+     */
+    public synchronized List<ImageItem> getUnwrittenImageItems()
+    {
+        List<ImageItem> items = new ArrayList<ImageItem>(m_unwrittenIds.size());
+        for (String id : m_unwrittenIds)
+        {
+            items.add(m_imageMap.get(id));
+        }
+        
+        return items;
+    }
+    
+    /**
+     * @return the number of times that image bytes were written to a stream.
+     * Useful to check that unchanged images are not written again.
+     */
+    public int getWriteCount()
+    {
+        return m_writeCount.get();
+    }
+    
+    /**
+     * @return the number of images that were added to this repository since
+     * the program started. The count isn't reset by {@link #clear()}, so it
+     * can be used to check if images were added since some point in time.
+     */
+    public synchronized int getAddCount()
+    {
+        return m_addCount;
+    }
+    
+    /**
+     * @return the ids of all images that were removed since the images were
+     * last written with {@link #setWrittenTo(File)}.
+     */
+    public synchronized Set<String> getRemovedIds()
+    {
+        return new HashSet<String>(m_removedIds);
+    }
+    
     /**
      * Retains all images with given IDs. All other images are removed.
      */
-    public void retain(Set<String> retainIDs)
+    public synchronized void retain(Set<String> retainIDs)
     {
         Set<String> toBeRemoved = new HashSet<String>(m_imageMap.keySet());
         
@@ -268,7 +970,7 @@ public class ImageRepository
             toBeRemoved.remove(id);
         
         for (String id : toBeRemoved)
-            m_imageMap.remove(id);
+            removeItem(m_imageMap.get(id));
     }
     
     public static boolean equals(ImageIcon image, String id)
@@ -321,12 +1023,288 @@ public class ImageRepository
         return images;
     }
     
-    public void clear()
+    public synchronized void clear()
+    {
+        m_imageMap.clear();
+        m_references.clear();
+        m_countedSides.clear();
+        m_unreferencedIds.clear();
+        m_unwrittenIds.clear();
+        m_removedIds.clear();
+        m_writtenFolder = null;
+        m_hashIndex.clear();
+        m_unhashedItems.clear();
+        m_idCounters.clear();
+        
+        if (m_spillFile != null)
+        {
+            m_spillFile.close();
+            m_spillFile = null;
+        }
+    }
+    
+    /**
+     * @return the spill file for images that are added from streams. It is
+     * created on first use. <code>null</code> if no spill file could be
+     * created, in which case images are kept in memory.
+     */
+    private SpillFile getSpillFile()
+    {
+        if (m_spillFile == null && !m_spillFileFailed)
+        {
+            try
+            {
+                m_spillFile = new SpillFile();
+            }
+            catch (IOException e)
+            {
+                Main.logThrowable("could not create image spill file", e);
+                m_spillFileFailed = true;
+            }
+        }
+        
+        return m_spillFile;
+    }
+    
+    private static File toCanonicalFile(File file)
     {
-        m_imageMap.clear();        
+        try
+        {
+            return file.getCanonicalFile();
+        }
+        catch (IOException e)
+        {
+            return file.getAbsoluteFile();
+        }
+    }
+    
+    private String addItem(ImageItem item)
+    {
+        String id = item.getId();
+        m_imageMap.put(id, item);
+        m_addCount++;
+        m_unwrittenIds.add(id);
+        m_removedIds.remove(id);
+        
+        if (!m_references.containsKey(id))
+            m_unreferencedIds.add(id);
+        
+        if (item.m_hash != null)
+        {
+            if (!m_hashIndex.containsKey(item.m_hash))
+                m_hashIndex.put(item.m_hash, item);
+        }
+        else
+        {
+            List<ImageItem> items = m_unhashedItems.get(item.m_length);
+            if (items == null)
+            {
+                items = new LinkedList<ImageItem>();
+                m_unhashedItems.put(item.m_length, items);
+            }
+            
+            items.add(item);
+        }
+        
+        return id;
+    }
+    
+    private void removeItem(ImageItem item)
+    {
+        m_imageMap.remove(item.getId());
+        m_unwrittenIds.remove(item.getId());
+        m_removedIds.add(item.getId());
+        
+        if (item.m_hash != null)
+        {
+            if (m_hashIndex.get(item.m_hash) == item)
+                m_hashIndex.remove(item.m_hash);
+        }
+        else
+        {
+            List<ImageItem> items = m_unhashedItems.get(item.m_length);
+            if (items != null)
+                items.remove(item);
+        }
+    }
+    
+    private void updateReferences(CardSide side)
+    {
+        List<String> countedIds = m_countedSides.get(side);
+        List<String> ids = side.getImages();
+        
+        if (countedIds == null ? ids.isEmpty() : countedIds.equals(ids))
+            return;
+        
+        removeReferences(side);
+        
+        if (ids.isEmpty())
+            return;
+        
+        for (String id : ids)
+        {
+            Integer count = m_references.get(id);
+            m_references.put(id, count != null ? count.intValue() + 1 : 1);
+        }
+        
+        m_countedSides.put(side, new ArrayList<String>(ids));
+    }
+    
+    private void removeReferences(CardSide side)
+    {
+        List<String> countedIds = m_countedSides.remove(side);
+        if (countedIds == null)
+            return;
+        
+        for (String id : countedIds)
+        {
+            int count = m_references.get(id).intValue() - 1;
+            if (count > 0)
+            {
+                m_references.put(id, count);
+            }
+            else
+            {
+                m_references.remove(id);
+                m_unreferencedIds.add(id);
+            }
+        }
+    }
+    
+    /**
+     * @return the image with given content hash and length or
+     * <code>null</code> if there is no such image. Images that are read on
+     * demand are only hashed if they have the same length.
+     */
+    private ImageItem findItem(String hash, long length)
+    {
+        List<ImageItem> items = m_unhashedItems.remove(length);
+        if (items != null)
+        {
+            for (ImageItem item : items)
+            {
+                try
+                {
+                    if (!m_hashIndex.containsKey(item.getHash()))
+                        m_hashIndex.put(item.getHash(), item);
+                }
+                catch (IOException e)
+                {
+                    Main.logThrowable("could not read image "+item.getId(), e);
+                }
+            }
+        }
+        
+        return m_hashIndex.get(hash);
     }
     
-    private ImageRepository() // singleton
-    {        
+    /**
+     * Creates a unique id that is based on given filename. If the filename is
+     * already taken, a counter is appended to the name, e.g. image_0.png,
+     * image_1.png. The next counter value is remembered per name, so that
+     * finding a free id doesn't need to probe all taken ones.
+     */
+    private String createId(String filename)
+    {
+        int dotPos = filename.lastIndexOf(".");
+        if (dotPos < 0)
+            dotPos = filename.length();
+        
+        String extension = filename.substring(dotPos);
+        String purename = filename.substring(0, dotPos);
+        
+        if (!m_imageMap.containsKey(purename + extension))
+            return purename + extension;
+        
+        int num = 0;
+        
+        Matcher m = FILE_PATTERN.matcher(purename);
+        if (m.matches())
+        {
+            num = Integer.valueOf(m.group(2)) + 1;
+            purename = m.group(1);
+        }
+        
+        String key = purename + extension;
+        Integer next = m_idCounters.get(key);
+        if (next != null && next.intValue() > num)
+            num = next.intValue();
+        
+        // ids that were loaded from a lesson aren't counted, so skip them
+        while (m_imageMap.containsKey(purename + "_" + num + extension))
+            num++;
+        
+        m_idCounters.put(key, num + 1);
+        
+        return purename + "_" + num + extension;
+    }
+    
+    private static byte[] readFile(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+        
+        byte[] bytes = new byte[1024];
+        int numRead = 0;
+        
+        while ((numRead = in.read(bytes, 0, bytes.length)) >= 0)                
+        {
+            bytesOut.write(bytes, 0, numRead);
+        }
+
+        return bytesOut.toByteArray();
+    }
+    
+    /**
+     * @return <code>true</code> if given header bytes start a JPEG, PNG or
+     * GIF image.
+     */
+    private static boolean isCompressedImage(byte[] header)
+    {
+        return (header[0] == (byte)0xFF && header[1] == (byte)0xD8 && 
+                header[2] == (byte)0xFF) ||                         // JPEG
+            (header[0] == (byte)0x89 && header[1] == 'P' && 
+                header[2] == 'N' && header[3] == 'G') ||            // PNG
+            (header[0] == 'G' && header[1] == 'I' && 
+                header[2] == 'F' && header[3] == '8');              // GIF
+    }
+    
+    private static MessageDigest createDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-1"); //$NON-NLS-1$
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // every java platform is required to support SHA-1
+            throw new RuntimeException(e);
+        }
+    }
+    
+    private static String computeHash(InputStream in) throws IOException
+    {
+        MessageDigest digest = createDigest();
+        
+        byte[] bytes = new byte[8192];
+        int numRead;
+        
+        while ((numRead = in.read(bytes)) >= 0)
+        {
+            digest.update(bytes, 0, numRead);
+        }
+        
+        return toHex(digest.digest());
+    }
+    
+    private static String toHex(byte[] bytes)
+    {
+        StringBuffer buffer = new StringBuffer(bytes.length * 2);
+        for (byte b : bytes)
+        {
+            buffer.append(Character.forDigit((b >> 4) & 0xf, 16));
+            buffer.append(Character.forDigit(b & 0xf, 16));
+        }
+        
+        return buffer.toString();
     }
 }
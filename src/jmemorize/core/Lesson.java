@@ -19,6 +19,9 @@
 package jmemorize.core;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 
 import jmemorize.core.learn.LearnHistory;
 import jmemorize.gui.LC;
@@ -31,10 +34,15 @@ public class Lesson implements CategoryObserver
 {
     /** True if this lesson has been modified since last save or load process */
     private boolean           m_canSave = false;
+    private int               m_modificationCount;
     private File              m_file;
+    private long              m_journalId;
     
     private Category          m_rootCategory;
     private LearnHistory      m_learnHistory = new LearnHistory();
+    private ImageRepository   m_imageRepository;
+    private ExpirationIndex   m_expirationIndex;
+    private boolean           m_snapshot;
     
     public Lesson(boolean canSave)
     {
@@ -46,10 +54,26 @@ public class Lesson implements CategoryObserver
      */
     public Lesson(Category rootCategory, boolean canSave)
     {
+        m_imageRepository = new ImageRepository();
+        
         setRootCategory(rootCategory);
         setCanSave(canSave);
     }
     
+    /**
+     * Creates a snapshot that isn't observed and shares the images of the
+     * lesson that it was taken from.
+     */
+    private Lesson(Category rootCategory, LearnHistory learnHistory, File file,
+        ImageRepository imageRepository)
+    {
+        m_rootCategory = rootCategory;
+        m_learnHistory = learnHistory;
+        m_file = file;
+        m_imageRepository = imageRepository;
+        m_snapshot = true;
+    }
+    
     /**
      * @return Returns the file.
      */
@@ -66,11 +90,77 @@ public class Lesson implements CategoryObserver
         m_file = file;
     }
     
+    /**
+     * @return the id of the journal that holds the changes made to this lesson
+     * since it was saved or 0 if the lesson has never been saved with a
+     * journal.
+     */
+    public long getJournalId()
+    {
+        return m_journalId;
+    }
+    
+    public void setJournalId(long journalId)
+    {
+        m_journalId = journalId;
+    }
+    
     public LearnHistory getLearnHistory()
     {
         return m_learnHistory;
     }
     
+    /**
+     * @return the images of this lesson. Lessons don't share their images, so
+     * that different lessons can be loaded and saved at the same time.
+     */
+    public ImageRepository getImageRepository()
+    {
+        return m_imageRepository;
+    }
+    
+    /**
+     * @return the index of all loaded cards of this lesson by their expiration
+     * dates or <code>null</code> if this lesson is a snapshot.
+     */
+    public ExpirationIndex getExpirationIndex()
+    {
+        return m_expirationIndex;
+    }
+    
+    /**
+     * @param time the time at which the cards are due, e.g.
+     * {@link Main#getNow()} or {@link Main#getTomorrow()}.
+     * @return all cards of this lesson that have expired at given time, sorted
+     * by their expiration dates.
+     */
+    public List<Card> getDueCards(Date time)
+    {
+        // the cards of unloaded categories aren't indexed yet
+        m_rootCategory.loadCards();
+        
+        return m_expirationIndex.getExpiredCards(time.getTime());
+    }
+    
+    /**
+     * @return the time at which the next card of this lesson expires after now
+     * or {@link Long#MAX_VALUE} if no card expires in the future.
+     */
+    public long getNextExpiration()
+    {
+        return m_rootCategory.getNextExpiration();
+    }
+    
+    /**
+     * @return <code>true</code> if this lesson is a snapshot of another
+     * lesson. Snapshots share the images of their lesson, so they must not
+     * remove any of them.
+     */
+    public boolean isSnapshot()
+    {
+        return m_snapshot;
+    }
+    
     /**
      * @return <code>true</code> if saving is needed for this lesson.
      */
@@ -79,6 +169,16 @@ public class Lesson implements CategoryObserver
         return m_canSave;
     }
     
+    /**
+     * @return the number of modifications since this lesson was created. Can
+     * be used to check if the lesson was modified while a snapshot of it was
+     * saved.
+     */
+    public int getModificationCount()
+    {
+        return m_modificationCount;
+    }
+    
     /**
      * @return Returns the root rategory.
      */
@@ -92,6 +192,11 @@ public class Lesson implements CategoryObserver
      */
     public void onCategoryEvent(int type, Category category)
     {
+        if (type == ADDED_EVENT)
+            updateImageReferences(category);
+        else if (type == REMOVED_EVENT)
+            removeImageReferences(category);
+        
         setCanSave(true);
     }
 
@@ -100,6 +205,11 @@ public class Lesson implements CategoryObserver
      */
     public void onCardEvent(int type, Card card, Category category, int deck)
     {
+        if (type == ADDED_EVENT || type == EDITED_EVENT)
+            m_imageRepository.updateReferences(card);
+        else if (type == REMOVED_EVENT)
+            m_imageRepository.removeReferences(card);
+        
         if (type != EXPIRED_EVENT)
         {
             setCanSave(true);
@@ -109,11 +219,31 @@ public class Lesson implements CategoryObserver
     /**
      * Returns a clone of this lesson. The clone contains all cards and
      * categories of the original lesson, but has all cards reset to have no
-     * learn stats.
+     * learn stats. The clone has its own image repository with the images of
+     * this lesson.
      */
     public Lesson cloneWithoutProgress()
     {
-        return new Lesson(m_rootCategory.cloneWithoutProgress(), true);
+        Lesson clone = new Lesson(m_rootCategory.cloneWithoutProgress(), true);
+        clone.m_imageRepository.addImages(m_imageRepository);
+        
+        return clone;
+    }
+    
+    /**
+     * Returns a snapshot of this lesson that contains copies of all categories
+     * and cards, including their learn progress, and of the learn history.
+     * Changes to this lesson don't affect the snapshot, so it can be saved in
+     * the background. The snapshot shares the images of this lesson, but isn't
+     * observed and doesn't count any image references.
+     */
+    public Lesson createSnapshot()
+    {
+        Lesson snapshot = new Lesson(m_rootCategory.copy(), 
+            m_learnHistory.copy(), m_file, m_imageRepository);
+        snapshot.m_journalId = m_journalId;
+        
+        return snapshot;
     }
     
     /* (non-Javadoc)
@@ -150,6 +280,9 @@ public class Lesson implements CategoryObserver
     public void setCanSave(boolean canSave) // TODO make private
     {
         m_canSave = canSave;
+        
+        if (canSave)
+            m_modificationCount++;
     }
     
     /**
@@ -165,6 +298,44 @@ public class Lesson implements CategoryObserver
         
         m_rootCategory = rootCategory;
         m_rootCategory.addObserver(this);
+        
+        m_expirationIndex = new ExpirationIndex();
+        m_rootCategory.setExpirationIndex(m_expirationIndex);
+        
+        updateImageReferences(m_rootCategory);
+    }
+    
+    private void updateImageReferences(Category category)
+    {
+        for (Card card : getLoadedCards(category))
+        {
+            m_imageRepository.updateReferences(card);
+        }
+    }
+    
+    private void removeImageReferences(Category category)
+    {
+        for (Card card : getLoadedCards(category))
+        {
+            m_imageRepository.removeReferences(card);
+        }
+    }
+    
+    /**
+     * @return all cards of given category and its child categories that have
+     * been loaded already. The references of cards that haven't been loaded
+     * yet are counted by their {@link CardLoader} when they are loaded.
+     */
+    private List<Card> getLoadedCards(Category category)
+    {
+        List<Card> cards = new ArrayList<Card>();
+        for (Category child : category.getSubtreeList())
+        {
+            if (child.getCardLoader() == null)
+                cards.addAll(child.getLocalCards());
+        }
+        
+        return cards;
     }
 }
 
@@ -20,6 +20,7 @@ package jmemorize.core;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.Future;
 
 import jmemorize.util.RecentItems;
 
@@ -82,6 +83,33 @@ public interface LessonProvider
      */
     public abstract void saveLesson(Lesson lesson, File file) throws IOException;
 
+    /**
+     * Saves the lesson on a background thread. A snapshot of the lesson is
+     * taken before this method returns, so the lesson can be modified while
+     * it is saved. If it wasn't modified, it is marked as saved when saving
+     * has finished.
+     * 
+     * This method fires a {@link LessonObserver#lessonSaved(Lesson)} on the
+     * event dispatch thread after having saved the lesson.
+     * 
+     * @return the future that completes when the lesson was written or that
+     * holds the exception if it couldn't be saved.
+     */
+    public abstract Future<?> saveLessonInBackground(Lesson lesson, File file);
+
+    /**
+     * @return the time in milliseconds that it took to write the lesson the
+     * last time that it was saved, or 0 if no lesson has been saved yet.
+     */
+    public abstract long getLastSaveDuration();
+    
+    /**
+     * @return the number of bytes that were written the last time that a
+     * lesson was saved. Saves that only commit the journal of a lesson write
+     * a lot less than saves that write the whole lesson file.
+     */
+    public abstract long getLastSaveSize();
+    
     /**
      * @return currently loaded lesson. There can always only be at most one
      * lesson that is loaded. Returns <code>null</code> if there is no
@@ -19,19 +19,31 @@
 package jmemorize.core;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
 import java.net.URL;
-import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Observable;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -39,6 +51,11 @@ import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 import java.util.prefs.Preferences;
 
+import javax.swing.SwingUtilities;
+
+import jmemorize.core.io.BinaryBuilder;
+import jmemorize.core.io.LessonJournal;
+import jmemorize.core.io.LessonSummary;
 import jmemorize.core.io.XmlBuilder;
 import jmemorize.core.learn.DefaultLearnSession;
 import jmemorize.core.learn.LearnHistory;
@@ -55,7 +72,7 @@ import jmemorize.util.RecentItems;
  * @author djemili
  */
 public class Main extends Observable implements LearnSessionProvider, 
-    LessonProvider, CategoryObserver
+    LessonProvider, BatchObserver
 {
     public interface ProgramEndObserver
     {
@@ -75,6 +92,13 @@ public class Main extends Observable implements LearnSessionProvider,
     public static final File            STATS_FILE               = 
         new File(System.getProperty("user.home")+"/.jmemorize-stats.xml"); //$NON-NLS-1$ //$NON-NLS-2$
 
+    /**
+     * If this system property is <code>true</code>, the time to the first
+     * frame and the time until all startup tasks are finished are logged.
+     */
+    public static final String          TIME_STARTUP_PROPERTY   = 
+        "jmemorize.timeStartup"; //$NON-NLS-1$
+    
     private RecentItems                 m_recentFiles           = 
         new RecentItems(5, USER_PREFS.node("recent.files"));        //$NON-NLS-1$
 
@@ -82,10 +106,45 @@ public class Main extends Observable implements LearnSessionProvider,
     
     private MainFrame                   m_frame;
     private Lesson                      m_lesson;
+    private LessonJournal               m_journal;
+    private boolean                     m_journaling            = 
+        Settings.loadIsJournaling();
     private LearnSettings               m_learnSettings;
-    private LearnHistory                m_globalLearnHistory;
+    private FutureTask<LearnHistory>    m_globalLearnHistory;
     private int                         m_runningSessions       = 0;
+    
+    // the deck chart, the global learn history and the lesson given on the
+    // command line are set up after the frame has been shown
+    private int                         m_pendingStartupTasks   = 3;
+    
+    private volatile long               m_lastSaveDuration;
+    private volatile long               m_lastSaveSize;
+    
+    // lessons are saved one after another on a single background thread
+    private ExecutorService             m_saveExecutor          = 
+        Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "lesson-save"); //$NON-NLS-1$
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
 
+    // a single timer that fires when the next card of the lesson expires
+    private ScheduledExecutorService    m_expirationTimer       = 
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, "expiration-timer"); //$NON-NLS-1$
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    private ScheduledFuture<?>          m_expirationCheck;
+    private long                        m_scheduledExpiration   = Long.MAX_VALUE;
+    private long                        m_lastExpirationCheck;
+    
     // observers
     private List<LessonObserver>        m_lessonObservers       = 
         new LinkedList<LessonObserver>();
@@ -126,21 +185,38 @@ public class Main extends Observable implements LearnSessionProvider,
      */
     public void createNewLesson()
     {
-        ImageRepository.getInstance().clear();
+        waitForSaves();
         setLesson(new Lesson(false));
     }
 
+    /**
+     * Sets whether changes to lessons are journaled when they are loaded and
+     * saved by this instance. The default is taken from the settings.
+     */
+    public void setJournaling(boolean journaling)
+    {
+        m_journaling = journaling;
+    }
+    
     /* (non-Javadoc)
      * @see jmemorize.core.LessonProvider
      */
     public void setLesson(Lesson lesson)
     {
         Lesson oldLesson = m_lesson;
+        closeJournal();
         m_lesson = lesson;
         
         if (oldLesson != null)
         {
             fireLessonClosed(oldLesson);
+            
+            // the images of the closed lesson aren't needed anymore
+            if (oldLesson.getImageRepository() != lesson.getImageRepository())
+            {
+                waitForSaves();
+                oldLesson.getImageRepository().clear();
+            }
         }
         
         if (m_frame != null) // TODO remove call
@@ -149,6 +225,7 @@ public class Main extends Observable implements LearnSessionProvider,
         }
         
         fireLessonLoaded(m_lesson);
+        startExpirationTimer();
     }
 
     /* (non-Javadoc)
@@ -158,16 +235,29 @@ public class Main extends Observable implements LearnSessionProvider,
     {
         try
         {
-            ImageRepository.getInstance().clear();
+            waitForSaves();
             
             Lesson lesson = new Lesson(false);
-            XmlBuilder.loadFromXMLFile(file, lesson);
+            // replaying the journal needs all cards
+            boolean lazy = Settings.loadIsLazyLoading() && !m_journaling;
+            
+            if (BinaryBuilder.isBinaryFile(file))
+                BinaryBuilder.loadFromBinaryFile(file, lesson);
+            else
+                XmlBuilder.loadFromXMLFile(file, lesson, true, lazy);
+            
+            // changes that weren't saved before a crash can be recovered
+            boolean recovered = LessonJournal.replay(lesson, file);
+            
             lesson.setFile(file);
-            lesson.setCanSave(false);
+            lesson.setCanSave(recovered);
             m_recentFiles.push(file.getAbsolutePath());
             
             setLesson(lesson);
-            //startExpirationTimer(); TODO expiration timer
+            
+            // lessons without journal get one when they are saved
+            if (m_journaling && lesson.getJournalId() != 0)
+                openJournal(lesson, file);
         } 
         catch (Exception e)
         {
@@ -180,31 +270,89 @@ public class Main extends Observable implements LearnSessionProvider,
     /* (non-Javadoc)
      * Declared in jmemorize.core.LessonProvider
      */
-    public void saveLesson(Lesson lesson, File file) throws IOException
+    public void saveLesson(Lesson lesson, final File file) throws IOException
     {
+        int modificationCount = lesson.getModificationCount();
+        Future<?> save = m_saveExecutor.submit(createSaveTask(lesson, file));
+        
         try
         {
-            File tempFile = new File(file.getAbsolutePath()+"~"); //$NON-NLS-1$
-            XmlBuilder.saveAsXMLFile(tempFile, lesson);
-            
-            file.delete();
-            copyFile(tempFile, file);
-            
-            lesson.setFile(file); // note: sets file only if no exception
-            lesson.setCanSave(false);
-            m_recentFiles.push(file.getAbsolutePath());
-            
-            for (LessonObserver observer : m_lessonObservers)
+            save.get();
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            throw new IOException(cause.getMessage(), cause);
+        }
+        catch (InterruptedException e)
+        {
+            throw new IOException(e.getMessage(), e);
+        }
+        
+        onLessonSaved(lesson, file, modificationCount);
+    }
+    
+    /* (non-Javadoc)
+     * Declared in jmemorize.core.LessonProvider
+     */
+    public Future<?> saveLessonInBackground(final Lesson lesson, final File file)
+    {
+        final int modificationCount = lesson.getModificationCount();
+        final Callable<Object> save = createSaveTask(lesson, file);
+        
+        return m_saveExecutor.submit(new Callable<Object>() {
+            public Object call() throws Exception
             {
-                observer.lessonSaved(lesson);
+                save.call();
+                
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run()
+                    {
+                        onLessonSaved(lesson, file, modificationCount);
+                    }
+                });
+                
+                return null;
             }
+        });
+    }
+    
+    /**
+     * Blocks until all lessons that are currently saved in the background
+     * have been written.
+     */
+    public void waitForSaves()
+    {
+        try
+        {
+            m_saveExecutor.submit(new Runnable() {
+                public void run()
+                {
+                }
+            }).get();
         }
-        catch (Throwable t)
+        catch (Exception e)
         {
-            throw new IOException(t.getMessage());
+            logThrowable("Error while waiting for lesson save", e);
         }
     }
     
+    /* (non-Javadoc)
+     * Declared in jmemorize.core.LessonProvider
+     */
+    public long getLastSaveDuration()
+    {
+        return m_lastSaveDuration;
+    }
+    
+    /* (non-Javadoc)
+     * Declared in jmemorize.core.LessonProvider
+     */
+    public long getLastSaveSize()
+    {
+        return m_lastSaveSize;
+    }
+    
     /* (non-Javadoc)
      * Declared in jmemorize.core.LessonProvider
      */
@@ -265,6 +413,9 @@ public class Main extends Observable implements LearnSessionProvider,
             observer.onProgramEnd();
         }
         
+        waitForSaves();
+        closeJournal();
+        
         System.exit(0);
     }
 
@@ -306,6 +457,9 @@ public class Main extends Observable implements LearnSessionProvider,
                 session.getFailedCards().size(),
                 session.getSkippedCards().size(),
                 session.getRelearnedCards().size());
+            
+            if (m_journal != null)
+                m_journal.recordSession(history.getLastSummary());
         }
         
         for (LearnSessionObserver observer : m_learnSessionObservers)
@@ -351,15 +505,61 @@ public class Main extends Observable implements LearnSessionProvider,
      */
     public LearnSettings getLearnSettings()
     {
+        if (m_learnSettings == null)
+            m_learnSettings = Settings.loadStrategy(m_frame);
+        
         return m_learnSettings;
     }
     
     /**
-     * @return the statistics for jMemorize.
+     * @return the statistics for jMemorize. They are loaded in the background
+     * on startup, so this waits until loading has finished.
      */
     public LearnHistory getGlobalLearnHistory()
     {
-        return m_globalLearnHistory;
+        if (m_globalLearnHistory == null)
+            return null;
+        
+        try
+        {
+            return m_globalLearnHistory.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+    
+    /**
+     * Logs the time since the JVM was started if startup timing is enabled by
+     * the {@link #TIME_STARTUP_PROPERTY} system property.
+     */
+    public static void logStartupTime(String milestone)
+    {
+        if (Boolean.getBoolean(TIME_STARTUP_PROPERTY))
+        {
+            long start = ManagementFactory.getRuntimeMXBean().getStartTime();
+            logger.info("Startup: " + milestone + " after " +  //$NON-NLS-1$ //$NON-NLS-2$
+                (System.currentTimeMillis() - start) + " ms"); //$NON-NLS-1$
+        }
+    }
+    
+    /**
+     * Is called on the event dispatch thread when one of the tasks that are
+     * deferred until the frame has been shown is finished. The application
+     * is interactive when all of them are finished.
+     */
+    public void startupTaskFinished(String task)
+    {
+        logStartupTime(task);
+        
+        if (--m_pendingStartupTasks == 0)
+            logStartupTime("interactive"); //$NON-NLS-1$
     }
 
     /* (non-Javadoc)
@@ -368,6 +568,7 @@ public class Main extends Observable implements LearnSessionProvider,
     public void onCardEvent(int type, Card card, Category category, int deck)
     {
         fireLessonModified(m_lesson);
+        scheduleExpirationCheck();
     }
 
     /* (non-Javadoc)
@@ -376,8 +577,18 @@ public class Main extends Observable implements LearnSessionProvider,
     public void onCategoryEvent(int type, Category category)
     {
         fireLessonModified(m_lesson);        
+        scheduleExpirationCheck();
     }
 
+    /* (non-Javadoc)
+     * Declared in jmemorize.core.BatchObserver
+     */
+    public void onBatchEvent(BatchEvent event)
+    {
+        fireLessonModified(m_lesson);
+        scheduleExpirationCheck();
+    }
+    
     public Main()
     {
         InputStream propertyStream = null;
@@ -470,24 +681,210 @@ public class Main extends Observable implements LearnSessionProvider,
         m_lastLoggedThrowable = null;
     }
     
-    private static void copyFile(File in, File out) throws IOException 
+    /**
+     * Prepares saving given lesson. If the lesson is journaled and its journal
+     * is based on the lesson file, saving only commits the journal. Otherwise
+     * a snapshot of the lesson is taken, which is written completely by the
+     * returned task.
+     */
+    private Callable<Object> createSaveTask(Lesson lesson, final File file)
+    {
+        final LessonJournal journal = m_journaling ? 
+            openJournal(lesson, file) : null;
+        final LessonSummary summary = LessonSummary.create(lesson);
+        
+        if (journal != null && !journal.needsCompaction())
+        {
+            return new Callable<Object>() {
+                public Object call() throws Exception
+                {
+                    long start = System.currentTimeMillis();
+                    long size = journal.commit();
+                    
+                    onLessonWritten(start, size);
+                    writeSummary(summary, file);
+                    return null;
+                }
+            };
+        }
+        
+        if (journal == null)
+            lesson.setJournalId(0);
+        
+        // lazily loaded cards that won't be copied from the lesson file
+        // have to be loaded before the file is replaced
+        XmlBuilder.loadCardsForSave(lesson, file);
+        
+        // the snapshot shares the images of the lesson, so unreferenced images
+        // are removed here instead of while the snapshot is written
+        ImageRepository repository = lesson.getImageRepository();
+        if (!lesson.getRootCategory().hasUnloadedCards())
+            repository.removeUnreferencedImages();
+        
+        final long position = journal != null ? journal.getPosition() : 0;
+        final int imageCount = repository.getAddCount();
+        final Lesson snapshot = lesson.createSnapshot();
+        
+        return new Callable<Object>() {
+            public Object call() throws Exception
+            {
+                long start = System.currentTimeMillis();
+                writeLesson(snapshot, file);
+                long size = file.length();
+                
+                if (journal != null)
+                {
+                    journal.compact(position, imageCount);
+                    size += LessonJournal.getFile(file).length();
+                }
+                else
+                {
+                    LessonJournal.delete(file);
+                }
+                
+                onLessonWritten(start, size);
+                writeSummary(summary, file);
+                return null;
+            }
+        };
+    }
+    
+    /**
+     * @return the journal of given lesson file. <code>null</code> if the
+     * lesson isn't the current lesson or if the journal couldn't be opened.
+     */
+    private LessonJournal openJournal(Lesson lesson, File file)
     {
-        FileChannel sourceChannel = null;
-        FileChannel destinationChannel = null;
+        // other lessons, e.g. exported copies, are saved without touching the
+        // journal of the current lesson
+        if (lesson != m_lesson)
+            return null;
+        
+        if (m_journal != null && m_journal.getLessonFile().equals(file))
+            return m_journal;
+        
+        // the old journal still belongs to the old lesson file
+        closeJournal();
+        
         try
         {
-            sourceChannel = new FileInputStream(in).getChannel();
-            destinationChannel = new FileOutputStream(out).getChannel();
-            
-            sourceChannel.transferTo(0, sourceChannel.size(), destinationChannel);
+            m_journal = LessonJournal.open(lesson, file);
+        }
+        catch (IOException e)
+        {
+            logThrowable("Could not open journal for " + file, e);
+        }
+        
+        return m_journal;
+    }
+    
+    /**
+     * Closes the journal of the current lesson. Changes that weren't saved
+     * are removed from the journal, so that they aren't replayed the next
+     * time that the lesson is loaded.
+     */
+    private void closeJournal()
+    {
+        if (m_journal == null)
+            return;
+        
+        waitForSaves();
+        
+        try
+        {
+            m_journal.discard();
+        }
+        catch (IOException e)
+        {
+            logThrowable("Could not discard journal changes", e);
+        }
+        
+        m_journal.close();
+        m_journal = null;
+    }
+    
+    /**
+     * Writes given lesson snapshot. The lesson is written to a temporary file
+     * first, which is synced to disk and then atomically renamed to the target
+     * file. So the target file always holds either the old or the new lesson,
+     * even if the program crashes while saving.
+     */
+    private static void writeLesson(Lesson snapshot, File file) 
+        throws Exception
+    {
+        File tempFile = new File(file.getAbsolutePath()+"~"); //$NON-NLS-1$
+        if (BinaryBuilder.isBinaryFile(file))
+            BinaryBuilder.saveAsBinaryFile(tempFile, snapshot);
+        else
+            XmlBuilder.saveAsXMLFile(tempFile, snapshot);
+        
+        syncFile(tempFile);
+        moveFile(tempFile, file);
+    }
+    
+    /**
+     * Writes the summary of a lesson that has just been saved. The lesson
+     * has been saved even if its summary can't be written, so failures are
+     * only logged.
+     */
+    private static void writeSummary(LessonSummary summary, File file)
+    {
+        try
+        {
+            summary.write(file);
+        }
+        catch (IOException e)
+        {
+            logThrowable("Could not write summary of " + file, e);
+        }
+    }
+    
+    private void onLessonWritten(long start, long size)
+    {
+        m_lastSaveDuration = System.currentTimeMillis() - start;
+        m_lastSaveSize = size;
+    }
+    
+    private void onLessonSaved(Lesson lesson, File file, int modificationCount)
+    {
+        lesson.setFile(file);
+        
+        // the lesson might have been modified while it was saved
+        if (lesson.getModificationCount() == modificationCount)
+            lesson.setCanSave(false);
+        
+        m_recentFiles.push(file.getAbsolutePath());
+        
+        for (LessonObserver observer : m_lessonObservers)
+        {
+            observer.lessonSaved(lesson);
+        }
+    }
+    
+    private static void syncFile(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw"); //$NON-NLS-1$
+        try
+        {
+            raf.getFD().sync();
         }
         finally
         {
-            if (sourceChannel != null)
-                sourceChannel.close();
-            
-            if (destinationChannel != null)
-                destinationChannel.close();
+            raf.close();
+        }
+    }
+    
+    private static void moveFile(File source, File target) throws IOException
+    {
+        try
+        {
+            Files.move(source.toPath(), target.toPath(), 
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(source.toPath(), target.toPath(), 
+                StandardCopyOption.REPLACE_EXISTING);
         }
     }
 
@@ -497,18 +894,123 @@ public class Main extends Observable implements LearnSessionProvider,
         startStats();
         
         m_frame = new MainFrame();
-        m_learnSettings = Settings.loadStrategy(m_frame);
         m_frame.setVisible(true);
         
+        if (Settings.loadIsAutoSaving())
+        {
+            new AutoSaver(this, this, Settings.loadAutoSaveDelay() * 1000, 
+                Settings.loadAutoSaveInterval() * 1000);
+        }
+        
         if (file != null)
         {
             m_frame.loadLesson(file);
         }
+        
+        SwingUtilities.invokeLater(new Runnable() {
+            public void run()
+            {
+                startupTaskFinished("lesson"); //$NON-NLS-1$
+            }
+        });
     }
 
+    /**
+     * Loads the global learn history on a background thread, because parsing
+     * it would delay showing the frame.
+     */
     private void startStats()
     {
-        m_globalLearnHistory = new LearnHistory(STATS_FILE);
+        m_globalLearnHistory = new FutureTask<LearnHistory>(
+            new Callable<LearnHistory>() {
+                public LearnHistory call()
+                {
+                    LearnHistory history = new LearnHistory(STATS_FILE);
+                    
+                    SwingUtilities.invokeLater(new Runnable() {
+                        public void run()
+                        {
+                            startupTaskFinished("global learn history"); //$NON-NLS-1$
+                        }
+                    });
+                    
+                    return history;
+                }
+            });
+        
+        Thread thread = new Thread(m_globalLearnHistory, "stats-load"); //$NON-NLS-1$
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * Starts to check the current lesson for expiring cards. Cards that expire
+     * from now on are reported by {@link CategoryObserver#EXPIRED_EVENT}s.
+     */
+    private void startExpirationTimer()
+    {
+        m_lastExpirationCheck = getNow().getTime();
+        m_scheduledExpiration = Long.MAX_VALUE;
+        scheduleExpirationCheck();
+    }
+    
+    /**
+     * Schedules the expiration check at the time at which the next card of the
+     * current lesson expires, unless it is scheduled for that time already.
+     */
+    private void scheduleExpirationCheck()
+    {
+        final Lesson lesson = m_lesson;
+        long nextExpiration = lesson.getNextExpiration();
+        if (nextExpiration == m_scheduledExpiration)
+            return;
+        
+        if (m_expirationCheck != null)
+            m_expirationCheck.cancel(false);
+        
+        m_scheduledExpiration = nextExpiration;
+        if (nextExpiration == Long.MAX_VALUE)
+        {
+            m_expirationCheck = null;
+            return;
+        }
+        
+        long delay = Math.max(0, nextExpiration - getNow().getTime());
+        m_expirationCheck = m_expirationTimer.schedule(new Runnable() {
+            public void run()
+            {
+                // the lesson is observed on the event dispatch thread
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run()
+                    {
+                        if (lesson == m_lesson)
+                            fireExpiredEvents();
+                    }
+                });
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Fires an expired event for every loaded card that has expired since the
+     * last check and schedules the next check.
+     */
+    private void fireExpiredEvents()
+    {
+        long now = getNow().getTime();
+        m_expirationCheck = null;
+        m_scheduledExpiration = Long.MAX_VALUE;
+        
+        ExpirationIndex index = m_lesson.getExpirationIndex();
+        for (Card card : index.getCards(m_lastExpirationCheck, now))
+        {
+            Category category = card.getCategory();
+            category.fireCardEvent(CategoryObserver.EXPIRED_EVENT, card, 
+                category, card.getLevel());
+        }
+        
+        m_lastExpirationCheck = now;
+        scheduleExpirationCheck();
     }
     
     private void fireLessonLoaded(Lesson lesson)
@@ -547,6 +1049,8 @@ public class Main extends Observable implements LearnSessionProvider,
      */
     public static void main(String args[]) 
     {
+        logStartupTime("main"); //$NON-NLS-1$
+        
         File file = args.length >= 1 ? new File(args[0]) : null;
         Main.getInstance().run(file);        
     }
@@ -27,6 +27,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.prefs.Preferences;
+import java.util.zip.Deflater;
 
 import javax.swing.JFrame;
 
@@ -104,6 +105,13 @@ public class Settings
     // etc keys
     private final static String LAST_DIRECTORY = "last-directory"; //$NON-NLS-1$
     private final static String SAVE_COMPRESSED = "gzip";          //$NON-NLS-1$
+    private final static String COMPRESSION_LEVEL = "compression-level"; //$NON-NLS-1$
+    private final static String SAVE_SHARDED = "save-sharded";     //$NON-NLS-1$
+    private final static String LAZY_LOADING = "lazy-loading";     //$NON-NLS-1$
+    private final static String JOURNAL = "journal";               //$NON-NLS-1$
+    private final static String AUTOSAVE = "autosave";             //$NON-NLS-1$
+    private final static String AUTOSAVE_DELAY = "autosave.delay"; //$NON-NLS-1$
+    private final static String AUTOSAVE_INTERVAL = "autosave.interval"; //$NON-NLS-1$
     private final static String CATEGORY_TREE_WIDTH = "category-tree.width"; //$NON-NLS-1$
     private final static String CATEGORY_TREE_VISIBLE = "category-tree.visible"; //$NON-NLS-1$
     private final static String MAIN_DIVIDER_LOCATION = "main-divider.location"; //$NON-NLS-1$
@@ -284,6 +292,108 @@ public class Settings
         return PREFS.getBoolean(SAVE_COMPRESSED, true);
     }
     
+    public static void storeCompressionLevel(int level)
+    {
+        PREFS.putInt(COMPRESSION_LEVEL, level);
+    }
+    
+    /**
+     * @return the DEFLATE level (0-9 or -1 for the default level) that is
+     * used to compress the lesson when saving compressed lessons. Images that
+     * are already compressed are stored as they are.
+     */
+    public static int loadCompressionLevel()
+    {
+        return PREFS.getInt(COMPRESSION_LEVEL, Deflater.DEFAULT_COMPRESSION);
+    }
+    
+    public static void storeSaveSharded(boolean saveSharded)
+    {
+        PREFS.putBoolean(SAVE_SHARDED, saveSharded);
+    }
+    
+    /**
+     * @return <code>true</code> if every top-level category of compressed
+     * lessons should be saved as an entry of its own, so that categories can
+     * be read and written in parallel and unchanged categories don't need to
+     * be written again.
+     */
+    public static boolean loadIsSaveSharded()
+    {
+        return PREFS.getBoolean(SAVE_SHARDED, false);
+    }
+    
+    public static void storeIsLazyLoading(boolean lazyLoading)
+    {
+        PREFS.putBoolean(LAZY_LOADING, lazyLoading);
+    }
+    
+    /**
+     * @return <code>true</code> if the cards of sharded lessons should only
+     * be loaded when they are accessed for the first time, so that the
+     * categories and card counts of large lessons can be shown right away.
+     */
+    public static boolean loadIsLazyLoading()
+    {
+        return PREFS.getBoolean(LAZY_LOADING, false);
+    }
+    
+    public static void storeIsJournaling(boolean journaling)
+    {
+        PREFS.putBoolean(JOURNAL, journaling);
+    }
+    
+    /**
+     * @return <code>true</code> if changes to lessons should be recorded in a
+     * journal next to the lesson file, so that saving only needs to commit
+     * the journal most of the time.
+     */
+    public static boolean loadIsJournaling()
+    {
+        return PREFS.getBoolean(JOURNAL, false);
+    }
+    
+    public static void storeIsAutoSaving(boolean autoSaving)
+    {
+        PREFS.putBoolean(AUTOSAVE, autoSaving);
+    }
+    
+    /**
+     * @return <code>true</code> if modified lessons should be saved
+     * automatically. See {@link AutoSaver}.
+     */
+    public static boolean loadIsAutoSaving()
+    {
+        return PREFS.getBoolean(AUTOSAVE, false);
+    }
+    
+    public static void storeAutoSaveDelay(int seconds)
+    {
+        PREFS.putInt(AUTOSAVE_DELAY, seconds);
+    }
+    
+    /**
+     * @return the number of seconds without modifications after which a
+     * modified lesson is saved automatically.
+     */
+    public static int loadAutoSaveDelay()
+    {
+        return PREFS.getInt(AUTOSAVE_DELAY, 30);
+    }
+    
+    public static void storeAutoSaveInterval(int seconds)
+    {
+        PREFS.putInt(AUTOSAVE_INTERVAL, seconds);
+    }
+    
+    /**
+     * @return the minimum number of seconds between two automatic saves.
+     */
+    public static int loadAutoSaveInterval()
+    {
+        return PREFS.getInt(AUTOSAVE_INTERVAL, 120);
+    }
+    
     // TODO merge storeCategoryTreeWidth and storeCategoryTreeVisible
     public static void storeCategoryTreeWidth(int width)
     {
@@ -0,0 +1,550 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2008 Riad Djemili and contributors
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.core.io;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import jmemorize.core.Card;
+import jmemorize.core.Category;
+import jmemorize.core.ImageRepository;
+import jmemorize.core.Lesson;
+import jmemorize.core.LessonProvider;
+import jmemorize.core.Main;
+import jmemorize.core.learn.LearnHistory;
+import jmemorize.core.learn.LearnHistory.SessionSummary;
+
+/**
+ * Reads and writes lessons in a compact binary format, which is a lot faster
+ * to load than the XML format of {@link XmlBuilder}. Binary lesson files are
+ * zip files that hold the lesson in a single entry and the images in the same
+ * way as compressed XML lessons.
+ *
+ * The lesson entry starts with a table of all strings, e.g. card texts and
+ * category names, which are then referenced by their index. The categories
+ * follow in pre-order, then the cards column by column. That is all front
+ * sides, all back sides, all levels, all creation dates etc. Dates are stored
+ * as milliseconds since the epoch. The learn history comes last.
+ *
+ * Binary files hold exactly the same information as XML files, so lessons can
+ * be converted back and forth without losing anything.
+ *
+ * @author djemili
+ */
+public class BinaryBuilder
+{
+    public static final String  EXTENSION             = ".jmb";        //$NON-NLS-1$
+    
+    private static final int    MAGIC                 = 0x4A4D4231;    // JMB1
+    private static final int    VERSION               = 1;
+    private static final String LESSON_ZIP_ENTRY_NAME = "lesson.jmb";  //$NON-NLS-1$
+    
+    private static final long   NO_DATE               = Long.MIN_VALUE;
+    
+    /**
+     * Collects all strings of a lesson. Every string is only stored once.
+     */
+    private static class StringTable
+    {
+        private Map<String, Integer> m_indexes = new HashMap<String, Integer>();
+        private List<String>         m_strings = new ArrayList<String>();
+        
+        public int add(String string)
+        {
+            Integer index = m_indexes.get(string);
+            if (index == null)
+            {
+                index = m_strings.size();
+                m_indexes.put(string, index);
+                m_strings.add(string);
+            }
+            
+            return index;
+        }
+        
+        public void write(DataOutputStream out) throws IOException
+        {
+            out.writeInt(m_strings.size());
+            for (String string : m_strings)
+            {
+                byte[] bytes = string.getBytes("UTF-8"); //$NON-NLS-1$
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+    
+    /**
+     * @return <code>true</code> if given file should be saved in the binary
+     * format, which is decided by its extension.
+     */
+    public static boolean isBinaryFile(File file)
+    {
+        return file.getName().endsWith(EXTENSION);
+    }
+    
+    /**
+     * Saves the lesson to a binary lesson file.
+     *
+     * Don't use this method directly. Use the {@link LessonProvider} instead.
+     */
+    public static void saveAsBinaryFile(File file, Lesson lesson)
+        throws IOException
+    {
+        byte[] data = writeLesson(lesson);
+        
+        // images might still be read on demand from the file that is
+        // going to be overwritten
+        lesson.getImageRepository().detach(file);
+        
+        ZipOutputStream zipOut = new ZipOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file)));
+        
+        try
+        {
+            // the columns compress well even at the fastest level, which
+            // keeps inflating cheap
+            zipOut.setLevel(Deflater.BEST_SPEED);
+            zipOut.putNextEntry(new ZipEntry(LESSON_ZIP_ENTRY_NAME));
+            zipOut.write(data);
+            zipOut.closeEntry();
+            zipOut.setLevel(Deflater.DEFAULT_COMPRESSION);
+            
+            // snapshots share the images of a lesson that is still edited
+            ImageRepository repository = lesson.getImageRepository();
+            if (!lesson.isSnapshot())
+                repository.removeUnreferencedImages();
+            XmlBuilder.writeImageRepositoryToZip(repository, zipOut);
+        }
+        finally
+        {
+            zipOut.close();
+        }
+    }
+    
+    /**
+     * Loads a lesson from a binary lesson file.
+     *
+     * Don't use this method directly. Use the {@link LessonProvider} instead.
+     */
+    public static void loadFromBinaryFile(File file, Lesson lesson)
+        throws IOException
+    {
+        loadFromBinaryFile(file, lesson, true);
+    }
+    
+    /**
+     * Loads the categories and cards of a binary lesson file, but none of its
+     * images, so that lessons can be inspected quickly.
+     */
+    public static void loadCardsFromBinaryFile(File file, Lesson lesson)
+        throws IOException
+    {
+        loadFromBinaryFile(file, lesson, false);
+    }
+    
+    private static void loadFromBinaryFile(File file, Lesson lesson, 
+        boolean images) throws IOException
+    {
+        ZipFile zipFile = new ZipFile(file);
+        try
+        {
+            ZipEntry entry = zipFile.getEntry(LESSON_ZIP_ENTRY_NAME);
+            if (entry == null)
+                throw new IOException("Missing lesson zip entry.");
+            
+            byte[] data = new byte[(int)entry.getSize()];
+            InputStream in = zipFile.getInputStream(entry);
+            try
+            {
+                new DataInputStream(in).readFully(data);
+            }
+            finally
+            {
+                in.close();
+            }
+            
+            readLesson(ByteBuffer.wrap(data), lesson);
+            
+            try
+            {
+                if (images)
+                {
+                    XmlBuilder.loadImageRepositoryFromZip(
+                        lesson.getImageRepository(), file, zipFile);
+                }
+            }
+            catch (Exception e)
+            {
+                Main.logThrowable("Exception while loading lesson "+file, e);
+            }
+        }
+        finally
+        {
+            zipFile.close();
+        }
+    }
+    
+    /**
+     * Converts a XML lesson file to a binary lesson file.
+     */
+    public static void convertToBinary(File xmlFile, File binaryFile)
+        throws Exception
+    {
+        Lesson lesson = new Lesson(false);
+        try
+        {
+        XmlBuilder.loadFromXMLFile(xmlFile, lesson);
+        saveAsBinaryFile(binaryFile, lesson);
+    }
+        finally
+        {
+            lesson.getImageRepository().clear();
+        }
+    }
+    
+    /**
+     * Converts a binary lesson file to a XML lesson file.
+     */
+    public static void convertToXml(File binaryFile, File xmlFile)
+        throws Exception
+    {
+        Lesson lesson = new Lesson(false);
+        try
+        {
+        loadFromBinaryFile(binaryFile, lesson);
+        XmlBuilder.saveAsXMLFile(xmlFile, lesson);
+        }
+        finally
+        {
+            lesson.getImageRepository().clear();
+        }
+    }
+    
+    private static byte[] writeLesson(Lesson lesson) throws IOException
+    {
+        StringTable strings = new StringTable();
+        
+        // categories in pre-order, so that parents come before their children
+        List<Category> categories = lesson.getRootCategory().getSubtreeList();
+        Map<Category, Integer> categoryIndexes = new IdentityHashMap<Category, Integer>();
+        
+        int[] names = new int[categories.size()];
+        int[] parents = new int[categories.size()];
+        
+        List<Card> cards = new ArrayList<Card>();
+        List<Integer> cardCategories = new ArrayList<Integer>();
+        
+        for (int i = 0; i < categories.size(); i++)
+        {
+            Category category = categories.get(i);
+            categoryIndexes.put(category, i);
+            
+            names[i] = strings.add(category.getName());
+            parents[i] = i > 0 ? categoryIndexes.get(category.getParent()) : -1;
+            
+            for (int level = 0; level < category.getNumberOfDecks(); level++)
+            {
+                for (Card card : category.getLocalCards(level))
+                {
+                    cards.add(card);
+                    cardCategories.add(i);
+                }
+            }
+        }
+        
+        int[] fronts = new int[cards.size()];
+        int[] backs = new int[cards.size()];
+        List<Integer> images = new ArrayList<Integer>();
+        
+        for (int i = 0; i < cards.size(); i++)
+        {
+            Card card = cards.get(i);
+            fronts[i] = strings.add(card.getFrontSide().getText().getFormatted());
+            backs[i] = strings.add(card.getBackSide().getText().getFormatted());
+            
+            for (String id : card.getFrontSide().getImages())
+                images.add(strings.add(id));
+            
+            for (String id : card.getBackSide().getImages())
+                images.add(strings.add(id));
+        }
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(lesson.getJournalId());
+        
+        strings.write(out);
+        
+        // categories
+        out.writeInt(categories.size());
+        for (int i = 0; i < categories.size(); i++)
+        {
+            out.writeInt(names[i]);
+            out.writeInt(parents[i]);
+            out.writeInt(categories.get(i).getId());
+        }
+        
+        // card columns
+        out.writeInt(cards.size());
+        for (int i = 0; i < cards.size(); i++)
+            out.writeInt(cardCategories.get(i));
+        
+        for (Card card : cards)
+            out.writeInt(card.getLevel());
+        
+        for (Card card : cards)
+            out.writeInt(card.getId());
+        
+        for (int front : fronts)
+            out.writeInt(front);
+        
+        for (int back : backs)
+            out.writeInt(back);
+        
+        for (Card card : cards)
+            writeDate(out, card.getDateCreated());
+        
+        for (Card card : cards)
+            writeDate(out, card.getDateModified());
+        
+        for (Card card : cards)
+            writeDate(out, card.getDateTested());
+        
+        for (Card card : cards)
+            writeDate(out, card.getDateExpired());
+        
+        for (Card card : cards)
+            writeDate(out, card.getDateTouched());
+        
+        for (Card card : cards)
+            out.writeInt(card.getTestsTotal());
+        
+        for (Card card : cards)
+            out.writeInt(card.getTestsPassed());
+        
+        for (Card card : cards)
+            out.writeInt(card.getLearnedAmount(true));
+        
+        for (Card card : cards)
+            out.writeInt(card.getLearnedAmount(false));
+        
+        for (Card card : cards)
+            out.writeInt(card.getFrontSide().getImages().size());
+        
+        for (Card card : cards)
+            out.writeInt(card.getBackSide().getImages().size());
+        
+        out.writeInt(images.size());
+        for (int image : images)
+            out.writeInt(image);
+        
+        // learn history
+        List<SessionSummary> summaries = lesson.getLearnHistory().getSummaries();
+        out.writeInt(summaries.size());
+        for (SessionSummary summary : summaries)
+        {
+            writeDate(out, summary.getStart());
+            writeDate(out, summary.getEnd());
+            out.writeInt((int)summary.getPassed());
+            out.writeInt((int)summary.getFailed());
+            out.writeInt((int)summary.getSkipped());
+            out.writeInt((int)summary.getRelearned());
+        }
+        
+        out.flush();
+        return bytes.toByteArray();
+    }
+    
+    private static void readLesson(ByteBuffer in, Lesson lesson)
+        throws IOException
+    {
+        if (in.getInt() != MAGIC)
+            throw new IOException("Not a binary lesson.");
+        
+        if (in.getInt() > VERSION)
+            throw new IOException("Binary lesson was written by a newer version.");
+        
+        lesson.setJournalId(in.getLong());
+        
+        // string table
+        String[] strings = new String[in.getInt()];
+        for (int i = 0; i < strings.length; i++)
+        {
+            int length = in.getInt();
+            strings[i] = new String(in.array(), in.position(), length, "UTF-8"); //$NON-NLS-1$
+            in.position(in.position() + length);
+        }
+        
+        // categories
+        Category[] categories = new Category[in.getInt()];
+        for (int i = 0; i < categories.length; i++)
+        {
+            String name = strings[in.getInt()];
+            int parent = in.getInt();
+            int id = in.getInt();
+            
+            if (parent < 0)
+            {
+                categories[i] = lesson.getRootCategory();
+            }
+            else
+            {
+                categories[i] = categories[parent].getChildCategory(name);
+                if (categories[i] == null)
+                {
+                    categories[i] = new Category(name);
+                    categories[parent].addCategoryChild(categories[i]);
+                }
+            }
+            
+            categories[i].setId(id);
+        }
+        
+        // card columns
+        int n = in.getInt();
+        int[] cardCategories = readInts(in, n);
+        int[] levels = readInts(in, n);
+        int[] ids = readInts(in, n);
+        int[] fronts = readInts(in, n);
+        int[] backs = readInts(in, n);
+        
+        long[] created = readLongs(in, n);
+        long[] modified = readLongs(in, n);
+        long[] tested = readLongs(in, n);
+        long[] expired = readLongs(in, n);
+        long[] touched = readLongs(in, n);
+        
+        int[] testsTotal = readInts(in, n);
+        int[] testsHit = readInts(in, n);
+        int[] frontLearned = readInts(in, n);
+        int[] backLearned = readInts(in, n);
+        int[] frontImages = readInts(in, n);
+        int[] backImages = readInts(in, n);
+        int[] images = readInts(in, in.getInt());
+        
+        int image = 0;
+        for (int i = 0; i < n; i++)
+        {
+            Card card = new Card(toDate(created[i]),
+                strings[fronts[i]], strings[backs[i]]);
+            
+            card.setId(ids[i]);
+            if (modified[i] != NO_DATE)
+                card.setDateModified(toDate(modified[i]));
+            
+            card.setDateTested(toDate(tested[i]));
+            card.setDateExpired(toDate(expired[i]));
+            card.setDateTouched(toDate(touched[i]));
+            
+            card.setLearnedAmount(true, frontLearned[i]);
+            card.setLearnedAmount(false, backLearned[i]);
+            card.incStats(testsHit[i], testsTotal[i]);
+            
+            if (frontImages[i] > 0)
+            {
+                card.getFrontSide().setImages(
+                    toStrings(strings, images, image, frontImages[i]));
+                image += frontImages[i];
+            }
+            
+            if (backImages[i] > 0)
+            {
+                card.getBackSide().setImages(
+                    toStrings(strings, images, image, backImages[i]));
+                image += backImages[i];
+            }
+            
+            categories[cardCategories[i]].addCard(card, levels[i]);
+        }
+        
+        // learn history
+        LearnHistory history = lesson.getLearnHistory();
+        int summaries = in.getInt();
+        for (int i = 0; i < summaries; i++)
+        {
+            Date start = toDate(in.getLong());
+            Date end = toDate(in.getLong());
+            
+            history.addSummary(start, end,
+                in.getInt(), in.getInt(), in.getInt(), in.getInt());
+        }
+        
+        history.setIsLoaded(true);
+    }
+    
+    private static int[] readInts(ByteBuffer in, int n)
+    {
+        int[] values = new int[n];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + n * 4);
+        
+        return values;
+    }
+    
+    private static long[] readLongs(ByteBuffer in, int n)
+    {
+        long[] values = new long[n];
+        in.asLongBuffer().get(values);
+        in.position(in.position() + n * 8);
+        
+        return values;
+    }
+    
+    private static List<String> toStrings(String[] strings, int[] indexes,
+        int offset, int length)
+    {
+        List<String> list = new ArrayList<String>(length);
+        for (int i = offset; i < offset + length; i++)
+            list.add(strings[indexes[i]]);
+        
+        return list;
+    }
+    
+    private static void writeDate(DataOutputStream out, Date date)
+        throws IOException
+    {
+        out.writeLong(date != null ? date.getTime() : NO_DATE);
+    }
+    
+    private static Date toDate(long time)
+    {
+        return time != NO_DATE ? new Date(time) : null;
+    }
+}
@@ -27,6 +27,7 @@ import java.util.List;
 import java.util.Map;
 
 import jmemorize.core.Card;
+import jmemorize.core.CardView;
 import jmemorize.core.Category;
 import jmemorize.core.FormattedText;
 import jmemorize.core.Lesson;
@@ -71,13 +72,13 @@ public class CsvBuilder
             CsvWriter writer = new CsvWriter(out, delimiter, charset);
             writeHeader(writer);
             
-            List<Card> cards = lesson.getRootCategory().getCards();
-            for (Card card : cards)
+            Category rootCategory = lesson.getRootCategory();
+            for (Card card : rootCategory.getCardView(-1, CardView.Filter.ALL))
             {
                 writer.write(card.getFrontSide().getText().getFormatted());
                 writer.write(card.getBackSide().getText().getFormatted());
                 
-                if (lesson.getRootCategory() == card.getCategory())
+                if (rootCategory == card.getCategory())
                     writer.write("");
                 else
                     writer.write(card.getCategory().getName());
@@ -0,0 +1,960 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2008 Riad Djemili and contributors
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.core.io;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import jmemorize.core.Card;
+import jmemorize.core.CardView;
+import jmemorize.core.Category;
+import jmemorize.core.CategoryObserver;
+import jmemorize.core.FormattedText;
+import jmemorize.core.ImageRepository;
+import jmemorize.core.Lesson;
+import jmemorize.core.Main;
+import jmemorize.core.learn.LearnHistory;
+import jmemorize.core.learn.LearnHistory.SessionSummary;
+
+/**
+ * An append-only log of all changes that were made to a lesson since it was
+ * last written as a whole. The journal is stored next to the lesson file and
+ * records the state of every card and category that was changed, so that
+ * saving a lesson after a few changes only needs to append a commit marker
+ * instead of writing the complete lesson again.
+ *
+ * Every journal is based on a lesson file that was written with the same
+ * journal id. Writing the complete lesson compacts the journal, which then
+ * only keeps the records that were appended after the lesson snapshot was
+ * taken. When a lesson is loaded its journal is replayed on top of it.
+ * Records are appended as soon as the change happens, so even changes that
+ * were never committed can be recovered after a crash.
+ *
+ * Records identify cards and categories by their ids, which are assigned when
+ * the journal is opened and written to the lesson file by the next complete
+ * save.
+ *
+ * @author djemili
+ */
+public class LessonJournal implements CategoryObserver
+{
+    private static final String SUFFIX            = ".journal";   //$NON-NLS-1$
+    
+    private static final int    MAGIC             = 0x4A4D4A31;   // JMJ1
+    private static final int    HEADER_SIZE       = 12;
+    private static final int    MAX_RECORD_SIZE   = 64 * 1024 * 1024;
+    
+    // compact the journal at least when it has grown to this size
+    private static final long   MIN_COMPACT_SIZE  = 64 * 1024;
+    
+    private static final byte   CARD              = 1;
+    private static final byte   CARD_REMOVED      = 2;
+    private static final byte   CATEGORY          = 3;
+    private static final byte   CATEGORY_REMOVED  = 4;
+    private static final byte   SESSION           = 5;
+    private static final byte   COMMIT            = 6;
+    
+    private static final long   NO_DATE           = Long.MIN_VALUE;
+    
+    private Lesson                m_lesson;
+    private File                  m_lessonFile;
+    private File                  m_file;
+    
+    private RandomAccessFile      m_raf;
+    private FileChannel           m_channel;
+    private long                  m_position;
+    private long                  m_commitPosition;
+    
+    // true if the lesson file holds the snapshot that this journal is based on
+    private boolean               m_based;
+    private boolean               m_failed;
+    private long                  m_failedPosition;
+    
+    // number of images that were added to the repository when the snapshot
+    // was taken. images are only written with complete saves
+    private int                   m_imageCount;
+    
+    private int                   m_lastCardId;
+    private int                   m_lastCategoryId;
+    
+    private ByteArrayOutputStream m_buffer     = new ByteArrayOutputStream();
+    private byte[]                m_lastRecord = new byte[0];
+    
+    /**
+     * Reads the records of a journal file. Stops at the first record that
+     * wasn't written completely.
+     */
+    private static class JournalReader
+    {
+        private DataInputStream m_in;
+        private long            m_journalId;
+        private long            m_position;
+        private long            m_commitPosition;
+        
+        public JournalReader(File file) throws IOException
+        {
+            m_in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+            
+            try
+            {
+                if (m_in.readInt() == MAGIC)
+                    m_journalId = m_in.readLong();
+            }
+            catch (EOFException e)
+            {
+                m_journalId = 0;
+            }
+            
+            m_position = m_commitPosition = HEADER_SIZE;
+        }
+        
+        /**
+         * @return the payload of the next record or <code>null</code> if there
+         * are no more complete records.
+         */
+        public byte[] next() throws IOException
+        {
+            try
+            {
+                int length = m_in.readInt();
+                if (length <= 0 || length > MAX_RECORD_SIZE)
+                    return null;
+                
+                byte[] payload = new byte[length];
+                m_in.readFully(payload);
+                
+                if (m_in.readInt() != (int)checksum(payload))
+                    return null;
+                
+                m_position += length + 8;
+                if (payload[0] == COMMIT)
+                    m_commitPosition = m_position;
+                
+                return payload;
+            }
+            catch (EOFException e)
+            {
+                return null;
+            }
+        }
+        
+        public void close() throws IOException
+        {
+            m_in.close();
+        }
+    }
+    
+    /**
+     * Applies journal records to a lesson.
+     */
+    private static class Replay
+    {
+        private Map<Integer, Card>     m_cards      = new HashMap<Integer, Card>();
+        private Map<Integer, Category> m_categories = new HashMap<Integer, Category>();
+        private LearnHistory           m_history;
+        
+        public Replay(Lesson lesson)
+        {
+            m_history = lesson.getLearnHistory();
+            
+            for (Category category : lesson.getRootCategory().getSubtreeList())
+            {
+                m_categories.put(category.getId(), category);
+                
+                for (Card card : category.getLocalCards())
+                    m_cards.put(card.getId(), card);
+            }
+        }
+        
+        public void apply(byte[] payload) throws IOException
+        {
+            DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(payload));
+            
+            switch (in.readByte())
+            {
+            case CARD:             applyCard(in);            break;
+            case CARD_REMOVED:     applyCardRemoved(in);     break;
+            case CATEGORY:         applyCategory(in);        break;
+            case CATEGORY_REMOVED: applyCategoryRemoved(in); break;
+            case SESSION:          applySession(in);         break;
+            }
+        }
+        
+        private void applyCard(DataInputStream in) throws IOException
+        {
+            int id = in.readInt();
+            Category category = m_categories.get(in.readInt());
+            int level = in.readInt();
+            boolean append = in.readBoolean();
+            
+            String front = readString(in);
+            String back = readString(in);
+            List<String> frontImages = readStrings(in);
+            List<String> backImages = readStrings(in);
+            
+            Date created = readDate(in);
+            Date modified = readDate(in);
+            Date tested = readDate(in);
+            Date expired = readDate(in);
+            Date touched = readDate(in);
+            
+            int testsTotal = in.readInt();
+            int testsHit = in.readInt();
+            int frontLearned = in.readInt();
+            int backLearned = in.readInt();
+            
+            if (category == null)
+                return;
+            
+            Card card = m_cards.get(id);
+            if (card == null)
+            {
+                card = new Card(created, front, back);
+                card.setId(id);
+                m_cards.put(id, card);
+            }
+            else
+            {
+                card.setSides(FormattedText.formatted(front),
+                    FormattedText.formatted(back));
+            }
+            
+            card.getFrontSide().setImages(frontImages);
+            card.getBackSide().setImages(backImages);
+            
+            card.setDateCreated(created);
+            card.setDateTested(tested);
+            card.setDateExpired(expired);
+            card.setDateTouched(touched);
+            card.setDateModified(modified);
+            
+            card.resetStats();
+            card.incStats(testsHit, testsTotal);
+            card.setLearnedAmount(true, frontLearned);
+            card.setLearnedAmount(false, backLearned);
+            
+            // cards are always appended to the end of their deck
+            Category oldCategory = card.getCategory();
+            if (oldCategory != category || card.getLevel() != level ||
+                (append && !isLast(card)))
+            {
+                if (oldCategory != null)
+                    oldCategory.removeCard(card);
+                
+                category.addCard(card, level);
+                card.setDateExpired(expired);
+            }
+        }
+        
+        private void applyCardRemoved(DataInputStream in) throws IOException
+        {
+            Card card = m_cards.remove(in.readInt());
+            
+            if (card != null && card.getCategory() != null)
+                card.getCategory().removeCard(card);
+        }
+        
+        private void applyCategory(DataInputStream in) throws IOException
+        {
+            int id = in.readInt();
+            Category parent = m_categories.get(in.readInt());
+            String name = readString(in);
+            
+            Category category = m_categories.get(id);
+            if (category != null)
+            {
+                category.setName(name);
+            }
+            else if (parent != null)
+            {
+                category = new Category(name);
+                category.setId(id);
+                parent.addCategoryChild(category);
+                
+                m_categories.put(id, category);
+            }
+        }
+        
+        private void applyCategoryRemoved(DataInputStream in) throws IOException
+        {
+            Category category = m_categories.get(in.readInt());
+            
+            // the root category can't be removed
+            if (category == null || category.getParent() == null)
+                return;
+            
+            for (Category child : category.getSubtreeList())
+            {
+                m_categories.remove(child.getId());
+                
+                for (Card card : child.getLocalCards())
+                    m_cards.remove(card.getId());
+            }
+            
+            category.remove();
+        }
+        
+        private void applySession(DataInputStream in) throws IOException
+        {
+            Date start = readDate(in);
+            Date end = readDate(in);
+            int passed = in.readInt();
+            int failed = in.readInt();
+            int skipped = in.readInt();
+            int relearned = in.readInt();
+            
+            // the session might already be part of the lesson file
+            for (SessionSummary summary : m_history.getSummaries())
+            {
+                if (summary.getStart().equals(start) && summary.getEnd().equals(end))
+                    return;
+            }
+            
+            m_history.addSummary(start, end, passed, failed, skipped, relearned);
+        }
+        
+        private static boolean isLast(Card card)
+        {
+            List<Card> deck = card.getCategory().getLocalCards(card.getLevel());
+            return deck.get(deck.size() - 1) == card;
+        }
+    }
+    
+    /**
+     * @return the journal file that belongs to given lesson file.
+     */
+    public static File getFile(File lessonFile)
+    {
+        return new File(lessonFile.getPath() + SUFFIX);
+    }
+    
+    /**
+     * Applies all changes that are recorded in the journal of given lesson
+     * file to the lesson. Journals that were written for another version of
+     * the lesson file are ignored.
+     *
+     * @return <code>true</code> if the journal contained changes that were not
+     * committed, i.e. the lesson was modified but not saved before the program
+     * ended.
+     */
+    public static boolean replay(Lesson lesson, File lessonFile)
+        throws IOException
+    {
+        File file = getFile(lessonFile);
+        if (lesson.getJournalId() == 0 || !file.exists())
+            return false;
+        
+        JournalReader reader = new JournalReader(file);
+        try
+        {
+            if (reader.m_journalId != lesson.getJournalId())
+                return false;
+            
+            Replay replay = new Replay(lesson);
+            
+            byte[] payload;
+            while ((payload = reader.next()) != null)
+            {
+                replay.apply(payload);
+            }
+            
+            return reader.m_position > reader.m_commitPosition;
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+    
+    /**
+     * Opens the journal of given lesson file and starts recording all changes
+     * to the lesson. If there is no journal for the lesson yet, a new one is
+     * created, which can only be used after the lesson has been saved
+     * completely. See {@link #needsCompaction()}.
+     *
+     * The journal should be replayed before it is opened.
+     */
+    public static LessonJournal open(Lesson lesson, File lessonFile)
+        throws IOException
+    {
+        LessonJournal journal = new LessonJournal(lesson, lessonFile);
+        journal.open();
+        
+        return journal;
+    }
+    
+    /**
+     * Deletes the journal of given lesson file, if it exists.
+     */
+    public static void delete(File lessonFile)
+    {
+        File file = getFile(lessonFile);
+        if (file.exists() && !file.delete())
+            Main.getLogger().warning("Could not delete journal " + file); //$NON-NLS-1$
+    }
+    
+    private LessonJournal(Lesson lesson, File lessonFile)
+    {
+        m_lesson = lesson;
+        m_lessonFile = lessonFile;
+        m_file = getFile(lessonFile);
+    }
+    
+    /**
+     * @return the lesson file that this journal belongs to.
+     */
+    public File getLessonFile()
+    {
+        return m_lessonFile;
+    }
+    
+    /**
+     * @return the current end of the journal. Records that are appended
+     * afterwards will be located after this position.
+     */
+    public synchronized long getPosition()
+    {
+        return m_position;
+    }
+    
+    /**
+     * @return <code>true</code> if the lesson needs to be saved completely
+     * before changes can be committed to the journal. This is the case if
+     * the journal isn't based on the lesson file yet, if new images were added
+     * or if the journal has grown too large compared to the lesson file.
+     */
+    public synchronized boolean needsCompaction()
+    {
+        long maxSize = Math.max(MIN_COMPACT_SIZE, m_lessonFile.length() / 4);
+        
+        return !m_based || m_failed || m_position > maxSize ||
+            m_lesson.getImageRepository().getAddCount() != m_imageCount;
+    }
+    
+    /**
+     * Marks all changes that have been recorded so far as saved and forces
+     * them to disk.
+     * 
+     * @return the number of bytes that were appended to the journal.
+     */
+    public synchronized long commit() throws IOException
+    {
+        if (!m_based || m_failed)
+            throw new IOException("Journal is not based on " + m_lessonFile); //$NON-NLS-1$
+        
+        try
+        {
+            append(new byte[] {COMMIT});
+            m_channel.force(false);
+        }
+        catch (IOException e)
+        {
+            m_failed = true;
+            throw e;
+        }
+        
+        long written = m_position - m_commitPosition;
+        m_commitPosition = m_position;
+        
+        return written;
+    }
+    
+    /**
+     * Rewrites the journal after the lesson has been saved completely. Only
+     * the records that were appended after given position are kept, because
+     * all older changes are part of the written lesson.
+     *
+     * @param position the position of the journal at the time when the
+     * lesson snapshot was taken. See {@link #getPosition()}.
+     * @param imageCount the number of added images at the time when the
+     * lesson snapshot was taken. See {@link ImageRepository#getAddCount()}.
+     */
+    public synchronized void compact(long position, int imageCount)
+        throws IOException
+    {
+        byte[] tail = new byte[(int)(m_position - position)];
+        m_channel.position(position);
+        readFully(tail);
+        
+        File tempFile = new File(m_file.getPath() + "~"); //$NON-NLS-1$
+        RandomAccessFile raf = new RandomAccessFile(tempFile, "rw"); //$NON-NLS-1$
+        try
+        {
+            raf.setLength(0);
+            raf.writeInt(MAGIC);
+            raf.writeLong(m_lesson.getJournalId());
+            raf.write(tail);
+            raf.getFD().sync();
+        }
+        finally
+        {
+            raf.close();
+        }
+        
+        closeFile();
+        moveFile(tempFile, m_file);
+        openFile();
+        
+        m_commitPosition = HEADER_SIZE;
+        m_imageCount = imageCount;
+        m_based = true;
+        
+        // changes that couldn't be recorded after the snapshot was taken are
+        // still missing
+        m_failed = m_failed && m_failedPosition >= position;
+    }
+    
+    /**
+     * Removes all changes that were recorded after the last commit, so that
+     * they won't be replayed when the lesson is loaded again. Used when the
+     * lesson is closed without saving it.
+     */
+    public synchronized void discard() throws IOException
+    {
+        m_channel.truncate(m_commitPosition);
+        m_position = m_commitPosition;
+        m_lastRecord = new byte[0];
+    }
+    
+    /**
+     * Stops recording changes and closes the journal file.
+     */
+    public synchronized void close()
+    {
+        m_lesson.getRootCategory().removeObserver(this);
+        
+        try
+        {
+            closeFile();
+        }
+        catch (IOException e)
+        {
+            Main.logThrowable("Could not close journal " + m_file, e); //$NON-NLS-1$
+        }
+    }
+    
+    /**
+     * Records a learn session that was added to the learn history of the
+     * lesson.
+     */
+    public synchronized void recordSession(SessionSummary summary)
+    {
+        try
+        {
+            DataOutputStream out = startRecord(SESSION);
+            writeDate(out, summary.getStart());
+            writeDate(out, summary.getEnd());
+            out.writeInt((int)summary.getPassed());
+            out.writeInt((int)summary.getFailed());
+            out.writeInt((int)summary.getSkipped());
+            out.writeInt((int)summary.getRelearned());
+            
+            endRecord();
+        }
+        catch (IOException e)
+        {
+            onError(e);
+        }
+    }
+    
+    /*
+     * @see jmemorize.core.CategoryObserver
+     */
+    public synchronized void onCardEvent(int type, Card card, Category category,
+        int deck)
+    {
+        try
+        {
+            if (type == REMOVED_EVENT)
+            {
+                DataOutputStream out = startRecord(CARD_REMOVED);
+                out.writeInt(card.getId());
+                endRecord();
+            }
+            else if (type != EXPIRED_EVENT && card.getCategory() != null)
+            {
+                // added cards might be clones of other cards
+                if (type == ADDED_EVENT || card.getId() == 0)
+                    card.setId(++m_lastCardId);
+                
+                writeCard(card);
+            }
+        }
+        catch (IOException e)
+        {
+            onError(e);
+        }
+    }
+    
+    /*
+     * @see jmemorize.core.CategoryObserver
+     */
+    public synchronized void onCategoryEvent(int type, Category category)
+    {
+        try
+        {
+            if (type == ADDED_EVENT)
+            {
+                for (Category child : category.getSubtreeList())
+                {
+                    child.setId(++m_lastCategoryId);
+                    writeCategory(child);
+                    
+                    for (int i = 0; i < child.getNumberOfDecks(); i++)
+                    {
+                        for (Card card : child.getLocalCards(i))
+                        {
+                            card.setId(++m_lastCardId);
+                            writeCard(card);
+                        }
+                    }
+                }
+            }
+            else if (type == EDITED_EVENT)
+            {
+                writeCategory(category);
+            }
+            else if (type == REMOVED_EVENT)
+            {
+                DataOutputStream out = startRecord(CATEGORY_REMOVED);
+                out.writeInt(category.getId());
+                endRecord();
+            }
+        }
+        catch (IOException e)
+        {
+            onError(e);
+        }
+    }
+    
+    private void open() throws IOException
+    {
+        long journalId = m_lesson.getJournalId();
+        
+        if (journalId != 0 && m_file.exists())
+        {
+            JournalReader reader = new JournalReader(m_file);
+            try
+            {
+                if (reader.m_journalId == journalId)
+                {
+                    while (reader.next() != null)
+                    {
+                    }
+                    
+                    m_based = true;
+                    m_position = reader.m_position;
+                    m_commitPosition = reader.m_commitPosition;
+                }
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        
+        if (!m_based)
+        {
+            Random random = new Random();
+            while (journalId == m_lesson.getJournalId() || journalId == 0)
+                journalId = random.nextLong();
+            
+            m_lesson.setJournalId(journalId);
+            
+            RandomAccessFile raf = new RandomAccessFile(m_file, "rw"); //$NON-NLS-1$
+            try
+            {
+                raf.setLength(0);
+                raf.writeInt(MAGIC);
+                raf.writeLong(journalId);
+            }
+            finally
+            {
+                raf.close();
+            }
+            
+            m_position = m_commitPosition = HEADER_SIZE;
+        }
+        
+        // cut off records that weren't written completely
+        long end = m_position;
+        openFile();
+        m_channel.truncate(end);
+        m_position = end;
+        
+        // lessons that have been loaded from files without journal have no ids
+        if (assignIds())
+            m_based = false;
+        
+        m_imageCount = m_lesson.getImageRepository().getAddCount();
+        m_lesson.getRootCategory().addObserver(this);
+    }
+    
+    /**
+     * Assigns ids to all cards and categories that have no unique ids yet.
+     *
+     * @return <code>true</code> if any ids had to be assigned.
+     */
+    private boolean assignIds()
+    {
+        List<Category> categories = m_lesson.getRootCategory().getSubtreeList();
+        Collection<Card> cards = 
+            m_lesson.getRootCategory().getCardView(-1, CardView.Filter.ALL);
+        
+        for (Category category : categories)
+            m_lastCategoryId = Math.max(m_lastCategoryId, category.getId());
+        
+        for (Card card : cards)
+            m_lastCardId = Math.max(m_lastCardId, card.getId());
+        
+        boolean assigned = false;
+        
+        Set<Integer> categoryIds = new HashSet<Integer>();
+        for (Category category : categories)
+        {
+            if (category.getId() == 0 || !categoryIds.add(category.getId()))
+            {
+                category.setId(++m_lastCategoryId);
+                assigned = true;
+            }
+        }
+        
+        Set<Integer> cardIds = new HashSet<Integer>();
+        for (Card card : cards)
+        {
+            if (card.getId() == 0 || !cardIds.add(card.getId()))
+            {
+                card.setId(++m_lastCardId);
+                assigned = true;
+            }
+        }
+        
+        return assigned;
+    }
+    
+    private void writeCard(Card card) throws IOException
+    {
+        Category category = card.getCategory();
+        List<Card> deck = category.getLocalCards(card.getLevel());
+        
+        DataOutputStream out = startRecord(CARD);
+        out.writeInt(card.getId());
+        out.writeInt(category.getId());
+        out.writeInt(card.getLevel());
+        out.writeBoolean(deck.get(deck.size() - 1) == card);
+        
+        writeString(out, card.getFrontSide().getText().getFormatted());
+        writeString(out, card.getBackSide().getText().getFormatted());
+        writeStrings(out, card.getFrontSide().getImages());
+        writeStrings(out, card.getBackSide().getImages());
+        
+        writeDate(out, card.getDateCreated());
+        writeDate(out, card.getDateModified());
+        writeDate(out, card.getDateTested());
+        writeDate(out, card.getDateExpired());
+        writeDate(out, card.getDateTouched());
+        
+        out.writeInt(card.getTestsTotal());
+        out.writeInt(card.getTestsPassed());
+        out.writeInt(card.getLearnedAmount(true));
+        out.writeInt(card.getLearnedAmount(false));
+        
+        endRecord();
+    }
+    
+    private void writeCategory(Category category) throws IOException
+    {
+        Category parent = category.getParent();
+        
+        DataOutputStream out = startRecord(CATEGORY);
+        out.writeInt(category.getId());
+        out.writeInt(parent != null ? parent.getId() : 0);
+        writeString(out, category.getName());
+        
+        endRecord();
+    }
+    
+    private DataOutputStream startRecord(byte type) throws IOException
+    {
+        m_buffer.reset();
+        
+        DataOutputStream out = new DataOutputStream(m_buffer);
+        out.writeByte(type);
+        
+        return out;
+    }
+    
+    private void endRecord() throws IOException
+    {
+        byte[] payload = m_buffer.toByteArray();
+        
+        // e.g. moved cards are reported by their old and their new category
+        if (Arrays.equals(payload, m_lastRecord))
+            return;
+        
+        append(payload);
+    }
+    
+    /**
+     * Appends a record with a single write, so that it is either found
+     * completely or not at all after a crash.
+     */
+    private void append(byte[] payload) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(payload.length + 8);
+        buffer.putInt(payload.length);
+        buffer.put(payload);
+        buffer.putInt((int)checksum(payload));
+        buffer.flip();
+        
+        m_channel.position(m_position);
+        while (buffer.hasRemaining())
+            m_channel.write(buffer);
+        
+        m_position = m_channel.position();
+        m_lastRecord = payload;
+    }
+    
+    private void readFully(byte[] bytes) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining())
+        {
+            if (m_channel.read(buffer) < 0)
+                throw new EOFException();
+        }
+    }
+    
+    private void onError(IOException e)
+    {
+        // the lesson will be saved completely the next time
+        m_failed = true;
+        m_failedPosition = m_position;
+        Main.logThrowable("Could not write journal " + m_file, e); //$NON-NLS-1$
+    }
+    
+    private void openFile() throws IOException
+    {
+        m_raf = new RandomAccessFile(m_file, "rw"); //$NON-NLS-1$
+        m_channel = m_raf.getChannel();
+        m_position = m_channel.size();
+        m_lastRecord = new byte[0];
+    }
+    
+    private void closeFile() throws IOException
+    {
+        if (m_raf != null)
+            m_raf.close();
+    }
+    
+    private static void moveFile(File source, File target) throws IOException
+    {
+        try
+        {
+            Files.move(source.toPath(), target.toPath(),
+                StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(source.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    private static long checksum(byte[] bytes)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        
+        return crc.getValue();
+    }
+    
+    private static void writeString(DataOutputStream out, String string)
+        throws IOException
+    {
+        // writeUTF can't write strings longer than 64k
+        byte[] bytes = string.getBytes("UTF-8"); //$NON-NLS-1$
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+    
+    private static String readString(DataInputStream in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        
+        return new String(bytes, "UTF-8"); //$NON-NLS-1$
+    }
+    
+    private static void writeStrings(DataOutputStream out, List<String> strings)
+        throws IOException
+    {
+        out.writeInt(strings.size());
+        for (String string : strings)
+            writeString(out, string);
+    }
+    
+    private static List<String> readStrings(DataInputStream in) throws IOException
+    {
+        int size = in.readInt();
+        List<String> strings = new ArrayList<String>(size);
+        for (int i = 0; i < size; i++)
+            strings.add(readString(in));
+        
+        return strings;
+    }
+    
+    private static void writeDate(DataOutputStream out, Date date)
+        throws IOException
+    {
+        out.writeLong(date != null ? date.getTime() : NO_DATE);
+    }
+    
+    private static Date readDate(DataInputStream in) throws IOException
+    {
+        long time = in.readLong();
+        return time != NO_DATE ? new Date(time) : null;
+    }
+}
@@ -0,0 +1,414 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2008 Riad Djemili and contributors
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.core.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import jmemorize.core.Card;
+import jmemorize.core.CardLoader;
+import jmemorize.core.Category;
+import jmemorize.core.Lesson;
+import jmemorize.core.Main;
+
+/**
+ * A small summary of a lesson that is written next to the lesson file
+ * whenever the lesson is saved. It holds the number of cards of every deck
+ * and a histogram of the days on which the learned cards expire, so that
+ * lists of lessons can show due cards without loading the lessons.
+ *
+ * A summary is stale when the lesson file or its journal have been changed
+ * since the summary was written. Stale summaries are never read. They can be
+ * recreated by loading the lesson with {@link #load(File)}.
+ *
+ * @author djemili
+ */
+public class LessonSummary
+{
+    private static final int    MAGIC   = 0x4A4D5331;      // "JMS1"
+    private static final short  VERSION = 1;
+    private static final String SUFFIX  = ".summary";      //$NON-NLS-1$
+    private static final long   DAY     = 24 * 60 * 60 * 1000L;
+    
+    private File  m_lessonFile;
+    private long  m_time;
+    private int[] m_deckSizes;
+    
+    private int   m_expiredCount;                          // at m_time
+    private long  m_nextExpiration  = Long.MIN_VALUE;      // if none
+    
+    // cards that hadn't expired at m_time, by day of expiration
+    private int[] m_days;
+    private int[] m_dayCounts;
+    
+    private LessonSummary()
+    {
+    }
+    
+    /**
+     * @return the file that holds the summary of given lesson file.
+     */
+    public static File getFile(File lessonFile)
+    {
+        return new File(lessonFile.getPath() + SUFFIX);
+    }
+    
+    /**
+     * Creates the summary of given lesson at the current time. The cards of
+     * lazily loaded categories aren't loaded for this.
+     */
+    public static LessonSummary create(Lesson lesson)
+    {
+        LessonSummary summary = new LessonSummary();
+        summary.m_lessonFile = lesson.getFile();
+        summary.m_time = Main.getNow().getTime();
+        
+        Category root = lesson.getRootCategory();
+        summary.m_deckSizes = new int[root.getNumberOfDecks()];
+        for (int i = 0; i < summary.m_deckSizes.length; i++)
+            summary.m_deckSizes[i] = root.getCardCount(i);
+        
+        Map<Integer, Integer> days = new TreeMap<Integer, Integer>();
+        for (Category category : root.getSubtreeList())
+        {
+            CardLoader loader = category.getCardLoader();
+            for (int i = 1; i < category.getNumberOfDecks(); i++)
+            {
+                if (loader != null)
+                {
+                    for (long expiration : loader.getExpirations(i))
+                        summary.addExpiration(expiration, days);
+                }
+                else
+                {
+                    for (Card card : category.getLocalCards(i))
+                    {
+                        if (card.getDateExpired() != null)
+                            summary.addExpiration(card.getDateExpired().getTime(), days);
+                    }
+                }
+            }
+        }
+        
+        summary.m_days = new int[days.size()];
+        summary.m_dayCounts = new int[days.size()];
+        
+        int i = 0;
+        for (Map.Entry<Integer, Integer> day : days.entrySet())
+        {
+            summary.m_days[i] = day.getKey();
+            summary.m_dayCounts[i] = day.getValue();
+            i++;
+        }
+        
+        return summary;
+    }
+    
+    /**
+     * Creates the summary of given lesson file by loading the lesson,
+     * including the changes in its journal. This takes as long as loading the
+     * lesson without its images, so it shouldn't be done on the event
+     * dispatch thread.
+     */
+    public static LessonSummary load(File lessonFile) throws IOException
+    {
+        Lesson lesson = new Lesson(false);
+        try
+        {
+            if (BinaryBuilder.isBinaryFile(lessonFile))
+                BinaryBuilder.loadCardsFromBinaryFile(lessonFile, lesson);
+            else
+                XmlBuilder.loadCardsFromXMLFile(lessonFile, lesson);
+        }
+        catch (IOException e)
+        {
+            throw e;
+        }
+        catch (Exception e)
+        {
+            throw new IOException(e.getMessage(), e);
+        }
+        
+        LessonJournal.replay(lesson, lessonFile);
+        lesson.setFile(lessonFile);
+        
+        return create(lesson);
+    }
+    
+    /**
+     * Reads the summary of given lesson file.
+     *
+     * @return the summary or <code>null</code> if the lesson has no summary
+     * or if its summary is stale.
+     */
+    public static LessonSummary read(File lessonFile)
+    {
+        File file = getFile(lessonFile);
+        if (!file.isFile())
+            return null;
+        
+        try
+        {
+            DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+            try
+            {
+                if (in.readInt() != MAGIC || in.readShort() != VERSION)
+                    return null;
+                
+                if (in.readLong() != lessonFile.length() ||
+                    in.readLong() != lessonFile.lastModified() ||
+                    in.readLong() != LessonJournal.getFile(lessonFile).length())
+                {
+                    return null;
+                }
+                
+                LessonSummary summary = new LessonSummary();
+                summary.m_lessonFile = lessonFile;
+                summary.m_time = in.readLong();
+                
+                summary.m_deckSizes = new int[in.readInt()];
+                for (int i = 0; i < summary.m_deckSizes.length; i++)
+                    summary.m_deckSizes[i] = in.readInt();
+                
+                summary.m_expiredCount = in.readInt();
+                summary.m_nextExpiration = in.readLong();
+                
+                int days = in.readInt();
+                summary.m_days = new int[days];
+                summary.m_dayCounts = new int[days];
+                for (int i = 0; i < days; i++)
+                {
+                    summary.m_days[i] = in.readInt();
+                    summary.m_dayCounts[i] = in.readInt();
+                }
+                
+                return summary;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            Main.logThrowable("Could not read summary of "+lessonFile, e);
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Reads the summaries of all given lesson files in parallel.
+     *
+     * @return the summaries in the order of the given files. Lessons without
+     * summary or with a stale summary have <code>null</code> entries.
+     */
+    public static List<LessonSummary> read(List<File> lessonFiles)
+    {
+        List<Future<LessonSummary>> reads = new ArrayList<Future<LessonSummary>>();
+        for (final File lessonFile : lessonFiles)
+        {
+            reads.add(ForkJoinPool.commonPool().submit(new Callable<LessonSummary>() {
+                public LessonSummary call()
+                {
+                    return read(lessonFile);
+                }
+            }));
+        }
+        
+        List<LessonSummary> summaries = new ArrayList<LessonSummary>();
+        for (Future<LessonSummary> read : reads)
+        {
+            try
+            {
+                summaries.add(read.get());
+            }
+            catch (Exception e)
+            {
+                summaries.add(null);
+            }
+        }
+        
+        return summaries;
+    }
+    
+    /**
+     * Writes this summary next to given lesson file. This has to be done
+     * after the lesson file and its journal have been written, because the
+     * summary is only valid for their current state.
+     */
+    public void write(File lessonFile) throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+            new FileOutputStream(getFile(lessonFile))));
+        try
+        {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            
+            out.writeLong(lessonFile.length());
+            out.writeLong(lessonFile.lastModified());
+            out.writeLong(LessonJournal.getFile(lessonFile).length());
+            out.writeLong(m_time);
+            
+            out.writeInt(m_deckSizes.length);
+            for (int size : m_deckSizes)
+                out.writeInt(size);
+            
+            out.writeInt(m_expiredCount);
+            out.writeLong(m_nextExpiration);
+            
+            out.writeInt(m_days.length);
+            for (int i = 0; i < m_days.length; i++)
+            {
+                out.writeInt(m_days[i]);
+                out.writeInt(m_dayCounts[i]);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    /**
+     * @return the lesson file of this summary.
+     */
+    public File getLessonFile()
+    {
+        return m_lessonFile;
+    }
+    
+    /**
+     * @return the number of decks of the lesson.
+     */
+    public int getNumberOfDecks()
+    {
+        return m_deckSizes.length;
+    }
+    
+    /**
+     * @return the number of cards in the deck with given level.
+     */
+    public int getCardCount(int level)
+    {
+        return level < m_deckSizes.length ? m_deckSizes[level] : 0;
+    }
+    
+    /**
+     * @return the number of all cards of the lesson.
+     */
+    public int getCardCount()
+    {
+        int count = 0;
+        for (int size : m_deckSizes)
+            count += size;
+        
+        return count;
+    }
+    
+    /**
+     * @return the number of cards in deck 0.
+     */
+    public int getUnlearnedCardCount()
+    {
+        return getCardCount(0);
+    }
+    
+    /**
+     * @return the number of learned cards that have expired at the start of
+     * the day of given date. Cards that had expired when the summary was
+     * created are always counted.
+     */
+    public int getExpiredCardCount(Date now)
+    {
+        return m_expiredCount + countDays(getDay(now.getTime()) - 1);
+    }
+    
+    /**
+     * @return the number of learned cards that expire until the end of the
+     * day of given date, including all cards that have expired before.
+     */
+    public int getDueCardCount(Date now)
+    {
+        return m_expiredCount + countDays(getDay(now.getTime()));
+    }
+    
+    /**
+     * @return the earliest expiration date of the cards that hadn't expired
+     * when the summary was created or <code>null</code> if there is none.
+     */
+    public Date getNextExpiration()
+    {
+        return m_nextExpiration != Long.MIN_VALUE ? new Date(m_nextExpiration) : null;
+    }
+    
+    private void addExpiration(long expiration, Map<Integer, Integer> days)
+    {
+        if (expiration <= m_time)
+        {
+            m_expiredCount++;
+            return;
+        }
+        
+        if (m_nextExpiration == Long.MIN_VALUE || expiration < m_nextExpiration)
+            m_nextExpiration = expiration;
+        
+        int day = getDay(expiration);
+        Integer count = days.get(day);
+        days.put(day, count != null ? count + 1 : 1);
+    }
+    
+    /**
+     * @return the number of cards that hadn't expired when the summary was
+     * created and expire until the end of given day.
+     */
+    private int countDays(int lastDay)
+    {
+        int count = 0;
+        for (int i = 0; i < m_days.length && m_days[i] <= lastDay; i++)
+            count += m_dayCounts[i];
+        
+        return count;
+    }
+    
+    /**
+     * @return the number of the local day of given time since the epoch.
+     */
+    private static int getDay(long time)
+    {
+        return (int)Math.floorDiv(time + TimeZone.getDefault().getOffset(time), DAY);
+    }
+}
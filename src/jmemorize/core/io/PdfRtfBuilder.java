@@ -23,7 +23,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.List;
-import java.util.logging.Logger;
 
 import jmemorize.core.Card;
 import jmemorize.core.Category;
@@ -35,6 +34,7 @@ import jmemorize.gui.swing.CardFont.FontType;
 import com.lowagie.text.Chunk;
 import com.lowagie.text.Document;
 import com.lowagie.text.DocumentException;
+import com.lowagie.text.ExceptionConverter;
 import com.lowagie.text.Font;
 import com.lowagie.text.FontFactory;
 import com.lowagie.text.HeaderFooter;
@@ -54,10 +54,7 @@ public class PdfRtfBuilder
     private final static int PDF_MODE = 0;
     private final static int RTF_MODE = 1;
 
-    // These get set in export() prior to building the pdf/rtf
-    private static Logger logger;
-    private static Font frontFont;
-    private static Font backFont;
+    private static boolean fontsRegistered;
     
     /**
      * Export lesson to pdf
@@ -69,35 +66,42 @@ public class PdfRtfBuilder
      */
     public static void exportLessonToPDF(Lesson lesson, File file) throws IOException
     {
-        export(lesson, PDF_MODE, file);
+        exportLessonToPDF(lesson, file, getFontName(FontType.CARD_FRONT), 
+            getFontName(FontType.CARD_FLIP));
+    }
+    
+    /**
+     * Export lesson to pdf with the given font families instead of the card
+     * fonts of the settings. Lessons can be exported in parallel this way.
+     */
+    public static void exportLessonToPDF(Lesson lesson, File file, 
+        String frontFontName, String backFontName) throws IOException
+    {
+        export(lesson, PDF_MODE, file, frontFontName, backFontName);
     }
 
     public static void exportLessonToRTF(Lesson lesson, File file) throws IOException
     {
-        export(lesson, RTF_MODE, file);
+        exportLessonToRTF(lesson, file, getFontName(FontType.CARD_FRONT), 
+            getFontName(FontType.CARD_FLIP));
     }
     
-    private static void export(Lesson lesson, int mode, File file) throws IOException 
+    /**
+     * Export lesson to rtf with the given font families instead of the card
+     * fonts of the settings. Lessons can be exported in parallel this way.
+     */
+    public static void exportLessonToRTF(Lesson lesson, File file, 
+        String frontFontName, String backFontName) throws IOException
     {
-        logger = Main.getLogger();
-
-        FontFactory.registerDirectories();
-        // set up the fonts we will use to write the front and back of cards
-        String frontFontName = Settings.loadFont(FontType.CARD_FRONT).getFont().getFamily();
-        frontFont = FontFactory.getFont(frontFontName, BaseFont.IDENTITY_H, BaseFont.EMBEDDED);
-        
-        if (frontFont == null) 
-        {
-            logger.warning("FontFactory returned null (front) font for: " + frontFontName);
+        export(lesson, RTF_MODE, file, frontFontName, backFontName);
         }
         
-        String backFontName = Settings.loadFont(FontType.CARD_FLIP).getFont().getFamily();
-        backFont = FontFactory.getFont(backFontName, BaseFont.IDENTITY_H, BaseFont.EMBEDDED);
-        
-        if (backFont == null) 
+    private static void export(Lesson lesson, int mode, File file, 
+        String frontFontName, String backFontName) throws IOException 
         {
-            logger.warning("FontFactory returned null (back) font for: " + backFontName);
-        }
+        // set up the fonts we will use to write the front and back of cards
+        Font frontFont = getFont(frontFontName);
+        Font backFont = getFont(backFontName);
 
         try
         {
@@ -122,7 +126,7 @@ public class PdfRtfBuilder
             List<Category> subtree = lesson.getRootCategory().getSubtreeList();
             for (Category category : subtree)
             {
-                writeCategory(doc, category);
+                writeCategory(doc, category, frontFont, backFont);
             }
 
             doc.close();
@@ -140,8 +144,8 @@ public class PdfRtfBuilder
      * @param doc document to add to
      * @param category given category
      */
-    private static void writeCategory(Document doc, Category category) 
-        throws DocumentException
+    private static void writeCategory(Document doc, Category category, 
+        Font frontFont, Font backFont) throws DocumentException
     {
         // ignore empty categories
         if (category.getLocalCards().size() == 0)
@@ -153,7 +157,7 @@ public class PdfRtfBuilder
         
         for (Card card : category.getLocalCards())
         {
-            writeCard(doc, card);
+            writeCard(doc, card, frontFont, backFont);
         }
     }
 
@@ -175,8 +179,8 @@ public class PdfRtfBuilder
      * @param doc document to add to
      * @param card given card
      */
-    private static void writeCard(Document doc, Card card) 
-        throws DocumentException
+    private static void writeCard(Document doc, Card card, Font frontFont,
+        Font backFont) throws DocumentException
     {
         Table table = new Table(2);
     
@@ -192,4 +196,40 @@ public class PdfRtfBuilder
     
         doc.add(table);
     }
-}
\ No newline at end of file
+    
+    private static String getFontName(FontType type)
+    {
+        return Settings.loadFont(type).getFont().getFamily();
+}
+    
+    private static Font getFont(String fontName)
+    {
+        // scanning the font folders takes long, so it is only done once
+        synchronized (PdfRtfBuilder.class)
+        {
+            if (!fontsRegistered)
+            {
+                FontFactory.registerDirectories();
+                fontsRegistered = true;
+            }
+        }
+        
+        Font font;
+        try
+        {
+            font = FontFactory.getFont(fontName, BaseFont.IDENTITY_H, BaseFont.EMBEDDED);
+        }
+        catch (ExceptionConverter e)
+        {
+            // the built-in fonts like Helvetica only support their own encoding
+            font = FontFactory.getFont(fontName);
+        }
+        
+        if (font == null) 
+        {
+            Main.getLogger().warning("FontFactory returned null font for: " + fontName);
+        }
+        
+        return font;
+    }
+}
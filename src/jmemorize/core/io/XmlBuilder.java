@@ -18,29 +18,51 @@
  */
 package jmemorize.core.io;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
 import java.text.DateFormat;
 import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
@@ -49,6 +71,7 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
 import jmemorize.core.Card;
+import jmemorize.core.CardLoader;
 import jmemorize.core.CardSide;
 import jmemorize.core.Category;
 import jmemorize.core.ImageRepository;
@@ -74,6 +97,8 @@ public class XmlBuilder
 {
     private static final String SESSION              = "session";            //$NON-NLS-1$
     private static final String LESSON               = "Lesson";             //$NON-NLS-1$
+    private static final String JOURNAL              = "journal";            //$NON-NLS-1$
+    private static final String ID                   = "id";                 //$NON-NLS-1$
     private static final String DECK                 = "Deck";               //$NON-NLS-1$
     private static final String CARD                 = "Card";               //$NON-NLS-1$
     private static final String SIDE                 = "Side";               //$NON-NLS-1$
@@ -104,9 +129,204 @@ public class XmlBuilder
     private static final String LESSON_ZIP_ENTRY_NAME = "lesson.xml";        //$NON-NLS-1$
     private static final String IMAGE_FOLDER         = "images";             //$NON-NLS-1$
     
-    // we need a fixed formatter in file (not locale depent)
-    private final static DateFormat DATE_FORMAT = DateFormat.getDateTimeInstance(
-        DateFormat.MEDIUM, DateFormat.MEDIUM, Locale.UK);
+    private static final String SHARD                = "Shard";              //$NON-NLS-1$
+    private static final String SHARD_ENTRY          = "entry";              //$NON-NLS-1$
+    private static final String SHARD_FOLDER         = "categories/";        //$NON-NLS-1$
+    private static final String SHARD_EXTENSION      = ".xml.gz";            //$NON-NLS-1$
+    private static final String SKELETON_CARDS       = "cards";              //$NON-NLS-1$
+    private static final String SKELETON_EXPIRATIONS = "expirations";        //$NON-NLS-1$
+    
+    /**
+     * Reads and writes the categories of sharded lessons in parallel.
+     */
+    private static final ForkJoinPool SHARD_POOL = new ForkJoinPool();
+    
+    /**
+     * The container formats that lesson files can be stored in. 
+     */
+    private enum Container {PLAIN, GZIP, ZIP}
+    
+    /**
+     * The category tree of a sharded top-level category as it is written to
+     * the shard reference in the lesson document. It holds the number of
+     * cards and the expiration times of all decks, but no cards, so that a
+     * lesson can be shown before its cards are loaded.
+     */
+    private static class Skeleton
+    {
+        private String         m_name;
+        private int            m_id;
+        private int[]          m_deckSizes;
+        private long[][]       m_expirations;
+        private List<Skeleton> m_children = new ArrayList<Skeleton>();
+    }
+    
+    /**
+     * A zip entry that holds a top-level category whose cards are loaded on
+     * demand. The entry is parsed when the first of its categories is
+     * accessed and kept until the cards of all its categories were handed
+     * out.
+     */
+    private static class LazyShard
+    {
+        private File              m_file;
+        private String            m_entry;
+        private Lesson            m_lesson;
+        private int               m_categoryCount;
+        
+        private Category          m_category;
+        private Set<List<String>> m_loadedPaths = new HashSet<List<String>>();
+        
+        public LazyShard(File file, String entry, Lesson lesson)
+        {
+            m_file = file.getAbsoluteFile();
+            m_entry = entry;
+            m_lesson = lesson;
+        }
+        
+        /**
+         * @param path the names of the categories from the top-level category
+         * of this shard to the category whose cards should be loaded.
+         */
+        public synchronized List<List<Card>> loadDecks(List<String> path) 
+            throws IOException
+        {
+            // cards must never be handed out twice
+            if (m_category == null || m_loadedPaths.contains(path))
+            {
+                m_category = readShard(m_file, m_entry);
+                m_loadedPaths.clear();
+            }
+            
+            Category category = m_category;
+            for (String name : path)
+            {
+                category = category.getChildCategory(name);
+                if (category == null)
+                    throw new IOException("Missing category "+name+" in "+m_entry);
+            }
+            
+            List<List<Card>> decks = new ArrayList<List<Card>>();
+            for (int i = 0; i < category.getNumberOfDecks(); i++)
+            {
+                // cards can only be held by one deck, so they are taken out of
+                // the parsed shard, whose category is never handed out
+                List<Card> cards = category.getLocalCards(i);
+                decks.add(new ArrayList<Card>(cards));
+                cards.clear();
+            }
+            
+            m_loadedPaths.add(path);
+            if (m_loadedPaths.size() == m_categoryCount)
+                m_category = null;
+            
+            return decks;
+        }
+    }
+    
+    /**
+     * Loads the cards of a single category of a lazy shard.
+     */
+    private static class ShardCardLoader extends CardLoader
+    {
+        private LazyShard    m_shard;
+        private List<String> m_path;
+        
+        public ShardCardLoader(LazyShard shard, List<String> path, 
+            Skeleton skeleton)
+        {
+            super(skeleton.m_deckSizes, skeleton.m_expirations);
+            
+            m_shard = shard;
+            m_path = path;
+        }
+        
+        protected List<List<Card>> loadDecks() throws IOException
+        {
+            return m_shard.loadDecks(m_path);
+        }
+        
+        protected void cardsLoaded(Category category, List<List<Card>> decks)
+        {
+            // copies of the lesson, e.g. snapshots, don't count image references
+            Category root = category;
+            while (root.getParent() != null)
+                root = root.getParent();
+            
+            if (root != m_shard.m_lesson.getRootCategory())
+                return;
+            
+            ImageRepository repository = m_shard.m_lesson.getImageRepository();
+            for (List<Card> cards : decks)
+            {
+                for (Card card : cards)
+                    repository.updateReferences(card);
+            }
+        }
+    }
+    
+    /**
+     * Parses dates of lessons that were saved before dates were written as
+     * milliseconds since the epoch. These were formatted with the medium UK
+     * date format of the JRE, which newer JREs format differently, so the
+     * patterns are given explicitly. Date formats aren't thread-safe, so
+     * every thread gets its own codec. Consecutive dates of a card are often
+     * equal, so the last parsed date is cached.
+     */
+    private static class LegacyDateCodec
+    {
+        // written by JREs up to 8 and by JREs with CLDR locale data
+        private static final String[] PATTERNS = {
+            "dd-MMM-yyyy HH:mm:ss", "d MMM yyyy, HH:mm:ss"}; //$NON-NLS-1$ //$NON-NLS-2$
+        
+        private DateFormat[] m_formats = new DateFormat[PATTERNS.length];
+        private String       m_lastText;
+        private long         m_lastTime;
+        
+        public LegacyDateCodec()
+        {
+            for (int i = 0; i < PATTERNS.length; i++)
+                m_formats[i] = new SimpleDateFormat(PATTERNS[i], Locale.ENGLISH);
+        }
+        
+        public Date parse(String text) throws ParseException
+        {
+            if (!text.equals(m_lastText))
+            {
+                // CLDR abbreviates September with four letters in the UK
+                String normalized = text.replace("Sept ", "Sep "); //$NON-NLS-1$ //$NON-NLS-2$
+                
+                ParseException exception = null;
+                for (DateFormat format : m_formats)
+                {
+                    try
+                    {
+                        m_lastTime = format.parse(normalized).getTime();
+                        m_lastText = text;
+                        exception = null;
+                        break;
+                    }
+                    catch (ParseException e)
+                    {
+                        exception = e;
+                    }
+                }
+                
+                if (exception != null)
+                    throw exception;
+            }
+            
+            return new Date(m_lastTime);
+        }
+    }
+    
+    private static final ThreadLocal<LegacyDateCodec> LEGACY_DATE_CODEC = 
+        new ThreadLocal<LegacyDateCodec>() {
+            protected LegacyDateCodec initialValue()
+            {
+                return new LegacyDateCodec();
+            }
+        };
 
 
     
@@ -126,14 +346,48 @@ public class XmlBuilder
      */
     public static void saveAsXMLFile(File file, Lesson lesson) throws IOException, 
         TransformerException, ParserConfigurationException
+    {
+        saveAsXMLFile(file, lesson, true);
+    }
+    
+    /**
+     * Saves the lesson to a file.
+     * 
+     * @param streaming <code>true</code> if the XML document should be written
+     * directly to the file while walking the categories and cards.
+     * <code>false</code> if a DOM tree should be built first and then be
+     * serialized by a transformer. Both ways create documents that are loaded
+     * into the same lesson, but the streaming writer needs no additional
+     * memory for the document.
+     */
+    public static void saveAsXMLFile(File file, Lesson lesson, boolean streaming) 
+        throws IOException, TransformerException, ParserConfigurationException
     {   
         OutputStream out;
         ZipOutputStream zipOut = null;
+        Map<Category, String> shards = null;
+        
+        // images might still be read on demand from the file that is
+        // going to be overwritten
+        lesson.getImageRepository().detach(file);
+        
+        // the same goes for cards of lazily loaded categories. only the
+        // unchanged categories of sharded lessons are copied from the
+        // previous file.
+        boolean sharded = Settings.loadIsSaveCompressed() && 
+            Settings.loadIsSaveSharded() && streaming;
+        File source = lesson.getFile();
+        loadCardsNotIn(lesson, sharded && source != null && 
+            !source.getCanonicalFile().equals(file.getCanonicalFile()) ? source : null);
         
         if (Settings.loadIsSaveCompressed())
         {
             out = zipOut = new ZipOutputStream(new FileOutputStream(file));
+            zipOut.setLevel(Settings.loadCompressionLevel());
             zipOut.putNextEntry(new ZipEntry(LESSON_ZIP_ENTRY_NAME));
+            
+            if (sharded)
+                shards = getShardEntries(lesson);
         }
         else
         {
@@ -142,23 +396,32 @@ public class XmlBuilder
         
         try
         {
-            Document document = DocumentBuilderFactory.newInstance()
-                .newDocumentBuilder().newDocument();
-
-            // add lesson tag as root
-            Element lessonTag = document.createElement(LESSON);
-            document.appendChild(lessonTag);
-
-            // add category tags
-            writeCategory(document, lessonTag, lesson.getRootCategory());
-            writeLearnHistory(document, lesson.getLearnHistory());
-
-            // transform document for file output
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
-            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8"); //$NON-NLS-1$
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes"); //$NON-NLS-1$
-
-            transformer.transform(new DOMSource(document), new StreamResult(out));
+            if (streaming)
+            {
+                writeLesson(out, lesson, shards);
+            }
+            else
+            {
+                Document document = DocumentBuilderFactory.newInstance()
+                    .newDocumentBuilder().newDocument();
+    
+                // add lesson tag as root
+                Element lessonTag = document.createElement(LESSON);
+                if (lesson.getJournalId() != 0)
+                    lessonTag.setAttribute(JOURNAL, Long.toString(lesson.getJournalId()));
+                document.appendChild(lessonTag);
+    
+                // add category tags
+                writeCategory(document, lessonTag, lesson.getRootCategory());
+                writeLearnHistory(document, lesson.getLearnHistory());
+    
+                // transform document for file output
+                Transformer transformer = TransformerFactory.newInstance().newTransformer();
+                transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8"); //$NON-NLS-1$
+                transformer.setOutputProperty(OutputKeys.INDENT, "yes"); //$NON-NLS-1$
+    
+                transformer.transform(new DOMSource(document), new StreamResult(out));
+            }
         }
         finally
         {
@@ -171,12 +434,19 @@ public class XmlBuilder
         
         try
         {
-            removeUnusedImagesFromRepository(lesson);
+            if (shards != null)
+                writeShardsToZip(zipOut, lesson, file, shards);
+            
+            // the images of cards that haven't been loaded yet aren't counted
+            // and snapshots share the images of a lesson that is still edited
+            ImageRepository repository = lesson.getImageRepository();
+            if (!lesson.isSnapshot() && !lesson.getRootCategory().hasUnloadedCards())
+                repository.removeUnreferencedImages();
             
             if (zipOut == null)
-                writeImageRepositoryToDisk(new File(file.getParent()));
+                writeImageRepositoryToDisk(repository, new File(file.getParent()));
             else
-                writeImageRepositoryToZip(zipOut);
+                writeImageRepositoryToZip(repository, zipOut);
         }
         finally
         {
@@ -194,74 +464,130 @@ public class XmlBuilder
      * represents the lesson.
      */
     public static void loadFromXMLFile(File xmlFile, Lesson lesson) 
-        throws SAXException, IOException, ParserConfigurationException
+        throws SAXException, IOException, ParserConfigurationException, 
+        XMLStreamException
+    {
+        loadFromXMLFile(xmlFile, lesson, true);
+    }
+    
+    /**
+     * Loads a lesson from an XML document that is contained within a file.
+     * 
+     * Sharded lessons, i.e. lessons whose top-level categories are stored in
+     * zip entries of their own, are always read with the pull parser.
+     * 
+     * @param streaming <code>true</code> if the lesson should be read with a
+     * pull parser that creates categories and cards directly while reading the
+     * document. <code>false</code> if the document should be parsed into a DOM
+     * tree first. Both ways result in the same lesson, but the streaming
+     * parser never holds the complete document in memory.
+     */
+    public static void loadFromXMLFile(File xmlFile, Lesson lesson, 
+        boolean streaming) throws SAXException, IOException, 
+        ParserConfigurationException, XMLStreamException
+    {
+        loadFromXMLFile(xmlFile, lesson, streaming, false);
+    }
+    
+    /**
+     * Loads a lesson from an XML document that is contained within a file.
+     * 
+     * @param lazy <code>true</code> if the cards of sharded categories should
+     * only be loaded when they are accessed for the first time. The category
+     * tree and the card counts are loaded right away. Lazy loading is only
+     * supported for lessons that were saved sharded with the streaming
+     * writer. All other lessons are loaded completely.
+     * 
+     * @see #loadFromXMLFile(File, Lesson, boolean)
+     */
+    public static void loadFromXMLFile(File xmlFile, Lesson lesson, 
+        boolean streaming, boolean lazy) throws SAXException, IOException, 
+        ParserConfigurationException, XMLStreamException
+    {
+        loadFromXMLFile(xmlFile, lesson, streaming, lazy, true);
+    }
+    
+    /**
+     * Loads the categories and cards of a lesson, but none of its images, so
+     * that lessons can be inspected quickly. The cards of sharded categories
+     * are loaded lazily.
+     */
+    public static void loadCardsFromXMLFile(File xmlFile, Lesson lesson) 
+        throws SAXException, IOException, ParserConfigurationException, 
+        XMLStreamException
+    {
+        loadFromXMLFile(xmlFile, lesson, true, true, false);
+    }
+    
+    private static void loadFromXMLFile(File xmlFile, Lesson lesson, 
+        boolean streaming, boolean lazy, boolean images) throws SAXException, 
+        IOException, ParserConfigurationException, XMLStreamException
     {
-        InputStream in;
-        ZipInputStream zipIn = null;
+        Container container = detectContainer(xmlFile);
         
-        try
-        {
-            in = new GZIPInputStream(new FileInputStream(xmlFile));
-        }
-        catch (IOException ex)
+        if (container == Container.ZIP)
         {
-            in = zipIn = new ZipInputStream(new FileInputStream(xmlFile));
-            ZipEntry zipEntry = zipIn.getNextEntry();
-            
-            // file might not be compressed. try loading it directly
-            if (zipEntry == null) // expected when the file is not zipped
+            // use the central directory so that the lesson and all images are
+            // read in a single pass without decompressing anything twice
+            ZipFile zipFile = new ZipFile(xmlFile);
+            try
             {
-                in = new FileInputStream(xmlFile);
-                zipIn = null;
+                ZipEntry lessonEntry = zipFile.getEntry(LESSON_ZIP_ENTRY_NAME);
+                if (lessonEntry == null)
+                    throw new IOException("Missing lesson zip entry.");
+                
+                Map<String, Skeleton> shards;
+                InputStream in = zipFile.getInputStream(lessonEntry);
+                try
+                {
+                    shards = loadLesson(in, lesson, streaming);
+                }
+                finally
+                {
+                    in.close();
+                }
+                
+                loadShardsFromZip(zipFile, lesson, shards, lazy ? xmlFile : null);
+                
+                try
+                {
+                    if (images)
+                        loadImageRepositoryFromZip(lesson.getImageRepository(), xmlFile, zipFile);
+                }
+                catch (Exception e)
+                {
+                    Main.logThrowable("Exception while loading lesson "+xmlFile, e);
+                }
             }
-            else
+            finally
             {
-                if (!zipEntry.getName().equals(LESSON_ZIP_ENTRY_NAME))
-                    throw new IOException("Unexpected zip entry.");
+                zipFile.close();
             }
         }
-        
-        // get lesson tag
-        try
-        {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            Document doc = factory.newDocumentBuilder().parse(in);
-    
-            // there must be a root category
-            Element categoryTag = (Element)doc.getElementsByTagName(CATEGORY).item(0);
-            loadCategory(lesson.getRootCategory(), null, categoryTag, 0);
-            loadLearnHistory(doc, lesson.getLearnHistory());
-        }
-        finally
+        else
         {
-            if (zipIn == null)
+            InputStream in = new BufferedInputStream(new FileInputStream(xmlFile));
+            try
+            {
+                if (container == Container.GZIP)
+                    in = new GZIPInputStream(in);
+                
+                loadLesson(in, lesson, streaming);
+            }
+            finally
+            {
                 in.close();
-        }
-        
-        try  
-        {
-            if (zipIn == null)
-                loadImageRepositoryFromDisk(xmlFile);
+            }
             
-            else
+            try
             {
-                zipIn = new ZipInputStream(new FileInputStream(xmlFile));
-                
-                ZipEntry entry;
-                while ((entry = zipIn.getNextEntry()) != null)
-                {
-                    loadImageFromZipEntry(zipIn, entry);
-                }
+                if (images)
+                    loadImageRepositoryFromDisk(lesson.getImageRepository(), xmlFile);
+            }
+            catch (Exception e)
+            {
+                Main.logThrowable("Exception while loading lesson "+xmlFile, e);
             }
-        }
-        catch (Exception e)
-        {
-            Main.logThrowable("Exception while loading lesson "+xmlFile, e);
-        }
-        finally
-        {
-            if (zipIn != null)
-                zipIn.close();
         }
     }
     
@@ -311,8 +637,8 @@ public class XmlBuilder
         for (SessionSummary summary : history.getSummaries())
         {
             Element sessionTag = document.createElement(SESSION);
-            sessionTag.setAttribute(STATS_START, DATE_FORMAT.format(summary.getStart()));
-            sessionTag.setAttribute(STATS_END, DATE_FORMAT.format(summary.getEnd()));
+            sessionTag.setAttribute(STATS_START, formatDate(summary.getStart()));
+            sessionTag.setAttribute(STATS_END, formatDate(summary.getEnd()));
             
             sessionTag.setAttribute(STATS_PASSED, toInteger(summary.getPassed())); 
             sessionTag.setAttribute(STATS_FAILED, toInteger(summary.getFailed()));
@@ -333,32 +659,64 @@ public class XmlBuilder
      * @return the folder where images were stored (usually a dedicated
      * subfolder of given dir argument).
      */
-    public static File writeImageRepositoryToDisk(File dir) throws IOException
+    public static File writeImageRepositoryToDisk(ImageRepository repository, 
+        File dir) throws IOException
     {
-        ImageRepository repository = ImageRepository.getInstance();
-        
         File imgDir = new File(dir + File.separator + IMAGE_FOLDER);
         imgDir.mkdirs();
         
-        removeUnusedImages(repository, imgDir);
+        // only images that were added since the last save need to be written
+        // if they were saved to this folder before
+        Collection<ImageItem> items;
+        if (repository.isWrittenTo(imgDir))
+        {
+            removeImages(repository, imgDir);
+            items = repository.getUnwrittenImageItems();
+        }
+        else
+        {
+            removeUnusedImages(repository, imgDir);
+            items = repository.getImageItems();
+        }
         
-        for (ImageItem item : repository.getImageItems())
+        for (ImageItem item : items)
         {
             File imgFile = new File(imgDir + File.separator + item.getId());
             
-            if (imgFile.exists())
-            {
-                // TODO if same file continue
-            }
+            // image is still read on demand from this very file
+            if (imgFile.exists() && item.isStoredIn(imgFile))
+                continue;
             
             FileOutputStream out = new FileOutputStream(imgFile, false);
-            out.write(item.getBytes());
-            out.close();
+            try
+            {
+                item.writeTo(out);
+            }
+            finally
+            {
+                out.close();
+            }
         }
         
+        repository.setWrittenTo(imgDir, items);
+        
         return imgDir;
     }
 
+    /**
+     * Deletes the files of all images that were removed from the repository
+     * since it was last written to given folder.
+     */
+    private static void removeImages(ImageRepository repository, File imgDir)
+    {
+        Set<String> ids = repository.getKeys();
+        for (String id : repository.getRemovedIds())
+        {
+            if (!ids.contains(id))
+                new File(imgDir + File.separator + id).delete();
+        }
+    }
+    
     private static void removeUnusedImages(ImageRepository repository, File imgDir)
     {
         Set<File> unusedFiles = new HashSet<File>(Arrays.asList(imgDir.listFiles()));
@@ -379,6 +737,8 @@ public class XmlBuilder
     {
         Element categoryTag = document.createElement(CATEGORY);
         categoryTag.setAttribute(NAME, category.getName());
+        if (category.getId() != 0)
+            categoryTag.setAttribute(ID, Integer.toString(category.getId()));
         father.appendChild(categoryTag);
         
         // for all decks add a deck tag
@@ -405,23 +765,25 @@ public class XmlBuilder
     private static Element writeCard(Document document, Card card)
     {
         Element cardTag = document.createElement(CARD);
+        if (card.getId() != 0)
+            cardTag.setAttribute(ID, Integer.toString(card.getId()));
         
         // save card sides
         cardTag.setAttribute(FRONTSIDE, card.getFrontSide().getText().getFormatted());
         cardTag.setAttribute(BACKSIDE, card.getBackSide().getText().getFormatted());
         
         // save dates
-        cardTag.setAttribute(DATE_CREATED, DATE_FORMAT.format(card.getDateCreated()));
-        cardTag.setAttribute(DATE_MODIFIED, DATE_FORMAT.format(card.getDateModified()));
-        cardTag.setAttribute(DATE_TOUCHED, DATE_FORMAT.format(card.getDateTouched()));
+        cardTag.setAttribute(DATE_CREATED, formatDate(card.getDateCreated()));
+        cardTag.setAttribute(DATE_MODIFIED, formatDate(card.getDateModified()));
+        cardTag.setAttribute(DATE_TOUCHED, formatDate(card.getDateTouched()));
         
         if (card.getDateTested() != null)
         {
-            cardTag.setAttribute(DATE_TESTED, DATE_FORMAT.format(card.getDateTested()));
+            cardTag.setAttribute(DATE_TESTED, formatDate(card.getDateTested()));
         }
         if (card.getDateExpired() != null)
         {
-            cardTag.setAttribute(DATE_EXPIRED, DATE_FORMAT.format(card.getDateExpired()));
+            cardTag.setAttribute(DATE_EXPIRED, formatDate(card.getDateExpired()));
         }
         
         // save amount learned
@@ -457,80 +819,923 @@ public class XmlBuilder
         return sideElement;
     }
     
-    private static void writeImageRepositoryToZip(ZipOutputStream zipOut) 
-        throws IOException
+    /**
+     * Writes the lesson document directly to the given stream. The stream is
+     * flushed but not closed, so that it can be a zip entry.
+     */
+    private static void writeLesson(OutputStream out, Lesson lesson, 
+        Map<Category, String> shards) throws IOException
     {
-        ImageRepository repository = ImageRepository.getInstance();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8")); //$NON-NLS-1$
         
-        for (ImageItem item : repository.getImageItems())
-        {
-            zipOut.putNextEntry(new ZipEntry(IMAGE_FOLDER + File.separator + item.getId()));
-            zipOut.write(item.getBytes());
-            zipOut.closeEntry();            
-        }
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"); //$NON-NLS-1$
+        writeStartTag(writer, LESSON);
+        if (lesson.getJournalId() != 0)
+            writeAttribute(writer, JOURNAL, Long.toString(lesson.getJournalId()));
+        writer.write(">\n"); //$NON-NLS-1$
+        
+        writeCategory(writer, lesson.getRootCategory(), shards);
+        writeLearnHistory(writer, lesson.getLearnHistory());
+        
+        writeEndTag(writer, LESSON);
+        writer.flush();
     }
     
-    private static void loadCategory(Category category, Category father, 
-        Element categoryTag, int depth)
+    /**
+     * @param shards the zip entries of the child categories that are written
+     * to entries of their own. Only references to these entries are written.
+     * Can be <code>null</code>.
+     */
+    private static void writeCategory(Writer writer, Category category, 
+        Map<Category, String> shards) throws IOException
     {
-        // for all child tags in category tag
-        int deckLevel = 0;
-        NodeList childs  = categoryTag.getChildNodes();
-        for (int i = 0; i < childs.getLength(); i++)
-        { 
-            Node child = childs.item(i);
-            
-            // if deck tag
-            if (child.getNodeName().equalsIgnoreCase(DECK))
+        writeStartTag(writer, CATEGORY);
+        writeAttribute(writer, NAME, category.getName());
+        if (category.getId() != 0)
+            writeAttribute(writer, ID, Integer.toString(category.getId()));
+        writer.write(">\n"); //$NON-NLS-1$
+        
+        // for all decks add a deck tag
+        for (int i = 0; i < category.getNumberOfDecks(); i++)
+        {
+            List<Card> cards = category.getLocalCards(i);
+            if (cards.isEmpty())
             {
-                // for all card tags in deck tag
-                NodeList childTags = child.getChildNodes();
-                for (int j = 0; j < childTags.getLength(); j++)
-                {
-                    Node childTag = childTags.item(j);
-                    
-                    // if its a card child tag
-                    if (!childTag.getNodeName().equalsIgnoreCase(CARD))
-                        continue;
-                    
-                    Card card = loadCard(childTag);
-                    category.addCard(card, deckLevel);
-                }
-                
-                deckLevel++;
+                writeStartTag(writer, DECK);
+                writer.write("/>\n"); //$NON-NLS-1$
+                continue;
             }
-            // if category tag
-            else if (child.getNodeName().equalsIgnoreCase(CATEGORY))
+            
+            writeStartTag(writer, DECK);
+            writer.write(">\n"); //$NON-NLS-1$
+            
+            // for all cards add a card tag
+            for (Card card : cards)
             {
-                Element catTag = (Element)child;
-                String name = catTag.getAttribute(NAME);
-                
-                Category childCategory = category.getChildCategory(name);
-                if (childCategory == null)
-                {
-                    childCategory = new Category(name);
-                    category.addCategoryChild(childCategory);
-                }
-                
-                loadCategory(childCategory, category, catTag, depth + 1);
+                writeCard(writer, card);
             }
+            
+            writeEndTag(writer, DECK);
         }
-    }
+        
+        // now add child categories
+        for (Category child : category.getChildCategories())
+        {
+            String shard = shards != null ? shards.get(child) : null;
+            if (shard != null)
+            {
+                writeStartTag(writer, SHARD);
+                writeAttribute(writer, SHARD_ENTRY, shard);
+                writer.write(">\n"); //$NON-NLS-1$
+                
+                writeSkeleton(writer, child);
+                writeEndTag(writer, SHARD);
+            }
+            else
+            {
+                writeCategory(writer, child, null);
+            }
+        }
+        
+        writeEndTag(writer, CATEGORY);
+    }
+    
+    /**
+     * Writes the category tree of a sharded category with the number of
+     * cards and the expiration times of all decks, but without any cards.
+     * The cards of lazily loaded categories aren't loaded for this.
+     */
+    private static void writeSkeleton(Writer writer, Category category) 
+        throws IOException
+    {
+        writeStartTag(writer, CATEGORY);
+        writeAttribute(writer, NAME, category.getName());
+        if (category.getId() != 0)
+            writeAttribute(writer, ID, Integer.toString(category.getId()));
+        writer.write(">\n"); //$NON-NLS-1$
+        
+        CardLoader loader = category.getCardLoader();
+        for (int i = 0; i < category.getNumberOfDecks(); i++)
+        {
+            int size;
+            long[] expirations;
+            if (loader != null)
+            {
+                size = loader.getDeckSize(i);
+                expirations = loader.getExpirations(i);
+            }
+            else
+            {
+                List<Card> cards = category.getLocalCards(i);
+                size = cards.size();
+                expirations = getExpirations(cards);
+            }
+            
+            writeStartTag(writer, DECK);
+            writeAttribute(writer, SKELETON_CARDS, Integer.toString(size));
+            if (expirations.length > 0)
+                writeAttribute(writer, SKELETON_EXPIRATIONS, formatExpirations(expirations));
+            writer.write("/>\n"); //$NON-NLS-1$
+        }
+        
+        for (Category child : category.getChildCategories())
+        {
+            writeSkeleton(writer, child);
+        }
+        
+        writeEndTag(writer, CATEGORY);
+    }
+    
+    /**
+     * @return the sorted expiration times of all given cards that have an
+     * expiration date.
+     */
+    private static long[] getExpirations(List<Card> cards)
+    {
+        long[] expirations = new long[cards.size()];
+        int count = 0;
+        for (Card card : cards)
+        {
+            if (card.getDateExpired() != null)
+                expirations[count++] = card.getDateExpired().getTime();
+        }
+        
+        expirations = Arrays.copyOf(expirations, count);
+        Arrays.sort(expirations);
+        
+        return expirations;
+    }
+    
+    /**
+     * @return the given sorted times as a list of differences to their
+     * predecessors, which keeps the document short.
+     */
+    private static String formatExpirations(long[] expirations)
+    {
+        StringBuilder text = new StringBuilder();
+        long last = 0;
+        for (long expiration : expirations)
+        {
+            if (text.length() > 0)
+                text.append(' ');
+            
+            text.append(expiration - last);
+            last = expiration;
+        }
+        
+        return text.toString();
+    }
+    
+    private static long[] parseExpirations(String text)
+    {
+        if (text == null || text.trim().length() == 0)
+            return new long[0];
+        
+        String[] deltas = text.trim().split(" +"); //$NON-NLS-1$
+        long[] expirations = new long[deltas.length];
+        long last = 0;
+        for (int i = 0; i < deltas.length; i++)
+        {
+            last += Long.parseLong(deltas[i]);
+            expirations[i] = last;
+        }
+        
+        return expirations;
+    }
+    
+    private static void writeCard(Writer writer, Card card) throws IOException
+    {
+        writeStartTag(writer, CARD);
+        if (card.getId() != 0)
+            writeAttribute(writer, ID, Integer.toString(card.getId()));
+        
+        // save card sides
+        writeAttribute(writer, FRONTSIDE, card.getFrontSide().getText().getFormatted());
+        writeAttribute(writer, BACKSIDE, card.getBackSide().getText().getFormatted());
+        
+        // save dates
+        writeAttribute(writer, DATE_CREATED, formatDate(card.getDateCreated()));
+        writeAttribute(writer, DATE_MODIFIED, formatDate(card.getDateModified()));
+        writeAttribute(writer, DATE_TOUCHED, formatDate(card.getDateTouched()));
+        
+        if (card.getDateTested() != null)
+        {
+            writeAttribute(writer, DATE_TESTED, formatDate(card.getDateTested()));
+        }
+        if (card.getDateExpired() != null)
+        {
+            writeAttribute(writer, DATE_EXPIRED, formatDate(card.getDateExpired()));
+        }
+        
+        // save amount learned
+        writeAttribute(writer, AMOUNT_LEARNED_FRONT, 
+            Integer.toString(card.getLearnedAmount(true)));
+        
+        writeAttribute(writer, AMOUNT_LEARNED_BACK, 
+            Integer.toString(card.getLearnedAmount(false)));
+        
+        // save stats
+        writeAttribute(writer, TESTS_TOTAL, Integer.toString(card.getTestsTotal()));
+        writeAttribute(writer, TESTS_HIT, Integer.toString(card.getTestsPassed()));
+        writer.write(">\n"); //$NON-NLS-1$
+        
+        // save images
+        writeImages(writer, card.getFrontSide());
+        writeImages(writer, card.getBackSide());
+        
+        writeEndTag(writer, CARD);
+    }
+    
+    private static void writeImages(Writer writer, CardSide cardSide) 
+        throws IOException
+    {
+        List<String> imgIDs = cardSide.getImages();
+        
+        writeStartTag(writer, SIDE);
+        if (imgIDs.isEmpty())
+        {
+            writer.write("/>\n"); //$NON-NLS-1$
+            return;
+        }
+        
+        writer.write(">\n"); //$NON-NLS-1$
+        for (String imgID : imgIDs)
+        {
+            writeStartTag(writer, IMG);
+            writeAttribute(writer, IMG_ID, imgID);
+            writer.write("/>\n"); //$NON-NLS-1$
+        }
+        
+        writeEndTag(writer, SIDE);
+    }
+    
+    private static void writeLearnHistory(Writer writer, LearnHistory history) 
+        throws IOException
+    {
+        writeStartTag(writer, STATS_ROOT);
+        writer.write(">\n"); //$NON-NLS-1$
+        
+        for (SessionSummary summary : history.getSummaries())
+        {
+            writeStartTag(writer, SESSION);
+            writeAttribute(writer, STATS_START, formatDate(summary.getStart()));
+            writeAttribute(writer, STATS_END, formatDate(summary.getEnd()));
+            
+            writeAttribute(writer, STATS_PASSED, toInteger(summary.getPassed())); 
+            writeAttribute(writer, STATS_FAILED, toInteger(summary.getFailed()));
+            writeAttribute(writer, STATS_SKIPPED, toInteger(summary.getSkipped()));
+            writeAttribute(writer, STATS_RELEARNED, toInteger(summary.getRelearned()));
+            writer.write("/>\n"); //$NON-NLS-1$
+        }
+        
+        writeEndTag(writer, STATS_ROOT);
+    }
+    
+    /**
+     * Writes the opening part of a start tag. Attributes can be appended
+     * before the tag is closed.
+     */
+    private static void writeStartTag(Writer writer, String name) 
+        throws IOException
+    {
+        writer.write('<');
+        writer.write(name);
+    }
+    
+    private static void writeEndTag(Writer writer, String name) 
+        throws IOException
+    {
+        writer.write("</"); //$NON-NLS-1$
+        writer.write(name);
+        writer.write(">\n"); //$NON-NLS-1$
+    }
+    
+    private static void writeAttribute(Writer writer, String name, String value) 
+        throws IOException
+    {
+        writer.write(' ');
+        writer.write(name);
+        writer.write("=\""); //$NON-NLS-1$
+        
+        // escape markup and all whitespace that would otherwise be
+        // normalized to simple spaces by the parser
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            switch (c)
+            {
+            case '&':  writer.write("&amp;");  break; //$NON-NLS-1$
+            case '<':  writer.write("&lt;");   break; //$NON-NLS-1$
+            case '>':  writer.write("&gt;");   break; //$NON-NLS-1$
+            case '"':  writer.write("&quot;"); break; //$NON-NLS-1$
+            case '\n': writer.write("&#10;");  break; //$NON-NLS-1$
+            case '\r': writer.write("&#13;");  break; //$NON-NLS-1$
+            case '\t': writer.write("&#9;");   break; //$NON-NLS-1$
+            
+            default:
+                // skip control characters which are not allowed in XML
+                if (c >= 0x20)
+                    writer.write(c);
+            }
+        }
+        
+        writer.write('"');
+    }
+    
+    static void writeImageRepositoryToZip(ImageRepository repository, 
+        ZipOutputStream zipOut) throws IOException
+    {
+        for (ImageItem item : repository.getImageItems())
+        {
+            ZipEntry entry = new ZipEntry(IMAGE_FOLDER + File.separator + item.getId());
+            
+            // deflating already compressed images costs time but saves nothing
+            if (item.isCompressedFormat())
+            {
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(item.getLength());
+                entry.setCompressedSize(item.getLength());
+                entry.setCrc(item.getChecksum());
+            }
+            
+            zipOut.putNextEntry(entry);
+            item.writeTo(zipOut);
+            zipOut.closeEntry();            
+        }
+    }
+    
+    /**
+     * @return the zip entries of all top-level categories. The entry names
+     * contain the versions of the categories, so a category whose entry
+     * already exists in the previous file hasn't changed since then.
+     */
+    private static Map<Category, String> getShardEntries(Lesson lesson)
+    {
+        Map<Category, String> shards = new IdentityHashMap<Category, String>();
+        for (Category category : lesson.getRootCategory().getChildCategories())
+        {
+            shards.put(category, SHARD_FOLDER + 
+                Long.toHexString(category.getVersion()) + SHARD_EXTENSION);
+        }
+        
+        return shards;
+    }
+    
+    /**
+     * Loads all cards of lazily loaded categories that would be lost when the
+     * lesson is saved to given file. These are the cards of categories that
+     * were modified since they were loaded, because only unchanged categories
+     * are copied to the saved file, or all cards if the lesson isn't saved
+     * sharded. Has to be called before a snapshot of the lesson is saved.
+     */
+    public static void loadCardsForSave(Lesson lesson, File file)
+    {
+        boolean sharded = Settings.loadIsSaveCompressed() && 
+            Settings.loadIsSaveSharded() && !BinaryBuilder.isBinaryFile(file);
+        
+        loadCardsNotIn(lesson, sharded ? file : null);
+    }
+    
+    /**
+     * Loads the cards of all top-level categories that are loaded lazily from
+     * another file than given file or that were modified since they were
+     * loaded. Loads all cards if given file is <code>null</code>.
+     */
+    private static void loadCardsNotIn(Lesson lesson, File file)
+    {
+        Category root = lesson.getRootCategory();
+        if (!root.hasUnloadedCards())
+            return;
+        
+        File absoluteFile = file != null ? file.getAbsoluteFile() : null;
+        Map<Category, String> shards = getShardEntries(lesson);
+        for (Category category : root.getChildCategories())
+        {
+            for (Category child : category.getSubtreeList())
+            {
+                CardLoader loader = child.getCardLoader();
+                if (!(loader instanceof ShardCardLoader))
+                    continue;
+                
+                LazyShard shard = ((ShardCardLoader)loader).m_shard;
+                if (!shard.m_file.equals(absoluteFile) || 
+                    !shard.m_entry.equals(shards.get(category)))
+                {
+                    category.loadCards();
+                    break;
+                }
+            }
+        }
+        
+        // anything else that is still lazy can't be copied either
+        if (file == null)
+            root.loadCards();
+    }
+    
+    /**
+     * Writes the top-level categories to entries of their own. Categories
+     * which haven't changed since the lesson was last saved are copied from
+     * the file of the lesson. All other categories are written in parallel.
+     * The entries hold GZIP compressed documents and are stored as they are,
+     * so that they can be copied without compressing them again.
+     */
+    private static void writeShardsToZip(ZipOutputStream zipOut, Lesson lesson, 
+        File file, Map<Category, String> shards) throws IOException
+    {
+        List<Category> categories = lesson.getRootCategory().getChildCategories();
+        ZipFile source = openShardSource(lesson.getFile(), file);
+        
+        try
+        {
+            List<Future<byte[]>> writes = new ArrayList<Future<byte[]>>();
+            for (final Category category : categories)
+            {
+                if (source != null && source.getEntry(shards.get(category)) != null)
+                {
+                    writes.add(null);
+                    continue;
+                }
+                
+                writes.add(SHARD_POOL.submit(new Callable<byte[]>() {
+                    public byte[] call() throws IOException
+                    {
+                        return writeShard(category);
+                    }
+                }));
+            }
+            
+            for (int i = 0; i < categories.size(); i++)
+            {
+                String name = shards.get(categories.get(i));
+                byte[] data = writes.get(i) != null ? 
+                    getShardResult(writes.get(i)) : readShardEntry(source, name);
+                
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                
+                ZipEntry entry = new ZipEntry(name);
+                entry.setMethod(ZipEntry.STORED);
+                entry.setSize(data.length);
+                entry.setCompressedSize(data.length);
+                entry.setCrc(crc.getValue());
+                
+                zipOut.putNextEntry(entry);
+                zipOut.write(data);
+                zipOut.closeEntry();
+            }
+        }
+        catch (XMLStreamException e)
+        {
+            throw new IOException(e.getMessage(), e);
+        }
+        finally
+        {
+            if (source != null)
+                source.close();
+        }
+    }
+    
+    private static byte[] writeShard(Category category) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer writer = new BufferedWriter(new OutputStreamWriter(
+            new GZIPOutputStream(bytes), "UTF-8")); //$NON-NLS-1$
+        
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"); //$NON-NLS-1$
+        writeCategory(writer, category, null);
+        writer.close();
+        
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * @return the file that unchanged categories can be copied from or
+     * <code>null</code> if there is none. This is never the file that is
+     * currently written.
+     */
+    private static ZipFile openShardSource(File source, File target)
+    {
+        try
+        {
+            if (source == null || !source.isFile() || 
+                source.getCanonicalFile().equals(target.getCanonicalFile()) ||
+                detectContainer(source) != Container.ZIP)
+            {
+                return null;
+            }
+            
+            return new ZipFile(source);
+        }
+        catch (IOException e)
+        {
+            Main.logThrowable("Could not read categories from "+source, e);
+        }
+        
+        return null;
+    }
+    
+    private static byte[] readShardEntry(ZipFile zipFile, String name) 
+        throws IOException
+    {
+        ZipEntry entry = zipFile.getEntry(name);
+        byte[] data = new byte[(int)entry.getSize()];
+        
+        InputStream in = zipFile.getInputStream(entry);
+        try
+        {
+            new DataInputStream(in).readFully(data);
+        }
+        finally
+        {
+            in.close();
+        }
+        
+        return data;
+    }
+    
+    private static void loadCategory(Category category, Category father, 
+        Element categoryTag, int depth)
+    {
+        // for all child tags in category tag
+        int deckLevel = 0;
+        NodeList childs  = categoryTag.getChildNodes();
+        for (int i = 0; i < childs.getLength(); i++)
+        { 
+            Node child = childs.item(i);
+            
+            // if deck tag
+            if (child.getNodeName().equalsIgnoreCase(DECK))
+            {
+                // for all card tags in deck tag
+                NodeList childTags = child.getChildNodes();
+                for (int j = 0; j < childTags.getLength(); j++)
+                {
+                    Node childTag = childTags.item(j);
+                    
+                    // if its a card child tag
+                    if (!childTag.getNodeName().equalsIgnoreCase(CARD))
+                        continue;
+                    
+                    Card card = loadCard(childTag);
+                    category.addCard(card, deckLevel);
+                }
+                
+                deckLevel++;
+            }
+            // if category tag
+            else if (child.getNodeName().equalsIgnoreCase(CATEGORY))
+            {
+                Element catTag = (Element)child;
+                String name = catTag.getAttribute(NAME);
+                
+                Category childCategory = category.getChildCategory(name);
+                if (childCategory == null)
+                {
+                    childCategory = new Category(name);
+                    childCategory.setId(readInt(catTag.getAttributes(), ID));
+                    category.addCategoryChild(childCategory);
+                }
+                
+                loadCategory(childCategory, category, catTag, depth + 1);
+            }
+        }
+    }
 
     private static Card loadCard(Node cardTag)
     {
-        NamedNodeMap attributes = cardTag.getAttributes();
+        NamedNodeMap attributes = cardTag.getAttributes();
+        
+        // read front/backside
+        String frontSide = attributes.getNamedItem(FRONTSIDE).getNodeValue();
+        String backSide  = attributes.getNamedItem(BACKSIDE).getNodeValue();
+        
+        // read dates
+        Date dateCreated  = readDate(attributes, DATE_CREATED);
+        Date dateModified = readDate(attributes, DATE_MODIFIED);
+        Date dateTested   = readDate(attributes, DATE_TESTED);
+        Date dateExpired  = readDate(attributes, DATE_EXPIRED);
+        Date dateTouched  = readDate(attributes, DATE_TOUCHED);
+        
+        // just to be sure
+        if (dateCreated == null)
+        {
+            dateCreated = dateTested != null ? dateTested : new Date();
+        }
+        if (dateTouched == null)
+        {
+            dateTouched = dateTested != null ? dateTested : dateCreated;
+        }
+        
+        // read amount learned
+        int frontAmountLearned = readInt(attributes, AMOUNT_LEARNED_FRONT);
+        int backAmountLearned = readInt(attributes, AMOUNT_LEARNED_BACK);
+        
+        // read stats
+        int testsTotal = readInt(attributes, TESTS_TOTAL);
+        int testsHit   = readInt(attributes, TESTS_HIT);
+        
+        // create card
+        Card card = new Card(dateCreated, frontSide, backSide);
+        card.setId(readInt(attributes, ID));
+        if (dateModified != null)
+            card.setDateModified(dateModified);
+        
+        card.setDateTested(dateTested);
+        card.setDateExpired(dateExpired);
+        card.setDateTouched(dateTouched);
+        
+        card.setLearnedAmount(true, frontAmountLearned);
+        card.setLearnedAmount(false, backAmountLearned);
+        card.incStats(testsHit, testsTotal);
+        
+        // load images
+        card.getFrontSide().setImages(loadImages(cardTag, 0));
+        card.getBackSide().setImages(loadImages(cardTag, 1));
+        
+        return card;
+    }
+    
+    private static List<String> loadImages(Node cardTag, int side)
+    {
+        int sideIndex = 0;
+        NodeList cardChildren = cardTag.getChildNodes();
+        for (int i = 0; i < cardChildren.getLength(); i++)
+        {
+            Node sideTag = cardChildren.item(i);
+            
+            if (!sideTag.getNodeName().equalsIgnoreCase(SIDE))
+                continue;
+            
+            if (side != sideIndex)
+            {
+                sideIndex++;
+                continue;
+            }
+            
+            NodeList childTags = sideTag.getChildNodes();
+            List<String> imgIDs =  new ArrayList<String>(childTags.getLength());
+            for (int j = 0; j < childTags.getLength(); j++)
+            {
+                Node childTag = childTags.item(j);
+                
+                if (!childTag.getNodeName().equalsIgnoreCase(IMG))
+                    continue;
+                
+                Node item = childTag.getAttributes().getNamedItem(IMG_ID);
+                if (item == null)
+                    continue;
+                
+                imgIDs.add(item.getNodeValue());
+            }    
+            
+            return imgIDs;
+        }
+        
+        return new ArrayList<String>();
+    }
+    
+    /**
+     * Determines the container format of the lesson file by looking at its
+     * first bytes.
+     */
+    private static Container detectContainer(File file) throws IOException
+    {
+        InputStream in = new FileInputStream(file);
+        try
+        {
+            int b0 = in.read();
+            int b1 = in.read();
+            int b2 = in.read();
+            int b3 = in.read();
+            
+            if (b0 == 0x1f && b1 == 0x8b)
+                return Container.GZIP;
+            
+            if (b0 == 'P' && b1 == 'K' && b2 == 0x03 && b3 == 0x04)
+                return Container.ZIP;
+            
+            return Container.PLAIN;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+    
+    /**
+     * @return the zip entries of the top-level categories that are stored in
+     * entries of their own, mapped to their skeletons. The skeletons are
+     * <code>null</code> if they weren't saved or read.
+     */
+    private static Map<String, Skeleton> loadLesson(InputStream in, 
+        Lesson lesson, boolean streaming) throws SAXException, IOException, 
+        ParserConfigurationException, XMLStreamException
+    {
+        Map<String, Skeleton> shards = new LinkedHashMap<String, Skeleton>();
+        if (streaming)
+        {
+            readLesson(in, lesson, shards);
+        }
+        else
+        {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            Document doc = factory.newDocumentBuilder().parse(in);
+    
+            String journalId = doc.getDocumentElement().getAttribute(JOURNAL);
+            if (journalId.length() > 0)
+                lesson.setJournalId(Long.parseLong(journalId));
+            
+            // there must be a root category
+            Element categoryTag = (Element)doc.getElementsByTagName(CATEGORY).item(0);
+            lesson.getRootCategory().setId(readInt(categoryTag.getAttributes(), ID));
+            loadCategory(lesson.getRootCategory(), null, categoryTag, 0);
+            loadLearnHistory(doc, lesson.getLearnHistory());
+            
+            NodeList shardTags = categoryTag.getElementsByTagName(SHARD);
+            for (int i = 0; i < shardTags.getLength(); i++)
+                shards.put(((Element)shardTags.item(i)).getAttribute(SHARD_ENTRY), null);
+        }
+        
+        return shards;
+    }
+    
+    /**
+     * Reads the lesson document with a pull parser. Categories and cards are
+     * created directly from the parser events, so that no intermediate
+     * document tree is held in memory.
+     */
+    private static void readLesson(InputStream in, Lesson lesson, 
+        Map<String, Skeleton> shards) throws XMLStreamException
+    {
+        XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+        
+        try
+        {
+            boolean categoryRead = false;
+            while (reader.hasNext())
+            {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT)
+                    continue;
+                
+                String name = reader.getLocalName();
+                
+                if (name.equals(LESSON))
+                {
+                    String journalId = reader.getAttributeValue(null, JOURNAL);
+                    if (journalId != null)
+                        lesson.setJournalId(Long.parseLong(journalId));
+                }
+                // there must be a root category
+                else if (!categoryRead && name.equals(CATEGORY))
+                {
+                    lesson.getRootCategory().setId(readInt(reader, ID));
+                    readCategory(reader, lesson.getRootCategory(), shards);
+                    categoryRead = true;
+                }
+                else if (name.equals(STATS_ROOT))
+                {
+                    readLearnHistory(reader, lesson.getLearnHistory());
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+    
+    /**
+     * Reads all decks and child categories of the category tag that the reader
+     * is currently positioned at. Returns after reading its end tag.
+     * 
+     * @param shards the map that the zip entries of child categories, which
+     * are stored in entries of their own, and their skeletons are added to.
+     * Can be <code>null</code>.
+     */
+    private static void readCategory(XMLStreamReader reader, Category category, 
+        Map<String, Skeleton> shards) throws XMLStreamException
+    {
+        int deckLevel = 0;
+        while (nextTag(reader))
+        {
+            String name = reader.getLocalName();
+            
+            // if deck tag
+            if (name.equalsIgnoreCase(DECK))
+            {
+                // for all card tags in deck tag
+                while (nextTag(reader))
+                {
+                    if (reader.getLocalName().equalsIgnoreCase(CARD))
+                    {
+                        Card card = readCard(reader);
+                        category.addCard(card, deckLevel);
+                    }
+                    else
+                    {
+                        skipTag(reader);
+                    }
+                }
+                
+                deckLevel++;
+            }
+            // if category tag
+            else if (name.equalsIgnoreCase(CATEGORY))
+            {
+                String catName = reader.getAttributeValue(null, NAME);
+                if (catName == null)
+                    catName = ""; //$NON-NLS-1$
+                
+                Category childCategory = category.getChildCategory(catName);
+                if (childCategory == null)
+                {
+                    childCategory = new Category(catName);
+                    childCategory.setId(readInt(reader, ID));
+                    category.addCategoryChild(childCategory);
+                }
+                
+                readCategory(reader, childCategory, null);
+            }
+            else if (shards != null && name.equals(SHARD))
+            {
+                String entry = reader.getAttributeValue(null, SHARD_ENTRY);
+                
+                // lessons of older versions have no skeletons
+                Skeleton skeleton = null;
+                while (nextTag(reader))
+                {
+                    if (skeleton == null && reader.getLocalName().equals(CATEGORY))
+                        skeleton = readSkeleton(reader);
+                    else
+                        skipTag(reader);
+                }
+                
+                if (entry != null)
+                    shards.put(entry, skeleton);
+            }
+            else
+            {
+                skipTag(reader);
+            }
+        }
+    }
+    
+    /**
+     * Reads the skeleton of the category tag that the reader is currently
+     * positioned at. Returns after reading its end tag.
+     */
+    private static Skeleton readSkeleton(XMLStreamReader reader) 
+        throws XMLStreamException
+    {
+        Skeleton skeleton = new Skeleton();
+        skeleton.m_name = reader.getAttributeValue(null, NAME);
+        if (skeleton.m_name == null)
+            skeleton.m_name = ""; //$NON-NLS-1$
+        skeleton.m_id = readInt(reader, ID);
+        
+        List<Integer> deckSizes = new ArrayList<Integer>();
+        List<long[]> expirations = new ArrayList<long[]>();
+        while (nextTag(reader))
+        {
+            String name = reader.getLocalName();
+            if (name.equals(DECK))
+            {
+                deckSizes.add(readInt(reader, SKELETON_CARDS));
+                expirations.add(parseExpirations(
+                    reader.getAttributeValue(null, SKELETON_EXPIRATIONS)));
+                skipTag(reader);
+            }
+            else if (name.equals(CATEGORY))
+            {
+                skeleton.m_children.add(readSkeleton(reader));
+            }
+            else
+            {
+                skipTag(reader);
+            }
+        }
+        
+        skeleton.m_deckSizes = new int[deckSizes.size()];
+        for (int i = 0; i < deckSizes.size(); i++)
+            skeleton.m_deckSizes[i] = deckSizes.get(i);
         
+        skeleton.m_expirations = expirations.toArray(new long[expirations.size()][]);
+        
+        return skeleton;
+    }
+    
+    private static Card readCard(XMLStreamReader reader) throws XMLStreamException
+    {
         // read front/backside
-        String frontSide = attributes.getNamedItem(FRONTSIDE).getNodeValue();
-        String backSide  = attributes.getNamedItem(BACKSIDE).getNodeValue();
+        String frontSide = reader.getAttributeValue(null, FRONTSIDE);
+        String backSide  = reader.getAttributeValue(null, BACKSIDE);
         
         // read dates
-        Date dateCreated  = readDate(attributes, DATE_CREATED);
-        Date dateModified = readDate(attributes, DATE_MODIFIED);
-        Date dateTested   = readDate(attributes, DATE_TESTED);
-        Date dateExpired  = readDate(attributes, DATE_EXPIRED);
-        Date dateTouched  = readDate(attributes, DATE_TOUCHED);
+        Date dateCreated  = readDate(reader, DATE_CREATED);
+        Date dateModified = readDate(reader, DATE_MODIFIED);
+        Date dateTested   = readDate(reader, DATE_TESTED);
+        Date dateExpired  = readDate(reader, DATE_EXPIRED);
+        Date dateTouched  = readDate(reader, DATE_TOUCHED);
         
         // just to be sure
         if (dateCreated == null)
@@ -543,15 +1748,16 @@ public class XmlBuilder
         }
         
         // read amount learned
-        int frontAmountLearned = readInt(attributes, AMOUNT_LEARNED_FRONT);
-        int backAmountLearned = readInt(attributes, AMOUNT_LEARNED_BACK);
+        int frontAmountLearned = readInt(reader, AMOUNT_LEARNED_FRONT);
+        int backAmountLearned = readInt(reader, AMOUNT_LEARNED_BACK);
         
         // read stats
-        int testsTotal = readInt(attributes, TESTS_TOTAL);
-        int testsHit   = readInt(attributes, TESTS_HIT);
+        int testsTotal = readInt(reader, TESTS_TOTAL);
+        int testsHit   = readInt(reader, TESTS_HIT);
         
         // create card
         Card card = new Card(dateCreated, frontSide, backSide);
+        card.setId(readInt(reader, ID));
         if (dateModified != null)
             card.setDateModified(dateModified);
         
@@ -563,106 +1769,296 @@ public class XmlBuilder
         card.setLearnedAmount(false, backAmountLearned);
         card.incStats(testsHit, testsTotal);
         
-        // load images
-        card.getFrontSide().setImages(loadImages(cardTag, 0));
-        card.getBackSide().setImages(loadImages(cardTag, 1));
+        // load images. the first side tag holds the frontside images, the
+        // second one the backside images.
+        int sideIndex = 0;
+        while (nextTag(reader))
+        {
+            if (!reader.getLocalName().equalsIgnoreCase(SIDE) || sideIndex > 1)
+            {
+                skipTag(reader);
+                continue;
+            }
+            
+            List<String> imgIDs = new ArrayList<String>();
+            while (nextTag(reader))
+            {
+                if (reader.getLocalName().equalsIgnoreCase(IMG))
+                {
+                    String id = reader.getAttributeValue(null, IMG_ID);
+                    if (id != null)
+                        imgIDs.add(id);
+                }
+                
+                skipTag(reader);
+            }
+            
+            CardSide cardSide = sideIndex == 0 ? 
+                card.getFrontSide() : card.getBackSide();
+            cardSide.setImages(imgIDs);
+            
+            sideIndex++;
+        }
         
         return card;
     }
     
-    private static List<String> loadImages(Node cardTag, int side)
+    private static void readLearnHistory(XMLStreamReader reader, 
+        LearnHistory history) throws XMLStreamException
     {
-        int sideIndex = 0;
-        NodeList cardChildren = cardTag.getChildNodes();
-        for (int i = 0; i < cardChildren.getLength(); i++)
+        while (nextTag(reader))
         {
-            Node sideTag = cardChildren.item(i);
+            Date start = readDate(reader, STATS_START); 
+            Date end = readDate(reader, STATS_END); 
             
-            if (!sideTag.getNodeName().equalsIgnoreCase(SIDE))
-                continue;
+            int passed = readInt(reader, STATS_PASSED); 
+            int failed = readInt(reader, STATS_FAILED);
+            int skipped = readInt(reader, STATS_SKIPPED);
+            int relearned = readInt(reader, STATS_RELEARNED);
             
-            if (side != sideIndex)
+            history.addSummary(start, end, passed, failed, skipped, relearned);
+            skipTag(reader);
+        }
+        
+        history.setIsLoaded(true);
+    }
+    
+    /**
+     * Advances the reader to the next start tag or to the end tag of the
+     * current element, ignoring all text and comments.
+     * 
+     * @return <code>true</code> if a child start tag was reached.
+     * <code>false</code> if the end tag of the current element was reached.
+     */
+    private static boolean nextTag(XMLStreamReader reader) 
+        throws XMLStreamException
+    {
+        while (reader.hasNext())
+        {
+            int event = reader.next();
+            
+            if (event == XMLStreamConstants.START_ELEMENT)
+                return true;
+            
+            if (event == XMLStreamConstants.END_ELEMENT)
+                return false;
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Skips the current element including all of its children.
+     */
+    private static void skipTag(XMLStreamReader reader) 
+        throws XMLStreamException
+    {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext())
+        {
+            int event = reader.next();
+            
+            if (event == XMLStreamConstants.START_ELEMENT)
+                depth++;
+            
+            else if (event == XMLStreamConstants.END_ELEMENT)
+                depth--;
+        }
+    }
+    
+    /**
+     * Reads the top-level categories that are stored in entries of their own
+     * in parallel and adds them to the root category. The categories get the
+     * versions that they were saved with.
+     * 
+     * @param lazyFile the file of the lesson if the cards of categories with
+     * a skeleton should be loaded on demand. <code>null</code> if all
+     * categories should be read right away.
+     */
+    private static void loadShardsFromZip(final ZipFile zipFile, Lesson lesson, 
+        Map<String, Skeleton> shards, File lazyFile) 
+        throws IOException, XMLStreamException
+    {
+        List<Future<Category>> reads = new ArrayList<Future<Category>>();
+        for (final String shard : shards.keySet())
+        {
+            if (lazyFile != null && shards.get(shard) != null)
             {
-                sideIndex++;
+                reads.add(null);
                 continue;
             }
             
-            NodeList childTags = sideTag.getChildNodes();
-            List<String> imgIDs =  new ArrayList<String>(childTags.getLength());
-            for (int j = 0; j < childTags.getLength(); j++)
-            {
-                Node childTag = childTags.item(j);
-                
-                if (!childTag.getNodeName().equalsIgnoreCase(IMG))
-                    continue;
-                
-                Node item = childTag.getAttributes().getNamedItem(IMG_ID);
-                if (item == null)
-                    continue;
-                
-                imgIDs.add(item.getNodeValue());
-            }    
-            
-            return imgIDs;
+            reads.add(SHARD_POOL.submit(new Callable<Category>() {
+                public Category call() throws IOException, XMLStreamException
+                {
+                    return readShard(zipFile, shard);
+                }
+            }));
         }
         
-        return new ArrayList<String>();
+        int i = 0;
+        for (String shard : shards.keySet())
+        {
+            Future<Category> read = reads.get(i++);
+            Category category = read != null ? getShardResult(read) : 
+                createLazyCategory(new LazyShard(lazyFile, shard, lesson), 
+                    shards.get(shard), new ArrayList<String>());
+            
+            lesson.getRootCategory().addCategoryChild(category);
+            category.setVersion(getShardVersion(shard));
+        }
     }
     
-    private static void loadImageRepositoryFromDisk(File dir)
+    /**
+     * @return a category tree of the given skeleton whose cards are loaded
+     * on demand from the given shard.
+     */
+    private static Category createLazyCategory(LazyShard shard, 
+        Skeleton skeleton, List<String> path)
     {
-        ImageRepository repository = ImageRepository.getInstance();
+        Category category = new Category(skeleton.m_name);
+        category.setId(skeleton.m_id);
+        category.setCardLoader(new ShardCardLoader(shard, path, skeleton));
+        shard.m_categoryCount++;
         
-        File imgDir = new File(dir.getParent() + File.separator + IMAGE_FOLDER);
-        File[] files = imgDir.listFiles();
+        for (Skeleton child : skeleton.m_children)
+        {
+            List<String> childPath = new ArrayList<String>(path);
+            childPath.add(child.m_name);
+            
+            category.addCategoryChild(createLazyCategory(shard, child, childPath));
+        }
         
-        if (files == null)
-            return;
+        return category;
+    }
+    
+    private static Category readShard(File file, String name) 
+        throws IOException
+    {
+        ZipFile zipFile = new ZipFile(file);
+        try
+        {
+            return readShard(zipFile, name);
+        }
+        catch (XMLStreamException e)
+        {
+            throw new IOException(e.getMessage(), e);
+        }
+        finally
+        {
+            zipFile.close();
+        }
+    }
+    
+    private static Category readShard(ZipFile zipFile, String name) 
+        throws IOException, XMLStreamException
+    {
+        ZipEntry entry = zipFile.getEntry(name);
+        if (entry == null)
+            throw new IOException("Missing category zip entry "+name);
         
-        for (File file : files)
+        InputStream in = new GZIPInputStream(zipFile.getInputStream(entry));
+        try
         {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
             try
             {
-                FileInputStream in = new FileInputStream(file);
-                repository.addImage(in, file.getName());
-            }
-            catch (FileNotFoundException e)
-            {
-                // ignore for now
+                if (reader.nextTag() != XMLStreamConstants.START_ELEMENT || 
+                    !reader.getLocalName().equals(CATEGORY))
+                {
+                    throw new IOException("Invalid category zip entry "+name);
+                }
+                
+                String catName = reader.getAttributeValue(null, NAME);
+                Category category = new Category(catName != null ? catName : ""); //$NON-NLS-1$
+                category.setId(readInt(reader, ID));
+                readCategory(reader, category, null);
+                
+                return category;
             }
-            catch (IOException e)
+            finally
             {
-                Main.logThrowable("could not load image "+file, e);
+                reader.close();
             }
         }
+        finally
+        {
+            in.close();
+        }
     }
     
-    private static void loadImageFromZipEntry(InputStream in, ZipEntry entry) 
-        throws IOException
+    private static long getShardVersion(String name)
     {
-        ImageRepository repository = ImageRepository.getInstance();
-        
-        String name = entry.getName();
-        if (!name.startsWith(IMAGE_FOLDER))
-            return;
+        String version = name.substring(SHARD_FOLDER.length(), 
+            name.length() - SHARD_EXTENSION.length());
         
-        repository.addImage(in, name.substring(IMAGE_FOLDER.length()+1));
+        return new BigInteger(version, 16).longValue();
+    }
+    
+    /**
+     * Waits for a shard to be read or written and rethrows its exceptions.
+     */
+    private static <T> T getShardResult(Future<T> future) 
+        throws IOException, XMLStreamException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            throw new IOException(e.getMessage(), e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException)cause;
+            
+            if (cause instanceof XMLStreamException)
+                throw (XMLStreamException)cause;
+            
+            throw new IOException(cause.getMessage(), cause);
+        }
     }
     
-    private static void removeUnusedImagesFromRepository(Lesson lesson)
+    private static void loadImageRepositoryFromDisk(ImageRepository repository, 
+        File dir)
     {
-        Set<String> usedImageIDs = new HashSet<String>();
+        File imgDir = new File(dir.getParent() + File.separator + IMAGE_FOLDER);
+        File[] files = imgDir.listFiles();
+        
+        if (files == null)
+            return;
         
-        List<Card> allCards = lesson.getRootCategory().getCards();
-        for (Card card : allCards)
+        // images are only read when they are needed
+        for (File file : files)
         {
-            usedImageIDs.addAll(card.getFrontSide().getImages());
-            usedImageIDs.addAll(card.getBackSide().getImages());
+            if (file.isFile())
+                repository.addImage(file);
         }
+        
+        repository.setWrittenTo(imgDir);
+    }
     
-        ImageRepository.getInstance().retain(usedImageIDs);
+    static void loadImageRepositoryFromZip(ImageRepository repository, 
+        File file, ZipFile zipFile) 
+    {
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements())
+        {
+            ZipEntry entry = entries.nextElement();
+            
+            String name = entry.getName();
+            if (!name.startsWith(IMAGE_FOLDER) || entry.isDirectory())
+                continue;
+            
+            // images are only read when they are needed
+            repository.addImage(file, name, 
+                name.substring(IMAGE_FOLDER.length()+1), entry.getSize());
+        }
     }
-
+    
     private static String toInteger(float num)
     {
         return Integer.toString((int)num);
@@ -674,22 +2070,68 @@ public class XmlBuilder
         return (num != null) ? Integer.parseInt(num.getNodeValue()) : 0;
     }
     
+    private static int readInt(XMLStreamReader reader, String attributeItem)
+    {
+        String num = reader.getAttributeValue(null, attributeItem);
+        return (num != null) ? Integer.parseInt(num) : 0;
+    }
+    
     private static Date readDate(NamedNodeMap attributes, String attributeItem)
     {
         Node date = attributes.getNamedItem(attributeItem);
+        return date != null ? parseDate(date.getNodeValue()) : null;
+    }
+    
+    private static Date readDate(XMLStreamReader reader, String attributeItem)
+    {
+        String date = reader.getAttributeValue(null, attributeItem);
+        return date != null ? parseDate(date) : null;
+    }
+    
+    /**
+     * Dates are written as milliseconds since the epoch, which is independent
+     * of the locale and doesn't need any shared state.
+     */
+    private static String formatDate(Date date)
+    {
+        return Long.toString(date.getTime());
+    }
+    
+    /**
+     * Dates can be given in milliseconds or in the legacy format. This is
+     * decided for every date, so that lessons with both can be read.
+     */
+    private static Date parseDate(String date)
+    {
+        if (isMillis(date))
+            return new Date(Long.parseLong(date));
         
-        if (date != null)
+        try
         {
-            try
-            {
-                return DATE_FORMAT.parse(date.getNodeValue());
-            }
-            catch (ParseException e)
-            {
-                Main.logThrowable("Could not parse date.", e);
-            }
+            return LEGACY_DATE_CODEC.get().parse(date);
+        }
+        catch (ParseException e)
+        {
+            Main.logThrowable("Could not parse date.", e);
         }
         
         return null;
     }
+    
+    private static boolean isMillis(String date)
+    {
+        int length = date.length();
+        int start = length > 0 && date.charAt(0) == '-' ? 1 : 0;
+        if (start == length)
+            return false;
+        
+        for (int i = start; i < length; i++)
+        {
+            char c = date.charAt(i);
+            if (c < '0' || c > '9')
+                return false;
+        }
+        
+        return true;
+    }
 }
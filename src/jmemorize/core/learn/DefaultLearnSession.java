@@ -36,6 +36,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import jmemorize.core.Card;
+import jmemorize.core.CardView.Filter;
 import jmemorize.core.Category;
 import jmemorize.core.CategoryObserver;
 import jmemorize.util.EquivalenceClassSet;
@@ -768,36 +769,23 @@ public class DefaultLearnSession implements CategoryObserver, LearnSession
         boolean learnUnlearnedCards, boolean learnExpiredCards, 
         Map<Category, Integer> categoryGroupOrder)
     {
-        List<Card> cards = new ArrayList<Card>();
+        List<Integer> levels = new LinkedList<Integer>();
+        List<CardInfo> cardInfos = new ArrayList<CardInfo>();
+        m_cardsInfoMap.clear();
         
+        // the cards of the category are visited without copying them
         if (learnUnlearnedCards)
-            cards.addAll(m_category.getUnlearnedCards());
+            addCardInfos(m_category.getCardView(0, Filter.ALL), cardInfos, levels);
         
         if (learnExpiredCards)
-            cards.addAll(m_category.getExpiredCards());
+            addCardInfos(m_category.getCardView(-1, Filter.EXPIRED), cardInfos, levels);
         
         if (!learnUnlearnedCards && !learnExpiredCards)
-            cards.addAll(selectedCards);
-        
-        
-        List<Integer> levels = new LinkedList<Integer>();
-        List<CardInfo> cardInfos = new ArrayList<CardInfo>(cards.size());
-        m_cardsInfoMap.clear();
-        
-        for (Card card : cards)
-        {
-            CardInfo cardInfo = new CardInfo(card);
-            cardInfos.add(cardInfo);
-            
-            m_cardsInfoMap.put(card, cardInfo);
-            
-            if (!levels.contains(card.getLevel()))
-                levels.add(card.getLevel());
-        }
+            addCardInfos(selectedCards, cardInfos, levels);
         
         // shuffle random cards
         float shuffleRatio = m_settings.getShuffleRatio();
-        int shuffledCardsCount = (int)(shuffleRatio * cards.size());
+        int shuffledCardsCount = (int)(shuffleRatio * cardInfos.size());
         
         
         List<CardInfo> shuffledCardInfos = new ArrayList<CardInfo>(shuffledCardsCount);
@@ -830,6 +818,21 @@ public class DefaultLearnSession implements CategoryObserver, LearnSession
         return cardSet;
     }
     
+    private void addCardInfos(Collection<Card> cards, List<CardInfo> cardInfos, 
+        List<Integer> levels)
+    {
+        for (Card card : cards)
+        {
+            CardInfo cardInfo = new CardInfo(card);
+            cardInfos.add(cardInfo);
+            
+            m_cardsInfoMap.put(card, cardInfo);
+            
+            if (!levels.contains(card.getLevel()))
+                levels.add(card.getLevel());
+        }
+    }
+    
     private Set<Card> toCardSet(Collection<CardInfo> cardInfos)
     {
         HashSet<Card> set = new HashSet<Card>();
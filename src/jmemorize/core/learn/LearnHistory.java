@@ -354,6 +354,19 @@ public class LearnHistory
         m_summaries.add(sessionSummary);
     }
     
+    /**
+     * @return a copy of this history. Session summaries can't be changed, so
+     * they are shared with the copy.
+     */
+    public LearnHistory copy()
+    {
+        LearnHistory history = new LearnHistory();
+        history.m_summaries.addAll(m_summaries);
+        history.m_isLoaded = m_isLoaded;
+        
+        return history;
+    }
+    
     public void setIsLoaded(boolean loaded)
     {
         m_isLoaded = loaded;
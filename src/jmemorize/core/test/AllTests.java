@@ -30,6 +30,9 @@ public class AllTests
         suite.addTestSuite(CardTest.class);
         suite.addTestSuite(CategoryTest.class);
         suite.addTestSuite(LessonProviderTest.class);
+        suite.addTestSuite(LessonJournalTest.class);
+        suite.addTestSuite(LessonSummaryTest.class);
+        suite.addTestSuite(AutoSaverTest.class);
         suite.addTestSuite(FormattedTextTest.class);
         
         suite.addTestSuite(EquivalenceClassSetTest.class);
@@ -44,6 +47,9 @@ public class AllTests
         suite.addTestSuite(LocalizationTest.class);
         suite.addTestSuite(ImageRepositoryTest.class);
         suite.addTestSuite(CSVToolkitTest.class);
+        suite.addTestSuite(XmlBuilderTest.class);
+        suite.addTestSuite(BinaryBuilderTest.class);
+        suite.addTestSuite(CommandLineTest.class);
         //$JUnit-END$
         return suite;
     }
@@ -0,0 +1,159 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2008 Riad Djemili and contributors
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.core.test;
+
+import java.io.File;
+
+import javax.swing.SwingUtilities;
+
+import jmemorize.core.AutoSaver;
+import jmemorize.core.Card;
+import jmemorize.core.Lesson;
+import jmemorize.core.Main;
+import jmemorize.core.io.LessonJournal;
+import jmemorize.core.io.LessonSummary;
+import jmemorize.core.test.stubs.LearnSessionProviderStub;
+import junit.framework.TestCase;
+
+public class AutoSaverTest extends TestCase
+{
+    private final static File TEST_FILE = new File("./test-autosave.jml");
+    
+    private Main                     m_main;
+    private LearnSessionProviderStub m_sessionProvider;
+    private AutoSaver                m_autoSaver;
+    
+    protected void setUp() throws Exception
+    {
+        m_main = new Main();
+        m_main.setJournaling(false);
+        m_main.loadLesson(new File("test/fixtures/simple_de.jml"));
+        m_main.saveLesson(m_main.getLesson(), TEST_FILE);
+        
+        m_sessionProvider = new LearnSessionProviderStub();
+        m_autoSaver = new AutoSaver(m_main, m_sessionProvider, 50, 1000);
+    }
+    
+    protected void tearDown() throws Exception
+    {
+        m_autoSaver.stop();
+        m_main.waitForSaves();
+        
+        TEST_FILE.delete();
+        LessonJournal.getFile(TEST_FILE).delete();
+        LessonSummary.getFile(TEST_FILE).delete();
+    }
+    
+    public void testModificationsAreSavedOnce() throws Exception
+    {
+        Lesson lesson = m_main.getLesson();
+        int cards = lesson.getRootCategory().getCards().size();
+        
+        for (int i = 0; i < 5; i++)
+            addCard();
+        
+        waitForSaves(1);
+        
+        assertFalse(lesson.canSave());
+        assertEquals(1, m_autoSaver.getSaveCount());
+        assertEquals(TEST_FILE.length(), m_autoSaver.getLastSaveSize());
+        
+        m_main.loadLesson(TEST_FILE);
+        assertEquals(cards + 5, m_main.getLesson().getRootCategory().getCards().size());
+    }
+    
+    public void testNotSavedWhileSessionIsRunning() throws Exception
+    {
+        m_sessionProvider.setSessionRunning(true);
+        m_autoSaver.sessionStarted(null);
+        
+        addCard();
+        Thread.sleep(300);
+        waitForEventQueue();
+        
+        assertTrue(m_main.getLesson().canSave());
+        
+        m_sessionProvider.setSessionRunning(false);
+        m_autoSaver.sessionEnded(null);
+        
+        waitForSaves(1);
+        assertFalse(m_main.getLesson().canSave());
+    }
+    
+    public void testSavesAreIntervalApart() throws Exception
+    {
+        addCard();
+        waitForSaves(1);
+        
+        addCard();
+        Thread.sleep(300);
+        waitForEventQueue();
+        
+        assertTrue(m_main.getLesson().canSave());
+        assertEquals(1, m_autoSaver.getSaveCount());
+        
+        waitForSaves(2);
+        assertFalse(m_main.getLesson().canSave());
+    }
+    
+    public void testLessonWithoutFileIsNotSaved() throws Exception
+    {
+        m_main.createNewLesson();
+        
+        addCard();
+        Thread.sleep(300);
+        waitForEventQueue();
+        
+        assertTrue(m_main.getLesson().canSave());
+        assertEquals(0, m_autoSaver.getSaveCount());
+    }
+    
+    private void addCard() throws Exception
+    {
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run()
+            {
+                m_main.getLesson().getRootCategory().addCard(
+                    new Card("front", "back"));
+            }
+        });
+    }
+    
+    private void waitForSaves(int saves) throws Exception
+    {
+        long end = System.currentTimeMillis() + 5000;
+        while (m_autoSaver.getSaveCount() < saves &&
+            System.currentTimeMillis() < end)
+        {
+            Thread.sleep(20);
+            waitForEventQueue();
+        }
+        
+        assertEquals(saves, m_autoSaver.getSaveCount());
+    }
+    
+    private void waitForEventQueue() throws Exception
+    {
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run()
+            {
+            }
+        });
+    }
+}
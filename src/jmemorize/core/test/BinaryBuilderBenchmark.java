@@ -0,0 +1,143 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2008 Riad Djemili and contributors
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.core.test;
+
+import java.io.File;
+import java.util.Date;
+
+import jmemorize.core.Card;
+import jmemorize.core.Category;
+import jmemorize.core.Lesson;
+import jmemorize.core.io.BinaryBuilder;
+import jmemorize.core.io.XmlBuilder;
+
+/**
+ * Compares the time that is needed to load and save large lessons in the XML
+ * format and in the binary format. This is not part of the test suite. Run it
+ * directly with the number of cards as optional argument.
+ */
+public class BinaryBuilderBenchmark
+{
+    private static final int  RUNS        = 5;
+    private static final File XML_FILE    = new File("./benchmark.jml");
+    private static final File BINARY_FILE = new File("./benchmark.jmb");
+    
+    private interface Task
+    {
+        void run() throws Exception;
+    }
+    
+    public static void main(String[] args) throws Exception
+    {
+        int cards = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final Lesson lesson = createLesson(cards);
+        
+        System.out.println("Lesson with " + cards + " cards");
+        
+        long xmlSave = measure(new Task() {
+            public void run() throws Exception
+            {
+                XmlBuilder.saveAsXMLFile(XML_FILE, lesson);
+            }
+        });
+        
+        long binarySave = measure(new Task() {
+            public void run() throws Exception
+            {
+                BinaryBuilder.saveAsBinaryFile(BINARY_FILE, lesson);
+            }
+        });
+        
+        long xmlLoad = measure(new Task() {
+            public void run() throws Exception
+            {
+                XmlBuilder.loadFromXMLFile(XML_FILE, new Lesson(false));
+            }
+        });
+        
+        long binaryLoad = measure(new Task() {
+            public void run() throws Exception
+            {
+                BinaryBuilder.loadFromBinaryFile(BINARY_FILE, new Lesson(false));
+            }
+        });
+        
+        print("save", xmlSave, binarySave);
+        print("load", xmlLoad, binaryLoad);
+        
+        System.out.println("file size: XML " + (XML_FILE.length() / 1024) +
+            " KB, binary " + (BINARY_FILE.length() / 1024) + " KB");
+        
+        XML_FILE.delete();
+        BINARY_FILE.delete();
+    }
+    
+    /**
+     * @return the average time of a run in milliseconds after one run to warm
+     * up.
+     */
+    private static long measure(Task task) throws Exception
+    {
+        task.run();
+        
+        long time = 0;
+        for (int i = 0; i < RUNS; i++)
+        {
+            System.gc();
+            
+            long start = System.nanoTime();
+            task.run();
+            time += System.nanoTime() - start;
+        }
+        
+        return time / RUNS / 1000000;
+    }
+    
+    private static void print(String name, long xml, long binary)
+    {
+        System.out.println(name + ": XML " + xml + " ms, binary " + binary +
+            " ms, speedup " + (binary > 0 ? xml / (float)binary : 0) + "x");
+    }
+    
+    private static Lesson createLesson(int cards)
+    {
+        Lesson lesson = new Lesson(false);
+        Category category = null;
+        
+        for (int i = 0; i < cards; i++)
+        {
+            if (i % 1000 == 0)
+            {
+                category = new Category("Category " + i);
+                lesson.getRootCategory().addCategoryChild(category);
+            }
+            
+            Card card = new Card("Front side of card " + i,
+                "Back side of card <b>" + i + "</b>");
+            category.addCard(card);
+            
+            if (i % 3 != 0)
+            {
+                Category.raiseCardLevel(card, new Date(), new Date());
+            }
+        }
+        
+        return lesson;
+    }
+}
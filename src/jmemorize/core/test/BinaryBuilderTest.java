@@ -0,0 +1,225 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2008 Riad Djemili and contributors
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.core.test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import jmemorize.core.Card;
+import jmemorize.core.Category;
+import jmemorize.core.Lesson;
+import jmemorize.core.Main;
+import jmemorize.core.io.BinaryBuilder;
+import jmemorize.core.io.LessonSummary;
+import jmemorize.core.io.XmlBuilder;
+import junit.framework.TestCase;
+
+public class BinaryBuilderTest extends TestCase
+{
+    private final static File BINARY_FILE = new File("./binarybuilder-test.jmb");
+    private final static File XML_FILE    = new File("./binarybuilder-test.jml");
+    
+    @Override
+    protected void tearDown() throws Exception
+    {
+        BINARY_FILE.delete();
+        XML_FILE.delete();
+        LessonSummary.getFile(BINARY_FILE).delete();
+        LessonSummary.getFile(XML_FILE).delete();
+    }
+    
+    public void testSaveAndLoadSimple() throws Exception
+    {
+        assertSaveAndLoad(new File("test/fixtures/simple_de.jml"));
+    }
+    
+    public void testSaveAndLoadNoExpiration() throws Exception
+    {
+        assertSaveAndLoad(new File("test/fixtures/no_expiration.jml"));
+    }
+    
+    public void testSaveAndLoadUmlauts() throws Exception
+    {
+        assertSaveAndLoad(new File("test/fixtures/test.jml"));
+    }
+    
+    public void testSaveAndLoadImagesAndHistory() throws Exception
+    {
+        Lesson lesson = new Lesson(false);
+        String gifId = lesson.getImageRepository().addImage(
+            new FileInputStream("test/fixtures/test-images/test.gif"), "test.gif");
+        lesson.setJournalId(42);
+        
+        Category child = new Category("child");
+        child.setId(7);
+        lesson.getRootCategory().addCategoryChild(child);
+        child.addCategoryChild(new Category("grandchild"));
+        
+        Card card = new Card("front <b>bold</b>", "back & more \u00e4\u00df");
+        card.setId(3);
+        card.getFrontSide().setImages(Arrays.asList(new String[]{gifId, gifId}));
+        card.getBackSide().setImages(Arrays.asList(new String[]{gifId}));
+        child.addCard(card, 2);
+        
+        lesson.getRootCategory().addCard(new Card("front", "back"));
+        
+        Date now = new Date();
+        lesson.getLearnHistory().addSummary(now, now, 3, 1, 0, 2);
+        
+        BinaryBuilder.saveAsBinaryFile(BINARY_FILE, lesson);
+        
+        Lesson loaded = new Lesson(false);
+        BinaryBuilder.loadFromBinaryFile(BINARY_FILE, loaded);
+        
+        assertLesson(lesson, loaded);
+        assertEquals(42, loaded.getJournalId());
+        assertEquals(7, loaded.getRootCategory().getChildCategory("child").getId());
+        assertEquals(3, loaded.getRootCategory().getChildCategory("child").
+            getLocalCards(2).get(0).getId());
+        assertNotNull(loaded.getImageRepository().getImage(gifId));
+    }
+    
+    public void testConvertBothWays() throws Exception
+    {
+        File file = new File("test/fixtures/test.jml");
+        Lesson lesson = new Lesson(false);
+        XmlBuilder.loadFromXMLFile(file, lesson);
+        
+        BinaryBuilder.convertToBinary(file, BINARY_FILE);
+        BinaryBuilder.convertToXml(BINARY_FILE, XML_FILE);
+        
+        Lesson converted = new Lesson(false);
+        XmlBuilder.loadFromXMLFile(XML_FILE, converted);
+        
+        assertCategory(lesson.getRootCategory(), converted.getRootCategory(), false);
+        assertEquals(lesson.getLearnHistory(), converted.getLearnHistory());
+    }
+    
+    public void testMainSavesBinaryByExtension() throws Exception
+    {
+        Main main = new Main();
+        main.loadLesson(new File("test/fixtures/simple_de.jml"));
+        main.saveLesson(main.getLesson(), BINARY_FILE);
+        
+        assertTrue(BinaryBuilder.isBinaryFile(BINARY_FILE));
+        
+        Lesson lesson = new Lesson(false);
+        BinaryBuilder.loadFromBinaryFile(BINARY_FILE, lesson);
+        assertLesson(main.getLesson(), lesson);
+        
+        main.loadLesson(BINARY_FILE);
+        assertLesson(lesson, main.getLesson());
+    }
+    
+    private void assertSaveAndLoad(File file) throws Exception
+    {
+        Lesson lesson = new Lesson(false);
+        XmlBuilder.loadFromXMLFile(file, lesson);
+        
+        BinaryBuilder.saveAsBinaryFile(BINARY_FILE, lesson);
+        
+        Lesson loaded = new Lesson(false);
+        BinaryBuilder.loadFromBinaryFile(BINARY_FILE, loaded);
+        
+        assertTrue(loaded.getRootCategory().getCards().size() > 0);
+        assertLesson(lesson, loaded);
+    }
+    
+    private void assertLesson(Lesson expected, Lesson actual)
+    {
+        assertCategory(expected.getRootCategory(), actual.getRootCategory(), true);
+        assertEquals(expected.getLearnHistory(), actual.getLearnHistory());
+    }
+    
+    /**
+     * @param exact <code>false</code> if the actual lesson was loaded from XML
+     * again, so that expiration dates may differ slightly.
+     */
+    private void assertCategory(Category expected, Category actual, boolean exact)
+    {
+        assertEquals(expected.getNumberOfDecks(), actual.getNumberOfDecks());
+        assertEquals(expected.getId(), actual.getId());
+        
+        for (int i = 0; i < expected.getNumberOfDecks(); i++)
+        {
+            List<Card> expectedCards = expected.getLocalCards(i);
+            List<Card> actualCards = actual.getLocalCards(i);
+            
+            assertEquals(expectedCards.size(), actualCards.size());
+            for (int j = 0; j < expectedCards.size(); j++)
+            {
+                assertCard(expectedCards.get(j), actualCards.get(j), exact);
+            }
+        }
+        
+        List<Category> expectedChildren = expected.getChildCategories();
+        List<Category> actualChildren = actual.getChildCategories();
+        
+        assertEquals(expectedChildren.size(), actualChildren.size());
+        for (int i = 0; i < expectedChildren.size(); i++)
+        {
+            assertEquals(expectedChildren.get(i).getName(), actualChildren.get(i).getName());
+            assertCategory(expectedChildren.get(i), actualChildren.get(i), exact);
+        }
+    }
+    
+    private void assertCard(Card expected, Card actual, boolean exact)
+    {
+        assertEquals(expected.getFrontSide().getText(), actual.getFrontSide().getText());
+        assertEquals(expected.getBackSide().getText(), actual.getBackSide().getText());
+        assertEquals(expected.getFrontSide().getImages(), actual.getFrontSide().getImages());
+        assertEquals(expected.getBackSide().getImages(), actual.getBackSide().getImages());
+        
+        assertEquals(expected.getId(), actual.getId());
+        
+        assertEquals(expected.getLevel(), actual.getLevel());
+        assertEquals(expected.getDateCreated(), actual.getDateCreated());
+        assertEquals(expected.getDateModified(), actual.getDateModified());
+        assertEquals(expected.getDateTested(), actual.getDateTested());
+        if (exact)
+            assertEquals(expected.getDateExpired(), actual.getDateExpired());
+        else
+            assertExpirationDate(expected.getDateExpired(), actual.getDateExpired());
+        assertEquals(expected.getDateTouched(), actual.getDateTouched());
+        
+        assertEquals(expected.getLearnedAmount(true), actual.getLearnedAmount(true));
+        assertEquals(expected.getLearnedAmount(false), actual.getLearnedAmount(false));
+        assertEquals(expected.getTestsTotal(), actual.getTestsTotal());
+        assertEquals(expected.getTestsPassed(), actual.getTestsPassed());
+    }
+    
+    /**
+     * Learned cards without expiration date get the time of loading as their
+     * expiration date, so XML loads can differ by a few milliseconds.
+     */
+    private void assertExpirationDate(Date expected, Date actual)
+    {
+        if (expected == null)
+        {
+            assertNull(actual);
+            return;
+        }
+        
+        assertNotNull(actual);
+        assertTrue(Math.abs(expected.getTime() - actual.getTime()) < 10000);
+    }
+}
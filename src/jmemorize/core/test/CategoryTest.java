@@ -18,14 +18,23 @@
  */
 package jmemorize.core.test;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 
+import jmemorize.core.BatchEvent;
+import jmemorize.core.BatchObserver;
 import jmemorize.core.Card;
+import jmemorize.core.CardLoader;
+import jmemorize.core.CardView;
 import jmemorize.core.Category;
 import jmemorize.core.CategoryObserver;
+import jmemorize.core.Lesson;
+import jmemorize.core.Main;
 import junit.framework.TestCase;
 
 
@@ -292,6 +301,33 @@ public class CategoryTest extends TestCase implements CategoryObserver
         event.assertEvent(REMOVED_EVENT, m_childCard, 0, null);
     }
     
+    public void testRemoveCardKeepsDeckOrder()
+    {
+        List<Card> cards = new ArrayList<Card>();
+        for (int i = 0; i < 5; i++)
+        {
+            Card card = new Card("card " + i, "bla");
+            m_rootCategory.addCard(card);
+            cards.add(card);
+        }
+        
+        m_rootCategory.removeCard(cards.remove(2));
+        m_rootCategory.removeCard(cards.remove(0));
+        m_rootCategory.removeCard(cards.remove(2));
+        assertEquals(cards, m_rootCategory.getLocalCards(0));
+        
+        // removed cards can be added again, at the end of their deck
+        Card card = cards.remove(0);
+        Category.raiseCardLevel(card, new Date(), new Date());
+        Category.resetCardLevel(card, new Date());
+        cards.add(card);
+        
+        List<Card> deck = m_rootCategory.getLocalCards(0);
+        assertEquals(cards, deck);
+        assertSame(card, deck.get(deck.size() - 1));
+        assertFalse(deck.contains(m_childCard));
+    }
+    
     public void testMoveCard()
     {
         m_childCategory.addCard(m_rootCard, 3);
@@ -472,6 +508,364 @@ public class CategoryTest extends TestCase implements CategoryObserver
         assertEquals(2, m_rootCategory.getNumberOfDecks());
     }
     
+    public void testCopy()
+    {
+        m_rootCategory.addCard(m_rootCard);
+        m_childCategory.addCard(m_childCard);
+        Category.raiseCardLevel(m_childCard, new Date(), new Date());
+        m_events.clear();
+        
+        Category copy = m_rootCategory.copy();
+        assertEquals(0, m_events.size());
+        
+        assertEquals(m_rootCategory.getNumberOfDecks(), copy.getNumberOfDecks());
+        assertEquals(1, copy.getChildCategories().size());
+        
+        Category childCopy = copy.getChildCategory("child_category");
+        assertEquals(copy, childCopy.getParent());
+        assertEquals(1, childCopy.getDepth());
+        
+        Card cardCopy = childCopy.getLocalCards(1).get(0);
+        assertNotSame(m_childCard, cardCopy);
+        assertEquals(childCopy, cardCopy.getCategory());
+        assertEquals(m_childCard.getDateExpired(), cardCopy.getDateExpired());
+        assertEquals(1, cardCopy.getTestsPassed());
+        
+        // changes to original don't affect the copy
+        m_rootCategory.addCard(new Card("front", "back"));
+        m_childCard.setSides("changed", "changed");
+        
+        assertEquals(1, copy.getLocalCards(0).size());
+        assertEquals("child_card", cardCopy.getFrontSide().getText().getUnformatted());
+    }
+    
+    public void testCardCounts()
+    {
+        Calendar future = Calendar.getInstance();
+        future.add(Calendar.YEAR, 1);
+        
+        m_rootCategory.addCard(m_rootCard);
+        m_childCategory.addCard(m_childCard, 1);
+        m_childCategory.addCard(new Card("front", "back"), 1);
+        Category.raiseCardLevel(m_rootCard, new Date(), future.getTime());
+        
+        assertEquals(3, m_rootCategory.getCardCount(-1));
+        assertEquals(0, m_rootCategory.getCardCount(0));
+        assertEquals(3, m_rootCategory.getCardCount(1));
+        assertEquals(0, m_rootCategory.getCardCount(2));
+        
+        assertEquals(2, m_rootCategory.getExpiredCardCount(1));
+        assertEquals(1, m_rootCategory.getLearnedCardCount(1));
+        assertEquals(2, m_childCategory.getLearnableCardCount());
+        
+        assertEquals(m_rootCategory.getExpiredCards().size(), 
+            m_rootCategory.getExpiredCardCount());
+        assertEquals(m_rootCategory.getLearnedCards().size(), 
+            m_rootCategory.getLearnedCardCount());
+        assertEquals(m_rootCategory.getUnlearnedCards().size(), 
+            m_rootCategory.getUnlearnedCardCount());
+    }
+    
+    public void testCardCountsFollowChanges()
+    {
+        Calendar future = Calendar.getInstance();
+        future.add(Calendar.YEAR, 1);
+        
+        Category grandChild = m_childCategory.addCategoryChild(new Category("grand_child"));
+        Card grandChildCard = new Card("front", "back");
+        grandChild.addCard(grandChildCard, 2);
+        m_rootCategory.addCard(m_rootCard);
+        m_childCategory.addCard(m_childCard, 1);
+        assertCardCounts(m_rootCategory);
+        
+        Category.raiseCardLevel(m_rootCard, new Date(), future.getTime());
+        Category.moveCard(m_childCard, grandChild);
+        assertCardCounts(m_rootCategory);
+        assertCardCounts(grandChild);
+        
+        Category.resetCardLevel(grandChildCard, new Date());
+        m_rootCategory.removeCard(m_rootCard);
+        assertCardCounts(m_rootCategory);
+        
+        grandChild.remove();
+        assertEquals(0, m_rootCategory.getCardCount(-1));
+        assertEquals(2, grandChild.getCardCount(-1));
+        assertCardCounts(m_rootCategory);
+        
+        m_rootCategory.addCategoryChild(grandChild);
+        assertEquals(2, m_rootCategory.getCardCount(-1));
+        assertCardCounts(m_rootCategory);
+    }
+    
+    public void testExpiredCountsFollowExpirationChanges()
+    {
+        Calendar future = Calendar.getInstance();
+        future.add(Calendar.YEAR, 1);
+        
+        m_childCategory.addCard(m_childCard, 1);
+        m_childCard.setDateExpired(future.getTime());
+        assertEquals(0, m_rootCategory.getExpiredCardCount());
+        assertEquals(future.getTimeInMillis(), m_rootCategory.getNextExpiration());
+        
+        m_childCard.setDateExpired(new Date());
+        assertEquals(1, m_rootCategory.getExpiredCardCount());
+        assertEquals(Long.MAX_VALUE, m_rootCategory.getNextExpiration());
+        assertCardCounts(m_rootCategory);
+    }
+    
+    public void testExpiredCountsAfterCardExpires() throws Exception
+    {
+        Date soon = new Date(System.currentTimeMillis() + 200);
+        
+        m_childCategory.addCard(m_childCard, 1);
+        m_childCard.setDateExpired(soon);
+        assertEquals(0, m_rootCategory.getExpiredCardCount());
+        assertEquals(1, m_rootCategory.getLearnedCardCount());
+        
+        Thread.sleep(300);
+        
+        assertEquals(1, m_rootCategory.getExpiredCardCount());
+        assertEquals(0, m_rootCategory.getLearnedCardCount());
+        assertCardCounts(m_rootCategory);
+    }
+    
+    public void testExpiredCardsOfLesson()
+    {
+        Lesson lesson = new Lesson(m_rootCategory, false);
+        Category otherCategory = m_rootCategory.addCategoryChild(new Category("other"));
+        
+        Card dueTodayCard = new Card("due_today", "bla");
+        Card dueTomorrowCard = new Card("due_tomorrow", "bla");
+        Card otherCard = new Card("other", "bla");
+        
+        m_rootCategory.addCard(m_rootCard, 1);
+        m_childCategory.addCard(dueTodayCard, 2);
+        m_childCategory.addCard(dueTomorrowCard, 1);
+        otherCategory.addCard(otherCard, 1);
+        
+        m_rootCard.setDateExpired(new Date(0));
+        dueTodayCard.setDateExpired(new Date(System.currentTimeMillis() - 1000));
+        dueTomorrowCard.setDateExpired(new Date(System.currentTimeMillis() + 60000));
+        otherCard.setDateExpired(new Date(1000));
+        
+        assertEquals(3, lesson.getDueCards(Main.getNow()).size());
+        assertEquals(4, lesson.getDueCards(Main.getTomorrow()).size());
+        assertEquals(m_rootCard, lesson.getDueCards(Main.getNow()).get(0));
+        assertEquals(dueTomorrowCard.getDateExpired().getTime(), 
+            lesson.getNextExpiration());
+        
+        assertEquals(1, m_childCategory.getExpiredCards().size());
+        assertEquals(dueTodayCard, m_childCategory.getExpiredCards(2).get(0));
+        assertEquals(0, m_childCategory.getExpiredCards(1).size());
+        assertCardCounts(m_rootCategory);
+        
+        otherCategory.remove();
+        m_childCategory.removeCard(dueTodayCard);
+        assertEquals(1, lesson.getDueCards(Main.getNow()).size());
+        assertEquals(2, lesson.getExpirationIndex().size());
+    }
+    
+    public void testCardView()
+    {
+        Category grandChild = m_childCategory.addCategoryChild(new Category("grand_child"));
+        Card learnedCard = new Card("learned", "bla");
+        Card unlearnedCard = new Card("unlearned", "bla");
+        
+        m_rootCategory.addCard(m_rootCard, 1);
+        m_childCategory.addCard(m_childCard, 2);
+        grandChild.addCard(learnedCard, 1);
+        grandChild.addCard(unlearnedCard, 0);
+        
+        m_rootCard.setDateExpired(new Date(0));
+        learnedCard.setDateExpired(new Date(System.currentTimeMillis() + 60000));
+        
+        for (int level = -1; level < m_rootCategory.getNumberOfDecks() + 1; level++)
+        {
+            CardView view = m_rootCategory.getCardView(level, CardView.Filter.ALL);
+            assertEquals(m_rootCategory.getCards(level), new ArrayList<Card>(view));
+            assertEquals(m_rootCategory.getCardCount(level), view.size());
+        }
+        
+        CardView expired = m_rootCategory.getCardView(-1, CardView.Filter.EXPIRED);
+        assertEquals(2, expired.size());
+        assertTrue(expired.contains(m_rootCard));
+        assertTrue(expired.contains(m_childCard));
+        
+        CardView learned = m_rootCategory.getCardView(1, CardView.Filter.LEARNED);
+        assertEquals(1, learned.size());
+        assertEquals(learnedCard, learned.iterator().next());
+        
+        // the view follows changes to the category
+        grandChild.removeCard(learnedCard);
+        assertTrue(learned.isEmpty());
+        assertFalse(learned.iterator().hasNext());
+        
+        try
+        {
+            Iterator<Card> it = expired.iterator();
+            it.next();
+            it.remove();
+            fail();
+        }
+        catch (UnsupportedOperationException e)
+        {
+            // expected
+        }
+    }
+    
+    public void testBatchEvent()
+    {
+        final List<BatchEvent> batches = new ArrayList<BatchEvent>();
+        final int[] cardEvents = new int[1];
+        
+        m_childCategory.addObserver(new BatchObserver() {
+            public void onBatchEvent(BatchEvent event)
+            {
+                batches.add(event);
+            }
+            
+            public void onCardEvent(int type, Card card, Category category, int deck)
+            {
+                cardEvents[0]++;
+            }
+            
+            public void onCategoryEvent(int type, Category category)
+            {
+            }
+        });
+        
+        m_rootCategory.beginBatch();
+        for (int i = 0; i < 100; i++)
+            m_childCategory.addCard(new Card("card " + i, "bla"));
+        
+        m_childCategory.beginBatch();
+        m_childCategory.removeCard(m_childCategory.getLocalCards(0).get(0));
+        Category grandChild = m_childCategory.addCategoryChild(new Category("grand_child"));
+        m_childCategory.endBatch();
+        
+        assertEquals(0, batches.size());
+        m_rootCategory.endBatch();
+        
+        // plain observers still get every event, this test observes the root
+        // and the child category
+        assertEquals(2 * 102, m_events.size());
+        assertEquals(0, cardEvents[0]);
+        assertEquals(1, batches.size());
+        
+        BatchEvent batch = batches.get(0);
+        assertEquals(100, batch.getCards(ADDED_EVENT).size());
+        assertEquals(1, batch.getCards(REMOVED_EVENT).size());
+        assertEquals(101, batch.getCardEventCount());
+        assertTrue(batch.hasCategoryEvents());
+        assertEquals(grandChild, batch.getCategories(ADDED_EVENT).get(0));
+        assertTrue(batch.getChangedCategories().contains(m_childCategory));
+        
+        // events outside of batches are delivered right away
+        m_childCategory.addCard(m_childCard);
+        assertEquals(1, cardEvents[0]);
+        assertEquals(1, batches.size());
+        
+        try
+        {
+            m_rootCategory.endBatch();
+            fail();
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+    }
+    
+    public void testDecksAreTrimmedWhenBatchEnds()
+    {
+        m_rootCategory.addCard(m_rootCard, 1);
+        
+        m_rootCategory.beginBatch();
+        m_childCategory.addCard(m_childCard, 5);
+        assertEquals(6, m_rootCategory.getNumberOfDecks());
+        assertEquals(1, m_rootCategory.getCards(5).size());
+        
+        m_childCategory.removeCard(m_childCard);
+        assertEquals(0, m_rootCategory.getCards(5).size());
+        m_rootCategory.endBatch();
+        
+        assertEquals(2, m_rootCategory.getNumberOfDecks());
+        assertEquals(0, m_childCategory.getNumberOfDecks());
+    }
+    
+    public void testCardsAreLoadedOnFirstAccess()
+    {
+        final long past = System.currentTimeMillis() - 1000;
+        final long future = System.currentTimeMillis() + 100000;
+        final int[] loads = new int[1];
+        
+        CardLoader loader = new CardLoader(new int[] {1, 2}, 
+            new long[][] {{}, {past, future}}) {
+            protected List<List<Card>> loadDecks() throws IOException
+            {
+                loads[0]++;
+                
+                List<List<Card>> decks = new ArrayList<List<Card>>();
+                decks.add(new ArrayList<Card>());
+                decks.add(new ArrayList<Card>());
+                decks.get(0).add(new Card("unlearned", "back"));
+                
+                for (long expiration : new long[] {past, future})
+                {
+                    Card card = new Card("learned", "back");
+                    card.setDateExpired(new Date(expiration));
+                    decks.get(1).add(card);
+                }
+                
+                return decks;
+            }
+        };
+        
+        Category category = new Category("lazy");
+        category.setCardLoader(loader);
+        m_rootCategory.addCategoryChild(category);
+        m_events.clear();
+        
+        assertEquals(2, m_rootCategory.getNumberOfDecks());
+        assertEquals(3, m_rootCategory.getCardCount(-1));
+        assertEquals(1, m_rootCategory.getExpiredCardCount());
+        assertEquals(1, m_rootCategory.getLearnedCardCount());
+        assertTrue(m_rootCategory.hasUnloadedCards());
+        assertEquals(0, loads[0]);
+        
+        // copies share the loader, but get cards of their own
+        Category copy = category.copy();
+        
+        List<Card> cards = m_rootCategory.getCards(1);
+        assertEquals(1, loads[0]);
+        assertEquals(2, cards.size());
+        assertEquals(category, cards.get(0).getCategory());
+        assertEquals(1, cards.get(0).getLevel());
+        assertFalse(m_rootCategory.hasUnloadedCards());
+        assertEquals(0, m_events.size());
+        
+        assertTrue(copy.hasUnloadedCards());
+        assertNotSame(cards.get(0), copy.getLocalCards(1).get(0));
+        assertEquals(2, loads[0]);
+    }
+    
+    private void assertCardCounts(Category category)
+    {
+        assertEquals(category.getCards().size(), category.getCardCount(-1));
+        assertEquals(category.getExpiredCards().size(), category.getExpiredCardCount());
+        assertEquals(category.getLearnedCards().size(), category.getLearnedCardCount());
+        assertEquals(category.getUnlearnedCards().size(), category.getUnlearnedCardCount());
+        
+        for (int level = 0; level < category.getNumberOfDecks(); level++)
+        {
+            assertEquals(category.getCards(level).size(), category.getCardCount(level));
+            assertEquals(category.getExpiredCards(level).size(), 
+                category.getExpiredCardCount(level));
+            assertEquals(category.getLearnedCards(level).size(), 
+                category.getLearnedCardCount(level));
+        }
+    }
+    
     /*
      * @see jmemorize.core.CategoryObserver
      */
@@ -0,0 +1,140 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2008 Riad Djemili and contributors
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.core.test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+
+import jmemorize.core.Category;
+import jmemorize.core.CommandLine;
+import jmemorize.core.Lesson;
+import jmemorize.core.io.BinaryBuilder;
+import jmemorize.core.io.LessonSummary;
+import jmemorize.core.io.XmlBuilder;
+import junit.framework.TestCase;
+
+public class CommandLineTest extends TestCase
+{
+    private final static File OUT_DIR = new File("./test-commandline");
+    
+    private ByteArrayOutputStream m_out = new ByteArrayOutputStream();
+    
+    protected void setUp() throws Exception
+    {
+        OUT_DIR.mkdir();
+    }
+    
+    protected void tearDown() throws Exception
+    {
+        for (File file : OUT_DIR.listFiles())
+            file.delete();
+        
+        OUT_DIR.delete();
+    }
+    
+    public void testConvertToBinary() throws Exception
+    {
+        assertEquals(0, run("convert", "-to", "jmb", "-out", OUT_DIR.getPath(),
+            "test/fixtures/simple_de.jml", "test/fixtures/test.jml"));
+        
+        assertConverted("simple_de");
+        assertConverted("test");
+        assertTrue(m_out.toString().indexOf("2 files, 0 failed") >= 0);
+    }
+    
+    public void testExportAndImportCsv() throws Exception
+    {
+        assertEquals(0, run("export-csv", "-delimiter", "tab", "-out",
+            OUT_DIR.getPath(), "test/fixtures/simple_de.jml"));
+        
+        File csv = new File(OUT_DIR, "simple_de.csv");
+        assertTrue(csv.isFile());
+        
+        assertEquals(0, run("import-csv", "-delimiter", "tab",
+            csv.getPath()));
+        
+        Lesson original = new Lesson(false);
+        XmlBuilder.loadFromXMLFile(new File("test/fixtures/simple_de.jml"), original);
+        
+        Lesson imported = new Lesson(false);
+        XmlBuilder.loadFromXMLFile(new File(OUT_DIR, "simple_de.jml"), imported);
+        
+        assertEquals(original.getRootCategory().getCardCount(-1),
+            imported.getRootCategory().getCardCount(-1));
+    }
+    
+    public void testFailedFilesAreCounted() throws Exception
+    {
+        assertEquals(1, run("export-csv", "-out", OUT_DIR.getPath(),
+            "test/fixtures/simple_de.jml", "./missing-commandline.jml"));
+        
+        assertTrue(m_out.toString().indexOf("FAILED  ./missing-commandline.jml") >= 0);
+        assertTrue(new File(OUT_DIR, "simple_de.csv").isFile());
+    }
+    
+    public void testInvalidArguments()
+    {
+        assertInvalid();
+        assertInvalid("unknown", "test/fixtures/simple_de.jml");
+        assertInvalid("convert");
+        assertInvalid("convert", "-to", "pdf", "test/fixtures/simple_de.jml");
+        assertInvalid("convert", "test/fixtures/simple_de.jml", "-threads");
+    }
+    
+    private int run(String... args) throws Exception
+    {
+        return new CommandLine(args).run(new PrintStream(m_out));
+    }
+    
+    private void assertConverted(String name) throws Exception
+    {
+        File file = new File(OUT_DIR, name + ".jmb");
+        assertTrue(BinaryBuilder.isBinaryFile(file));
+        assertNotNull(LessonSummary.read(file));
+        
+        Lesson original = new Lesson(false);
+        XmlBuilder.loadFromXMLFile(new File("test/fixtures/" + name + ".jml"), original);
+        
+        Lesson converted = new Lesson(false);
+        BinaryBuilder.loadFromBinaryFile(file, converted);
+        
+        Category expected = original.getRootCategory();
+        Category actual = converted.getRootCategory();
+        assertEquals(expected.getNumberOfDecks(), actual.getNumberOfDecks());
+        
+        for (int i = 0; i < expected.getNumberOfDecks(); i++)
+            assertEquals(expected.getCardCount(i), actual.getCardCount(i));
+        
+        assertEquals(original.getLearnHistory(), converted.getLearnHistory());
+    }
+    
+    private void assertInvalid(String... args)
+    {
+        try
+        {
+            new CommandLine(args);
+            fail();
+        }
+        catch (IllegalArgumentException e)
+        {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2008 Riad Djemili and contributors
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.core.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import jmemorize.core.Card;
+import jmemorize.core.Category;
+
+/**
+ * Measures the time that is needed to grade and to delete the cards of large
+ * decks. Grading moves a card from one deck to another, so both operations
+ * remove cards from the middle of their decks. This is not part of the test
+ * suite. Run it directly with the number of cards as optional argument.
+ */
+public class DeckBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        System.out.println("Deck with " + count + " cards");
+        
+        Category category = new Category("Benchmark");
+        List<Card> cards = new ArrayList<Card>(count);
+        
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++)
+        {
+            Card card = new Card("Front side of card " + i, "Back side of card " + i);
+            category.addCard(card, 1);
+            cards.add(card);
+        }
+        print("add", start, count);
+        
+        // cards are graded and deleted in random order, like in sessions
+        Random random = new Random(42);
+        Collections.shuffle(cards, random);
+        Date now = new Date();
+        
+        start = System.nanoTime();
+        for (Card card : cards)
+        {
+            if (random.nextBoolean())
+                Category.raiseCardLevel(card, now, now);
+            else
+                Category.resetCardLevel(card, now);
+        }
+        print("grade", start, count);
+        
+        Collections.shuffle(cards, random);
+        
+        start = System.nanoTime();
+        for (Card card : cards)
+        {
+            card.getCategory().removeCard(card);
+        }
+        print("delete", start, count);
+    }
+    
+    private static void print(String name, long start, int count)
+    {
+        long time = System.nanoTime() - start;
+        System.out.println(name + ": " + time / 1000000 + " ms, " + 
+            time / count + " ns per card");
+    }
+}
@@ -18,14 +18,24 @@
  */
 package jmemorize.core.test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.Set;
 
+import jmemorize.core.Card;
+import jmemorize.core.Category;
 import jmemorize.core.ImageRepository;
+import jmemorize.core.Lesson;
 import jmemorize.core.Main;
+import jmemorize.core.Settings;
+import jmemorize.core.ImageRepository.ImageItem;
 import jmemorize.core.io.XmlBuilder;
 import junit.framework.TestCase;
 
@@ -33,7 +43,8 @@ public class ImageRepositoryTest extends TestCase
 {
     private final static File TEST_DIR = new File("./images-test");
     
-    private ImageRepository m_ir = ImageRepository.getInstance();
+    private Lesson          m_lesson = new Lesson(false);
+    private ImageRepository m_ir = m_lesson.getImageRepository();
     
     @Override
     protected void setUp() throws Exception
@@ -56,7 +67,64 @@ public class ImageRepositoryTest extends TestCase
         String id2 = addImage("test.gif");
         assertNotNull(id2);
         
-//        assertEquals(id1, id2); TODO!
+        assertEquals(id1, id2);
+        assertEquals(1, m_ir.getImageItems().size());
+    }
+    
+    public void testSameImageWithOtherNameReturnsSameId() throws IOException
+    {
+        String id1 = addImage("test.gif");
+        String id2 = m_ir.addImage(new FileInputStream(
+            "test/fixtures/test-images/test.gif"), "other.gif");
+        
+        assertEquals(id1, id2);
+    }
+    
+    public void testAddImageReturnsIdOfSameLazyImage() throws IOException
+    {
+        String id1 = m_ir.addImage(new File("test/fixtures/test-images/test.gif"));
+        String id2 = addImage("test.gif");
+        
+        assertEquals(id1, id2);
+        assertEquals(1, m_ir.getImageItems().size());
+    }
+    
+    public void testIdOfImageWithCounterSuffix() throws IOException
+    {
+        addImage("test.gif");
+        addImage("more/test.gif");
+        
+        String id = m_ir.addImage(new ByteArrayInputStream(new byte[] {1}), 
+            "test_0.gif");
+        assertEquals("test_1.gif", id);
+    }
+    
+    public void testIdsOfManyImagesWithSameName() throws IOException
+    {
+        Set<String> ids = new HashSet<String>();
+        String id = null;
+        for (int i = 0; i < 10000; i++)
+        {
+            byte[] bytes = Integer.toString(i).getBytes();
+            id = m_ir.addImage(new ByteArrayInputStream(bytes), "image.png");
+            ids.add(id);
+        }
+        
+        assertEquals(10000, ids.size());
+        assertEquals("image_9998.png", id);
+        assertEquals(10000, m_ir.getImageItems().size());
+    }
+    
+    public void testManySameImagesAreStoredOnce() throws IOException
+    {
+        byte[] bytes = new byte[] {1, 2, 3};
+        for (int i = 0; i < 10000; i++)
+        {
+            m_ir.addImage(new ByteArrayInputStream(bytes), "image" + i + ".png");
+        }
+        
+        assertEquals(1, m_ir.getImageItems().size());
+        assertNotNull(getItem("image0.png"));
     }
     
     public void testIdOfSingleImage() throws IOException
@@ -101,27 +169,77 @@ public class ImageRepositoryTest extends TestCase
     
     public void testRepositoryClearedWhenCreatingNewProject() throws IOException
     {
+        Main.getInstance().setLesson(m_lesson);
         addImage("test.gif");
         addImage("more/test.gif");
         assertEquals(2, m_ir.getImageItems().size());
         
         Main.getInstance().createNewLesson();
         assertEquals(0, m_ir.getImageItems().size());
+        assertEquals(0, getLessonImageCount());
     }
     
     public void testRepositoryClearedWhenLoadingProject() throws IOException
     {
-        assertEquals(0, m_ir.getImageItems().size());
-        
         Main.getInstance().loadLesson(new File("test/fixtures/simple_de.jml"));
-        assertEquals(0, m_ir.getImageItems().size());
+        assertEquals(0, getLessonImageCount());
         
+        m_ir = Main.getInstance().getLesson().getImageRepository();
         addImage("test.gif");
         addImage("more/test.gif");
         assertEquals(2, m_ir.getImageItems().size());
         
         Main.getInstance().loadLesson(new File("test/fixtures/simple_de.jml"));
         assertEquals(0, m_ir.getImageItems().size());
+        assertEquals(0, getLessonImageCount());
+    }
+    
+    public void testLessonsDontShareImages() throws IOException
+    {
+        addImage("test.gif");
+        
+        Lesson other = new Lesson(false);
+        assertEquals(0, other.getImageRepository().getImageItems().size());
+        
+        other.getImageRepository().clear();
+        assertEquals(1, m_ir.getImageItems().size());
+    }
+    
+    public void testCleanCloneHasOwnImages() throws IOException
+    {
+        String id = addImage("test.gif");
+        
+        Card card = new Card("front", "back");
+        card.getFrontSide().setImages(Arrays.asList(new String[]{id}));
+        m_lesson.getRootCategory().addCard(card, 1);
+        
+        Lesson clone = m_lesson.cloneWithoutProgress();
+        ImageRepository cloneRepository = clone.getImageRepository();
+        assertNotSame(m_ir, cloneRepository);
+        assertNotNull(cloneRepository.getImage(id));
+        assertEquals(1, cloneRepository.getReferenceCount(id));
+        assertEquals(0, clone.getDueCards(new Date()).size());
+        
+        cloneRepository.clear();
+        assertNotNull(m_ir.getImage(id));
+    }
+    
+    public void testSavingSnapshotKeepsImages() throws Exception
+    {
+        String id = addImage("test.gif");
+        
+        Card card = new Card("front", "back");
+        card.getFrontSide().setImages(Arrays.asList(new String[]{id}));
+        m_lesson.getRootCategory().addCard(card);
+        
+        Lesson snapshot = m_lesson.createSnapshot();
+        m_lesson.getRootCategory().removeCard(card);
+        
+        XmlBuilder.saveAsXMLFile(new File(TEST_DIR, "snapshot.jml"), snapshot);
+        assertNotNull(getItem(id));
+        
+        m_ir.removeUnreferencedImages();
+        assertNull(getItem(id));
     }
     
     public void testRetainImages() throws IOException
@@ -139,12 +257,91 @@ public class ImageRepositoryTest extends TestCase
         assertNull(m_ir.getImage("more/test.gif"));
     }
     
+    public void testCardImagesAreReferenced() throws IOException
+    {
+        String id = addImage("test.gif");
+        
+        Lesson lesson = m_lesson;
+        Card card = new Card("front", "back");
+        card.getFrontSide().setImages(Arrays.asList(new String[]{id}));
+        card.getBackSide().setImages(Arrays.asList(new String[]{id}));
+        
+        assertEquals(0, m_ir.getReferenceCount(id));
+        
+        lesson.getRootCategory().addCard(card);
+        assertEquals(2, m_ir.getReferenceCount(id));
+        
+        card.getBackSide().setImages(new LinkedList<String>());
+        assertEquals(1, m_ir.getReferenceCount(id));
+        
+        lesson.getRootCategory().removeCard(card);
+        assertEquals(0, m_ir.getReferenceCount(id));
+    }
+    
+    public void testRemovedCategoryReleasesReferences() throws IOException
+    {
+        String id = addImage("test.gif");
+        
+        Lesson lesson = m_lesson;
+        Category category = new Category("category");
+        Card card = new Card("front", "back");
+        card.getFrontSide().setImages(Arrays.asList(new String[]{id}));
+        category.addCard(card);
+        
+        lesson.getRootCategory().addCategoryChild(category);
+        assertEquals(1, m_ir.getReferenceCount(id));
+        
+        category.remove();
+        assertEquals(0, m_ir.getReferenceCount(id));
+    }
+    
+    public void testRemoveUnreferencedImages() throws IOException
+    {
+        String id1 = addImage("test.gif");
+        String id2 = addImage("test.png");
+        
+        Lesson lesson = m_lesson;
+        Card card = new Card("front", "back");
+        card.getFrontSide().setImages(Arrays.asList(new String[]{id1}));
+        lesson.getRootCategory().addCard(card);
+        
+        m_ir.removeUnreferencedImages();
+        assertNotNull(getItem(id1));
+        assertNull(getItem(id2));
+        
+        lesson.getRootCategory().removeCard(card);
+        m_ir.removeUnreferencedImages();
+        assertEquals(0, m_ir.getImageItems().size());
+    }
+    
+    public void testRemoveFilesOfUnreferencedImagesFromDisk() throws IOException
+    {
+        String id1 = addImage("test.gif");
+        String id2 = addImage("test.png");
+        
+        Lesson lesson = m_lesson;
+        Card card = new Card("front", "back");
+        card.getFrontSide().setImages(Arrays.asList(new String[]{id1, id2}));
+        lesson.getRootCategory().addCard(card);
+        
+        File imgDir = XmlBuilder.writeImageRepositoryToDisk(m_ir, TEST_DIR);
+        assertEquals(2, imgDir.listFiles().length);
+        
+        card.getFrontSide().setImages(Arrays.asList(new String[]{id2}));
+        m_ir.removeUnreferencedImages();
+        XmlBuilder.writeImageRepositoryToDisk(m_ir, TEST_DIR);
+        
+        File[] files = imgDir.listFiles();
+        assertEquals(1, files.length);
+        assertEquals(id2, files[0].getName());
+    }
+    
     public void testSaveImagesToDisk() throws IOException
     {
         addImage("test.gif");
         addImage("more/test.gif");
         
-        File imgDir = XmlBuilder.writeImageRepositoryToDisk(TEST_DIR);
+        File imgDir = XmlBuilder.writeImageRepositoryToDisk(m_ir, TEST_DIR);
         
         File[] files = imgDir.listFiles();
         assertEquals(2, files.length);
@@ -154,17 +351,162 @@ public class ImageRepositoryTest extends TestCase
     {
         addImage("test.gif");
         addImage("test.png");
-        File imgDir = XmlBuilder.writeImageRepositoryToDisk(TEST_DIR);
+        File imgDir = XmlBuilder.writeImageRepositoryToDisk(m_ir, TEST_DIR);
         
         m_ir.clear();
         addImage("test.png");
-        imgDir = XmlBuilder.writeImageRepositoryToDisk(TEST_DIR);
+        imgDir = XmlBuilder.writeImageRepositoryToDisk(m_ir, TEST_DIR);
         
         File[] files = imgDir.listFiles();
         assertEquals(1, files.length);
         assertTrue(files[0].toString().endsWith(".png"));
     }
     
+    public void testUnchangedImagesAreNotWrittenAgain() throws IOException
+    {
+        addImage("test.gif");
+        addImage("test.png");
+        XmlBuilder.writeImageRepositoryToDisk(m_ir, TEST_DIR);
+        
+        int writeCount = m_ir.getWriteCount();
+        XmlBuilder.writeImageRepositoryToDisk(m_ir, TEST_DIR);
+        assertEquals(writeCount, m_ir.getWriteCount());
+        
+        addImage("more/test.gif");
+        File imgDir = XmlBuilder.writeImageRepositoryToDisk(m_ir, TEST_DIR);
+        assertEquals(writeCount + 1, m_ir.getWriteCount());
+        assertEquals(3, imgDir.listFiles().length);
+    }
+    
+    public void testImagesAreWrittenToOtherFolder() throws IOException
+    {
+        File otherDir = new File("./images-test-other");
+        
+        try
+        {
+            addImage("test.gif");
+            XmlBuilder.writeImageRepositoryToDisk(m_ir, TEST_DIR);
+            
+            int writeCount = m_ir.getWriteCount();
+            File imgDir = XmlBuilder.writeImageRepositoryToDisk(m_ir, otherDir);
+            
+            assertEquals(writeCount + 1, m_ir.getWriteCount());
+            assertEquals(1, imgDir.listFiles().length);
+        }
+        finally
+        {
+            delDir(new File(otherDir, "images"));
+            delDir(otherDir);
+        }
+    }
+    
+    public void testUnchangedImagesAreNotWrittenOnLessonSave() throws Exception
+    {
+        File file = new File(TEST_DIR, "lesson.jml");
+        boolean saveCompressed = Settings.loadIsSaveCompressed();
+        Settings.storeSaveCompressed(false);
+        
+        try
+        {
+            Lesson lesson = m_lesson;
+            Card card = new Card("front", "back");
+            card.getFrontSide().setImages(Arrays.asList(new String[]{
+                addImage("test.gif"), addImage("test.png")}));
+            lesson.getRootCategory().addCard(card);
+            
+            Main.getInstance().saveLesson(lesson, file);
+            
+            int writeCount = m_ir.getWriteCount();
+            lesson.getRootCategory().addCard(new Card("front2", "back2"));
+            Main.getInstance().saveLesson(lesson, file);
+            
+            assertEquals(writeCount, m_ir.getWriteCount());
+        }
+        finally
+        {
+            Settings.storeSaveCompressed(saveCompressed);
+        }
+    }
+    
+    public void testLazyImageIsReadOnDemand() throws IOException
+    {
+        File file = new File("test/fixtures/test-images/test.gif");
+        String id = m_ir.addImage(file);
+        
+        ImageItem item = m_ir.getImageItems().iterator().next();
+        assertFalse(item.isLoaded());
+        assertEquals(file.length(), item.getBytes().length);
+        
+        assertNotNull(m_ir.getImage(id));
+        assertFalse(item.isLoaded());
+    }
+    
+    public void testSaveLazyImagesToSourceFolder() throws IOException
+    {
+        addImage("test.gif");
+        File imgDir = XmlBuilder.writeImageRepositoryToDisk(m_ir, TEST_DIR);
+        File imgFile = new File(imgDir, "test.gif");
+        long length = imgFile.length();
+        
+        m_ir.clear();
+        m_ir.addImage(imgFile);
+        XmlBuilder.writeImageRepositoryToDisk(m_ir, TEST_DIR);
+        
+        assertEquals(length, imgFile.length());
+        assertNotNull(m_ir.getImage("test.gif"));
+    }
+    
+    public void testDetachLazyImages() throws IOException
+    {
+        File file = new File("test/fixtures/test-images/test.png");
+        m_ir.addImage(file);
+        
+        ImageItem item = m_ir.getImageItems().iterator().next();
+        m_ir.detach(file);
+        
+        assertTrue(item.isLoaded());
+        assertEquals(file.length(), item.getBytes().length);
+    }
+    
+    public void testAddedImagesAreKeptOffHeap() throws IOException
+    {
+        String id1 = addImage("test.gif");
+        String id2 = addImage("test.png");
+        
+        for (ImageItem item : m_ir.getImageItems())
+        {
+            assertFalse(item.isLoaded());
+        }
+        
+        assertNotNull(m_ir.getImage(id1));
+        assertNotNull(m_ir.getImage(id2));
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        getItem(id2).writeTo(out);
+        assertEquals(new File("test/fixtures/test-images/test.png").length(), out.size());
+    }
+    
+    public void testAddImagesAfterClear() throws IOException
+    {
+        addImage("test.gif");
+        m_ir.clear();
+        
+        String id = addImage("test.png");
+        assertEquals(new File("test/fixtures/test-images/test.png").length(), 
+            getItem(id).getBytes().length);
+    }
+    
+    private ImageItem getItem(String id)
+    {
+        for (ImageItem item : m_ir.getImageItems())
+        {
+            if (item.getId().equals(id))
+                return item;
+        }
+        
+        return null;
+    }
+    
     private void delDir(File dir)
     {
         String[] entries = dir.list();
@@ -173,13 +515,19 @@ public class ImageRepositoryTest extends TestCase
         {
             for (int i = 0; i < entries.length; i++)
             {
-                delDir(new File(entries[i]));
+                delDir(new File(dir, entries[i]));
             }
         }
         
         dir.delete();
     }
     
+    private int getLessonImageCount()
+    {
+        Lesson lesson = Main.getInstance().getLesson();
+        return lesson.getImageRepository().getImageItems().size();
+    }
+    
     private String addImage(String filename) throws IOException
     {
         File file = new File("test/fixtures/test-images/"+filename);
@@ -194,12 +194,19 @@ public class LearnHistoryTest extends TestCase
         m_history.addSummary(m_date0, m_date1, 2, 0, 1, 1);
         m_history.addSummary(m_date1, m_date2, 4, 3, 0, 1);
         
-        File file = new File("test_stats.xml");
-        m_history.save(file);
-        
-        LearnHistory stats = new LearnHistory(file);
-        
-        assertEquals(m_history, stats);
+        File file = File.createTempFile("test_stats", ".xml");
+        try
+        {
+            m_history.save(file);
+            
+            LearnHistory stats = new LearnHistory(file);
+            
+            assertEquals(m_history, stats);
+        }
+        finally
+        {
+            file.delete();
+        }
     }
     
     public void testGetSessionSummaryByDate()
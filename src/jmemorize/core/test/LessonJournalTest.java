@@ -0,0 +1,185 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2008 Riad Djemili and contributors
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.core.test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import jmemorize.core.Card;
+import jmemorize.core.Category;
+import jmemorize.core.Lesson;
+import jmemorize.core.Main;
+import jmemorize.core.io.LessonJournal;
+import jmemorize.core.io.LessonSummary;
+import jmemorize.core.io.XmlBuilder;
+import junit.framework.TestCase;
+
+public class LessonJournalTest extends TestCase
+{
+    private final static File TEST_FILE = new File("./test-journal.jml");
+    
+    private Main m_main;
+    
+    protected void setUp() throws Exception
+    {
+        m_main = new Main();
+        m_main.setJournaling(true);
+        m_main.loadLesson(new File("test/fixtures/simple_de.jml"));
+        m_main.saveLesson(m_main.getLesson(), TEST_FILE);
+    }
+    
+    protected void tearDown() throws Exception
+    {
+        TEST_FILE.delete();
+        LessonJournal.getFile(TEST_FILE).delete();
+        LessonSummary.getFile(TEST_FILE).delete();
+    }
+    
+    public void testFullSaveCompactsJournal()
+    {
+        assertEquals(12, LessonJournal.getFile(TEST_FILE).length());
+    }
+    
+    public void testCommitDoesNotRewriteLesson() throws Exception
+    {
+        byte[] saved = Files.readAllBytes(TEST_FILE.toPath());
+        
+        Lesson lesson = m_main.getLesson();
+        Card card = lesson.getRootCategory().getCards(0).get(0);
+        Category.raiseCardLevel(card, new Date(), new Date());
+        
+        m_main.saveLesson(lesson, TEST_FILE);
+        
+        assertFalse(lesson.canSave());
+        assertTrue(Arrays.equals(saved, Files.readAllBytes(TEST_FILE.toPath())));
+        assertTrue(LessonJournal.getFile(TEST_FILE).length() > 12);
+        
+        List<String> expected = getCardTexts(lesson);
+        
+        m_main.loadLesson(TEST_FILE);
+        assertFalse(m_main.getLesson().canSave());
+        assertEquals(expected, getCardTexts(m_main.getLesson()));
+    }
+    
+    public void testUncommittedChangesAreRecovered() throws Exception
+    {
+        Lesson lesson = m_main.getLesson();
+        Category root = lesson.getRootCategory();
+        
+        List<Card> cards = root.getCards();
+        root.removeCard(cards.get(0));
+        Category.raiseCardLevel(cards.get(1), new Date(), new Date());
+        Category.reappendCard(cards.get(2));
+        cards.get(3).setSides("new front", "new back");
+        
+        Category child = root.addCategoryChild(new Category("child"));
+        child.addCard(new Card("child front", "child back"));
+        Category.moveCard(cards.get(4), child);
+        
+        // load the lesson without closing it as if the program crashed
+        Main main = new Main();
+        main.loadLesson(TEST_FILE);
+        
+        assertTrue(main.getLesson().canSave());
+        assertEquals(getCardTexts(lesson), getCardTexts(main.getLesson()));
+        assertNotNull(main.getLesson().getRootCategory().getChildCategory("child"));
+    }
+    
+    public void testDiscardedChangesAreNotReplayed() throws Exception
+    {
+        Lesson lesson = m_main.getLesson();
+        List<String> expected = getCardTexts(lesson);
+        
+        lesson.getRootCategory().addCard(new Card("front", "back"));
+        m_main.createNewLesson();
+        
+        m_main.loadLesson(TEST_FILE);
+        assertFalse(m_main.getLesson().canSave());
+        assertEquals(expected, getCardTexts(m_main.getLesson()));
+    }
+    
+    public void testJournalOfOtherLessonIsIgnored() throws Exception
+    {
+        Lesson lesson = m_main.getLesson();
+        lesson.getRootCategory().addCard(new Card("front", "back"));
+        
+        Lesson otherLesson = new Lesson(false);
+        otherLesson.getRootCategory().addCard(new Card("other", "lesson"));
+        XmlBuilder.saveAsXMLFile(TEST_FILE, otherLesson);
+        
+        Main main = new Main();
+        main.loadLesson(TEST_FILE);
+        
+        assertFalse(main.getLesson().canSave());
+        assertEquals(getCardTexts(otherLesson), getCardTexts(main.getLesson()));
+    }
+    
+    public void testLargeJournalIsCompacted() throws Exception
+    {
+        Lesson lesson = m_main.getLesson();
+        StringBuffer text = new StringBuffer();
+        for (int i = 0; i < 1000; i++)
+            text.append("long card text ");
+        
+        for (int i = 0; i < 10; i++)
+            lesson.getRootCategory().addCard(new Card(text.toString(), "back"));
+        
+        assertTrue(LessonJournal.getFile(TEST_FILE).length() > 64 * 1024);
+        
+        m_main.saveLesson(lesson, TEST_FILE);
+        assertEquals(12, LessonJournal.getFile(TEST_FILE).length());
+        
+        m_main.loadLesson(TEST_FILE);
+        assertEquals(getCardTexts(lesson), getCardTexts(m_main.getLesson()));
+    }
+    
+    public void testJournalIsDeletedWithoutJournaling() throws IOException
+    {
+        m_main.setJournaling(false);
+        m_main.saveLesson(m_main.getLesson(), TEST_FILE);
+        
+        assertFalse(LessonJournal.getFile(TEST_FILE).exists());
+    }
+    
+    /**
+     * @return the category, level and front side of all cards in deck order.
+     */
+    private List<String> getCardTexts(Lesson lesson)
+    {
+        List<String> texts = new ArrayList<String>();
+        for (Category category : lesson.getRootCategory().getSubtreeList())
+        {
+            for (int i = 0; i < category.getNumberOfDecks(); i++)
+            {
+                for (Card card : category.getLocalCards(i))
+                {
+                    texts.add(category.getPath() + "/" + i + "/" +
+                        card.getFrontSide() + "/" + card.getTestsTotal());
+                }
+            }
+        }
+        
+        return texts;
+    }
+}
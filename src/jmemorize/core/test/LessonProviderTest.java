@@ -20,23 +20,39 @@ package jmemorize.core.test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Future;
+
+import javax.swing.SwingUtilities;
 
 import jmemorize.core.Card;
+import jmemorize.core.Category;
+import jmemorize.core.CategoryObserver;
 import jmemorize.core.Lesson;
 import jmemorize.core.LessonObserver;
 import jmemorize.core.LessonProvider;
 import jmemorize.core.Main;
+import jmemorize.core.io.LessonJournal;
+import jmemorize.core.io.LessonSummary;
 import junit.framework.TestCase;
 
 public class LessonProviderTest extends TestCase implements LessonObserver
 {
+    private Main           m_main;
     private LessonProvider m_lessonProvider;
     private StringBuffer   m_log;
 
+    private final static File TEST_FILE   = new File("./test-background.jml");
+    private final static File EXPORT_FILE = new File("./test-export.jml");
+    
     protected void setUp() throws Exception
     {
-        m_lessonProvider = new Main();
+        m_main = new Main();
+        m_main.setJournaling(false);
+        
+        m_lessonProvider = m_main;
         m_lessonProvider.addLessonObserver(this);
 
         m_log = new StringBuffer();
@@ -93,11 +109,68 @@ public class LessonProviderTest extends TestCase implements LessonObserver
             new File("test/fixtures/simple_de.jml"));
         
         Lesson lesson = m_lessonProvider.getLesson();
-        m_lessonProvider.saveLesson(lesson, new File("./test.jml"));
+        m_lessonProvider.saveLesson(lesson, TEST_FILE);
         
         assertEquals("loaded saved ", m_log.toString());
     }
     
+    public void testLessonSavedInBackgroundEvent() throws Exception
+    {
+        m_lessonProvider.loadLesson(
+            new File("test/fixtures/simple_de.jml"));
+        
+        Lesson lesson = m_lessonProvider.getLesson();
+        lesson.getRootCategory().addCard(new Card("front", "flip"));
+        
+        m_lessonProvider.saveLessonInBackground(lesson, TEST_FILE).get();
+        waitForEventQueue();
+        
+        assertEquals("loaded modified saved ", m_log.toString());
+        assertFalse(lesson.canSave());
+        assertEquals(TEST_FILE, lesson.getFile());
+        assertFalse(new File(TEST_FILE.getPath() + "~").exists());
+    }
+    
+    public void testLessonModifiedWhileSavingInBackground() throws Exception
+    {
+        m_lessonProvider.loadLesson(
+            new File("test/fixtures/simple_de.jml"));
+        
+        Lesson lesson = m_lessonProvider.getLesson();
+        int cards = lesson.getRootCategory().getCards().size();
+        
+        Future<?> save = m_lessonProvider.saveLessonInBackground(lesson, TEST_FILE);
+        lesson.getRootCategory().addCard(new Card("front", "flip"));
+        
+        save.get();
+        waitForEventQueue();
+        assertTrue(lesson.canSave());
+        
+        m_lessonProvider.loadLesson(TEST_FILE);
+        assertEquals(cards, m_lessonProvider.getLesson().getRootCategory().
+            getCards().size());
+    }
+    
+    public void testSaveOtherLessonKeepsJournal() throws Exception
+    {
+        m_main.setJournaling(true);
+        m_lessonProvider.loadLesson(
+            new File("test/fixtures/simple_de.jml"));
+        
+        Lesson lesson = m_lessonProvider.getLesson();
+        m_lessonProvider.saveLesson(lesson, TEST_FILE);
+        
+        int cards = lesson.getRootCategory().getCards().size();
+        lesson.getRootCategory().addCard(new Card("front", "flip"));
+        
+        m_lessonProvider.saveLesson(lesson.cloneWithoutProgress(), EXPORT_FILE);
+        m_lessonProvider.saveLesson(lesson, TEST_FILE);
+        
+        m_lessonProvider.loadLesson(TEST_FILE);
+        assertEquals(cards + 1, m_lessonProvider.getLesson().getRootCategory().
+            getCards().size());
+    }
+    
     public void testLessonModifiedEvent() throws Exception
     {
         m_lessonProvider.loadLesson(
@@ -109,6 +182,57 @@ public class LessonProviderTest extends TestCase implements LessonObserver
         assertEquals("loaded modified ", m_log.toString());
     }
 
+    public void testCardExpiredEvent() throws Exception
+    {
+        m_lessonProvider.createNewLesson();
+        Category rootCategory = m_lessonProvider.getLesson().getRootCategory();
+        
+        final List<Card> expiredCards = new ArrayList<Card>();
+        rootCategory.addObserver(new CategoryObserver() {
+            public void onCardEvent(int type, Card card, Category category, int deck)
+            {
+                if (type == EXPIRED_EVENT)
+                    expiredCards.add(card);
+            }
+            
+            public void onCategoryEvent(int type, Category category)
+            {
+            }
+        });
+        
+        Card card = new Card("front", "flip");
+        Card laterCard = new Card("front", "flip");
+        card.setDateExpired(new Date(System.currentTimeMillis() + 200));
+        laterCard.setDateExpired(new Date(System.currentTimeMillis() + 60000));
+        rootCategory.addCard(card, 1);
+        rootCategory.addCard(laterCard, 1);
+        
+        Thread.sleep(400);
+        waitForEventQueue();
+        
+        assertEquals(1, expiredCards.size());
+        assertSame(card, expiredCards.get(0));
+    }
+    
+    protected void tearDown() throws Exception
+    {
+        for (File file : new File[] {TEST_FILE, EXPORT_FILE})
+        {
+            file.delete();
+            LessonJournal.getFile(file).delete();
+            LessonSummary.getFile(file).delete();
+        }
+    }
+    
+    private void waitForEventQueue() throws Exception
+    {
+        SwingUtilities.invokeAndWait(new Runnable() {
+            public void run()
+            {
+            }
+        });
+    }
+
     /* (non-Javadoc)
      * @see jmemorize.core.LessonObserver
      */
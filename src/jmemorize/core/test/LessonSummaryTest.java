@@ -0,0 +1,196 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2008 Riad Djemili and contributors
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.core.test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+
+import jmemorize.core.Card;
+import jmemorize.core.Category;
+import jmemorize.core.Lesson;
+import jmemorize.core.Main;
+import jmemorize.core.io.LessonJournal;
+import jmemorize.core.io.LessonSummary;
+import jmemorize.core.io.XmlBuilder;
+import junit.framework.TestCase;
+
+public class LessonSummaryTest extends TestCase
+{
+    private final static File TEST_FILE = new File("./test-summary.jml");
+    
+    private Main m_main;
+    
+    protected void setUp() throws Exception
+    {
+        m_main = new Main();
+        m_main.setJournaling(false);
+    }
+    
+    protected void tearDown() throws Exception
+    {
+        TEST_FILE.delete();
+        LessonJournal.getFile(TEST_FILE).delete();
+        LessonSummary.getFile(TEST_FILE).delete();
+    }
+    
+    public void testSaveWritesSummary() throws Exception
+    {
+        m_main.loadLesson(new File("test/fixtures/simple_de.jml"));
+        Lesson lesson = m_main.getLesson();
+        m_main.saveLesson(lesson, TEST_FILE);
+        
+        LessonSummary summary = LessonSummary.read(TEST_FILE);
+        assertNotNull(summary);
+        assertSummary(lesson, summary);
+    }
+    
+    public void testSummaryIsStaleAfterLessonChanged() throws Exception
+    {
+        m_main.loadLesson(new File("test/fixtures/simple_de.jml"));
+        Lesson lesson = m_main.getLesson();
+        m_main.saveLesson(lesson, TEST_FILE);
+        
+        lesson.getRootCategory().addCard(new Card("front", "back"));
+        XmlBuilder.saveAsXMLFile(TEST_FILE, lesson);
+        
+        assertNull(LessonSummary.read(TEST_FILE));
+    }
+    
+    public void testStaleSummaryIsLoadedFromLesson() throws Exception
+    {
+        Lesson lesson = createLesson();
+        XmlBuilder.saveAsXMLFile(TEST_FILE, lesson);
+        assertNull(LessonSummary.read(TEST_FILE));
+        
+        LessonSummary summary = LessonSummary.load(TEST_FILE);
+        assertSummary(lesson, summary);
+        
+        summary.write(TEST_FILE);
+        assertSummary(lesson, LessonSummary.read(TEST_FILE));
+    }
+    
+    public void testJournalCommitWritesSummary() throws Exception
+    {
+        m_main.setJournaling(true);
+        
+        m_main.loadLesson(new File("test/fixtures/simple_de.jml"));
+        Lesson lesson = m_main.getLesson();
+        m_main.saveLesson(lesson, TEST_FILE);
+        
+        lesson.getRootCategory().addCard(new Card("front", "back"), 1);
+        m_main.saveLesson(lesson, TEST_FILE);
+        
+        LessonSummary summary = LessonSummary.read(TEST_FILE);
+        assertNotNull(summary);
+        assertSummary(lesson, summary);
+        assertSummary(lesson, LessonSummary.load(TEST_FILE));
+    }
+    
+    public void testReadSummariesInOrder() throws Exception
+    {
+        m_main.loadLesson(new File("test/fixtures/simple_de.jml"));
+        m_main.saveLesson(m_main.getLesson(), TEST_FILE);
+        
+        List<LessonSummary> summaries = LessonSummary.read(Arrays.asList(
+            new File("./missing-summary.jml"), TEST_FILE));
+        
+        assertEquals(2, summaries.size());
+        assertNull(summaries.get(0));
+        assertEquals(TEST_FILE, summaries.get(1).getLessonFile());
+    }
+    
+    public void testExpiredAndDueCardsByDay() throws Exception
+    {
+        Lesson lesson = createLesson();
+        LessonSummary summary = LessonSummary.create(lesson);
+        
+        Date now = new Date();
+        Date tomorrow = getDay(1, 0);
+        Date dayAfterTomorrow = getDay(2, 0);
+        
+        assertEquals(5, summary.getCardCount());
+        assertEquals(2, summary.getUnlearnedCardCount());
+        assertEquals(1, summary.getCardCount(1));
+        assertEquals(2, summary.getCardCount(2));
+        
+        assertEquals(1, summary.getExpiredCardCount(now));
+        assertEquals(1, summary.getDueCardCount(now));
+        
+        assertEquals(1, summary.getExpiredCardCount(tomorrow));
+        assertEquals(2, summary.getDueCardCount(tomorrow));
+        
+        assertEquals(2, summary.getExpiredCardCount(dayAfterTomorrow));
+        assertEquals(2, summary.getDueCardCount(dayAfterTomorrow));
+        
+        assertEquals(getDay(1, 12), summary.getNextExpiration());
+    }
+    
+    private Lesson createLesson()
+    {
+        Lesson lesson = new Lesson(false);
+        Category root = lesson.getRootCategory();
+        
+        root.addCard(new Card("unlearned 1", "back"));
+        root.addCard(new Card("unlearned 2", "back"));
+        
+        Card expired = new Card("expired", "back");
+        expired.setDateExpired(getDay(-1, 12));
+        root.addCard(expired, 1);
+        
+        Category child = new Category("child");
+        root.addCategoryChild(child);
+        
+        Card tomorrow = new Card("tomorrow", "back");
+        tomorrow.setDateExpired(getDay(1, 12));
+        child.addCard(tomorrow, 2);
+        
+        Card later = new Card("later", "back");
+        later.setDateExpired(getDay(3, 12));
+        child.addCard(later, 2);
+        
+        return lesson;
+    }
+    
+    private Date getDay(int days, int hour)
+    {
+        Calendar calendar = Calendar.getInstance();
+        calendar.add(Calendar.DAY_OF_MONTH, days);
+        calendar.set(Calendar.HOUR_OF_DAY, hour);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        
+        return calendar.getTime();
+    }
+    
+    private void assertSummary(Lesson lesson, LessonSummary summary)
+    {
+        Category root = lesson.getRootCategory();
+        assertEquals(root.getNumberOfDecks(), summary.getNumberOfDecks());
+        
+        for (int i = 0; i < root.getNumberOfDecks(); i++)
+            assertEquals(root.getCardCount(i), summary.getCardCount(i));
+        
+        assertEquals(root.getCardCount(-1), summary.getCardCount());
+        assertEquals(root.getExpiredCardCount(), summary.getExpiredCardCount(new Date()));
+    }
+}
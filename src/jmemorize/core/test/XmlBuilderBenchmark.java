@@ -0,0 +1,124 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2008 Riad Djemili and contributors
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.core.test;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Date;
+
+import jmemorize.core.Card;
+import jmemorize.core.Category;
+import jmemorize.core.Lesson;
+import jmemorize.core.io.XmlBuilder;
+
+/**
+ * Compares the time and the allocated memory that is needed to save large
+ * lessons with the streaming writer and with the DOM based writer. This is not
+ * part of the test suite. Run it directly with the number of cards as
+ * optional argument.
+ */
+public class XmlBuilderBenchmark
+{
+    private static final int  RUNS   = 5;
+    private static final File FILE   = new File("./benchmark.jml");
+
+    public static void main(String[] args) throws Exception
+    {
+        int cards = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        Lesson lesson = createLesson(cards);
+
+        System.out.println("Saving lesson with " + cards + " cards");
+
+        // warm up
+        XmlBuilder.saveAsXMLFile(FILE, lesson, false);
+        XmlBuilder.saveAsXMLFile(FILE, lesson, true);
+
+        measure("DOM      ", lesson, false);
+        measure("streaming", lesson, true);
+
+        FILE.delete();
+    }
+
+    private static void measure(String name, Lesson lesson, boolean streaming)
+        throws Exception
+    {
+        long time = 0;
+        long allocated = 0;
+
+        for (int i = 0; i < RUNS; i++)
+        {
+            System.gc();
+
+            long bytes = getAllocatedBytes();
+            long start = System.nanoTime();
+
+            XmlBuilder.saveAsXMLFile(FILE, lesson, streaming);
+
+            time += System.nanoTime() - start;
+            allocated += getAllocatedBytes() - bytes;
+        }
+
+        System.out.println(name + ": " + (time / RUNS / 1000000) + " ms, " +
+            (allocated / RUNS / 1024) + " KB allocated, " +
+            (FILE.length() / 1024) + " KB written");
+    }
+
+    /**
+     * @return the number of bytes allocated by the current thread or 0 if the
+     * JVM can't tell.
+     */
+    private static long getAllocatedBytes()
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+        {
+            return ((com.sun.management.ThreadMXBean)bean).
+                getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+
+        return 0;
+    }
+
+    private static Lesson createLesson(int cards)
+    {
+        Lesson lesson = new Lesson(false);
+        Category category = null;
+
+        for (int i = 0; i < cards; i++)
+        {
+            if (i % 1000 == 0)
+            {
+                category = new Category("Category " + i);
+                lesson.getRootCategory().addCategoryChild(category);
+            }
+
+            Card card = new Card("Front side of card " + i,
+                "Back side of card <b>" + i + "</b>");
+            category.addCard(card);
+
+            if (i % 3 != 0)
+            {
+                Category.raiseCardLevel(card, new Date(), new Date());
+            }
+        }
+
+        return lesson;
+    }
+}
@@ -0,0 +1,662 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2008 Riad Djemili and contributors
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.core.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import jmemorize.core.Card;
+import jmemorize.core.Category;
+import jmemorize.core.ImageRepository;
+import jmemorize.core.Lesson;
+import jmemorize.core.Settings;
+import jmemorize.core.ImageRepository.ImageItem;
+import jmemorize.core.io.XmlBuilder;
+import junit.framework.TestCase;
+
+public class XmlBuilderTest extends TestCase
+{
+    private final static File TEST_FILE = new File("./xmlbuilder-test.jml");
+    private final static File DOM_FILE  = new File("./xmlbuilder-dom-test.jml");
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        TEST_FILE.delete();
+        DOM_FILE.delete();
+    }
+
+    public void testStreamingLoadEqualsDomLoadSimple() throws Exception
+    {
+        assertStreamingLoadEqualsDomLoad(new File("test/fixtures/simple_de.jml"));
+    }
+
+    public void testStreamingLoadEqualsDomLoadNoExpiration() throws Exception
+    {
+        assertStreamingLoadEqualsDomLoad(new File("test/fixtures/no_expiration.jml"));
+    }
+
+    public void testStreamingLoadEqualsDomLoadUmlauts() throws Exception
+    {
+        assertStreamingLoadEqualsDomLoad(new File("test/fixtures/test.jml"));
+    }
+
+    public void testStreamingLoadEqualsDomLoadImagesAndHistory() throws Exception
+    {
+        Lesson lesson = new Lesson(false);
+        Category child = new Category("child");
+        lesson.getRootCategory().addCategoryChild(child);
+
+        Card card = new Card("front <b>bold</b>", "back & more");
+        card.getFrontSide().setImages(Arrays.asList(new String[]{"a.png", "b.png"}));
+        card.getBackSide().setImages(Arrays.asList(new String[]{"c.gif"}));
+        child.addCard(card, 2);
+
+        lesson.getRootCategory().addCard(new Card("front", "back"));
+
+        Date now = new Date();
+        lesson.getLearnHistory().addSummary(now, now, 3, 1, 0, 2);
+
+        XmlBuilder.saveAsXMLFile(TEST_FILE, lesson);
+        Lesson loaded = assertStreamingLoadEqualsDomLoad(TEST_FILE);
+
+        Card loadedCard = loaded.getRootCategory().getChildCategory("child").
+            getLocalCards(2).get(0);
+
+        TestHelper.assertList(new String[]{"a.png", "b.png"},
+            loadedCard.getFrontSide().getImages());
+        TestHelper.assertList(new String[]{"c.gif"},
+            loadedCard.getBackSide().getImages());
+        assertEquals(1, loaded.getLearnHistory().getSummaries().size());
+    }
+
+    public void testStreamingSaveLoadsLikeDomSave() throws Exception
+    {
+        Lesson lesson = new Lesson(false);
+        XmlBuilder.loadFromXMLFile(new File("test/fixtures/test.jml"), lesson);
+        
+        Card card = new Card("<b>multi</b>\nline\ttext", "quotes \"&\" 'umlaut' \u00e4\u00df");
+        card.getFrontSide().setImages(Arrays.asList(new String[]{"a&b.png"}));
+        lesson.getRootCategory().addCard(card, 1);
+        lesson.getLearnHistory().addSummary(new Date(), new Date(), 1, 2, 3, 4);
+        
+        XmlBuilder.saveAsXMLFile(TEST_FILE, lesson, true);
+        XmlBuilder.saveAsXMLFile(DOM_FILE, lesson, false);
+        
+        Lesson streamed = new Lesson(false);
+        XmlBuilder.loadFromXMLFile(TEST_FILE, streamed, false);
+        
+        Lesson dom = new Lesson(false);
+        XmlBuilder.loadFromXMLFile(DOM_FILE, dom, false);
+        
+        assertCategory(dom.getRootCategory(), streamed.getRootCategory());
+        assertEquals(dom.getLearnHistory(), streamed.getLearnHistory());
+    }
+    
+    public void testStreamingSavePreservesSpecialCharacters() throws Exception
+    {
+        String front = "<b>multi</b>\nline\r\n\ttext";
+        String back = "quotes \"&\" 'umlaut' \u00e4\u00df <>";
+        
+        Lesson lesson = new Lesson(false);
+        lesson.getRootCategory().addCard(new Card(front, back));
+        XmlBuilder.saveAsXMLFile(TEST_FILE, lesson, true);
+        
+        Lesson loaded = new Lesson(false);
+        XmlBuilder.loadFromXMLFile(TEST_FILE, loaded);
+        
+        Card card = loaded.getRootCategory().getCards().get(0);
+        assertEquals(front, card.getFrontSide().getText().getFormatted());
+        assertEquals(back, card.getBackSide().getText().getFormatted());
+    }
+
+    public void testLoadZipContainerWithImages() throws Exception
+    {
+        ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(TEST_FILE));
+        
+        // images are not required to come after the lesson entry
+        zipOut.putNextEntry(new ZipEntry("images/test.gif"));
+        copy(new FileInputStream("test/fixtures/test-images/test.gif"), zipOut);
+        zipOut.closeEntry();
+        
+        zipOut.putNextEntry(new ZipEntry("lesson.xml"));
+        copy(new GZIPInputStream(new FileInputStream("test/fixtures/simple_de.jml")), zipOut);
+        zipOut.closeEntry();
+        zipOut.close();
+        
+        Lesson lesson = assertStreamingLoadEqualsDomLoad(TEST_FILE);
+        assertNotNull(lesson.getImageRepository().getImage("test.gif"));
+    }
+    
+    public void testCompressedImagesAreStoredInZip() throws Exception
+    {
+        Lesson lesson = new Lesson(false);
+        ImageRepository repository = lesson.getImageRepository();
+        String gifId = repository.addImage(
+            new FileInputStream("test/fixtures/test-images/test.gif"), "test.gif");
+        String pngId = repository.addImage(
+            new FileInputStream("test/fixtures/test-images/test.png"), "test.png");
+        String rawId = repository.addImage(
+            new ByteArrayInputStream(new byte[] {1, 2, 3, 4, 5}), "test.raw");
+        
+        Card card = new Card("front", "back");
+        card.getFrontSide().setImages(Arrays.asList(new String[]{gifId, pngId, rawId}));
+        lesson.getRootCategory().addCard(card);
+        
+        boolean saveCompressed = Settings.loadIsSaveCompressed();
+        Settings.storeSaveCompressed(true);
+        
+        try
+        {
+            XmlBuilder.saveAsXMLFile(TEST_FILE, lesson);
+        }
+        finally
+        {
+            Settings.storeSaveCompressed(saveCompressed);
+        }
+        
+        ZipFile zipFile = new ZipFile(TEST_FILE);
+        try
+        {
+            assertEquals(ZipEntry.DEFLATED, zipFile.getEntry("lesson.xml").getMethod());
+            assertEquals(ZipEntry.STORED, getImageEntry(zipFile, gifId).getMethod());
+            assertEquals(ZipEntry.STORED, getImageEntry(zipFile, pngId).getMethod());
+            assertEquals(ZipEntry.DEFLATED, getImageEntry(zipFile, rawId).getMethod());
+        }
+        finally
+        {
+            zipFile.close();
+        }
+        
+        Lesson loaded = new Lesson(false);
+        XmlBuilder.loadFromXMLFile(TEST_FILE, loaded);
+        
+        assertEquals(3, loaded.getImageRepository().getImageItems().size());
+        assertEquals(new File("test/fixtures/test-images/test.png").length(), 
+            getItem(loaded, pngId).getBytes().length);
+    }
+    
+    public void testParallelSavesKeepImagesOfLessonsApart() throws Exception
+    {
+        final File[] files = new File[] {TEST_FILE, DOM_FILE};
+        final String[] images = new String[] {"test.gif", "test.png"};
+        
+        // uncompressed lessons in the same folder would share their images
+        boolean saveCompressed = Settings.loadIsSaveCompressed();
+        Settings.storeSaveCompressed(true);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        List<Future<Lesson>> saves = new ArrayList<Future<Lesson>>();
+        for (int i = 0; i < files.length; i++)
+        {
+            final int index = i;
+            saves.add(executor.submit(new Callable<Lesson>() {
+                public Lesson call() throws Exception
+                {
+                    Lesson lesson = new Lesson(false);
+                    String id = lesson.getImageRepository().addImage(new FileInputStream(
+                        "test/fixtures/test-images/" + images[index]), images[index]);
+                    
+                    Card card = new Card("front", "back");
+                    card.getFrontSide().setImages(Arrays.asList(new String[]{id}));
+                    lesson.getRootCategory().addCard(card);
+                    
+                    XmlBuilder.saveAsXMLFile(files[index], lesson);
+                    
+                    Lesson loaded = new Lesson(false);
+                    XmlBuilder.loadFromXMLFile(files[index], loaded);
+                    return loaded;
+                }
+            }));
+        }
+        
+        try
+        {
+            for (int i = 0; i < files.length; i++)
+            {
+                Lesson loaded = saves.get(i).get();
+                assertEquals(1, loaded.getImageRepository().getImageItems().size());
+                assertNotNull(getItem(loaded, images[i]));
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+            Settings.storeSaveCompressed(saveCompressed);
+        }
+    }
+    
+    public void testLoadPlainContainer() throws Exception
+    {
+        FileOutputStream out = new FileOutputStream(TEST_FILE);
+        copy(new GZIPInputStream(new FileInputStream("test/fixtures/simple_de.jml")), out);
+        out.close();
+        
+        assertStreamingLoadEqualsDomLoad(TEST_FILE);
+    }
+
+    public void testDatesKeepMilliseconds() throws Exception
+    {
+        Date created = new Date(1234567890123L);
+        Card card = new Card(created, "front", "back");
+        card.setDateTested(new Date(1234567899999L));
+        
+        Lesson lesson = new Lesson(false);
+        lesson.getRootCategory().addCard(card);
+        
+        XmlBuilder.saveAsXMLFile(TEST_FILE, lesson, true);
+        XmlBuilder.saveAsXMLFile(DOM_FILE, lesson, false);
+        
+        for (File file : new File[] {TEST_FILE, DOM_FILE})
+        {
+            Lesson loaded = assertStreamingLoadEqualsDomLoad(file);
+            Card loadedCard = loaded.getRootCategory().getCards().get(0);
+            
+            assertEquals(created, loadedCard.getDateCreated());
+            assertEquals(card.getDateTested(), loadedCard.getDateTested());
+        }
+    }
+    
+    public void testLegacyDatesOfAllJREsAreLoaded() throws Exception
+    {
+        FileOutputStream out = new FileOutputStream(TEST_FILE);
+        out.write(("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<Lesson><Category name=\"root\"><Deck>" +
+            "<Card Frontside=\"a\" Backside=\"a\" DateCreated=\"18-Sep-2006 03:18:21\"/>" +
+            "<Card Frontside=\"b\" Backside=\"b\" DateCreated=\"18 Sept 2006, 03:18:21\"/>" +
+            "<Card Frontside=\"c\" Backside=\"c\" DateCreated=\"18 Sep 2006, 03:18:21\"/>" +
+            "</Deck></Category></Lesson>").getBytes("UTF-8"));
+        out.close();
+        
+        Lesson lesson = assertStreamingLoadEqualsDomLoad(TEST_FILE);
+        List<Card> cards = lesson.getRootCategory().getCards();
+        
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2006, Calendar.SEPTEMBER, 18, 3, 18, 21);
+        
+        assertEquals(3, cards.size());
+        for (Card card : cards)
+            assertEquals(calendar.getTime(), card.getDateCreated());
+    }
+    
+    public void testParallelLoadsOfLegacyDates() throws Exception
+    {
+        final File file = new File("test/fixtures/test.jml");
+        final Lesson expected = new Lesson(false);
+        XmlBuilder.loadFromXMLFile(file, expected);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Lesson>> loads = new ArrayList<Future<Lesson>>();
+        for (int i = 0; i < 8; i++)
+        {
+            loads.add(executor.submit(new Callable<Lesson>() {
+                public Lesson call() throws Exception
+                {
+                    Lesson lesson = new Lesson(false);
+                    XmlBuilder.loadFromXMLFile(file, lesson);
+                    return lesson;
+                }
+            }));
+        }
+        
+        try
+        {
+            for (Future<Lesson> load : loads)
+                assertCategory(expected.getRootCategory(), load.get().getRootCategory());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+    
+    public void testShardedLessonLoadsLikeUnshardedLesson() throws Exception
+    {
+        Lesson lesson = new Lesson(false);
+        XmlBuilder.loadFromXMLFile(new File("test/fixtures/test.jml"), lesson);
+        
+        Category child = lesson.getRootCategory().getChildCategories().get(0);
+        child.addCategoryChild(new Category("grandchild")).addCard(
+            new Card("front", "back"));
+        
+        saveSharded(TEST_FILE, lesson);
+        
+        ZipFile zipFile = new ZipFile(TEST_FILE);
+        try
+        {
+            assertEquals(lesson.getRootCategory().getChildCategories().size(), 
+                getShardEntries(zipFile).size());
+        }
+        finally
+        {
+            zipFile.close();
+        }
+        
+        Lesson loaded = assertStreamingLoadEqualsDomLoad(TEST_FILE);
+        assertCategory(lesson.getRootCategory(), loaded.getRootCategory());
+        assertEquals(2, loaded.getRootCategory().getChildCategory(child.getName()).
+            getChildCategory("grandchild").getDepth());
+    }
+    
+    public void testOnlyChangedShardsAreWritten() throws Exception
+    {
+        Lesson lesson = new Lesson(false);
+        for (int i = 0; i < 3; i++)
+        {
+            Category category = new Category("category " + i);
+            lesson.getRootCategory().addCategoryChild(category);
+            category.addCard(new Card("front " + i, "back " + i));
+        }
+        
+        saveSharded(TEST_FILE, lesson);
+        
+        // loaded categories keep their versions
+        Lesson loaded = new Lesson(false);
+        XmlBuilder.loadFromXMLFile(TEST_FILE, loaded);
+        loaded.setFile(TEST_FILE);
+        
+        Category changed = loaded.getRootCategory().getChildCategory("category 1");
+        changed.addCard(new Card("new front", "new back"));
+        
+        saveSharded(DOM_FILE, loaded);
+        
+        ZipFile before = new ZipFile(TEST_FILE);
+        ZipFile after = new ZipFile(DOM_FILE);
+        try
+        {
+            List<String> beforeEntries = getShardEntries(before);
+            List<String> afterEntries = getShardEntries(after);
+            
+            assertEquals(3, afterEntries.size());
+            assertTrue(afterEntries.contains(beforeEntries.get(0)));
+            assertFalse(afterEntries.contains(beforeEntries.get(1)));
+            assertTrue(afterEntries.contains(beforeEntries.get(2)));
+        }
+        finally
+        {
+            before.close();
+            after.close();
+        }
+        
+        Lesson reloaded = new Lesson(false);
+        XmlBuilder.loadFromXMLFile(DOM_FILE, reloaded);
+        assertCategory(loaded.getRootCategory(), reloaded.getRootCategory());
+    }
+    
+    public void testLazyLoadedLessonHasCountsBeforeCards() throws Exception
+    {
+        Lesson lesson = createLearnedLesson();
+        saveSharded(TEST_FILE, lesson);
+        
+        Lesson lazy = new Lesson(false);
+        XmlBuilder.loadFromXMLFile(TEST_FILE, lazy, true, true);
+        
+        Category root = lazy.getRootCategory();
+        assertTrue(root.hasUnloadedCards());
+        assertEquals(lesson.getRootCategory().getNumberOfDecks(), root.getNumberOfDecks());
+        
+        List<Category> expected = lesson.getRootCategory().getSubtreeList();
+        List<Category> actual = root.getSubtreeList();
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+        {
+            for (int level = 0; level < expected.get(i).getNumberOfDecks(); level++)
+            {
+                assertEquals(expected.get(i).getCardCount(level), 
+                    actual.get(i).getCardCount(level));
+                assertEquals(expected.get(i).getExpiredCardCount(level), 
+                    actual.get(i).getExpiredCardCount(level));
+                assertEquals(expected.get(i).getLearnedCardCount(level), 
+                    actual.get(i).getLearnedCardCount(level));
+            }
+        }
+        
+        assertTrue(root.hasUnloadedCards());
+        
+        // the cards of a category are loaded when they are accessed
+        Category child = root.getChildCategory("category 1").getChildCategory("child");
+        assertEquals(2, child.getLocalCards(0).size());
+        assertNull(child.getCardLoader());
+        assertNotNull(child.getParent().getCardLoader());
+        
+        assertCategory(lesson.getRootCategory(), root);
+        assertFalse(root.hasUnloadedCards());
+    }
+    
+    public void testUnchangedLazyCategoriesAreNotLoadedForSaving() throws Exception
+    {
+        saveSharded(TEST_FILE, createLearnedLesson());
+        
+        Lesson lazy = new Lesson(false);
+        XmlBuilder.loadFromXMLFile(TEST_FILE, lazy, true, true);
+        lazy.setFile(TEST_FILE);
+        
+        Category changed = lazy.getRootCategory().getChildCategory("category 1");
+        changed.addCard(new Card("new front", "new back"));
+        
+        saveSharded(DOM_FILE, lazy);
+        
+        assertNotNull(lazy.getRootCategory().getChildCategory("category 0").getCardLoader());
+        assertNull(changed.getChildCategory("child").getCardLoader());
+        
+        Lesson reloaded = new Lesson(false);
+        XmlBuilder.loadFromXMLFile(DOM_FILE, reloaded);
+        assertCategory(lazy.getRootCategory(), reloaded.getRootCategory());
+        
+        // saving lazy lessons without shards needs all cards
+        XmlBuilder.saveAsXMLFile(DOM_FILE, lazy);
+        assertFalse(lazy.getRootCategory().hasUnloadedCards());
+    }
+    
+    /**
+     * @return a lesson with three top-level categories that have unlearned,
+     * expired and learned cards.
+     */
+    private Lesson createLearnedLesson()
+    {
+        Calendar future = Calendar.getInstance();
+        future.add(Calendar.YEAR, 1);
+        
+        Lesson lesson = new Lesson(false);
+        for (int i = 0; i < 3; i++)
+        {
+            Category category = new Category("category " + i);
+            lesson.getRootCategory().addCategoryChild(category);
+            
+            Category child = category.addCategoryChild(new Category("child"));
+            child.addCard(new Card("child front " + i, "child back"));
+            child.addCard(new Card("child front " + i, "child back"));
+            
+            for (int j = 0; j < 4; j++)
+            {
+                Card card = new Card("front " + i + j, "back " + i + j);
+                category.addCard(card);
+                
+                if (j > 1)
+                    Category.raiseCardLevel(card, new Date(), new Date(1000L * j));
+                if (j > 2)
+                    Category.raiseCardLevel(card, new Date(), future.getTime());
+            }
+        }
+        
+        return lesson;
+    }
+    
+    private void saveSharded(File file, Lesson lesson) throws Exception
+    {
+        boolean saveCompressed = Settings.loadIsSaveCompressed();
+        boolean saveSharded = Settings.loadIsSaveSharded();
+        Settings.storeSaveCompressed(true);
+        Settings.storeSaveSharded(true);
+        
+        try
+        {
+            XmlBuilder.saveAsXMLFile(file, lesson);
+        }
+        finally
+        {
+            Settings.storeSaveCompressed(saveCompressed);
+            Settings.storeSaveSharded(saveSharded);
+        }
+    }
+    
+    /**
+     * @return the names of all category entries in the order of the zip file.
+     */
+    private List<String> getShardEntries(ZipFile zipFile)
+    {
+        List<String> names = new ArrayList<String>();
+        for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); 
+            entries.hasMoreElements();)
+        {
+            String name = entries.nextElement().getName();
+            if (name.startsWith("categories/"))
+                names.add(name);
+        }
+        
+        return names;
+    }
+    
+    private Lesson assertStreamingLoadEqualsDomLoad(File file) throws Exception
+    {
+        Lesson domLesson = new Lesson(false);
+        XmlBuilder.loadFromXMLFile(file, domLesson, false);
+
+        Lesson staxLesson = new Lesson(false);
+        XmlBuilder.loadFromXMLFile(file, staxLesson, true);
+
+        assertTrue(domLesson.getRootCategory().getCards().size() > 0);
+        assertCategory(domLesson.getRootCategory(), staxLesson.getRootCategory());
+        assertEquals(domLesson.getLearnHistory(), staxLesson.getLearnHistory());
+
+        return staxLesson;
+    }
+
+    private void assertCategory(Category expected, Category actual)
+    {
+        assertEquals(expected.getName(), actual.getName());
+        assertEquals(expected.getNumberOfDecks(), actual.getNumberOfDecks());
+
+        for (int i = 0; i < expected.getNumberOfDecks(); i++)
+        {
+            List<Card> expectedCards = expected.getLocalCards(i);
+            List<Card> actualCards = actual.getLocalCards(i);
+
+            assertEquals(expectedCards.size(), actualCards.size());
+            for (int j = 0; j < expectedCards.size(); j++)
+            {
+                assertCard(expectedCards.get(j), actualCards.get(j));
+            }
+        }
+
+        List<Category> expectedChildren = expected.getChildCategories();
+        List<Category> actualChildren = actual.getChildCategories();
+
+        assertEquals(expectedChildren.size(), actualChildren.size());
+        for (int i = 0; i < expectedChildren.size(); i++)
+        {
+            assertCategory(expectedChildren.get(i), actualChildren.get(i));
+        }
+    }
+
+    private void assertCard(Card expected, Card actual)
+    {
+        assertEquals(expected.getFrontSide().getText(), actual.getFrontSide().getText());
+        assertEquals(expected.getBackSide().getText(), actual.getBackSide().getText());
+        assertEquals(expected.getFrontSide().getImages(), actual.getFrontSide().getImages());
+        assertEquals(expected.getBackSide().getImages(), actual.getBackSide().getImages());
+
+        assertEquals(expected.getLevel(), actual.getLevel());
+        assertEquals(expected.getDateCreated(), actual.getDateCreated());
+        assertEquals(expected.getDateModified(), actual.getDateModified());
+        assertEquals(expected.getDateTested(), actual.getDateTested());
+        assertExpirationDate(expected.getDateExpired(), actual.getDateExpired());
+        assertEquals(expected.getDateTouched(), actual.getDateTouched());
+
+        assertEquals(expected.getLearnedAmount(true), actual.getLearnedAmount(true));
+        assertEquals(expected.getLearnedAmount(false), actual.getLearnedAmount(false));
+        assertEquals(expected.getTestsTotal(), actual.getTestsTotal());
+        assertEquals(expected.getTestsPassed(), actual.getTestsPassed());
+    }
+
+    private ZipEntry getImageEntry(ZipFile zipFile, String id)
+    {
+        return zipFile.getEntry("images" + File.separator + id);
+    }
+    
+    private ImageItem getItem(Lesson lesson, String id)
+    {
+        for (ImageItem item : lesson.getImageRepository().getImageItems())
+        {
+            if (item.getId().equals(id))
+                return item;
+        }
+        
+        return null;
+    }
+    
+    private void copy(InputStream in, OutputStream out) throws IOException
+    {
+        byte[] buffer = new byte[1024];
+        int numRead;
+        
+        while ((numRead = in.read(buffer)) >= 0)
+        {
+            out.write(buffer, 0, numRead);
+        }
+        
+        in.close();
+    }
+
+    /**
+     * Learned cards without expiration date get the time of loading as their
+     * expiration date, so the two loads can differ by a few milliseconds.
+     */
+    private void assertExpirationDate(Date expected, Date actual)
+    {
+        if (expected == null)
+        {
+            assertNull(actual);
+            return;
+        }
+
+        assertNotNull(actual);
+        assertTrue(Math.abs(expected.getTime() - actual.getTime()) < 10000);
+    }
+}
@@ -30,6 +30,7 @@ import jmemorize.core.learn.LearnSettings;
 public class LearnSessionProviderStub implements LearnSessionProvider
 {
     private boolean m_sessionEnded = false;
+    private boolean m_sessionRunning = false;
 
     public void startLearnSession(LearnSettings settings, 
         List<Card> selectedCards, Category category,
@@ -57,6 +58,11 @@ public class LearnSessionProviderStub implements LearnSessionProvider
 
     public boolean isSessionRunning()
     {
-        return false;
+        return m_sessionRunning;
+    }
+    
+    public void setSessionRunning(boolean running)
+    {
+        m_sessionRunning = running;
     }
 }
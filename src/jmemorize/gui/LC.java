@@ -217,6 +217,7 @@ public interface LC
     public static final String PASTE                                  = "MainFrame.PASTE";
     
     public static final String FILE_FILTER_DESC                       = "MainFrame.FILE_FILTER_DESC";
+    public static final String BINARY_FILE_FILTER_DESC                = "MainFrame.BINARY_FILE_FILTER_DESC";
     
     public static final String EXPORT_CLEAN                           = "MainFrame.EXPORT_CLEAN";
     public static final String EXPORT_CLEAN_DESC                      = "MainFrame.EXPORT_CLEAN_DESC";
@@ -272,6 +273,18 @@ public interface LC
     /** @since 1.2.0 */
     public static final String HISTORY_DURATION                       = "History.SESSION_DURATION";
     
+    // -- Library --------
+    
+    public static final String LIBRARY_TITLE                          = "Library.TITLE";
+    public static final String LIBRARY_ACTION                         = "Library.ACTION";
+    public static final String LIBRARY_LESSON                         = "Library.LESSON";
+    public static final String LIBRARY_CARDS                          = "Library.CARDS";
+    public static final String LIBRARY_UNLEARNED                      = "Library.UNLEARNED";
+    public static final String LIBRARY_EXPIRED                        = "Library.EXPIRED";
+    public static final String LIBRARY_DUE_TODAY                      = "Library.DUE_TODAY";
+    public static final String LIBRARY_NEXT_DUE                       = "Library.NEXT_DUE";
+    public static final String LIBRARY_LOADING                        = "Library.LOADING";
+    
     // -- Schedule ------
     
     public static final String SCHEDULE_CONST                         = "Strategy.CONSTANT_SCHEDULE";
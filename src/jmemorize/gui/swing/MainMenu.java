@@ -53,6 +53,7 @@ import jmemorize.gui.swing.actions.file.OpenRecentLessonAction;
 import jmemorize.gui.swing.actions.file.PreferencesAction;
 import jmemorize.gui.swing.actions.file.SaveLessonAction;
 import jmemorize.gui.swing.actions.file.SaveLessonAsAction;
+import jmemorize.gui.swing.actions.file.ShowLibraryAction;
 import jmemorize.util.RecentItems;
 import jmemorize.util.RecentItems.RecentItemsObserver;
 
@@ -180,12 +181,13 @@ public class MainMenu extends JMenuBar implements RecentItemsObserver
         m_fileMenu.add(importMenu);
         m_fileMenu.add(exportMenu);
         
-        // add recent files menu items
+        // add library and recent files menu items
         int recentFiles = Main.getInstance().getRecentLessonFiles().size();
 
         if (recentFiles > 0)
         {
             m_fileMenu.addSeparator();
+            m_fileMenu.add(new JMenuItem(new ShowLibraryAction()));
         }
 
         for (int i = 0; i < recentFiles; i++)
@@ -21,9 +21,10 @@ package jmemorize.gui.swing.actions;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 
+import jmemorize.core.BatchEvent;
+import jmemorize.core.BatchObserver;
 import jmemorize.core.Card;
 import jmemorize.core.Category;
-import jmemorize.core.CategoryObserver;
 import jmemorize.core.Main;
 import jmemorize.gui.LC;
 import jmemorize.gui.Localization;
@@ -38,7 +39,7 @@ import jmemorize.gui.swing.frames.MainFrame;
  * @author djemili
  */
 public class LearnAction extends AbstractSessionDisabledAction 
-    implements SelectionObserver, CategoryObserver
+    implements SelectionObserver, BatchObserver
 {
     private SelectionProvider m_selectionProvider;
     private Category          m_category;
@@ -94,6 +95,14 @@ public class LearnAction extends AbstractSessionDisabledAction
         updateEnablement();
     }
 
+    /* (non-Javadoc)
+     * @see jmemorize.core.BatchObserver
+     */
+    public void onBatchEvent(BatchEvent event)
+    {
+        updateEnablement();
+    }
+    
     /* (non-Javadoc)
      * @see jmemorize.gui.swing.actions.AbstractSessionDisabledAction
      */
@@ -111,7 +120,7 @@ public class LearnAction extends AbstractSessionDisabledAction
             !m_selectionProvider.getSelectedCards().isEmpty();
             
         boolean hasLearnableCards = m_selectionProvider.getCategory() != null && 
-            !m_selectionProvider.getCategory().getLearnableCards().isEmpty();
+            m_selectionProvider.getCategory().getLearnableCardCount() > 0;
         
         setEnabled(!runningSession && (hasLearnableCards || hasSelectedCards)); 
     }
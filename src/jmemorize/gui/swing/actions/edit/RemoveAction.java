@@ -77,9 +77,19 @@ public class RemoveAction extends AbstractAction2 implements SelectionObserver
                 return;
             }
 
-            for (Card card : selectedCards)
+            // the selected cards can belong to different categories
+            Category rootCategory = Main.getInstance().getLesson().getRootCategory();
+            rootCategory.beginBatch();
+            try
             {
-                card.getCategory().removeCard(card); // HACK
+                for (Card card : selectedCards)
+                {
+                    card.getCategory().removeCard(card); // HACK
+                }
+            }
+            finally
+            {
+                rootCategory.endBatch();
             }
         }
         else if (selectedCategories.size() > 0)
@@ -87,7 +97,7 @@ public class RemoveAction extends AbstractAction2 implements SelectionObserver
             
             for (Category category : selectedCategories)
             {
-                int cardCount = category.getCards().size();
+                int cardCount = category.getCardCount(-1);
 
                 if (cardCount > 0)
                 {
@@ -24,6 +24,7 @@ import java.text.MessageFormat;
 import javax.swing.JOptionPane;
 
 import jmemorize.core.Card;
+import jmemorize.core.Category;
 import jmemorize.gui.LC;
 import jmemorize.gui.Localization;
 import jmemorize.gui.swing.SelectionProvider;
@@ -65,9 +66,18 @@ public class ResetCardAction extends AbstractAction2 implements SelectionObserve
 
         if (n == JOptionPane.OK_OPTION)
         {
-            for (Card card : m_selectionProvider.getSelectedCards())
+            Category category = m_selectionProvider.getCategory();
+            category.beginBatch();
+            try
             {
-                m_selectionProvider.getCategory().resetCard(card);
+                for (Card card : m_selectionProvider.getSelectedCards())
+                {
+                    category.resetCard(card);
+                }
+            }
+            finally
+            {
+                category.endBatch();
             }
         }
     }
@@ -42,12 +42,14 @@ public abstract class AbstractExportAction extends AbstractSessionDisabledAction
      * Displays a Save As or Export dialog, and to confirm overwrites,
      * and to attach specified file extension.
      * 
+     * @param fileFilters the file filters that the user can choose from. The
+     * first one is selected by default.
      * @return the file path or <code>null</code> if the dialog was cancelled.
      * 
      * @author Perry (elsapo)
      * @author djemili
      */
-    public static File showSaveDialog(JFrame frame, ExtensionFileFilter fileFilter)
+    public static File showSaveDialog(JFrame frame, ExtensionFileFilter... fileFilters)
     {
         JFileChooser chooser = new JFileChooser();
         
@@ -61,7 +63,9 @@ public abstract class AbstractExportAction extends AbstractSessionDisabledAction
             chooser.setCurrentDirectory(null);
         }                
         
-        chooser.setFileFilter(fileFilter);
+        for (ExtensionFileFilter fileFilter : fileFilters)
+            chooser.addChoosableFileFilter(fileFilter);
+        chooser.setFileFilter(fileFilters[0]);
         
         // Loop so we can prompt again if they choose not to overwrite
         while (true)
@@ -73,7 +77,11 @@ public abstract class AbstractExportAction extends AbstractSessionDisabledAction
 
             File file = chooser.getSelectedFile();
 
-            // Attach desired extension, if supplied
+            // Attach extension of the chosen filter, if supplied
+            ExtensionFileFilter fileFilter = fileFilters[0];
+            if (chooser.getFileFilter() instanceof ExtensionFileFilter)
+                fileFilter = (ExtensionFileFilter)chooser.getFileFilter();
+            
             String extension = fileFilter.getExtension();
             if (extension.length() > 0 && !file.getName().endsWith(extension))
             {
@@ -27,6 +27,7 @@ import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.filechooser.FileFilter;
 
+import jmemorize.core.Category;
 import jmemorize.core.Lesson;
 import jmemorize.core.Main;
 import jmemorize.core.Settings;
@@ -85,7 +86,7 @@ public abstract class AbstractImportAction extends AbstractSessionDisabledAction
         {
             file = showOpenDialog(main.getFrame(), getFileFilter());
             if (file != null)
-                doImport(file, main.getLesson());
+                doBatchImport(file, main.getLesson());
         } 
         catch (Exception e)
         {
@@ -98,6 +99,24 @@ public abstract class AbstractImportAction extends AbstractSessionDisabledAction
         }
     }
     
+    /**
+     * Imports given file as a single batch, so that the views of the lesson
+     * are updated once instead of once for every imported card.
+     */
+    private void doBatchImport(File file, Lesson lesson) throws IOException
+    {
+        Category rootCategory = lesson.getRootCategory();
+        rootCategory.beginBatch();
+        try
+        {
+            doImport(file, lesson);
+        }
+        finally
+        {
+            rootCategory.endBatch();
+        }
+    }
+    
     /**
      * Imports given file contents into given lesson.
      */
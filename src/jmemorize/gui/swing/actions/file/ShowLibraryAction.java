@@ -0,0 +1,69 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2008 Riad Djemili and contributors
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.gui.swing.actions.file;
+
+import java.awt.event.ActionEvent;
+
+import javax.swing.JDialog;
+
+import jmemorize.core.Main;
+import jmemorize.gui.LC;
+import jmemorize.gui.Localization;
+import jmemorize.gui.swing.actions.AbstractSessionDisabledAction;
+import jmemorize.gui.swing.dialogs.OkayButtonDialog;
+import jmemorize.gui.swing.frames.MainFrame;
+import jmemorize.gui.swing.panels.LibraryPanel;
+
+/**
+ * An action that shows the due cards of all recently used lessons.
+ *
+ * @author djemili
+ */
+public class ShowLibraryAction extends AbstractSessionDisabledAction
+{
+    public ShowLibraryAction()
+    {
+        setValues();
+    }
+    
+    /* (non-Javadoc)
+     * @see java.awt.event.ActionListener
+     */
+    public void actionPerformed(ActionEvent e)
+    {
+        MainFrame parent = Main.getInstance().getFrame();
+        
+        LibraryPanel libraryPanel = new LibraryPanel(
+            Main.getInstance().getRecentLessonFiles().getItems());
+        
+        String title = Localization.get(LC.LIBRARY_TITLE);
+        JDialog dialog = new OkayButtonDialog(parent, title, true, libraryPanel);
+        dialog.setSize((int)(parent.getWidth() * 0.70), 300);
+        dialog.setLocationRelativeTo(parent);
+        
+        dialog.setVisible(true);
+    }
+    
+    private void setValues()
+    {
+        setName(Localization.get(LC.LIBRARY_ACTION));
+        setIcon("/resource/icons/blank.gif"); //$NON-NLS-1$
+        setMnemonic(1);
+    }
+}
@@ -545,7 +545,7 @@ public class EditCardFrame extends EscapableFrame implements CategoryObserver, S
             FormattedText frontText = m_cardPanel.getFrontText();
             FormattedText backText = m_cardPanel.getBackText();
             
-            ImageRepository repo = ImageRepository.getInstance();
+            ImageRepository repo = Main.getInstance().getLesson().getImageRepository();
             
             List<String> frontIDs = repo.addImages(m_cardPanel.getFrontImages());
             List<String> backIDs = repo.addImages(m_cardPanel.getBackImages());
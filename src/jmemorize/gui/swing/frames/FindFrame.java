@@ -29,6 +29,7 @@ import java.awt.event.FocusListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
 import javax.swing.AbstractAction;
@@ -47,14 +48,15 @@ import javax.swing.border.EtchedBorder;
 import javax.swing.event.PopupMenuEvent;
 import javax.swing.event.PopupMenuListener;
 
+import jmemorize.core.BatchEvent;
+import jmemorize.core.BatchObserver;
 import jmemorize.core.Card;
 import jmemorize.core.Category;
-import jmemorize.core.CategoryObserver;
 import jmemorize.core.Events;
 import jmemorize.core.Main;
+import jmemorize.core.Main.ProgramEndObserver;
 import jmemorize.core.SearchTool;
 import jmemorize.core.Settings;
-import jmemorize.core.Main.ProgramEndObserver;
 import jmemorize.gui.LC;
 import jmemorize.gui.Localization;
 import jmemorize.gui.swing.actions.AbstractAction2;
@@ -75,7 +77,7 @@ import com.jgoodies.forms.layout.FormLayout;
  * @author djemili
  */
 public class FindFrame extends EscapableFrame 
-    implements CategoryObserver, ProgramEndObserver
+    implements BatchObserver, ProgramEndObserver
 {
     private final static String FRAME_ID            = "findframe";
 
@@ -235,6 +237,22 @@ public class FindFrame extends EscapableFrame
     {
         // category combo box handles this event by itself
     }
+    
+    /*
+     * @see jmemorize.core.BatchObserver#onBatchEvent
+     */
+    public void onBatchEvent(BatchEvent event)
+    {
+        List<Card> removedCards = event.getCards(Events.REMOVED_EVENT);
+        if (removedCards.isEmpty())
+            return;
+        
+        List<Card> cards = m_cardTable.getView().getCards();
+        cards.removeAll(new HashSet<Card>(removedCards));
+        
+        m_cardTable.getView().setCards(cards, m_searchCategory);
+        updateStatusBar();
+    }
 
     public CardTable getCardTable()
     {
@@ -33,6 +33,8 @@ import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
@@ -47,6 +49,8 @@ import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
 import javax.swing.JToolBar;
 import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.TransferHandler;
 import javax.swing.UIManager;
 import javax.swing.WindowConstants;
@@ -110,6 +114,8 @@ public class MainFrame extends JFrame implements CategoryObserver,
     static public final TransferHandler     TRANSFER_HANDLER = new GeneralTransferHandler();
     public static final ExtensionFileFilter FILE_FILTER      = new ExtensionFileFilter(
         "jml", Localization.get(LC.FILE_FILTER_DESC));
+    public static final ExtensionFileFilter BINARY_FILE_FILTER = new ExtensionFileFilter(
+        "jmb", Localization.get(LC.BINARY_FILE_FILTER_DESC));
     
     private static final String             FRAME_ID             = "main";
     private static final String             REPEAT_CARD          = "repeatCard";
@@ -267,7 +273,10 @@ public class MainFrame extends JFrame implements CategoryObserver,
         m_category = category;
         m_category.addObserver(this);
 
-        m_deckChartPanel.setCategory(category);
+        if (m_deckChartPanel != null)
+        {
+            m_deckChartPanel.setCategory(category);
+        }
         m_deckTablePanel.setCategory(category); // TODO refactor. give only list of cards
         
         m_categoryBox.setSelectedCategory(category);
@@ -311,7 +320,10 @@ public class MainFrame extends JFrame implements CategoryObserver,
         m_deck = level;
         
         m_deckTablePanel.setDeck(level);
-        m_deckChartPanel.setDeck(level);
+        if (m_deckChartPanel != null)
+        {
+            m_deckChartPanel.setDeck(level);
+        }
     }
     
     /**
@@ -435,6 +447,7 @@ public class MainFrame extends JFrame implements CategoryObserver,
                     chooser.setCurrentDirectory(null);
                 }                
                 
+                chooser.addChoosableFileFilter(MainFrame.BINARY_FILE_FILTER);
                 chooser.setFileFilter(MainFrame.FILE_FILTER);
     
                 int returnVal = chooser.showOpenDialog(this);
@@ -468,19 +481,72 @@ public class MainFrame extends JFrame implements CategoryObserver,
     }
 
     /**
-     * Saves the lesson or displays an error message if the operation failed.
+     * Saves the lesson in the background. Displays an error message if the
+     * operation failed.
      * 
      * @param file The path to the lesson. If <code>null</code> a file chooser
      * is shown that allows the user to select the file.
      */
     public void saveLesson(Lesson lesson, File file)
+    {
+        if (file == null)
+        {
+            file = AbstractExportAction.showSaveDialog(
+                this, MainFrame.FILE_FILTER, MainFrame.BINARY_FILE_FILTER);
+            
+            if (file == null)
+                return;
+        }
+        
+        final File saveFile = file;
+        final Future<?> save = m_main.saveLessonInBackground(lesson, file);
+        
+        new SwingWorker<Object, Object>() {
+            protected Object doInBackground() throws Exception
+            {
+                return save.get();
+            }
+            
+            protected void done()
+            {
+                try
+                {
+                    get();
+                    updateFrameTitle();
+                }
+                catch (ExecutionException e)
+                {
+                    // unwrap the exception of the save itself
+                    Throwable cause = e.getCause();
+                    if (cause instanceof ExecutionException)
+                        cause = cause.getCause();
+                    
+                    showSaveError(saveFile, cause instanceof Exception ? 
+                        (Exception)cause : e);
+                }
+                catch (InterruptedException e)
+                {
+                    showSaveError(saveFile, e);
+                }
+            }
+        }.execute();
+    }
+    
+    /**
+     * Saves the lesson and waits until it is saved. Displays an error message
+     * if the operation failed.
+     * 
+     * @param file The path to the lesson. If <code>null</code> a file chooser
+     * is shown that allows the user to select the file.
+     */
+    public void saveLessonAndWait(Lesson lesson, File file)
     {
         try
         {
             if (file == null)
             {
                 file = AbstractExportAction.showSaveDialog(
-                    this, MainFrame.FILE_FILTER);
+                    this, MainFrame.FILE_FILTER, MainFrame.BINARY_FILE_FILTER);
                 
                 if (file == null)
                     return;
@@ -491,14 +557,19 @@ public class MainFrame extends JFrame implements CategoryObserver,
         }
         catch (Exception e)
         {
-            Object[] args = {file != null ? file.getName() : "?"};
-            MessageFormat form = new MessageFormat(Localization.get(LC.ERROR_SAVE));
-            String msg = form.format(args);
-            Main.logThrowable(msg, e);
-           
-            new ErrorDialog(this, msg, e).setVisible(true);
+            showSaveError(file, e);
         }
     }
+    
+    private void showSaveError(File file, Exception e)
+    {
+        Object[] args = {file != null ? file.getName() : "?"};
+        MessageFormat form = new MessageFormat(Localization.get(LC.ERROR_SAVE));
+        String msg = form.format(args);
+        Main.logThrowable(msg, e);
+       
+        new ErrorDialog(this, msg, e).setVisible(true);
+    }
 
     /**
      * If lesson was modified this shows a dialog that asks if the user wants to
@@ -532,7 +603,7 @@ public class MainFrame extends JFrame implements CategoryObserver,
 
             if (n == JOptionPane.OK_OPTION)
             {
-                saveLesson(lesson, lesson.getFile());
+                saveLessonAndWait(lesson, lesson.getFile());
                 
                 // if lesson was saved return true, false otherwise
                 return !lesson.canSave();
@@ -668,8 +739,9 @@ public class MainFrame extends JFrame implements CategoryObserver,
     {
         JPanel mainPanel = new JPanel(new BorderLayout());
         
-        m_deckChartPanel = new DeckChartPanel(this);
-        m_deckChartPanel.setMinimumSize(new Dimension(100, 150));
+        // the deck chart is created after the frame has been shown
+        JPanel chartPlaceholder = new JPanel();
+        chartPlaceholder.setMinimumSize(new Dimension(100, 150));
         
         m_learnPanel = new LearnPanel();
         m_deckTablePanel = new DeckTablePanel(this);
@@ -703,7 +775,7 @@ public class MainFrame extends JFrame implements CategoryObserver,
         BasicSplitPaneUI ui = (BasicSplitPaneUI)m_verticalSplitPane.getUI();
         ui.getDivider().setBorder(new EmptyBorder(5, 2, 5, 2));
         
-        m_verticalSplitPane.setTopComponent(m_deckChartPanel);
+        m_verticalSplitPane.setTopComponent(chartPlaceholder);
         m_verticalSplitPane.setBottomComponent(m_bottomPanel);
         
         mainPanel.setPreferredSize(new Dimension(800, 500));
@@ -730,6 +802,20 @@ public class MainFrame extends JFrame implements CategoryObserver,
             {
                 ExitAction.exit();
             }
+            
+            public void windowOpened(WindowEvent evt)
+            {
+                Main.logStartupTime("first frame"); //$NON-NLS-1$
+                
+                // let the frame be painted before initializing JFreeChart
+                SwingUtilities.invokeLater(new Runnable() {
+                    public void run()
+                    {
+                        createDeckChart();
+                        m_main.startupTaskFinished("deck chart"); //$NON-NLS-1$
+                    }
+                });
+            }
         });
         
         setIconImage(Toolkit.getDefaultToolkit().getImage(
@@ -811,6 +897,25 @@ public class MainFrame extends JFrame implements CategoryObserver,
         }
     }
     
+    /**
+     * Creates the deck chart and replaces its placeholder. JFreeChart takes
+     * long to initialize, so this is done after the frame has been shown.
+     */
+    private void createDeckChart()
+    {
+        int dividerLocation = m_verticalSplitPane.getDividerLocation();
+        
+        m_deckChartPanel = new DeckChartPanel(this);
+        m_deckChartPanel.setMinimumSize(new Dimension(100, 150));
+        
+        if (m_category != null)
+            m_deckChartPanel.setCategory(m_category);
+        m_deckChartPanel.setDeck(m_deck);
+        
+        m_verticalSplitPane.setTopComponent(m_deckChartPanel);
+        m_verticalSplitPane.setDividerLocation(dividerLocation);
+    }
+    
     private void loadSettings()
     {
         showCategoryTree(Settings.loadCategoryTreeVisible());
@@ -236,7 +236,7 @@ public class NewCardFrame extends EscapableFrame
 
             Card card = new Card(frontside, backside);
             
-            ImageRepository repo = ImageRepository.getInstance();
+            ImageRepository repo = Main.getInstance().getLesson().getImageRepository();
             card.getFrontSide().setImages(repo.addImages(m_cardPanel.getFrontImages()));
             card.getBackSide().setImages(repo.addImages(m_cardPanel.getBackImages()));
         
@@ -23,6 +23,9 @@ import java.awt.Color;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.MouseEvent;
+import java.io.File;
+import java.text.MessageFormat;
+import java.util.ArrayList;
 import java.util.List;
 
 import javax.swing.InputMap;
@@ -33,15 +36,21 @@ import javax.swing.JScrollPane;
 import javax.swing.JToolBar;
 import javax.swing.KeyStroke;
 import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
 import javax.swing.UIManager;
 import javax.swing.border.EtchedBorder;
 
+import jmemorize.core.BatchEvent;
+import jmemorize.core.BatchObserver;
 import jmemorize.core.Card;
+import jmemorize.core.CardLoader;
+import jmemorize.core.CardView;
 import jmemorize.core.Category;
-import jmemorize.core.CategoryObserver;
 import jmemorize.core.Main;
+import jmemorize.gui.LC;
 import jmemorize.gui.Localization;
 import jmemorize.gui.swing.actions.AbstractAction2;
+import jmemorize.gui.swing.dialogs.ErrorDialog;
 import jmemorize.gui.swing.frames.EditCardFrame;
 import jmemorize.gui.swing.frames.MainFrame;
 import jmemorize.gui.swing.widgets.CardTable;
@@ -52,7 +61,7 @@ import jmemorize.gui.swing.widgets.CardTable;
  * 
  * @author djemili
  */
-public class DeckTablePanel extends JPanel implements CategoryObserver
+public class DeckTablePanel extends JPanel implements BatchObserver
 {
     private class NextDeckAction extends AbstractAction2
     {
@@ -69,7 +78,7 @@ public class DeckTablePanel extends JPanel implements CategoryObserver
         public void actionPerformed(ActionEvent e)
         {
             int nextLevel = m_currentDeckLevel + 1;
-            while (m_category.getCards(nextLevel).isEmpty())
+            while (m_category.getCardCount(nextLevel) == 0)
             {
                 nextLevel++;
             } 
@@ -93,7 +102,7 @@ public class DeckTablePanel extends JPanel implements CategoryObserver
         public void actionPerformed(ActionEvent e)
         {
             int prevLevel = m_currentDeckLevel - 1;
-            while (prevLevel >= 0 && m_category.getCards(prevLevel).isEmpty() )
+            while (prevLevel >= 0 && m_category.getCardCount(prevLevel) == 0 )
             {
                 prevLevel--;
             }
@@ -107,6 +116,7 @@ public class DeckTablePanel extends JPanel implements CategoryObserver
     
     private int                m_currentDeckLevel = 0;
     private Category           m_category;
+    private Category           m_prefetchedCategory;
     
     private MainFrame          m_frame;
     
@@ -138,9 +148,21 @@ public class DeckTablePanel extends JPanel implements CategoryObserver
      */
     public void setDeck(int deck)
     {
-        m_cardTable.getView().setCards(m_category.getCards(deck), m_category);
         m_currentDeckLevel = deck;
         updateButtons();
+        
+        // show the cards when they have been loaded in the background
+        if (m_category.hasUnloadedCards())
+        {
+            m_cardTable.getView().setCards(new ArrayList<Card>(), m_category);
+            if (m_prefetchedCategory != m_category)
+                prefetchCards(m_category);
+            
+            return;
+        }
+        
+        m_cardTable.getView().setCards(
+            m_category.getCardView(deck, CardView.Filter.ALL), m_category, deck);
     }
     
     public void editCards() //HACK
@@ -187,6 +209,77 @@ public class DeckTablePanel extends JPanel implements CategoryObserver
         setDeck(m_currentDeckLevel);
     }
     
+    /* (non-Javadoc)
+     * @see jmemorize.core.BatchObserver
+     */
+    public void onBatchEvent(BatchEvent event)
+    {
+        setDeck(m_currentDeckLevel);
+    }
+    
+    /**
+     * Loads the cards of given category and its child categories in a
+     * background thread, so that the frame stays responsive while the cards
+     * of large lessons are loaded. The cards are shown afterwards.
+     */
+    private void prefetchCards(final Category category)
+    {
+        final List<CardLoader> loaders = new ArrayList<CardLoader>();
+        for (Category child : category.getSubtreeList())
+        {
+            if (child.getCardLoader() != null)
+                loaders.add(child.getCardLoader());
+        }
+        
+        m_prefetchedCategory = category;
+        new SwingWorker<Object, Object>() {
+            protected Object doInBackground() throws Exception
+            {
+                for (CardLoader loader : loaders)
+                    loader.prefetch();
+                
+                return null;
+            }
+            
+            protected void done()
+            {
+                if (category != m_prefetchedCategory)
+                    return;
+                
+                m_prefetchedCategory = null;
+                
+                // loading again reports errors of the background thread
+                try
+                {
+                    category.loadCards();
+                }
+                catch (IllegalStateException e)
+                {
+                    showLoadError(e);
+                    return;
+                }
+                
+                if (category == m_category)
+                    setDeck(m_currentDeckLevel);
+            }
+        }.execute();
+    }
+    
+    /**
+     * Shows the error of cards that couldn't be loaded, e.g. because the
+     * lesson file has been moved or rewritten in the meantime.
+     */
+    private void showLoadError(Exception e)
+    {
+        File file = Main.getInstance().getLesson().getFile();
+        Object[] args = {file != null ? file.getName() : "?"};
+        MessageFormat form = new MessageFormat(Localization.get(LC.ERROR_LOAD));
+        String msg = form.format(args);
+        Main.logThrowable(msg, e);
+        
+        new ErrorDialog(m_frame, msg, e).setVisible(true);
+    }
+    
     private void updateButtons()
     {
         m_previousDeckAction.setEnabled(m_currentDeckLevel >= 0);
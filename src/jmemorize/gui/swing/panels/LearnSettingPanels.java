@@ -603,8 +603,8 @@ public class LearnSettingPanels
     
     private void updateCardButtons()
     {
-        boolean enableUnlearned = !getSelectedCategory().getUnlearnedCards().isEmpty();
-        boolean enableExpired = !getSelectedCategory().getExpiredCards().isEmpty();
+        boolean enableUnlearned = getSelectedCategory().getUnlearnedCardCount() > 0;
+        boolean enableExpired = getSelectedCategory().getExpiredCardCount() > 0;
         boolean enableAll = enableUnlearned && enableExpired;
         boolean enableSelected =  m_hasSelectedCards;
         
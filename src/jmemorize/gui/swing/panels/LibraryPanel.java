@@ -0,0 +1,194 @@
+/*
+ * jMemorize - Learning made easy (and fun) - A Leitner flashcards tool
+ * Copyright(C) 2004-2008 Riad Djemili and contributors
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 1, or (at your option)
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package jmemorize.gui.swing.panels;
+
+import java.awt.BorderLayout;
+import java.awt.Window;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
+import javax.swing.SwingWorker;
+import javax.swing.table.AbstractTableModel;
+
+import jmemorize.core.Main;
+import jmemorize.core.io.LessonSummary;
+import jmemorize.gui.LC;
+import jmemorize.gui.Localization;
+
+/**
+ * A panel that shows the card counts of all recently used lessons. The counts
+ * are read from the lesson summaries, so that the lessons don't need to be
+ * loaded. Lessons with stale summaries are loaded in the background.
+ * Double-clicking a lesson opens it.
+ *
+ * @author djemili
+ */
+public class LibraryPanel extends JPanel
+{
+    private class SummaryTableModel extends AbstractTableModel
+    {
+        private final String[] m_columns = new String[] {
+            Localization.get(LC.LIBRARY_LESSON),
+            Localization.get(LC.LIBRARY_CARDS),
+            Localization.get(LC.LIBRARY_UNLEARNED),
+            Localization.get(LC.LIBRARY_EXPIRED),
+            Localization.get(LC.LIBRARY_DUE_TODAY),
+            Localization.get(LC.LIBRARY_NEXT_DUE)
+        };
+        
+        public int getRowCount()
+        {
+            return m_files.size();
+        }
+        
+        public int getColumnCount()
+        {
+            return m_columns.length;
+        }
+        
+        public String getColumnName(int column)
+        {
+            return m_columns[column];
+        }
+        
+        public Class<?> getColumnClass(int column)
+        {
+            return column >= 1 && column <= 4 ? Integer.class : String.class;
+        }
+        
+        public Object getValueAt(int row, int column)
+        {
+            if (column == 0)
+                return m_files.get(row).getName();
+            
+            LessonSummary summary = m_summaries.get(row);
+            if (summary == null)
+                return column == 1 ? Localization.get(LC.LIBRARY_LOADING) : null;
+            
+            switch (column)
+            {
+            case 1:
+                return summary.getCardCount();
+            case 2:
+                return summary.getUnlearnedCardCount();
+            case 3:
+                return summary.getExpiredCardCount(m_now);
+            case 4:
+                return summary.getDueCardCount(m_now);
+            default:
+                Date next = summary.getNextExpiration();
+                if (next == null || !next.after(m_now))
+                    return "-"; //$NON-NLS-1$
+                
+                return Localization.SHORT_DATE_FORMATER.format(next);
+            }
+        }
+    }
+    
+    private List<File>          m_files = new ArrayList<File>();
+    private List<LessonSummary> m_summaries;
+    private Date                m_now = Main.getNow();
+    
+    private SummaryTableModel   m_model = new SummaryTableModel();
+    private JTable              m_table = new JTable(m_model);
+    
+    public LibraryPanel(List<String> lessonFiles)
+    {
+        for (String lessonFile : lessonFiles)
+            m_files.add(new File(lessonFile));
+        
+        m_summaries = LessonSummary.read(m_files);
+        loadStaleSummaries();
+        
+        initComponents();
+    }
+    
+    private void loadStaleSummaries()
+    {
+        for (int i = 0; i < m_files.size(); i++)
+        {
+            if (m_summaries.get(i) != null || !m_files.get(i).isFile())
+                continue;
+            
+            final int row = i;
+            final File file = m_files.get(i);
+            
+            new SwingWorker<LessonSummary, Object>() {
+                protected LessonSummary doInBackground() throws Exception
+                {
+                    LessonSummary summary = LessonSummary.load(file);
+                    summary.write(file);
+                    
+                    return summary;
+                }
+                
+                protected void done()
+                {
+                    try
+                    {
+                        m_summaries.set(row, get());
+                        m_model.fireTableRowsUpdated(row, row);
+                    }
+                    catch (Exception e)
+                    {
+                        Main.logThrowable("Could not summarize lesson "+file, e);
+                    }
+                }
+            }.execute();
+        }
+    }
+    
+    private void openSelectedLesson()
+    {
+        int row = m_table.getSelectedRow();
+        if (row < 0)
+            return;
+        
+        Window window = SwingUtilities.getWindowAncestor(this);
+        if (window != null)
+            window.dispose();
+        
+        Main.getInstance().getFrame().loadLesson(m_files.get(row));
+    }
+    
+    private void initComponents()
+    {
+        m_table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        m_table.getColumnModel().getColumn(0).setPreferredWidth(200);
+        m_table.addMouseListener(new MouseAdapter() {
+            public void mouseClicked(MouseEvent e)
+            {
+                if (e.getClickCount() == 2)
+                    openSelectedLesson();
+            }
+        });
+        
+        setLayout(new BorderLayout());
+        add(new JScrollPane(m_table), BorderLayout.CENTER);
+    }
+}
@@ -27,6 +27,7 @@ import javax.swing.JPanel;
 import javax.swing.border.EmptyBorder;
 
 import jmemorize.core.Card;
+import jmemorize.core.Category;
 import jmemorize.gui.LC;
 import jmemorize.gui.Localization;
 
@@ -92,8 +93,38 @@ public class StatusBar extends JPanel
             }
         }
         
+        setCardCounts(cards.size(), learned, expired, unlearned);
+    }
+    
+    /**
+     * Sets the currently shown deck. The number of cards is taken from the
+     * card counts of the category, so that the cards don't need to be counted.
+     * 
+     * @param category the category whose cards are displayed.
+     * @param level the level of the displayed deck or -1 if all decks are
+     * displayed.
+     */
+    public void setCards(Category category, int level)
+    {
+        if (level == -1)
+        {
+            setCardCounts(category.getCardCount(-1), 
+                category.getLearnedCardCount(), category.getExpiredCardCount(), 
+                category.getUnlearnedCardCount());
+        }
+        else
+        {
+            setCardCounts(category.getCardCount(level), 
+                category.getLearnedCardCount(level), 
+                category.getExpiredCardCount(level), 
+                level == 0 ? category.getCardCount(0) : 0);
+        }
+    }
+    
+    private void setCardCounts(int cards, int learned, int expired, int unlearned)
+    {
         Object[] args = {
-            Localization.get(LC.STATUS_CARDS),     new Integer(cards.size()),
+            Localization.get(LC.STATUS_CARDS),     new Integer(cards),
             Localization.get(LC.STATUS_LEARNED),   new Integer(learned),
             Localization.get(LC.STATUS_EXPIRED),   new Integer(expired),
             Localization.get(LC.STATUS_UNLEARNED), new Integer(unlearned)};
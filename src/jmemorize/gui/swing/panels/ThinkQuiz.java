@@ -25,6 +25,7 @@ import javax.swing.JPanel;
 
 import jmemorize.core.CardSide;
 import jmemorize.core.ImageRepository;
+import jmemorize.core.Main;
 import jmemorize.gui.LC;
 import jmemorize.gui.Localization;
 import jmemorize.gui.swing.CardFont;
@@ -50,7 +51,7 @@ public class ThinkQuiz implements Quiz
         
         m_answerPanel.setText(m_answerCardSide.getText());
         
-        ImageRepository repo = ImageRepository.getInstance();
+        ImageRepository repo = Main.getInstance().getLesson().getImageRepository();
         List<ImageIcon> images = repo.toImageIcons(m_answerCardSide.getImages());
         m_answerPanel.setImages(images);
     }
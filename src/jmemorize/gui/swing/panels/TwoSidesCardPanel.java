@@ -27,6 +27,7 @@ import javax.swing.event.DocumentListener;
 
 import jmemorize.core.FormattedText;
 import jmemorize.core.ImageRepository;
+import jmemorize.core.Main;
 import jmemorize.core.Settings;
 import jmemorize.core.Settings.CardFontObserver;
 import jmemorize.gui.LC;
@@ -206,7 +207,7 @@ public class TwoSidesCardPanel extends CardPanel implements CardFontObserver
     
     private void setSideImages(CardSidePanel cardSide, List<String> ids)
     {
-        ImageRepository repo = ImageRepository.getInstance();
+        ImageRepository repo = Main.getInstance().getLesson().getImageRepository();
         List<ImageIcon> images = repo.toImageIcons(ids);
         cardSide.setImages(images);
     }
@@ -26,6 +26,7 @@ import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
@@ -270,6 +271,8 @@ public class CardTable extends JTable implements Settings.CardFontObserver,
         private List<Card>      m_cards    = new ArrayList<Card>();
         // HACK currently this is only needed for transferhandlers
         private Category        m_category;
+        private boolean         m_showsDeck;
+        private int             m_deck;
 
         private int             m_orderModelIndex;
         private int             m_orderDir;
@@ -281,11 +284,23 @@ public class CardTable extends JTable implements Settings.CardFontObserver,
         
         public void setCards(List<Card> cards, Category category)
         {
-            m_cards = cards;
-            m_category = category;
-            resort();
-            
-            updateCardCountStatusBar();
+            m_showsDeck = false;
+            updateCards(cards, category);
+        }
+        
+        /**
+         * Shows the cards of the deck with given level of given category. The
+         * status bar takes the number of cards from the category then.
+         * 
+         * @param cards the cards to show, e.g. a view of the deck. They are
+         * copied once, because the table sorts its own list.
+         * @param level the level of the deck or -1 for the cards of all decks.
+         */
+        public void setCards(Collection<Card> cards, Category category, int level)
+        {
+            m_showsDeck = true;
+            m_deck = level;
+            updateCards(new ArrayList<Card>(cards), category);
         }
         
         /**
@@ -365,6 +380,15 @@ public class CardTable extends JTable implements Settings.CardFontObserver,
             return m_orderDir;
         }
         
+        private void updateCards(List<Card> cards, Category category)
+        {
+            m_cards = cards;
+            m_category = category;
+            resort();
+            
+            updateCardCountStatusBar();
+        }
+        
         private void resort()
         {
             if (m_cards != null) //CHECK
@@ -1014,7 +1038,10 @@ public class CardTable extends JTable implements Settings.CardFontObserver,
     {
         if (m_statusBar != null)
         {
-            m_statusBar.setCards(m_tableModel.getCards());
+            if (m_tableModel.m_showsDeck)
+                m_statusBar.setCards(m_tableModel.m_category, m_tableModel.m_deck);
+            else
+                m_statusBar.setCards(m_tableModel.getCards());
         }
     }
     
@@ -29,9 +29,10 @@ import javax.swing.JList;
 import javax.swing.border.EmptyBorder;
 import javax.swing.plaf.basic.BasicComboBoxRenderer;
 
+import jmemorize.core.BatchEvent;
+import jmemorize.core.BatchObserver;
 import jmemorize.core.Card;
 import jmemorize.core.Category;
-import jmemorize.core.CategoryObserver;
 
 /**
  * A combobox that shows categories. The categories are indented in a way that
@@ -39,7 +40,7 @@ import jmemorize.core.CategoryObserver;
  * 
  * @author djemili
  */
-public class CategoryComboBox extends JComboBox implements CategoryObserver
+public class CategoryComboBox extends JComboBox implements BatchObserver
 {
     private class CatergoryRenderer extends BasicComboBoxRenderer
     {
@@ -119,6 +120,15 @@ public class CategoryComboBox extends JComboBox implements CategoryObserver
         // ignore
     }
     
+    /* (non-Javadoc)
+     * @see jmemorize.core.BatchObserver
+     */
+    public void onBatchEvent(BatchEvent event)
+    {
+        if (event.hasCategoryEvents())
+            updateModel();
+    }
+    
     private void updateModel()
     {
         Object selected = getModel().getSelectedItem();